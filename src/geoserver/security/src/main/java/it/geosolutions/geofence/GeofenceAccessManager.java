@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
@@ -32,14 +33,15 @@ import javax.servlet.http.HttpServletRequest;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.MultiPolygon;
-import com.vividsolutions.jts.io.WKTReader;
-import com.vividsolutions.jts.io.ParseException;
 
-import it.geosolutions.geofence.core.model.LayerAttribute;
-import it.geosolutions.geofence.core.model.enums.AccessType;
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.cache.CompiledLimitsCache;
+import it.geosolutions.geofence.cache.CompiledLimitsCache.CompiledLimits;
+import it.geosolutions.geofence.cache.ReprojectedAreaCache;
 import it.geosolutions.geofence.core.model.enums.GrantType;
 import it.geosolutions.geofence.services.RuleReaderService;
 import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.LayerAccessInfos;
 import it.geosolutions.geofence.services.dto.RuleFilter;
 
 import org.geoserver.catalog.Catalog;
@@ -74,19 +76,9 @@ import org.geoserver.wms.GetFeatureInfoRequest;
 import org.geoserver.wms.GetLegendGraphicRequest;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.MapLayerInfo;
-import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.filter.text.cql2.CQLException;
-import org.geotools.filter.text.ecql.ECQL;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
 import org.geotools.styling.Style;
 import org.geotools.util.Converters;
 import org.geotools.util.logging.Logging;
-import org.opengis.filter.Filter;
-import org.opengis.filter.FilterFactory2;
-import org.opengis.filter.expression.PropertyName;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
@@ -108,14 +100,6 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
      */
     static final String ROOT_ROLE = "ROLE_ADMINISTRATOR";
 
-    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2(null);
-
-    enum PropertyAccessMode
-    {
-        READ,
-        WRITE
-    }
-
     CatalogMode catalogMode = CatalogMode.HIDE;
 
     RuleReaderService rules;
@@ -127,6 +111,9 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
     boolean allowRemoteAndInlineLayers;
     boolean allowDynamicStyles;
 
+    ReprojectedAreaCache reprojectedAreaCache = new ReprojectedAreaCache();
+    CompiledLimitsCache compiledLimitsCache = new CompiledLimitsCache();
+
    	public GeofenceAccessManager(RuleReaderService rules, Catalog catalog, String instanceName) {
 
         this.rules = rules;
@@ -173,6 +160,19 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
         if (owsRequest == null) {
             return null;
         }
+
+        // the address may require a name lookup: resolve it only once per request
+        RequestMemo memo = RequestMemo.get(owsRequest);
+        if (memo != null) {
+            if (!memo.isAddressResolved()) {
+                memo.setSourceAddress(resolveSourceAddress(owsRequest));
+            }
+            return memo.getSourceAddress();
+        }
+        return resolveSourceAddress(owsRequest);
+    }
+
+    private InetAddress resolveSourceAddress(Request owsRequest) {
         try {
             HttpServletRequest http = owsRequest.getHttpRequest();
             if (http == null) {
@@ -270,61 +270,145 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
         String workspace = ws.getName();
 
         // get the request infos
-        RuleFilter ruleFilter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
-        if (username == null)
+        RuleFilter ruleFilter = buildRuleFilter(owsRequest, username, service, request, workspace, layer);
+
+        LOGGER.log(Level.FINE, "ResourceInfo filter: {0}", ruleFilter);
+
+        AccessInfo rule = getAccessInfo(owsRequest, ruleFilter);
+
+        if (rule == null)
         {
-            ruleFilter.setUser(RuleFilter.SpecialFilterType.DEFAULT);
+            rule = AccessInfo.DENY_ALL;
         }
-        else
-        {
+
+        DataAccessLimits limits = buildAccessLimits(resource, rule);
+        LOGGER.log(Level.FINE, "Returning {0} for layer {1} and user {2}",
+            new Object[] { limits, resource.getPrefixedName(), username });
+
+        return limits;
+    }
+
+    /**
+     * Builds the filter for a decision on a resource.
+     * <P/>
+     * All the decisions are requested through this method, so that the same decision
+     * is always requested with the same filter, and shares the same cache entry.
+     *
+     * @param username the authenticated user, or null for anonymous requests,
+     *        which are matched against the rules not bound to any user.
+     * @param service the requested service, "*" for any, or null if unknown.
+     * @param request the requested operation, "*" for any, or null if unknown.
+     * @param workspace the workspace of the resource, or null for remote and inline layers.
+     * @param layer the name of the resource, or null for remote and inline layers.
+     */
+    RuleFilter buildRuleFilter(Request owsRequest, String username, String service, String request,
+            String workspace, String layer) {
+        RuleFilter ruleFilter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        if (username == null) {
+            ruleFilter.setUser(RuleFilter.SpecialFilterType.DEFAULT);
+        } else {
             ruleFilter.setUser(username);
         }
         ruleFilter.setInstance(instanceName);
-        if (service != null)
-        {
-            if ("*".equals(service))
-            {
-                ruleFilter.setService(RuleFilter.SpecialFilterType.ANY);
-            }
-            else
-            {
-                ruleFilter.setService(service);
-            }
-        } else {
+
+        if (service == null) {
             ruleFilter.setService(RuleFilter.SpecialFilterType.DEFAULT);
+        } else if ("*".equals(service)) {
+            ruleFilter.setService(RuleFilter.SpecialFilterType.ANY);
+        } else {
+            ruleFilter.setService(service);
         }
 
-        if (request != null)
-        {
-            if ("*".equals(request))
-            {
-                ruleFilter.setRequest(RuleFilter.SpecialFilterType.ANY);
-            }
-            else
-            {
-                ruleFilter.setRequest(request);
-            }
-        } else {
+        if (request == null) {
             ruleFilter.setRequest(RuleFilter.SpecialFilterType.DEFAULT);
+        } else if ("*".equals(request)) {
+            ruleFilter.setRequest(RuleFilter.SpecialFilterType.ANY);
+        } else {
+            ruleFilter.setRequest(request);
+        }
+
+        if (workspace == null || layer == null) {
+            ruleFilter.setWorkspace(RuleFilter.SpecialFilterType.ANY);
+            ruleFilter.setLayer(RuleFilter.SpecialFilterType.ANY);
+        } else {
+            ruleFilter.setWorkspace(workspace);
+            ruleFilter.setLayer(layer);
         }
-        ruleFilter.setWorkspace(workspace);
-        ruleFilter.setLayer(layer);
         ruleFilter.setSourceAddress(getSourceAddress(owsRequest));
+        return ruleFilter;
+    }
 
-        LOGGER.log(Level.FINE, "ResourceInfo filter: {0}", ruleFilter);
+    /**
+     * Fetches in a single call the decisions on all the layers, which are about to be
+     * requested one by one while the capabilities document is encoded.
+     * <P/>
+     * The decisions are only kept by the {@link CachedRuleReader}, so nothing is fetched
+     * when the cache is not in use. Failures are not fatal: the single decisions
+     * will be requested as usual.
+     */
+    void prefetchAccessInfos(Request owsRequest, String service, String request, String username) {
+        if (!(rules instanceof CachedRuleReader)) {
+            return;
+        }
 
-        AccessInfo rule = rules.getAccessInfo(ruleFilter);
+        RuleFilter ruleFilter = buildRuleFilter(owsRequest, username, service, request, null, null);
+        try {
+            LayerAccessInfos infos = rules.getLayerAccessInfos(ruleFilter);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Prefetched {0} decisions for {1}", new Object[] { infos.size(), ruleFilter });
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not prefetch the decisions for " + ruleFilter, e);
+        }
+    }
 
-        if (rule == null)
-        {
-            rule = AccessInfo.DENY_ALL;
+    /**
+     * Retrieves the AccessInfo, reusing the decisions already taken while serving the same request.
+     */
+    AccessInfo getAccessInfo(Request owsRequest, RuleFilter ruleFilter) {
+        RequestMemo memo = RequestMemo.get(owsRequest);
+        if (memo == null) {
+            return rules.getAccessInfo(ruleFilter);
         }
 
-        DataAccessLimits limits = buildAccessLimits(resource, rule);
-        LOGGER.log(Level.FINE, "Returning {0} for layer {1} and user {2}",
-            new Object[] { limits, resource.getPrefixedName(), username });
+        AccessInfo rule = memo.getAccessInfo(ruleFilter);
+        if (rule == null) {
+            rule = rules.getAccessInfo(ruleFilter);
+            memo.putAccessInfo(ruleFilter, rule);
+        }
+        return rule;
+    }
 
-        return limits;
+    /**
+     * Retrieves many AccessInfos in a single call, reusing the decisions already taken while serving the same request.
+     */
+    List<AccessInfo> getAccessInfos(Request owsRequest, List<RuleFilter> ruleFilters) {
+        RequestMemo memo = RequestMemo.get(owsRequest);
+        if (memo == null) {
+            return rules.getAccessInfos(ruleFilters);
+        }
+
+        List<AccessInfo> ret = new ArrayList<AccessInfo>(ruleFilters.size());
+        List<RuleFilter> missing = new ArrayList<RuleFilter>();
+        for (RuleFilter ruleFilter : ruleFilters) {
+            AccessInfo rule = memo.getAccessInfo(ruleFilter);
+            ret.add(rule);
+            if (rule == null) {
+                missing.add(ruleFilter);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Iterator<AccessInfo> loaded = rules.getAccessInfos(missing).iterator();
+            for (int i = 0; i < ret.size(); i++) {
+                if (ret.get(i) == null) {
+                    AccessInfo rule = loaded.next();
+                    memo.putAccessInfo(ruleFilters.get(i), rule);
+                    ret.set(i, rule);
+                }
+            }
+        }
+        return ret;
     }
 
     /**
@@ -334,82 +418,38 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
      */
     DataAccessLimits buildAccessLimits(ResourceInfo resource, AccessInfo rule)
     {
-        // basic filter
-        Filter readFilter = (rule.getGrant() == GrantType.ALLOW) ? Filter.INCLUDE : Filter.EXCLUDE;
-        Filter writeFilter = (rule.getGrant() == GrantType.ALLOW) ? Filter.INCLUDE : Filter.EXCLUDE;
-        try
-        {
-            if (rule.getCqlFilterRead() != null)
-            {
-                readFilter = ECQL.toFilter(rule.getCqlFilterRead());
-            }
-            if (rule.getCqlFilterWrite() != null)
-            {
-                writeFilter = ECQL.toFilter(rule.getCqlFilterWrite());
-            }
-        }
-        catch (CQLException e)
-        {
-            throw new IllegalArgumentException("Invalid cql filter found: " + e.getMessage(), e);
-        }
-
-        // get the attributes
-        List<PropertyName> readAttributes = toPropertyNames(rule.getAttributes(),
-                PropertyAccessMode.READ);
-        List<PropertyName> writeAttributes = toPropertyNames(rule.getAttributes(),
-                PropertyAccessMode.WRITE);
+        // filters and attributes are compiled only once per AccessInfo
+        CompiledLimits compiled = compiledLimitsCache.getLimits(rule);
 
         // reproject the area if necessary
+        // the area is decoded only once by the AccessInfo, which may be cached:
+        // the reprojected area is shared through the reprojectedAreaCache and must not be modified
         Geometry area = null;
-        String areaWkt = rule.getAreaWkt();
-        if(areaWkt != null) {
-            try {
-
-//            Geometry area = rule.getArea();
-                WKTReader wktReader = new WKTReader();
-                area = wktReader.read(areaWkt);
-
-                if ((area != null) && (area.getSRID() > 0)) {
-                    CoordinateReferenceSystem geomCrs = CRS.decode("EPSG:" + area.getSRID());
-                    CoordinateReferenceSystem resourceCrs = resource.getCRS();
-                    if ((resourceCrs != null) && !CRS.equalsIgnoreMetadata(geomCrs, resourceCrs)) {
-                        MathTransform mt = CRS.findMathTransform(geomCrs, resourceCrs, true);
-                        area = JTS.transform(area, mt);
-//                        rule.setArea(area);
-                        rule.setAreaWkt(area.toString());
-                    }
-                }
-            } catch (ParseException e) {
-                throw new RuntimeException("Failed to unmarshal the restricted area wkt", e);
-            } catch (Exception e) {
-                throw new RuntimeException("Failed to reproject the restricted area to the layer's native SRS", e);
-            }
+        try {
+            area = rule.getArea();
+        } catch (IllegalStateException e) {
+            throw new RuntimeException("Failed to unmarshal the restricted area", e);
         }
+        area = reprojectedAreaCache.reproject(area, resource.getCRS());
 
         if (resource instanceof FeatureTypeInfo)
         {
             // merge the area among the filters
-            if (area != null)
-            {
-                Filter areaFilter = FF.intersects(FF.property(""), FF.literal(area));
-                readFilter = mergeFilter(readFilter, areaFilter);
-                writeFilter = mergeFilter(writeFilter, areaFilter);
-            }
-
-            return new VectorAccessLimits(catalogMode, readAttributes, readFilter, writeAttributes,
-                    writeFilter);
+            return new VectorAccessLimits(catalogMode,
+                    compiled.getReadAttributes(), compiled.getReadFilter(area),
+                    compiled.getWriteAttributes(), compiled.getWriteFilter(area));
         }
         else if (resource instanceof CoverageInfo)
         {
-            MultiPolygon rasterFilter = buildRasterFilter(rule);
+            MultiPolygon rasterFilter = buildRasterFilter(area);
 
-            return new CoverageAccessLimits(catalogMode, readFilter, rasterFilter, null);
+            return new CoverageAccessLimits(catalogMode, compiled.getReadFilter(), rasterFilter, null);
         }
         else if (resource instanceof WMSLayerInfo)
         {
-            MultiPolygon rasterFilter = buildRasterFilter(rule);
+            MultiPolygon rasterFilter = buildRasterFilter(area);
 
-            return new WMSAccessLimits(catalogMode, readFilter, rasterFilter, true);
+            return new WMSAccessLimits(catalogMode, compiled.getReadFilter(), rasterFilter, true);
         }
         else
         {
@@ -417,23 +457,16 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
         }
     }
 
-    private MultiPolygon buildRasterFilter(AccessInfo rule)
+    private MultiPolygon buildRasterFilter(Geometry area)
     {
         MultiPolygon rasterFilter = null;
-        if (rule.getAreaWkt() != null)
+        if (area != null)
         {
-            WKTReader reader = new WKTReader();
-            Geometry area = null;
-            try {
-                area = reader.read(rule.getAreaWkt());
-            } catch (ParseException e) {
-                throw new RuntimeException("Failed to unmarshal the restricted area wkt", e);
-            }
             rasterFilter = Converters.convert(area, MultiPolygon.class);
             if (rasterFilter == null)
             {
                 throw new RuntimeException("Error applying security rules, cannot convert " +
-                    "the Geofence area restriction " + rule.getAreaWkt() +
+                    "the Geofence area restriction " + area.getGeometryType() +
                     " to a multi-polygon");
             }
         }
@@ -441,58 +474,14 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
         return rasterFilter;
     }
 
-    /**
-     * Merges the two filters into one by AND
-     *
-     * @param filter
-     * @param areaFilter
-     * @return
-     */
-    private Filter mergeFilter(Filter filter, Filter areaFilter) {
-        if ((filter == null) || (filter == Filter.INCLUDE)) {
-            return areaFilter;
-        } else if (filter == Filter.EXCLUDE) {
-            return filter;
-        } else {
-            return FF.and(filter, areaFilter);
-        }
-    }
-
-    /**
-     * Builds the equivalent {@link PropertyName} list for the specified access mode
-     *
-     * @param attributes
-     * @param mode
-     * @return
-     */
-    private List<PropertyName> toPropertyNames(Set<LayerAttribute> attributes,
-            PropertyAccessMode mode) {
-        // handle simple case
-        if (attributes == null || attributes.isEmpty()) {
-            return null;
-        }
-
-        // filter and translate
-        List<PropertyName> result = new ArrayList<PropertyName>();
-        for (LayerAttribute attribute : attributes) {
-            if ((attribute.getAccess() == AccessType.READWRITE)
-                    || ((mode == PropertyAccessMode.READ)
-                    && (attribute.getAccess() == AccessType.READONLY))) {
-                PropertyName property = FF.property(attribute.getName());
-                result.add(property);
-            }
-        }
-
-        return result;
-    }
-
     @Override
     public void finished(Request request) {
-        // nothing to do
+        RequestMemo.detach(request);
     }
 
     @Override
     public Request init(Request request) {
+        RequestMemo.attach(request);
         return request;
     }
 
@@ -516,7 +505,9 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
             }
         }
 
-        if ((request != null) && "WMS".equalsIgnoreCase(service) && ("GetMap".equalsIgnoreCase(request)
+        if ((request != null) && "GetCapabilities".equalsIgnoreCase(request)) {
+            prefetchAccessInfos(gsRequest, service, request, username);
+        } else if ((request != null) && "WMS".equalsIgnoreCase(service) && ("GetMap".equalsIgnoreCase(request)
                 || "GetFeatureInfo".equalsIgnoreCase(request))) {
             // extract the getmap part
             Object ro = operation.getParameters()[0];
@@ -546,19 +537,12 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
         ResourceInfo resource = layer.getResource();
 
         // get the rule, it contains default and allowed styles
-        RuleFilter ruleFilter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
-        if(username != null) {
-	    ruleFilter.setUser(username);
-	}
-        ruleFilter.setInstance(instanceName);
-        ruleFilter.setService(service);
-        ruleFilter.setRequest(request);
-        ruleFilter.setWorkspace(resource.getStore().getWorkspace().getName());
-        ruleFilter.setLayer(resource.getName());
+        RuleFilter ruleFilter = buildRuleFilter(gsRequest, username, service, request,
+                resource.getStore().getWorkspace().getName(), resource.getName());
 
         LOGGER.log(Level.FINE, "Getting access limits for getLegendGraphic", ruleFilter);
 
-        AccessInfo rule = rules.getAccessInfo(ruleFilter);
+        AccessInfo rule = getAccessInfo(gsRequest, ruleFilter);
 
         // get the request object
         GetLegendGraphicRequest getLegend = (GetLegendGraphicRequest) operation.getParameters()[0];
@@ -610,8 +594,9 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
             styleNameList.addAll(KvpUtils.readFlat(stylesParam));
         }
 
-        // apply the override/security check for each layer in the request
+        // collect the rules for all the layers in the request
         List<MapLayerInfo> layers = getMap.getLayers();
+        List<RuleFilter> ruleFilters = new ArrayList<RuleFilter>(layers.size());
         for (int i = 0; i < layers.size(); i++)
         {
             MapLayerInfo layer = layers.get(i);
@@ -622,26 +607,21 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
                 throw new ServiceException("Remote layers are not allowed");                
             }
 
-            // get the rule, it contains default and allowed styles
-            RuleFilter ruleFilter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+            // build the filter for the layer; remote and inline layers match any layer
+            ruleFilters.add(buildRuleFilter(gsRequest, username, service, request,
+                    info == null ? null : info.getStore().getWorkspace().getName(),
+                    info == null ? null : info.getName()));
+        }
 
-            if(username != null)
-                ruleFilter.setUser(username); // ?? maybe a DEFAULT here
-            ruleFilter.setInstance(instanceName);
-            ruleFilter.setService(service);
-            ruleFilter.setRequest(request);
-            if(info != null) {
-	            ruleFilter.setWorkspace(info.getStore().getWorkspace().getName());
-	            ruleFilter.setLayer(info.getName());
-	            
-            } else {
-            	ruleFilter.setWorkspace(RuleFilter.SpecialFilterType.ANY);
-            	ruleFilter.setLayer(RuleFilter.SpecialFilterType.ANY);
-            }
+        LOGGER.log(Level.FINE, "Getting access limits for getMap", ruleFilters);
 
-            LOGGER.log(Level.FINE, "Getting access limits for getMap", ruleFilter);
+        // the rules contain default and allowed styles
+        List<AccessInfo> layerRules = getAccessInfos(gsRequest, ruleFilters);
 
-            AccessInfo rule = rules.getAccessInfo(ruleFilter);
+        // apply the override/security check for each layer in the request
+        for (int i = 0; i < layers.size(); i++)
+        {
+            AccessInfo rule = layerRules.get(i);
 
             // get the requested style name
             String styleName = (styleNameList.size() > 0) ? styleNameList.get(i) : null;
@@ -748,6 +728,22 @@ public class GeofenceAccessManager implements ResourceAccessManager, DispatcherC
         return instanceName;
     }
 
+    public void setReprojectedAreaCache(ReprojectedAreaCache reprojectedAreaCache) {
+        this.reprojectedAreaCache = reprojectedAreaCache;
+    }
+
+    public ReprojectedAreaCache getReprojectedAreaCache() {
+        return reprojectedAreaCache;
+    }
+
+    public void setCompiledLimitsCache(CompiledLimitsCache compiledLimitsCache) {
+        this.compiledLimitsCache = compiledLimitsCache;
+    }
+
+    public CompiledLimitsCache getCompiledLimitsCache() {
+        return compiledLimitsCache;
+    }
+
     public void setAllowRemoteAndInlineLayers(boolean allowRemoteAndInlineLayers) {
         this.allowRemoteAndInlineLayers = allowRemoteAndInlineLayers;
     }
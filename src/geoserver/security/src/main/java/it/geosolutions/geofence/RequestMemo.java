@@ -0,0 +1,102 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoserver.ows.Request;
+
+/**
+ * Decisions taken while serving a single OWS request.
+ * <P/>
+ * GeoServer asks for the limits of the same layer several times while serving a request
+ * (catalog filtering, style overrides, data access): the memo is attached to the
+ * HTTP request in {@link GeofenceAccessManager#init(Request) init()} and removed in
+ * {@link GeofenceAccessManager#finished(Request) finished()},
+ * so that repeated decisions only cost a map lookup.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+class RequestMemo {
+
+    static final String ATTRIBUTE = RequestMemo.class.getName();
+
+    private final ConcurrentMap<RuleFilter, AccessInfo> accessInfos = new ConcurrentHashMap<RuleFilter, AccessInfo>();
+
+    private volatile boolean addressResolved = false;
+    private volatile InetAddress sourceAddress;
+
+    /**
+     * @return the memo attached to the request, or null if the request has none.
+     */
+    static RequestMemo get(Request owsRequest) {
+        if (owsRequest == null) {
+            return null;
+        }
+        HttpServletRequest http = owsRequest.getHttpRequest();
+        if (http == null) {
+            return null;
+        }
+        Object memo = http.getAttribute(ATTRIBUTE);
+        return memo instanceof RequestMemo ? (RequestMemo) memo : null;
+    }
+
+    static void attach(Request owsRequest) {
+        if (owsRequest != null && owsRequest.getHttpRequest() != null) {
+            owsRequest.getHttpRequest().setAttribute(ATTRIBUTE, new RequestMemo());
+        }
+    }
+
+    static void detach(Request owsRequest) {
+        if (owsRequest != null && owsRequest.getHttpRequest() != null) {
+            owsRequest.getHttpRequest().removeAttribute(ATTRIBUTE);
+        }
+    }
+
+    AccessInfo getAccessInfo(RuleFilter filter) {
+        return accessInfos.get(filter);
+    }
+
+    void putAccessInfo(RuleFilter filter, AccessInfo accessInfo) {
+        if (accessInfo != null) {
+            accessInfos.put(filter, accessInfo);
+        }
+    }
+
+    boolean isAddressResolved() {
+        return addressResolved;
+    }
+
+    InetAddress getSourceAddress() {
+        return sourceAddress;
+    }
+
+    void setSourceAddress(InetAddress sourceAddress) {
+        this.sourceAddress = sourceAddress;
+        this.addressResolved = true;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.cache;
+
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Persists the hottest {@link CachedRuleReader} entries, so that the cache can be warmed up
+ * at startup without waiting for the traffic to fill it.
+ * <P/>
+ * The file is a gzipped Java serialization of a {@link Snapshot}; it is written to a temp file
+ * and then renamed, so that a crash while writing never leaves a truncated snapshot.
+ * <BR/>Unless an explicit file is set, the snapshot is stored as
+ * <TT>geofence/rulecache-snapshot.bin.gz</TT> in the GeoServer data directory.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class CacheSnapshotStore {
+
+    static final Logger LOGGER = Logging.getLogger(CacheSnapshotStore.class);
+
+    /** Bumped when the format changes: snapshots in other formats are ignored. */
+    private static final int FORMAT_VERSION = 1;
+
+    private File file;
+    private GeoServerResourceLoader resourceLoader;
+
+    /**
+     * The persisted entries, with the position in the server change events stream
+     * at the time the snapshot was taken.
+     */
+    public static class Snapshot implements Serializable {
+
+        private static final long serialVersionUID = 4581650370221984713L;
+
+        private final long timestamp;
+        private final long ruleSetVersion;
+        private final long changeEpoch;
+        private final long changeSequence;
+        private final LinkedHashMap<RuleFilter, AccessInfo> entries;
+
+        /**
+         * @param entries the entries, hottest first
+         * @param changeSequence the last change event applied to the entries, or -1 if not known
+         */
+        public Snapshot(Map<RuleFilter, AccessInfo> entries, long changeEpoch, long changeSequence) {
+            this.timestamp = System.currentTimeMillis();
+            this.entries = new LinkedHashMap<RuleFilter, AccessInfo>(entries);
+            this.changeEpoch = changeEpoch;
+            this.changeSequence = changeSequence;
+
+            long version = 0;
+            for (AccessInfo accessInfo : entries.values()) {
+                version = Math.max(version, accessInfo.getRuleSetVersion());
+            }
+            this.ruleSetVersion = version;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the most recent rule set version among the entries.
+         */
+        public long getRuleSetVersion() {
+            return ruleSetVersion;
+        }
+
+        public long getChangeEpoch() {
+            return changeEpoch;
+        }
+
+        /**
+         * @return the last change event applied to the entries, or -1 if the entries
+         * were not kept up to date through change events.
+         */
+        public long getChangeSequence() {
+            return changeSequence;
+        }
+
+        public Map<RuleFilter, AccessInfo> getEntries() {
+            return entries;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[entries:" + entries.size() + " ver:" + ruleSetVersion
+                    + " change:" + changeEpoch + "/" + changeSequence + " ts:" + timestamp + "]";
+        }
+    }
+
+    public CacheSnapshotStore() {
+    }
+
+    public CacheSnapshotStore(File file) {
+        this.file = file;
+    }
+
+    public void save(Snapshot snapshot) throws IOException {
+        File target = getFile();
+        File parent = target.getParentFile();
+        if(parent != null && ! parent.exists() && ! parent.mkdirs()) {
+            throw new IOException("Can't create directory " + parent);
+        }
+
+        File tmp = new File(target.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeObject(snapshot);
+        } finally {
+            out.close();
+        }
+
+        // rename is not guaranteed to replace the target on every platform
+        if(! tmp.renameTo(target)) {
+            target.delete();
+            if(! tmp.renameTo(target)) {
+                tmp.delete();
+                throw new IOException("Can't rename " + tmp + " to " + target);
+            }
+        }
+        if(LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Saved {0} into {1}", new Object[]{snapshot, target});
+    }
+
+    /**
+     * @return the stored snapshot, or null if there is no usable snapshot.
+     */
+    public Snapshot load() {
+        File source = getFile();
+        if(! source.isFile()) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(source))));
+            try {
+                int format = in.readInt();
+                if(format != FORMAT_VERSION) {
+                    LOGGER.warning("Ignoring rule cache snapshot in unknown format " + format);
+                    return null;
+                }
+                return (Snapshot) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable rule cache snapshot " + source + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public File getFile() {
+        if(file == null) {
+            if(resourceLoader == null) {
+                throw new IllegalStateException("Neither the snapshot file nor the resource loader have been set");
+            }
+            file = new File(new File(resourceLoader.getBaseDirectory(), "geofence"), "rulecache-snapshot.bin.gz");
+        }
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public void setResourceLoader(GeoServerResourceLoader resourceLoader) {
+        this.resourceLoader = resourceLoader;
+    }
+}
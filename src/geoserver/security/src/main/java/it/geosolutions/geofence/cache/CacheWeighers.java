@@ -0,0 +1,154 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.cache;
+
+import com.google.common.cache.Weigher;
+import it.geosolutions.geofence.cache.CachedRuleReader.NamePw;
+import it.geosolutions.geofence.core.model.LayerAttribute;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.AuthUser;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
+import it.geosolutions.geofence.services.dto.ShortRule;
+
+/**
+ * Rough estimates of the heap footprint of the {@link CachedRuleReader} entries, in bytes.
+ * <P/>
+ * The estimates only need to be proportional to the real footprint, so that a few
+ * entries carrying large areas or attribute sets weigh as much as many plain decisions.
+ * The area is counted twice, since the decoded geometry is memoized in the
+ * AccessInfo once it has been used.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+final class CacheWeighers {
+
+    private static final int OBJECT = 16;
+    private static final int REF = 8;
+    private static final int STRING = 40;
+    private static final int ARRAY = 16;
+    private static final int SET_ENTRY = 48;
+
+    /** Each coordinate takes 16 bytes in WKB, and about 48 bytes once decoded. */
+    private static final int WKB_DECODED_RATIO = 3;
+    /** Each coordinate takes about 30 chars in WKT, and about 48 bytes once decoded. */
+    private static final int WKT_DECODED_RATIO = 2;
+
+    static final Weigher<RuleFilterKey, AccessInfo> RULE = new Weigher<RuleFilterKey, AccessInfo>() {
+        @Override
+        public int weigh(RuleFilterKey key, AccessInfo value) {
+            return toInt(OBJECT + REF + 4 + estimate(key.getFilter()) + estimate(value));
+        }
+    };
+
+    static final Weigher<RuleFilterKey, CachedRuleReader.VersionedRules> MATCHING_RULES = new Weigher<RuleFilterKey, CachedRuleReader.VersionedRules>() {
+        @Override
+        public int weigh(RuleFilterKey key, CachedRuleReader.VersionedRules value) {
+            long size = OBJECT + REF + 4 + estimate(key.getFilter()) + OBJECT + 8 + REF + ARRAY;
+            for (ShortRule rule : value.rules) {
+                size += REF + OBJECT + 13 * REF + 4 * 24 // boxed ids and priority
+                        + estimate(rule.getUserName())
+                        + estimate(rule.getProfileName())
+                        + estimate(rule.getInstanceName())
+                        + estimate(rule.getService())
+                        + estimate(rule.getRequest())
+                        + estimate(rule.getWorkspace())
+                        + estimate(rule.getLayer());
+            }
+            return toInt(size);
+        }
+    };
+
+    static final Weigher<NamePw, AuthUser> USER = new Weigher<NamePw, AuthUser>() {
+        @Override
+        public int weigh(NamePw key, AuthUser value) {
+            return toInt(OBJECT + 2 * REF + estimate(key.getName()) + estimate(key.getPw())
+                    + (value == null ? 0 : OBJECT + 2 * REF + estimate(value.getName())));
+        }
+    };
+
+    private CacheWeighers() {
+    }
+
+    static long estimate(RuleFilter filter) {
+        return OBJECT + 8 * REF
+                + estimate(filter.getUser())
+                + estimate(filter.getUserGroup())
+                + estimate(filter.getInstance())
+                + estimate(filter.getService())
+                + estimate(filter.getRequest())
+                + estimate(filter.getWorkspace())
+                + estimate(filter.getLayer())
+                + STRING; // sourceAddress
+    }
+
+    static long estimate(AccessInfo accessInfo) {
+        if (accessInfo == null) {
+            return 0;
+        }
+        long size = OBJECT + 12 * REF
+                + estimate(accessInfo.getDefaultStyle())
+                + estimate(accessInfo.getCqlFilterRead())
+                + estimate(accessInfo.getCqlFilterWrite());
+
+        // only one of the two is set: check the WKB first, since asking for the WKT
+        // of a WKB area would decode and convert it
+        byte[] wkb = accessInfo.getAreaWkb();
+        if (wkb != null) {
+            size += ARRAY + wkb.length + (long) wkb.length * WKB_DECODED_RATIO;
+        } else {
+            String wkt = accessInfo.getAreaWkt();
+            if (wkt != null) {
+                size += estimate(wkt) + (long) wkt.length() * WKT_DECODED_RATIO;
+            }
+        }
+
+        if (accessInfo.getAllowedStyles() != null) {
+            for (String style : accessInfo.getAllowedStyles()) {
+                size += SET_ENTRY + estimate(style);
+            }
+        }
+        if (accessInfo.getAttributes() != null) {
+            for (LayerAttribute attribute : accessInfo.getAttributes()) {
+                size += SET_ENTRY + OBJECT + 3 * REF
+                        + estimate(attribute.getName())
+                        + estimate(attribute.getDatatype());
+            }
+        }
+        return size;
+    }
+
+    private static long estimate(NameFilter filter) {
+        return filter == null ? 0 : OBJECT + 2 * REF + estimate(filter.getName());
+    }
+
+    private static long estimate(IdNameFilter filter) {
+        return filter == null ? 0 : OBJECT + 3 * REF + 8 + estimate(filter.getName());
+    }
+
+    private static long estimate(String s) {
+        return s == null ? 0 : STRING + 2L * s.length();
+    }
+
+    private static int toInt(long weight) {
+        return weight > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) weight;
+    }
+}
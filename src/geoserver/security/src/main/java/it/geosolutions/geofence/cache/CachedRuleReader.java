@@ -20,17 +20,31 @@
 package it.geosolutions.geofence.cache;
 
 import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
 
+import com.google.common.util.concurrent.AtomicLongMap;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import it.geosolutions.geofence.cache.FilterIndex.Field;
 import it.geosolutions.geofence.services.RuleReaderService;
 import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.dto.LayerAccessInfos;
 import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
 import it.geosolutions.geofence.services.dto.ShortRule;
 
 import it.geosolutions.geofence.GeofenceAccessManager;
@@ -38,9 +52,24 @@ import it.geosolutions.geofence.services.dto.AuthUser;
 import java.util.concurrent.ExecutionException;
 import org.geotools.util.logging.Logging;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
@@ -50,7 +79,20 @@ import java.util.logging.Logger;
  * A delegating {@link it.geosolutions.georepo.services.RuleReaderService} with caching capabilities.
  * <P/>
  * Cache eviction policy is LRU.<br/>
- * Cache coherence is handled by entry timeout.<br/>
+ * Cache coherence is handled by entry timeout; when a {@link ChangeEventSubscriber} is configured,
+ * the entries affected by the changes on the server are also evicted as soon as the change is notified.<br/>
+ * Entries due for refresh are reloaded in background, while the stale value is still returned.<br/>
+ * Entries may be selectively invalidated by user, group, instance, workspace or layer; the evicted
+ * entries are then reloaded in background, at most <TT>rewarmPerSecond</TT> per second.<br/>
+ * When a {@link CacheSnapshotStore} is set, the hottest entries are periodically persisted, and
+ * are restored at startup in {@link #init()}.<br/>
+ * Denies returned because no rule covers the requested resource (see {@link AccessInfo#isUnmatched()})
+ * are kept in a separate cache, keyed by resource only, so that requests on unknown layers do not
+ * use the slots of the main cache, whatever the requesting user.<br/>
+ * The decisions on all the layers fetched by {@link #getLayerAccessInfos(RuleFilter)} (e.g. when a
+ * capabilities document is requested) are kept apart, and the single decisions are loaded from them.<br/>
+ * The matching rules are kept with the rule set version known when they were loaded, and are
+ * loaded again when a more recent version is seen in any decision or change event.<br/>
  * <p/>
  *
  * @author ETj (etj at geo-solutions.it)
@@ -61,14 +103,43 @@ public class CachedRuleReader implements RuleReaderService {
 
     private RuleReaderService realRuleReaderService;
 
-    private LoadingCache<RuleFilter, AccessInfo> ruleCache;
+    private LoadingCache<RuleFilterKey, AccessInfo> ruleCache;
     private LoadingCache<NamePw, AuthUser>       userCache;
+    private LoadingCache<RuleFilterKey, VersionedRules> matchingRulesCache;
+    private final FilterIndex filterIndex = new FilterIndex();
+    private Cache<ResourceKey, AccessInfo> unmatchedCache;
+    private Cache<RuleFilterKey, LayerAccessInfos> layerAccessCache;
 
     private final CacheInitParams cacheInitParams = new CacheInitParams();
 
-    public CachedRuleReader() {
-        LOGGER.setLevel(Level.ALL);
-    }
+    private ThreadPoolExecutor refreshExecutor;
+    private final AtomicLong reloadCount = new AtomicLong(0);
+    private final AtomicLong reloadTotalNanos = new AtomicLong(0);
+    private final AtomicLong reloadRejectedCount = new AtomicLong(0);
+    private final AtomicLong changeEventCount = new AtomicLong(0);
+    private final AtomicLong changeEvictionCount = new AtomicLong(0);
+
+    /** The most recent rule set version seen in the server responses and change events. */
+    private final AtomicLong ruleSetVersion = new AtomicLong(0);
+
+    /** Max number of filters reloaded in a single call when rewarming. */
+    private static final int REWARM_BATCH_SIZE = 50;
+    private ThreadPoolExecutor rewarmExecutor;
+    private RateLimiter rewarmLimiter;
+    private final AtomicLong rewarmCount = new AtomicLong(0);
+    private final AtomicLong rewarmRejectedCount = new AtomicLong(0);
+
+    /** Max number of filters reloaded in a single call when refetching. */
+    private static final int REFETCH_BATCH_SIZE = 500;
+    private CacheSnapshotStore snapshotStore;
+    private AtomicLongMap<RuleFilterKey> hits;
+    private ScheduledExecutorService snapshotExecutor;
+    private final AtomicLong snapshotCount = new AtomicLong(0);
+    private volatile int restoredCount = 0;
+
+    /** Position in the server change events stream the cached entries are up to date with. */
+    private long changeEpoch = 0;
+    private long changeSequence = -1;
 
     /**
      * Init the cache, using the provided init params.
@@ -76,14 +147,357 @@ public class CachedRuleReader implements RuleReaderService {
      * <code>init()</code>ting the cache
      */
     public void init() {
-        ruleCache  = getCacheBuilder().build(new RuleLoader());
-        userCache = getCacheBuilder().build(new UserLoader());
+        refreshExecutor = createRefreshExecutor();
+        if(cacheInitParams.getRewarmPerSecond() > 0) {
+            rewarmExecutor = createRewarmExecutor();
+            rewarmLimiter = RateLimiter.create(cacheInitParams.getRewarmPerSecond());
+        }
+        ruleCache  = getCacheBuilder(CacheWeighers.RULE)
+                .removalListener(new RemovalListener<RuleFilterKey, AccessInfo>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<RuleFilterKey, AccessInfo> notification) {
+                        if(notification.getCause() != RemovalCause.REPLACED) {
+                            filterIndex.remove(notification.getKey());
+                        }
+                    }
+                })
+                .build(new RuleLoader());
+        userCache = getCacheBuilder(CacheWeighers.USER).build(new UserLoader());
+        matchingRulesCache = getCacheBuilder(CacheWeighers.MATCHING_RULES)
+                .recordStats()
+                .build(new MatchingRulesLoader());
+
+        CacheBuilder unmatchedBuilder = CacheBuilder.newBuilder()
+                .maximumSize(cacheInitParams.getUnmatchedSize())
+                .expireAfterWrite(cacheInitParams.getExpireMilliSec(), TimeUnit.MILLISECONDS)
+                .recordStats();
+        if(cacheInitParams.getCustomTicker() != null) {
+            unmatchedBuilder.ticker(cacheInitParams.getCustomTicker());
+        }
+        unmatchedCache = unmatchedBuilder.build();
+
+        CacheBuilder layerAccessBuilder = CacheBuilder.newBuilder()
+                .maximumSize(cacheInitParams.getLayerAccessSize())
+                .expireAfterWrite(cacheInitParams.getExpireMilliSec(), TimeUnit.MILLISECONDS)
+                .recordStats();
+        if(cacheInitParams.getCustomTicker() != null) {
+            layerAccessBuilder.ticker(cacheInitParams.getCustomTicker());
+        }
+        layerAccessCache = layerAccessBuilder.build();
+
+        if(snapshotStore != null) {
+            hits = AtomicLongMap.create();
+            warmUp();
+
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "GeoFence-CachedRuleReader-snapshot");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long delay = cacheInitParams.getSnapshotSeconds();
+            snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    saveSnapshot();
+                }
+            }, delay, delay, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the background threads, and persists the hottest entries if a snapshot store is set.
+     */
+    public void destroy() {
+        if(refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+        if(rewarmExecutor != null) {
+            rewarmExecutor.shutdownNow();
+        }
+        if(snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * Fills the cache with the persisted entries.
+     * <P/>
+     * The hottest entry is fetched again, to learn the current rule set version on the server.
+     * The entries loaded at that version are restored as they are, while the stale ones are
+     * fetched again in bulk.
+     * <BR/>Changes to users and groups do not bump the rule set version: if the entries were kept
+     * up to date through change events, the {@link ChangeEventSubscriber} will apply the ones
+     * occurred since then, otherwise they will be caught up by the periodic refresh.
+     */
+    private void warmUp() {
+        CacheSnapshotStore.Snapshot snapshot = snapshotStore.load();
+        if(snapshot == null || snapshot.getEntries().isEmpty()) {
+            return;
+        }
+
+        Iterator<Map.Entry<RuleFilter, AccessInfo>> it = snapshot.getEntries().entrySet().iterator();
+        RuleFilterKey hottest = RuleFilterKey.of(it.next().getKey());
+        int loaded = 0;
+        try {
+            ruleCache.get(hottest);
+            loaded++;
+        } catch (Exception ex) {
+            if(! (ex.getCause() instanceof UnmatchedException)) {
+                LOGGER.log(Level.WARNING, "Could not check the rule set version: " + ex.getMessage());
+            }
+        }
+        long version = ruleSetVersion.get(); // 0 if not known
+
+        int restored = 0;
+        List<RuleFilterKey> stale = new ArrayList<RuleFilterKey>();
+        while(it.hasNext()) {
+            Map.Entry<RuleFilter, AccessInfo> entry = it.next();
+            RuleFilterKey key = RuleFilterKey.of(entry.getKey());
+            if(version != 0 && entry.getValue().getRuleSetVersion() == version) {
+                ruleCache.put(key, entry.getValue());
+                filterIndex.add(key);
+                restored++;
+            } else {
+                stale.add(key);
+            }
+        }
+        int fetched = refetch(stale);
+
+        if(snapshot.getChangeSequence() >= 0) {
+            setChangeEventPosition(snapshot.getChangeEpoch(), snapshot.getChangeSequence());
+        }
+        restoredCount = loaded + restored + fetched;
+        LOGGER.info("Restored " + restored + " and fetched " + (loaded + fetched)
+                + " rule cache entries at version " + version + " from " + snapshot);
+    }
+
+    /**
+     * Persists the hottest cached entries.
+     * <BR/>Hit counters are halved at each snapshot, so that the ranking follows the recent traffic.
+     */
+    public void saveSnapshot() {
+        if(snapshotStore == null) {
+            return;
+        }
+
+        // read the position before the entries: the entries are at least as recent as the position
+        long epoch;
+        long sequence;
+        synchronized(this) {
+            epoch = changeEpoch;
+            sequence = changeSequence;
+        }
+
+        Map<RuleFilterKey, AccessInfo> cached = ruleCache.asMap();
+        final Map<RuleFilterKey, Long> scores = new HashMap<RuleFilterKey, Long>();
+        for (RuleFilterKey key : cached.keySet()) {
+            scores.put(key, hits.get(key));
+        }
+        List<RuleFilterKey> ranked = new ArrayList<RuleFilterKey>(scores.keySet());
+        Collections.sort(ranked, new Comparator<RuleFilterKey>() {
+            @Override
+            public int compare(RuleFilterKey o1, RuleFilterKey o2) {
+                return scores.get(o2).compareTo(scores.get(o1));
+            }
+        });
+
+        Map<RuleFilter, AccessInfo> entries = new LinkedHashMap<RuleFilter, AccessInfo>();
+        for (RuleFilterKey key : ranked) {
+            if(entries.size() >= cacheInitParams.getSnapshotSize()) {
+                break;
+            }
+            AccessInfo accessInfo = cached.get(key);
+            if(accessInfo != null) {
+                entries.put(key.getFilter(), accessInfo);
+            }
+        }
+
+        try {
+            snapshotStore.save(new CacheSnapshotStore.Snapshot(entries, epoch, sequence));
+            snapshotCount.incrementAndGet();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the rule cache snapshot: " + e.getMessage());
+        }
+
+        for (RuleFilterKey key : new ArrayList<RuleFilterKey>(hits.asMap().keySet())) {
+            if(cached.containsKey(key)) {
+                hits.put(key, hits.get(key) / 2);
+            } else {
+                hits.remove(key);
+            }
+        }
+        hits.removeAllZeros();
     }
 
-    protected CacheBuilder getCacheBuilder() {
-        CacheBuilder builder = CacheBuilder.newBuilder()
-                .maximumSize(cacheInitParams.getSize())
-                .refreshAfterWrite(cacheInitParams.getRefreshMilliSec(), TimeUnit.MILLISECONDS) // reloadable after x time
+    /**
+     * Fetches again in bulk all the cached entries, in the caller thread.
+     *
+     * @return the number of fetched entries
+     */
+    public int refetchAll() {
+        return refetch(new ArrayList<RuleFilterKey>(ruleCache.asMap().keySet()));
+    }
+
+    private int refetch(Collection<RuleFilterKey> keys) {
+        List<RuleFilterKey> list = new ArrayList<RuleFilterKey>(keys);
+        ruleCache.invalidateAll(list);
+
+        int ret = 0;
+        for (int i = 0; i < list.size(); i += REFETCH_BATCH_SIZE) {
+            List<RuleFilterKey> batch = list.subList(i, Math.min(list.size(), i + REFETCH_BATCH_SIZE));
+            try {
+                ruleCache.getAll(batch);
+                ret += batch.size();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error fetching rule cache entries: " + e.getMessage());
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Records the last change event applied to the cache; it is persisted with the snapshots.
+     */
+    public synchronized void setChangeEventPosition(long epoch, long sequence) {
+        this.changeEpoch = epoch;
+        this.changeSequence = sequence;
+    }
+
+    public synchronized long getChangeEventEpoch() {
+        return changeEpoch;
+    }
+
+    /**
+     * @return the last change event applied to the cache, or -1 if not known.
+     */
+    public synchronized long getChangeEventSequence() {
+        return changeSequence;
+    }
+
+    /**
+     * Creates the bounded executor running the asynchronous refreshes.
+     * <P/>
+     * Guava only starts a reload for entries which are not already being reloaded,
+     * and keeps serving the stale value until the reload completes.
+     */
+    protected ThreadPoolExecutor createRefreshExecutor() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicLong cnt = new AtomicLong(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GeoFence-CachedRuleReader-refresh-" + cnt.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                cacheInitParams.getRefreshThreads(), cacheInitParams.getRefreshThreads(),
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(cacheInitParams.getRefreshQueueSize()),
+                threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates the single thread executor reloading the selectively invalidated entries.
+     */
+    protected ThreadPoolExecutor createRewarmExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(100),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GeoFence-CachedRuleReader-rewarm");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Reloads in background the given evicted filters, honoring the rewarm rate.
+     * <BR/>Filters already reloaded by a request in the meantime are not requested again.
+     */
+    private void rewarm(final List<RuleFilterKey> filters) {
+        if(rewarmExecutor == null || filters.isEmpty()) {
+            return;
+        }
+        try {
+            rewarmExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < filters.size(); i += REWARM_BATCH_SIZE) {
+                        List<RuleFilterKey> batch = filters.subList(i, Math.min(filters.size(), i + REWARM_BATCH_SIZE));
+                        rewarmLimiter.acquire(batch.size());
+                        try {
+                            ruleCache.getAll(batch);
+                            rewarmCount.addAndGet(batch.size());
+                        } catch (Exception e) {
+                            LOGGER.log(Level.WARNING, "Error rewarming the cache: " + e.getMessage());
+                            return;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rewarmRejectedCount.addAndGet(filters.size());
+            if(LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Rewarm queue full, {0} filters will be loaded on demand", filters.size());
+        }
+    }
+
+    /**
+     * Runs the reload in the refresh executor.
+     * <BR/>If the executor is saturated the reload is skipped: the stale value is kept
+     * and the reload will be tried again on the next access.
+     */
+    private <V> ListenableFuture<V> reloadAsync(Callable<V> loader) {
+        final long start = System.nanoTime();
+        final ListenableFutureTask<V> task = ListenableFutureTask.create(loader);
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                reloadCount.incrementAndGet();
+                reloadTotalNanos.addAndGet(System.nanoTime() - start);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        try {
+            refreshExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            reloadRejectedCount.incrementAndGet();
+            if(LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Refresh queue full, reload skipped");
+            return Futures.immediateFailedFuture(e);
+        }
+        return task;
+    }
+
+    /**
+     * @param weigher used to estimate the entries footprint when the cache is bounded by
+     * {@link CacheInitParams#getMaxWeight() weight}.
+     */
+    protected CacheBuilder getCacheBuilder(Weigher weigher) {
+        CacheBuilder builder = CacheBuilder.newBuilder();
+        if(cacheInitParams.getMaxWeight() > 0) {
+            builder.maximumWeight(cacheInitParams.getMaxWeight())
+                    .weigher(weigher);
+        } else {
+            builder.maximumSize(cacheInitParams.getSize());
+        }
+        builder.refreshAfterWrite(cacheInitParams.getRefreshMilliSec(), TimeUnit.MILLISECONDS) // reloadable after x time
                 .expireAfterWrite(cacheInitParams.getExpireMilliSec(), TimeUnit.MILLISECONDS) // throw away entries too old
                 ;
         //.expireAfterAccess(timeoutMillis, TimeUnit.MILLISECONDS)
@@ -98,36 +512,142 @@ public class CachedRuleReader implements RuleReaderService {
 
 
 
-    private class RuleLoader extends CacheLoader<RuleFilter, AccessInfo> {
+    private class RuleLoader extends CacheLoader<RuleFilterKey, AccessInfo> {
 
         @Override
-        public AccessInfo load(RuleFilter filter) throws Exception {
+        public AccessInfo load(RuleFilterKey key) throws Exception {
             if(LOGGER.isLoggable(Level.FINE))
-                LOGGER.log(Level.FINE, "Loading {0}", filter);
-            return realRuleReaderService.getAccessInfo(filter);
+                LOGGER.log(Level.FINE, "Loading {0}", key);
+            AccessInfo ret = getFetchedLayerAccess(key);
+            if(ret == null) {
+                ret = realRuleReaderService.getAccessInfo(key.newFilter());
+                if(ret != null) {
+                    observeVersion(ret.getRuleSetVersion());
+                }
+            }
+            if(ret != null && ret.isUnmatched()) {
+                throw new UnmatchedException(ret); // not to be stored in the rule cache
+            }
+            filterIndex.add(key);
+            return ret;
+        }
+
+        /**
+         * Loads all the missing entries in a single call.
+         */
+        @Override
+        public Map<RuleFilterKey, AccessInfo> loadAll(Iterable<? extends RuleFilterKey> keys) throws Exception {
+            Map<RuleFilterKey, AccessInfo> ret = new HashMap<RuleFilterKey, AccessInfo>();
+            List<RuleFilterKey> keyList = new ArrayList<RuleFilterKey>();
+            List<RuleFilter> filterList = new ArrayList<RuleFilter>();
+            for (RuleFilterKey key : keys) {
+                AccessInfo fetched = getFetchedLayerAccess(key);
+                if(fetched != null) {
+                    ret.put(key, fetched);
+                    filterIndex.add(key);
+                } else {
+                    keyList.add(key);
+                    filterList.add(key.newFilter());
+                }
+            }
+            if(filterList.isEmpty()) {
+                return ret;
+            }
+            if(LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Loading {0} filters", filterList.size());
+
+            List<AccessInfo> accessInfos = realRuleReaderService.getAccessInfos(filterList);
+            if(accessInfos == null || accessInfos.size() != filterList.size()) {
+                throw new IllegalStateException("Bad AccessInfo list returned for " + filterList.size() + " filters");
+            }
+
+            for (int i = 0; i < keyList.size(); i++) {
+                ret.put(keyList.get(i), accessInfos.get(i));
+                filterIndex.add(keyList.get(i));
+                observeVersion(accessInfos.get(i).getRuleSetVersion());
+            }
+            return ret;
         }
 
         @Override
-        public ListenableFuture<AccessInfo> reload(final RuleFilter filter, AccessInfo accessInfo) throws Exception {
+        public ListenableFuture<AccessInfo> reload(final RuleFilterKey key, AccessInfo accessInfo) throws Exception {
+            if(LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Reloading {0}", key);
+
+            return reloadAsync(new Callable<AccessInfo>() {
+                @Override
+                public AccessInfo call() throws Exception {
+                    if(LOGGER.isLoggable(Level.FINE))
+                        LOGGER.log(Level.FINE, "Asynch reloading {0}", key);
+                    AccessInfo ret = realRuleReaderService.getAccessInfo(key.newFilter());
+                    if(ret != null) {
+                        observeVersion(ret.getRuleSetVersion());
+                    }
+                    return ret;
+                }
+            });
+        }
+    }
+
+    /**
+     * Matching rules, as an immutable list so that they can be shared by the callers,
+     * with the rule set version known when they were requested.
+     */
+    static final class VersionedRules {
+        final long version;
+        final List<ShortRule> rules;
+
+        VersionedRules(long version, List<ShortRule> rules) {
+            this.version = version;
+            this.rules = ImmutableList.copyOf(rules);
+        }
+    }
+
+    private class MatchingRulesLoader extends CacheLoader<RuleFilterKey, VersionedRules> {
+
+        @Override
+        public VersionedRules load(RuleFilterKey key) throws Exception {
             if(LOGGER.isLoggable(Level.FINE))
-                LOGGER.log(Level.FINE, "Reloading {0}", filter);
+                LOGGER.log(Level.FINE, "Loading matching rules for {0}", key);
+            return loadMatchingRules(key);
+        }
+
+        @Override
+        public ListenableFuture<VersionedRules> reload(final RuleFilterKey key, VersionedRules rules) throws Exception {
+            return reloadAsync(new Callable<VersionedRules>() {
+                @Override
+                public VersionedRules call() throws Exception {
+                    return loadMatchingRules(key);
+                }
+            });
+        }
+    }
 
-            // this is a sync implementation
-            AccessInfo ret = realRuleReaderService.getAccessInfo(filter);
-            return Futures.immediateFuture(ret);
+    private VersionedRules loadMatchingRules(RuleFilterKey key) {
+        // read before the request: the rules are at least as recent as this version
+        long version = ruleSetVersion.get();
+        return new VersionedRules(version, realRuleReaderService.getMatchingRules(key.newFilter()));
+    }
 
-            // next there is an asynchronous implementation, but in tests it seems to hang
-//            return ListenableFutureTask.create(new Callable<AccessInfo>() {
-//                @Override
-//                public AccessInfo call() throws Exception {
-//                    if(LOGGER.isLoggable(Level.FINE))
-//                        LOGGER.log(Level.FINE, "Asynch reloading {0}", filter);
-//                    return realRuleReaderService.getAccessInfo(filter);
-//                }
-//            });
+    /**
+     * Records a rule set version seen in a server response or change event.
+     */
+    private void observeVersion(long version) {
+        long curr;
+        while(version > (curr = ruleSetVersion.get())) {
+            if(ruleSetVersion.compareAndSet(curr, version)) {
+                return;
+            }
         }
     }
 
+    /**
+     * @return the most recent rule set version seen, or 0 if none has been seen yet.
+     */
+    public long getRuleSetVersion() {
+        return ruleSetVersion.get();
+    }
+
     private class UserLoader extends CacheLoader<NamePw, AuthUser> {
 
         @Override
@@ -145,13 +665,15 @@ public class CachedRuleReader implements RuleReaderService {
             if(LOGGER.isLoggable(Level.FINE))
                 LOGGER.log(Level.FINE, "Reloading user '"+user.getName()+"'");
 
-            // this is a sync implementation
-            AuthUser auth = realRuleReaderService.authorize(user.getName(), user.getPw());
-            if(auth==null)
-                throw new NoAuthException("Can't auth user ["+user.getName()+"]");
-            return Futures.immediateFuture(auth);
-
-            // todo: we may want a asynchronous implementation
+            return reloadAsync(new Callable<AuthUser>() {
+                @Override
+                public AuthUser call() throws Exception {
+                    AuthUser auth = realRuleReaderService.authorize(user.getName(), user.getPw());
+                    if(auth==null)
+                        throw new NoAuthException("Can't auth user ["+user.getName()+"]");
+                    return auth;
+                }
+            });
         }
     }
 
@@ -160,6 +682,144 @@ public class CachedRuleReader implements RuleReaderService {
             LOGGER.log(Level.WARNING, "Forcing cache invalidation");
         ruleCache.invalidateAll();
         userCache.invalidateAll();
+        unmatchedCache.invalidateAll();
+        matchingRulesCache.invalidateAll();
+        layerAccessCache.invalidateAll();
+    }
+
+    /**
+     * Evicts the entries whose filter names the given user, or matches any user.
+     * Also evicts the cached authentications of the user.
+     *
+     * @return the number of evicted entries
+     */
+    public int invalidateUser(String username) {
+        int ret = invalidate(Field.USER, username);
+
+        List<NamePw> users = new ArrayList<NamePw>();
+        for (NamePw user : userCache.asMap().keySet()) {
+            if(username.equals(user.getName())) {
+                users.add(user);
+            }
+        }
+        userCache.invalidateAll(users);
+        return ret + users.size();
+    }
+
+    /**
+     * Evicts the entries whose filter names the given group, or matches any group.
+     * <BR/>Entries filtered by user name only are not evicted, since the groups of a user
+     * are only known to the server: use {@link #invalidateUser(String)} for them.
+     *
+     * @return the number of evicted entries
+     */
+    public int invalidateGroup(String groupname) {
+        return invalidate(Field.GROUP, groupname);
+    }
+
+    /**
+     * Evicts the entries whose filter names the given instance, or matches any instance.
+     *
+     * @return the number of evicted entries
+     */
+    public int invalidateInstance(String instance) {
+        return invalidate(Field.INSTANCE, instance);
+    }
+
+    /**
+     * Evicts the entries whose filter names the given workspace, or matches any workspace.
+     *
+     * @return the number of evicted entries
+     */
+    public int invalidateWorkspace(String workspace) {
+        return invalidate(Field.WORKSPACE, workspace);
+    }
+
+    /**
+     * Evicts the entries whose filter names the given layer, or matches any layer.
+     *
+     * @return the number of evicted entries
+     */
+    public int invalidateLayer(String layer) {
+        return invalidate(Field.LAYER, layer);
+    }
+
+    private int invalidate(Field field, String name) {
+        Set<RuleFilterKey> filters = filterIndex.get(field, name);
+        if(LOGGER.isLoggable(Level.INFO))
+            LOGGER.log(Level.INFO, "Invalidating {0} entries for {1} {2}", new Object[]{filters.size(), field, name});
+
+        List<RuleFilterKey> rules = new ArrayList<RuleFilterKey>(filters);
+        // the rule loads read the derived caches first: evict them before the rules.
+        // rules may have been added on resources known as unmatched
+        unmatchedCache.invalidateAll();
+        // selective invalidations are rare: the matching rules and layer decisions are not indexed
+        layerAccessCache.invalidateAll();
+        matchingRulesCache.invalidateAll();
+        ruleCache.invalidateAll(rules);
+        rewarm(rules);
+        return filters.size();
+    }
+
+    /**
+     * Evicts the entries which may be affected by the given change.
+     */
+    public void invalidate(ChangeEvent event) {
+        if(LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Invalidating entries affected by {0}", event);
+
+        changeEventCount.incrementAndGet();
+        observeVersion(event.getRuleSetVersion());
+        if(event.getType() == ChangeEvent.Type.ALL) {
+            changeEvictionCount.addAndGet(ruleCache.size() + matchingRulesCache.size() + layerAccessCache.size() + userCache.size());
+            unmatchedCache.invalidateAll();
+            layerAccessCache.invalidateAll();
+            matchingRulesCache.invalidateAll();
+            ruleCache.invalidateAll();
+            userCache.invalidateAll();
+            return;
+        }
+
+        List<RuleFilterKey> rules = new ArrayList<RuleFilterKey>();
+        for (RuleFilterKey key : ruleCache.asMap().keySet()) {
+            if(event.affects(key.getFilter())) {
+                rules.add(key);
+            }
+        }
+
+        List<RuleFilterKey> matchingRules = new ArrayList<RuleFilterKey>();
+        for (RuleFilterKey key : matchingRulesCache.asMap().keySet()) {
+            if(event.affects(key.getFilter())) {
+                matchingRules.add(key);
+            }
+        }
+
+        List<RuleFilterKey> layerAccess = new ArrayList<RuleFilterKey>();
+        for (RuleFilterKey key : layerAccessCache.asMap().keySet()) {
+            if(event.affects(key.getFilter())) {
+                layerAccess.add(key);
+            }
+        }
+
+        // the rule loads read the derived caches first: evict them before the rules,
+        // and rewarm only when no stale decision can be found anymore
+        if(event.getType() == ChangeEvent.Type.RULE || event.getType() == ChangeEvent.Type.INSTANCE) {
+            unmatchedCache.invalidateAll();
+        }
+        layerAccessCache.invalidateAll(layerAccess);
+        matchingRulesCache.invalidateAll(matchingRules);
+        ruleCache.invalidateAll(rules);
+        rewarm(rules);
+
+        List<NamePw> users = new ArrayList<NamePw>();
+        for (NamePw user : userCache.asMap().keySet()) {
+            if(event.affectsUser(user.getName())) {
+                users.add(user);
+            }
+        }
+        userCache.invalidateAll(users);
+
+        changeEvictionCount.addAndGet(rules.size() + matchingRules.size() + layerAccess.size() + users.size());
     }
 
     /**
@@ -173,41 +833,175 @@ public class CachedRuleReader implements RuleReaderService {
         return realRuleReaderService.getAccessInfo(userName, profileName, instanceName, service, request, workspace, layer);
     }
 
-    private AtomicLong dumpCnt = new AtomicLong(0);
-
     @Override
     public AccessInfo getAccessInfo(RuleFilter filter) {
         if(LOGGER.isLoggable(Level.FINE))
             LOGGER.log(Level.FINE, "Request for {0}", filter);
 
-        if(LOGGER.isLoggable(Level.INFO))
-            if(dumpCnt.incrementAndGet() % 10 == 0) {
-                LOGGER.info("Rules  :"+ruleCache.stats());
-                LOGGER.info("Users  :"+userCache.stats());
-                LOGGER.fine("params :"+cacheInitParams);
+        RuleFilterKey key = RuleFilterKey.of(filter);
+        AccessInfo unmatched = unmatchedCache.getIfPresent(new ResourceKey(key));
+        if(unmatched != null) {
+            return unmatched;
+        }
+
+        hit(key);
+        try {
+            AccessInfo ret = ruleCache.get(key);
+            if(ret.isUnmatched()) { // reloaded entry
+                moveToUnmatched(key, ret);
+            }
+            return ret;
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof UnmatchedException) {
+                AccessInfo ret = ((UnmatchedException) ex.getCause()).getAccessInfo();
+                unmatchedCache.put(new ResourceKey(key.canonical()), ret);
+                return ret;
+            }
+            throw new RuntimeException(ex); // fixme: handle me
+        }
+    }
+
+    private void moveToUnmatched(RuleFilterKey key, AccessInfo accessInfo) {
+        unmatchedCache.put(new ResourceKey(key.canonical()), accessInfo);
+        ruleCache.invalidate(key);
+    }
+
+    private void hit(RuleFilterKey key) {
+        if(hits != null) {
+            if(hits.get(key) == 0) {
+                key.canonical(); // stored as a new entry
+            }
+            hits.incrementAndGet(key);
+        }
+    }
+
+    /**
+     * Only the filters not found in the cache are forwarded to the real
+     * RuleReaderService, in a single call.
+     */
+    @Override
+    public List<AccessInfo> getAccessInfos(List<RuleFilter> filters) {
+        if(LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Request for {0} filters", filters.size());
+
+        List<RuleFilterKey> keys = new ArrayList<RuleFilterKey>(filters.size());
+        Map<RuleFilterKey, AccessInfo> found = new HashMap<RuleFilterKey, AccessInfo>();
+        List<RuleFilterKey> missing = new ArrayList<RuleFilterKey>(filters.size());
+        for (RuleFilter filter : filters) {
+            RuleFilterKey key = RuleFilterKey.of(filter);
+            keys.add(key);
+            AccessInfo unmatched = unmatchedCache.getIfPresent(new ResourceKey(key));
+            if(unmatched != null) {
+                found.put(key, unmatched);
+            } else {
+                missing.add(key);
             }
+        }
 
+        for (RuleFilterKey key : missing) {
+            hit(key);
+        }
         try {
-            return ruleCache.get(filter);
+            // unmatched decisions loaded in bulk briefly use a slot of the rule cache
+            for (Map.Entry<RuleFilterKey, AccessInfo> entry : ruleCache.getAll(missing).entrySet()) {
+                if(entry.getValue().isUnmatched()) {
+                    moveToUnmatched(entry.getKey(), entry.getValue());
+                }
+                found.put(entry.getKey(), entry.getValue());
+            }
+            List<AccessInfo> ret = new ArrayList<AccessInfo>(keys.size());
+            for (RuleFilterKey key : keys) {
+                ret.add(found.get(key));
+            }
+            return ret;
         } catch (ExecutionException ex) {
             throw new RuntimeException(ex); // fixme: handle me
         }
     }
 
     /**
-     * <B>Deprecated method are not cached.</B>
+     * The params are converted into a filter as in
+     * {@link RuleFilter#RuleFilter(String, String, String, String, String, String, String) RuleFilter}.
      *
      * @deprecated Use {@link #getMatchingRules(RuleFilter filter) }
      */
     @Override
     public List<ShortRule> getMatchingRules(String userName, String profileName, String instanceName, String service, String request, String workspace, String layer) {
-        LOGGER.severe("DEPRECATED METHODS ARE NOT CACHED");
-        return realRuleReaderService.getMatchingRules(userName, profileName, instanceName, service, request, workspace, layer);
+        return getMatchingRules(new RuleFilter(userName, profileName, instanceName, service, request, workspace, layer));
     }
 
+    /**
+     * The returned list is shared, and can not be modified.
+     * <P/>
+     * Lists loaded before the most recent rule set version seen are loaded again.
+     */
     @Override
     public List<ShortRule> getMatchingRules(RuleFilter filter) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if(LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Request for matching rules {0}", filter);
+        RuleFilterKey key = RuleFilterKey.of(filter);
+        try {
+            VersionedRules cached = matchingRulesCache.get(key);
+            if(cached.version < ruleSetVersion.get()) {
+                if(LOGGER.isLoggable(Level.FINE))
+                    LOGGER.log(Level.FINE, "Matching rules for {0} are older than version {1}", new Object[]{key, ruleSetVersion.get()});
+                VersionedRules fresh = loadMatchingRules(key);
+                matchingRulesCache.asMap().replace(key, cached, fresh);
+                cached = fresh;
+            }
+            return cached.rules;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex); // fixme: handle me
+        }
+    }
+
+    /**
+     * The returned decisions are cached. When the filter asks for any workspace, they are
+     * also used to load the single decisions on the layers, which are then served locally.
+     */
+    @Override
+    public LayerAccessInfos getLayerAccessInfos(RuleFilter filter) {
+        if(LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Request for layer decisions {0}", filter);
+
+        final RuleFilterKey key = RuleFilterKey.of(filter);
+        try {
+            return layerAccessCache.get(key, new Callable<LayerAccessInfos>() {
+                @Override
+                public LayerAccessInfos call() throws Exception {
+                    LayerAccessInfos ret = realRuleReaderService.getLayerAccessInfos(key.newFilter());
+                    if(ret != null) {
+                        observeVersion(ret.getRuleSetVersion());
+                    }
+                    if(LOGGER.isLoggable(Level.FINE))
+                        LOGGER.log(Level.FINE, "Loaded {0} for {1}", new Object[]{ret, key});
+                    return ret;
+                }
+            });
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex); // fixme: handle me
+        }
+    }
+
+    /**
+     * @return the decision for the filter from the cached decisions on all the layers,
+     *         or null if they have not been fetched.
+     */
+    private AccessInfo getFetchedLayerAccess(RuleFilterKey key) {
+        if(layerAccessCache.size() == 0) {
+            return null;
+        }
+        NameFilter workspace = key.getFilter().getWorkspace();
+        NameFilter layer = key.getFilter().getLayer();
+        if(workspace.getType() != RuleFilter.FilterType.NAMEVALUE || layer.getType() != RuleFilter.FilterType.NAMEVALUE) {
+            return null;
+        }
+        LayerAccessInfos infos = layerAccessCache.getIfPresent(key.anyResource());
+        if(infos == null || infos.getRuleSetVersion() < ruleSetVersion.get()) {
+            // older than a change already seen: the entry is about to be evicted
+            return null;
+        }
+        return infos.get(workspace.getName(), layer.getName());
     }
 
     @Override
@@ -230,6 +1024,13 @@ public class CachedRuleReader implements RuleReaderService {
         this.realRuleReaderService = realRuleReaderService;
     }
 
+    /**
+     * Enables the persistence of the hottest entries; to be set before {@link #init()}.
+     */
+    public void setSnapshotStore(CacheSnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+    }
+
 
     public CacheInitParams getCacheInitParams() {
         return cacheInitParams;
@@ -251,6 +1052,145 @@ public class CachedRuleReader implements RuleReaderService {
         return userCache.size();
     }
 
+    public CacheStats getMatchingRulesStats() {
+        return matchingRulesCache.stats();
+    }
+
+    public long getMatchingRulesCacheSize() {
+        return matchingRulesCache.size();
+    }
+
+    /**
+     * @return the estimated heap footprint of the rule cache entries, in bytes.
+     * The entries are visited, so this call is meant for reporting only.
+     */
+    public long getCacheWeight() {
+        long weight = 0;
+        for (Map.Entry<RuleFilterKey, AccessInfo> entry : ruleCache.asMap().entrySet()) {
+            weight += CacheWeighers.RULE.weigh(entry.getKey(), entry.getValue());
+        }
+        return weight;
+    }
+
+    /**
+     * @return the estimated heap footprint of the user cache entries, in bytes.
+     */
+    public long getUserCacheWeight() {
+        long weight = 0;
+        for (Map.Entry<NamePw, AuthUser> entry : userCache.asMap().entrySet()) {
+            weight += CacheWeighers.USER.weigh(entry.getKey(), entry.getValue());
+        }
+        return weight;
+    }
+
+    /**
+     * @return the number of reloads waiting for a refresh thread.
+     */
+    public int getRefreshQueueSize() {
+        return refreshExecutor == null ? 0 : refreshExecutor.getQueue().size();
+    }
+
+    /**
+     * @return the number of reloads currently running.
+     */
+    public int getRefreshActiveCount() {
+        return refreshExecutor == null ? 0 : refreshExecutor.getActiveCount();
+    }
+
+    /**
+     * @return the number of completed (successfully or not) reloads.
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * @return the average time in nanoseconds between the request of a reload and its completion.
+     */
+    public long getReloadAverageNanos() {
+        long cnt = reloadCount.get();
+        return cnt == 0 ? 0 : reloadTotalNanos.get() / cnt;
+    }
+
+    /**
+     * @return the number of reloads skipped because the refresh queue was full.
+     */
+    public long getReloadRejectedCount() {
+        return reloadRejectedCount.get();
+    }
+
+    /**
+     * @return the number of change events received from the server.
+     */
+    public long getChangeEventCount() {
+        return changeEventCount.get();
+    }
+
+    /**
+     * @return the number of entries evicted because of change events.
+     */
+    public long getChangeEvictionCount() {
+        return changeEvictionCount.get();
+    }
+
+    /**
+     * @return the number of entries reloaded in background after a selective invalidation.
+     */
+    public long getRewarmCount() {
+        return rewarmCount.get();
+    }
+
+    /**
+     * @return the number of evicted entries not reloaded because the rewarm queue was full.
+     */
+    public long getRewarmRejectedCount() {
+        return rewarmRejectedCount.get();
+    }
+
+    /**
+     * @return the number of rewarm tasks waiting to be run.
+     */
+    public int getRewarmQueueSize() {
+        return rewarmExecutor == null ? 0 : rewarmExecutor.getQueue().size();
+    }
+
+    /**
+     * @return the stats of the cache of the decisions on all the layers, fetched once per
+     *         user, service and request (e.g. for a capabilities document).
+     */
+    public CacheStats getLayerAccessStats() {
+        return layerAccessCache.stats();
+    }
+
+    public long getLayerAccessCacheSize() {
+        return layerAccessCache.size();
+    }
+
+    /**
+     * @return the stats of the cache of the denies on resources not covered by any rule.
+     */
+    public CacheStats getUnmatchedStats() {
+        return unmatchedCache.stats();
+    }
+
+    public long getUnmatchedCacheSize() {
+        return unmatchedCache.size();
+    }
+
+    /**
+     * @return the number of snapshots saved.
+     */
+    public long getSnapshotCount() {
+        return snapshotCount.get();
+    }
+
+    /**
+     * @return the number of entries restored or fetched at startup from the snapshot.
+     */
+    public int getRestoredCount() {
+        return restoredCount;
+    }
+
     /**
      * May be useful if an external peer doesn't want to use the guava dep.
      */
@@ -262,6 +1202,14 @@ public class CachedRuleReader implements RuleReaderService {
         long size = 100;
         long refreshMilliSec = 15000;
         long expireMilliSec  = 30000;
+        int refreshThreads = 2;
+        int refreshQueueSize = 1000;
+        double rewarmPerSecond = 20;
+        long snapshotSeconds = 300;
+        int snapshotSize = 500;
+        long unmatchedSize = 10000;
+        long layerAccessSize = 100;
+        long maxWeight = 0;
         Ticker customTicker = null; // testing only
 
         public long getExpireMilliSec() {
@@ -288,6 +1236,92 @@ public class CachedRuleReader implements RuleReaderService {
             this.size = size;
         }
 
+        public int getRefreshThreads() {
+            return refreshThreads;
+        }
+
+        public void setRefreshThreads(int refreshThreads) {
+            this.refreshThreads = refreshThreads;
+        }
+
+        public int getRefreshQueueSize() {
+            return refreshQueueSize;
+        }
+
+        public void setRefreshQueueSize(int refreshQueueSize) {
+            this.refreshQueueSize = refreshQueueSize;
+        }
+
+        public double getRewarmPerSecond() {
+            return rewarmPerSecond;
+        }
+
+        /**
+         * Max number of selectively invalidated entries reloaded per second; 0 disables the rewarm.
+         */
+        public void setRewarmPerSecond(double rewarmPerSecond) {
+            this.rewarmPerSecond = rewarmPerSecond;
+        }
+
+        public long getSnapshotSeconds() {
+            return snapshotSeconds;
+        }
+
+        /**
+         * How often the hottest entries are persisted, if a snapshot store is set.
+         */
+        public void setSnapshotSeconds(long snapshotSeconds) {
+            this.snapshotSeconds = snapshotSeconds;
+        }
+
+        public int getSnapshotSize() {
+            return snapshotSize;
+        }
+
+        /**
+         * Max number of entries persisted in a snapshot.
+         */
+        public void setSnapshotSize(int snapshotSize) {
+            this.snapshotSize = snapshotSize;
+        }
+
+        public long getMaxWeight() {
+            return maxWeight;
+        }
+
+        /**
+         * Bounds each of the rule and user caches by the estimated footprint of their entries,
+         * in bytes, instead of by their {@link #setSize(long) number}.
+         * <P/>
+         * 0 (the default) bounds the caches by size.
+         */
+        public void setMaxWeight(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        public long getUnmatchedSize() {
+            return unmatchedSize;
+        }
+
+        /**
+         * Max number of resources cached as not covered by any rule.
+         */
+        public void setUnmatchedSize(long unmatchedSize) {
+            this.unmatchedSize = unmatchedSize;
+        }
+
+        public long getLayerAccessSize() {
+            return layerAccessSize;
+        }
+
+        /**
+         * Max number of cached {@link #getLayerAccessInfos(RuleFilter) decisions on all the layers},
+         * that is roughly the number of users asking for the capabilities within the expire time.
+         */
+        public void setLayerAccessSize(long layerAccessSize) {
+            this.layerAccessSize = layerAccessSize;
+        }
+
         public Ticker getCustomTicker() {
             return customTicker;
         }
@@ -298,7 +1332,11 @@ public class CachedRuleReader implements RuleReaderService {
 
         @Override
         public String toString() {
-            return "Init[size=" + size + " refrMsec=" + refreshMilliSec + ", expMsec=" + expireMilliSec + ']';
+            return "Init[size=" + size + ", maxWeight=" + maxWeight + ", refrMsec=" + refreshMilliSec + ", expMsec=" + expireMilliSec
+                    + ", refrThreads=" + refreshThreads + ", refrQueue=" + refreshQueueSize
+                    + ", rewarm/s=" + rewarmPerSecond
+                    + ", snapSec=" + snapshotSeconds + ", snapSize=" + snapshotSize
+                    + ", unmatchedSize=" + unmatchedSize + ", layerAccessSize=" + layerAccessSize + ']';
         }
     }
 
@@ -367,6 +1405,54 @@ public class CachedRuleReader implements RuleReaderService {
         }
     }
 
+    /**
+     * The fields of a filter identifying the requested resource, regardless of the user.
+     */
+    private static class ResourceKey {
+        private final RuleFilterKey key;
+        private final int hash;
+
+        ResourceKey(RuleFilterKey key) {
+            this.key = key;
+            this.hash = key.resourceHash();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final ResourceKey other = (ResourceKey) obj;
+            return hash == other.hash && key.sameResource(other.key);
+        }
+    }
+
+    /**
+     * Thrown by the loader so that unmatched decisions are not stored in the rule cache.
+     */
+    private static class UnmatchedException extends Exception {
+        private final AccessInfo accessInfo;
+
+        UnmatchedException(AccessInfo accessInfo) {
+            super(null, null);
+            this.accessInfo = accessInfo;
+        }
+
+        AccessInfo getAccessInfo() {
+            return accessInfo;
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this; // no need for a stack trace
+        }
+    }
+
     class NoAuthException extends Exception {
 
         public NoAuthException() {
@@ -0,0 +1,220 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.cache;
+
+import it.geosolutions.geofence.services.ChangeEventService;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.dto.ChangeEventBatch;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+import org.springframework.remoting.httpinvoker.HttpInvokerProxyFactoryBean;
+
+/**
+ * Long-polls the {@link ChangeEventService} on the GeoFence server, and evicts from the
+ * {@link CachedRuleReader} the entries affected by each change.
+ * <P/>
+ * The subscriber is disabled when no <TT>serviceUrl</TT> is set: in this case the cache
+ * only relies on the entries timeout.<br/>
+ * If the server reports that some events have been lost (e.g. the server has been restarted,
+ * or this client has been disconnected for too long), all the cached entries are fetched again.
+ * <P/>
+ * Entries restored from a {@link CacheSnapshotStore} are validated at startup, before the
+ * polling thread is started: the changes occurred since the snapshot are applied, or the
+ * entries are fetched again if the changes are no longer available.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class ChangeEventSubscriber {
+
+    static final Logger LOGGER = Logging.getLogger(ChangeEventSubscriber.class);
+
+    private CachedRuleReader cachedRuleReader;
+    private ChangeEventService changeEventService;
+    private String serviceUrl;
+
+    private long pollMillis = 30000;
+    private long retryMillis = 5000;
+
+    private long epoch = 0;
+    private long lastSequence = -1;
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public ChangeEventSubscriber() {
+    }
+
+    public ChangeEventSubscriber(CachedRuleReader cachedRuleReader) {
+        this.cachedRuleReader = cachedRuleReader;
+    }
+
+    /**
+     * Starts the polling thread, if a service has been configured.
+     */
+    public void init() {
+        if(changeEventService == null) {
+            if(serviceUrl == null || serviceUrl.trim().isEmpty()) {
+                LOGGER.info("No change events URL set: GeoFence cache entries will only expire by timeout");
+                if(cachedRuleReader.getChangeEventSequence() >= 0) {
+                    // restored entries can't be validated
+                    cachedRuleReader.refetchAll();
+                    cachedRuleReader.setChangeEventPosition(0, -1);
+                }
+                return;
+            }
+            HttpInvokerProxyFactoryBean proxy = new HttpInvokerProxyFactoryBean();
+            proxy.setServiceUrl(serviceUrl.trim());
+            proxy.setServiceInterface(ChangeEventService.class);
+            proxy.afterPropertiesSet();
+            changeEventService = (ChangeEventService) proxy.getObject();
+        }
+
+        epoch = cachedRuleReader.getChangeEventEpoch();
+        lastSequence = cachedRuleReader.getChangeEventSequence();
+        if(lastSequence >= 0) {
+            try {
+                poll(0);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not validate the restored GeoFence cache entries: " + e.getMessage());
+                cachedRuleReader.refetchAll();
+                lastSequence = -1;
+            }
+        }
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "GeoFence-ChangeEventSubscriber");
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.info("Subscribed to GeoFence change events " + (serviceUrl != null ? serviceUrl : ""));
+    }
+
+    public void destroy() {
+        running = false;
+        if(thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void loop() {
+        while(running) {
+            try {
+                poll();
+            } catch (RuntimeException e) {
+                if(! running) {
+                    break;
+                }
+                LOGGER.log(Level.WARNING, "Error polling GeoFence change events: " + e.getMessage());
+                if(LOGGER.isLoggable(Level.FINE))
+                    LOGGER.log(Level.FINE, e.getMessage(), e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs a single poll and applies the received events.
+     * <P/>
+     * The first poll only reads the current position of the stream: since the changes
+     * performed before it are not known, the cached entries are fetched again.
+     */
+    public void poll() {
+        poll(pollMillis);
+    }
+
+    private void poll(long maxWaitMillis) {
+        if(lastSequence < 0) {
+            ChangeEventBatch batch = changeEventService.getEvents(0, -1, 0);
+            cachedRuleReader.refetchAll();
+            updatePosition(batch);
+            return;
+        }
+
+        ChangeEventBatch batch = changeEventService.getEvents(epoch, lastSequence, maxWaitMillis);
+        if(batch.isOverflow()) {
+            LOGGER.warning("GeoFence change events lost, fetching again all the cached entries");
+            cachedRuleReader.refetchAll();
+        } else {
+            for (ChangeEvent event : batch.getEvents()) {
+                cachedRuleReader.invalidate(event);
+            }
+        }
+        updatePosition(batch);
+    }
+
+    private void updatePosition(ChangeEventBatch batch) {
+        epoch = batch.getEpoch();
+        lastSequence = batch.getLastSequence();
+        cachedRuleReader.setChangeEventPosition(epoch, lastSequence);
+    }
+
+    public void setCachedRuleReader(CachedRuleReader cachedRuleReader) {
+        this.cachedRuleReader = cachedRuleReader;
+    }
+
+    /**
+     * Sets the service to be polled; if not set, a remote proxy to the <TT>serviceUrl</TT> is used.
+     */
+    public void setChangeEventService(ChangeEventService changeEventService) {
+        this.changeEventService = changeEventService;
+    }
+
+    /**
+     * The URL of the remoted ChangeEventService, e.g.
+     * <TT>http://localhost:8081/geofence/remoting/ChangeEvents</TT>.
+     * <BR/>An empty value disables the subscriber.
+     */
+    public void setServiceUrl(String serviceUrl) {
+        this.serviceUrl = serviceUrl;
+    }
+
+    /**
+     * Sets how long a single poll may wait on the server for new events. Default is 30 seconds.
+     */
+    public void setPollMillis(long pollMillis) {
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Sets how long to wait before polling again after an error. Default is 5 seconds.
+     */
+    public void setRetryMillis(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+}
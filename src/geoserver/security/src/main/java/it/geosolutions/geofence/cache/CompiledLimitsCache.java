@@ -0,0 +1,278 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vividsolutions.jts.geom.Geometry;
+import it.geosolutions.geofence.core.model.LayerAttribute;
+import it.geosolutions.geofence.core.model.enums.AccessType;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.PropertyName;
+
+/**
+ * Caches the GeoTools objects compiled out of an {@link AccessInfo}: the CQL filters,
+ * the attribute lists and the filters merged with the restricted area.
+ * <P/>
+ * Entries are keyed by the identity of the AccessInfo, which is cached by the
+ * {@link CachedRuleReader}: when the AccessInfo is reloaded or evicted, its compiled
+ * limits are garbage collected as well.
+ * <P/>
+ * The compiled objects are shared, and <B>must not be modified</B> by the callers.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class CompiledLimitsCache {
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2(null);
+
+    private final long size;
+
+    private final Cache<AccessInfo, CompiledLimits> limits;
+
+    private final AtomicLong cqlParseCount = new AtomicLong();
+    private final AtomicLong areaMergeCount = new AtomicLong();
+
+    public CompiledLimitsCache() {
+        this(1000);
+    }
+
+    public CompiledLimitsCache(long size) {
+        this.size = size;
+        this.limits = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .weakKeys() // also means keys are compared by identity
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the compiled limits for the given AccessInfo.
+     *
+     * @throws IllegalArgumentException if a CQL filter can not be parsed
+     */
+    public CompiledLimits getLimits(final AccessInfo accessInfo) {
+        try {
+            return limits.get(accessInfo, new Callable<CompiledLimits>() {
+                @Override
+                public CompiledLimits call() throws Exception {
+                    return compile(accessInfo);
+                }
+            });
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException)e.getCause();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error compiling " + accessInfo, e.getCause());
+        }
+    }
+
+    private CompiledLimits compile(AccessInfo rule) {
+        // basic filter
+        Filter readFilter = (rule.getGrant() == GrantType.ALLOW) ? Filter.INCLUDE : Filter.EXCLUDE;
+        Filter writeFilter = (rule.getGrant() == GrantType.ALLOW) ? Filter.INCLUDE : Filter.EXCLUDE;
+        try {
+            if (rule.getCqlFilterRead() != null) {
+                cqlParseCount.incrementAndGet();
+                readFilter = ECQL.toFilter(rule.getCqlFilterRead());
+            }
+            if (rule.getCqlFilterWrite() != null) {
+                cqlParseCount.incrementAndGet();
+                writeFilter = ECQL.toFilter(rule.getCqlFilterWrite());
+            }
+        } catch (CQLException e) {
+            throw new IllegalArgumentException("Invalid cql filter found: " + e.getMessage(), e);
+        }
+
+        return new CompiledLimits(readFilter, writeFilter,
+                toPropertyNames(rule.getAttributes(), false),
+                toPropertyNames(rule.getAttributes(), true));
+    }
+
+    /**
+     * Builds the equivalent {@link PropertyName} list for the specified access mode
+     */
+    private static List<PropertyName> toPropertyNames(Set<LayerAttribute> attributes, boolean write) {
+        // handle simple case
+        if (attributes == null || attributes.isEmpty()) {
+            return null;
+        }
+
+        // filter and translate
+        List<PropertyName> result = new ArrayList<PropertyName>();
+        for (LayerAttribute attribute : attributes) {
+            if ((attribute.getAccess() == AccessType.READWRITE)
+                    || (!write && (attribute.getAccess() == AccessType.READONLY))) {
+                result.add(FF.property(attribute.getName()));
+            }
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Merges the two filters into one by AND
+     */
+    private static Filter mergeFilter(Filter filter, Filter areaFilter) {
+        if ((filter == null) || (filter == Filter.INCLUDE)) {
+            return areaFilter;
+        } else if (filter == Filter.EXCLUDE) {
+            return filter;
+        } else {
+            return FF.and(filter, areaFilter);
+        }
+    }
+
+    public void invalidateAll() {
+        limits.invalidateAll();
+    }
+
+    public CacheStats getStats() {
+        return limits.stats();
+    }
+
+    public long getCacheSize() {
+        return limits.size();
+    }
+
+    public long getMaxSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of CQL filters parsed so far.
+     */
+    public long getCqlParseCount() {
+        return cqlParseCount.get();
+    }
+
+    /**
+     * @return the number of times the filters have been merged with an area.
+     */
+    public long getAreaMergeCount() {
+        return areaMergeCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + "[" + limits.stats()
+                + " cqlParse:" + cqlParseCount.get()
+                + " areaMerge:" + areaMergeCount.get()
+                + "]";
+    }
+
+    /**
+     * The filters and attributes compiled from a single AccessInfo.
+     */
+    public class CompiledLimits {
+        private final Filter readFilter;
+        private final Filter writeFilter;
+        private final List<PropertyName> readAttributes;
+        private final List<PropertyName> writeAttributes;
+
+        /** Filters merged with the latest area; an AccessInfo usually refers to a single layer. */
+        private volatile AreaFilters areaFilters;
+
+        CompiledLimits(Filter readFilter, Filter writeFilter, List<PropertyName> readAttributes, List<PropertyName> writeAttributes) {
+            this.readFilter = readFilter;
+            this.writeFilter = writeFilter;
+            this.readAttributes = readAttributes;
+            this.writeAttributes = writeAttributes;
+        }
+
+        public Filter getReadFilter() {
+            return readFilter;
+        }
+
+        public Filter getWriteFilter() {
+            return writeFilter;
+        }
+
+        /**
+         * @return the attributes that can be read, or null if there is no restriction.
+         */
+        public List<PropertyName> getReadAttributes() {
+            return readAttributes;
+        }
+
+        /**
+         * @return the attributes that can be written, or null if there is no restriction.
+         */
+        public List<PropertyName> getWriteAttributes() {
+            return writeAttributes;
+        }
+
+        /**
+         * @param area the restricted area, already reprojected into the layer CRS.
+         * @return the read filter merged with the area.
+         */
+        public Filter getReadFilter(Geometry area) {
+            return area == null ? readFilter : getAreaFilters(area).read;
+        }
+
+        /**
+         * @param area the restricted area, already reprojected into the layer CRS.
+         * @return the write filter merged with the area.
+         */
+        public Filter getWriteFilter(Geometry area) {
+            return area == null ? writeFilter : getAreaFilters(area).write;
+        }
+
+        private AreaFilters getAreaFilters(Geometry area) {
+            AreaFilters ret = areaFilters;
+            if (ret == null || ret.area != area) {
+                areaMergeCount.incrementAndGet();
+                Filter areaFilter = FF.intersects(FF.property(""), FF.literal(area));
+                ret = new AreaFilters(area, mergeFilter(readFilter, areaFilter), mergeFilter(writeFilter, areaFilter));
+                areaFilters = ret;
+            }
+            return ret;
+        }
+    }
+
+    private static class AreaFilters {
+        final Geometry area;
+        final Filter read;
+        final Filter write;
+
+        AreaFilters(Geometry area, Filter read, Filter write) {
+            this.area = area;
+            this.read = read;
+            this.write = write;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.cache;
+
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary indexes over the {@link RuleFilterKey}s cached in the {@link CachedRuleReader},
+ * by user, group, instance, workspace and layer name.
+ * <P/>
+ * Filters matching any value in a field (<TT>ANY</TT>) are indexed under {@link #ANY}, and are
+ * returned for every name, since they may be affected by a change on any value.
+ * Filters on the default value or on an id are not indexed in that field.
+ * <P/>
+ * The index is only updated on cache loads and removals, so a plain lock is enough.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+class FilterIndex {
+
+    enum Field {
+        USER, GROUP, INSTANCE, WORKSPACE, LAYER
+    }
+
+    static final String ANY = "*";
+
+    private final Map<Field, Map<String, Set<RuleFilterKey>>> index = new EnumMap<Field, Map<String, Set<RuleFilterKey>>>(Field.class);
+
+    FilterIndex() {
+        for (Field field : Field.values()) {
+            index.put(field, new HashMap<String, Set<RuleFilterKey>>());
+        }
+    }
+
+    synchronized void add(RuleFilterKey filter) {
+        for (Field field : Field.values()) {
+            String key = getKey(field, filter.getFilter());
+            if(key != null) {
+                Map<String, Set<RuleFilterKey>> map = index.get(field);
+                Set<RuleFilterKey> filters = map.get(key);
+                if(filters == null) {
+                    filters = new HashSet<RuleFilterKey>();
+                    map.put(key, filters);
+                }
+                filters.add(filter);
+            }
+        }
+    }
+
+    synchronized void remove(RuleFilterKey filter) {
+        for (Field field : Field.values()) {
+            String key = getKey(field, filter.getFilter());
+            if(key != null) {
+                Map<String, Set<RuleFilterKey>> map = index.get(field);
+                Set<RuleFilterKey> filters = map.get(key);
+                if(filters != null) {
+                    filters.remove(filter);
+                    if(filters.isEmpty()) {
+                        map.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the filters naming the given value in the given field, or matching any value in it.
+     */
+    synchronized Set<RuleFilterKey> get(Field field, String name) {
+        Set<RuleFilterKey> ret = new HashSet<RuleFilterKey>();
+        Map<String, Set<RuleFilterKey>> map = index.get(field);
+        Set<RuleFilterKey> named = map.get(name);
+        if(named != null) {
+            ret.addAll(named);
+        }
+        Set<RuleFilterKey> any = map.get(ANY);
+        if(any != null) {
+            ret.addAll(any);
+        }
+        return ret;
+    }
+
+    synchronized void clear() {
+        for (Map<String, Set<RuleFilterKey>> map : index.values()) {
+            map.clear();
+        }
+    }
+
+    /**
+     * @return the number of distinct values indexed in the given field.
+     */
+    synchronized int size(Field field) {
+        return index.get(field).size();
+    }
+
+    private static String getKey(Field field, RuleFilter filter) {
+        switch (field) {
+            case USER:
+                return getKey(filter.getUser());
+            case GROUP:
+                return getKey(filter.getUserGroup());
+            case INSTANCE:
+                return getKey(filter.getInstance());
+            case WORKSPACE:
+                return getKey(filter.getWorkspace());
+            case LAYER:
+                return getKey(filter.getLayer());
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    private static String getKey(IdNameFilter f) {
+        switch (f.getType()) {
+            case NAMEVALUE:
+                return f.getName();
+            case ANY:
+                return ANY;
+            default:
+                return null;
+        }
+    }
+
+    private static String getKey(NameFilter f) {
+        switch (f.getType()) {
+            case NAMEVALUE:
+                return f.getName();
+            case ANY:
+                return ANY;
+            default:
+                return null;
+        }
+    }
+}
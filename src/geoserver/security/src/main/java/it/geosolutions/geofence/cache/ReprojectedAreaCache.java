@@ -0,0 +1,171 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * Caches the restricted areas reprojected into the resources' native CRS.
+ * <P/>
+ * Entries are keyed by the content of the source geometry (its WKB encoding and SRID) and by
+ * the target CRS, so that the same area is transformed only once per CRS, even when it is decoded
+ * again by different or reloaded {@link it.geosolutions.geofence.services.dto.AccessInfo}s.
+ * <BR/>The keys do not reference the source geometries, which are not kept alive by the cache.
+ * <P/>
+ * The returned geometries are shared, and <B>must not be modified</B> by the callers.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class ReprojectedAreaCache {
+
+    static final Logger LOGGER = Logging.getLogger(ReprojectedAreaCache.class);
+
+    private final long size;
+
+    private final Cache<AreaKey, Geometry> areas;
+
+    public ReprojectedAreaCache() {
+        this(100);
+    }
+
+    public ReprojectedAreaCache(long size) {
+        this.size = size;
+        this.areas = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Reprojects the area into the given CRS.
+     *
+     * @param area the area to reproject; its SRID is used to find its CRS.
+     * @param targetCrs the CRS of the resource; may be null.
+     *
+     * @return the reprojected area, or the area itself when it does not need to be reprojected.
+     */
+    public Geometry reproject(final Geometry area, final CoordinateReferenceSystem targetCrs) {
+        if (area == null || area.getSRID() <= 0 || targetCrs == null) {
+            return area;
+        }
+
+        try {
+            return areas.get(new AreaKey(area, targetCrs), new Callable<Geometry>() {
+                @Override
+                public Geometry call() throws Exception {
+                    return transform(area, targetCrs);
+                }
+            });
+        } catch (UncheckedExecutionException e) {
+            throw new RuntimeException("Failed to reproject the restricted area to the layer's native SRS", e.getCause());
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to reproject the restricted area to the layer's native SRS", e.getCause());
+        }
+    }
+
+    private static Geometry transform(Geometry area, CoordinateReferenceSystem targetCrs) throws Exception {
+        CoordinateReferenceSystem geomCrs = CRS.decode("EPSG:" + area.getSRID());
+        if (CRS.equalsIgnoreMetadata(geomCrs, targetCrs)) {
+            return area;
+        }
+
+        if(LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Reprojecting area from EPSG:{0} to {1}",
+                    new Object[]{area.getSRID(), CRS.toSRS(targetCrs)});
+
+        MathTransform mt = CRS.findMathTransform(geomCrs, targetCrs, true);
+        return JTS.transform(area, mt);
+    }
+
+    public void invalidateAll() {
+        areas.invalidateAll();
+    }
+
+    public CacheStats getStats() {
+        return areas.stats();
+    }
+
+    public long getCacheSize() {
+        return areas.size();
+    }
+
+    public long getMaxSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + areas.stats() + "]";
+    }
+
+    /**
+     * Matches the source geometry by its WKB encoding and SRID, and the target CRS by equality.
+     */
+    static class AreaKey {
+        private final byte[] wkb;
+        private final int srid;
+        private final CoordinateReferenceSystem crs;
+        private final int hash;
+
+        AreaKey(Geometry area, CoordinateReferenceSystem crs) {
+            this.wkb = new WKBWriter().write(area);
+            this.srid = area.getSRID();
+            this.crs = crs;
+            this.hash = 31 * (31 * Arrays.hashCode(wkb) + srid) + crs.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final AreaKey other = (AreaKey) obj;
+            return this.hash == other.hash
+                    && this.srid == other.srid
+                    && Arrays.equals(this.wkb, other.wkb)
+                    && this.crs.equals(other.crs);
+        }
+    }
+}
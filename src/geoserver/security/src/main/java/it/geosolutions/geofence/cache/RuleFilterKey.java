@@ -0,0 +1,315 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.cache;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.FilterType;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.SpecialFilterType;
+
+/**
+ * Immutable key of the {@link CachedRuleReader} rule cache.
+ * <P/>
+ * Filters asking for the same decision share the same cache entry:<UL>
+ * <LI>service and request names are compared ignoring the case, whatever the <TT>forceUppercase</TT> flag of the original filter;</LI>
+ * <LI>the <TT>includeDefault</TT> flag is only compared on the fields filtering by id or by name, where it is used.</LI>
+ * </UL>
+ * The hash is computed once, straight from the fields of the requested filter, so that looking
+ * up a cached entry does not allocate any filter. The canonical copy of the filter, with uppercase
+ * service and request and interned names, is only made when the key is stored, that is when
+ * {@link #getFilter()} or {@link #canonical()} are first called.
+ * <BR/>Until then the key references the requested filter, which must not be modified while
+ * the key is being used. As in RuleFilter, the source address is not part of the key.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public final class RuleFilterKey {
+
+    private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+    private volatile RuleFilter filter;
+    private volatile boolean canonical;
+    private final int hash;
+
+    private RuleFilterKey(RuleFilter filter, boolean canonical) {
+        this.filter = filter;
+        this.canonical = canonical;
+        this.hash = hash(filter);
+    }
+
+    public static RuleFilterKey of(RuleFilter filter) {
+        return new RuleFilterKey(filter, false);
+    }
+
+    /**
+     * @return the key of the same filter on any workspace and layer, i.e. the key
+     *         of the decisions on all the layers this key is part of.
+     */
+    RuleFilterKey anyResource() {
+        return new RuleFilterKey(canonicalCopy(filter, false), true);
+    }
+
+    /**
+     * Replaces the requested filter with its canonical copy, if not done yet.
+     * It must be called before storing the key outside the caches, whose loaders do it.
+     *
+     * @return this key
+     */
+    RuleFilterKey canonical() {
+        if(!canonical) {
+            synchronized(this) {
+                if(!canonical) {
+                    filter = canonicalCopy(filter, true);
+                    canonical = true;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the canonical filter; it is shared, and <B>must not be modified</B>.
+     */
+    public RuleFilter getFilter() {
+        return canonical().filter;
+    }
+
+    /**
+     * @return a new copy of the canonical filter, to be handed to the services that may modify it.
+     */
+    public RuleFilter newFilter() {
+        return canonicalCopy(getFilter(), true);
+    }
+
+    private static RuleFilter canonicalCopy(RuleFilter filter, boolean resource) {
+        RuleFilter canonical = new RuleFilter(SpecialFilterType.ANY);
+        copy(filter.getUser(), canonical.getUser());
+        copy(filter.getUserGroup(), canonical.getUserGroup());
+        copy(filter.getInstance(), canonical.getInstance());
+        copy(filter.getService(), canonical.getService(), true);
+        copy(filter.getRequest(), canonical.getRequest(), true);
+        if(resource) {
+            copy(filter.getWorkspace(), canonical.getWorkspace(), false);
+            copy(filter.getLayer(), canonical.getLayer(), false);
+        }
+        canonical.setSourceAddress(filter.getSourceAddress());
+        return canonical;
+    }
+
+    private static void copy(IdNameFilter from, IdNameFilter to) {
+        switch (from.getType()) {
+            case IDVALUE:
+                to.setId(from.getId());
+                to.setIncludeDefault(from.isIncludeDefault());
+                break;
+            case NAMEVALUE:
+                to.setName(intern(from.getName()));
+                to.setIncludeDefault(from.isIncludeDefault());
+                break;
+            case DEFAULT:
+                to.setType(SpecialFilterType.DEFAULT);
+                break;
+            default:
+                // ANY is the type of the new filter
+        }
+    }
+
+    private static void copy(NameFilter from, NameFilter to, boolean uppercase) {
+        switch (from.getType()) {
+            case NAMEVALUE:
+                String name = from.getName();
+                to.setName(intern(uppercase && name != null ? name.toUpperCase() : name));
+                to.setIncludeDefault(from.isIncludeDefault());
+                break;
+            case DEFAULT:
+                to.setType(SpecialFilterType.DEFAULT);
+                break;
+            default:
+                // ANY is the type of the new filter; IDVALUE is not used in NameFilters
+        }
+    }
+
+    private static String intern(String name) {
+        return name == null ? null : NAMES.intern(name);
+    }
+
+    /**
+     * @return the hash of the fields identifying the requested resource, regardless of the user.
+     */
+    int resourceHash() {
+        RuleFilter f = filter;
+        int h = 7;
+        h = 31 * h + hash(f.getInstance());
+        h = 31 * h + hash(f.getService(), true);
+        h = 31 * h + hash(f.getRequest(), true);
+        h = 31 * h + hash(f.getWorkspace(), false);
+        h = 31 * h + hash(f.getLayer(), false);
+        return h;
+    }
+
+    /**
+     * @return true if the two keys request the same resource, regardless of the user.
+     */
+    boolean sameResource(RuleFilterKey other) {
+        RuleFilter f1 = filter;
+        RuleFilter f2 = other.filter;
+        return same(f1.getLayer(), f2.getLayer(), false)
+                && same(f1.getWorkspace(), f2.getWorkspace(), false)
+                && same(f1.getRequest(), f2.getRequest(), true)
+                && same(f1.getService(), f2.getService(), true)
+                && same(f1.getInstance(), f2.getInstance());
+    }
+
+    private static int hash(RuleFilter filter) {
+        int h = 7;
+        h = 31 * h + hash(filter.getUser());
+        h = 31 * h + hash(filter.getUserGroup());
+        h = 31 * h + hash(filter.getInstance());
+        h = 31 * h + hash(filter.getService(), true);
+        h = 31 * h + hash(filter.getRequest(), true);
+        h = 31 * h + hash(filter.getWorkspace(), false);
+        h = 31 * h + hash(filter.getLayer(), false);
+        return h;
+    }
+
+    private static int hash(IdNameFilter filter) {
+        switch (filter.getType()) {
+            case IDVALUE:
+                Long id = filter.getId();
+                return 31 * (id == null ? 0 : id.hashCode()) + (filter.isIncludeDefault() ? 1 : 2);
+            case NAMEVALUE:
+                return 31 * hash(filter.getName(), false) + (filter.isIncludeDefault() ? 3 : 4);
+            default:
+                return filter.getType().ordinal();
+        }
+    }
+
+    private static int hash(NameFilter filter, boolean uppercase) {
+        switch (filter.getType()) {
+            case NAMEVALUE:
+                return 31 * hash(filter.getName(), uppercase) + (filter.isIncludeDefault() ? 3 : 4);
+            case DEFAULT:
+                return FilterType.DEFAULT.ordinal();
+            default:
+                return FilterType.ANY.ordinal();
+        }
+    }
+
+    private static int hash(String name, boolean uppercase) {
+        if(name == null) {
+            return 0;
+        }
+        if(!uppercase) {
+            return name.hashCode();
+        }
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + Character.toUpperCase(name.charAt(i));
+        }
+        return h;
+    }
+
+    private static boolean same(IdNameFilter f1, IdNameFilter f2) {
+        if(f1.getType() != f2.getType()) {
+            return false;
+        }
+        switch (f1.getType()) {
+            case IDVALUE:
+                return f1.isIncludeDefault() == f2.isIncludeDefault()
+                        && (f1.getId() == null ? f2.getId() == null : f1.getId().equals(f2.getId()));
+            case NAMEVALUE:
+                return f1.isIncludeDefault() == f2.isIncludeDefault()
+                        && same(f1.getName(), f2.getName(), false);
+            default:
+                return true;
+        }
+    }
+
+    private static boolean same(NameFilter f1, NameFilter f2, boolean uppercase) {
+        FilterType type = type(f1);
+        if(type != type(f2)) {
+            return false;
+        }
+        return type != FilterType.NAMEVALUE
+                || (f1.isIncludeDefault() == f2.isIncludeDefault()
+                    && same(f1.getName(), f2.getName(), uppercase));
+    }
+
+    /**
+     * IDVALUE is not used in NameFilters: it is handled as ANY, as in the canonical copy.
+     */
+    private static FilterType type(NameFilter filter) {
+        return filter.getType() == FilterType.IDVALUE ? FilterType.ANY : filter.getType();
+    }
+
+    private static boolean same(String n1, String n2, boolean uppercase) {
+        if(n1 == n2) {
+            return true;
+        }
+        if(n1 == null || n2 == null || n1.length() != n2.length()) {
+            return false;
+        }
+        if(!uppercase) {
+            return n1.equals(n2);
+        }
+        for (int i = 0; i < n1.length(); i++) {
+            if(Character.toUpperCase(n1.charAt(i)) != Character.toUpperCase(n2.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final RuleFilterKey other = (RuleFilterKey) obj;
+        if(hash != other.hash) {
+            return false;
+        }
+        RuleFilter f1 = filter;
+        RuleFilter f2 = other.filter;
+        return same(f1.getLayer(), f2.getLayer(), false)
+                && same(f1.getWorkspace(), f2.getWorkspace(), false)
+                && same(f1.getUser(), f2.getUser())
+                && same(f1.getUserGroup(), f2.getUserGroup())
+                && same(f1.getRequest(), f2.getRequest(), true)
+                && same(f1.getService(), f2.getService(), true)
+                && same(f1.getInstance(), f2.getInstance());
+    }
+
+    @Override
+    public String toString() {
+        return filter.toString();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.cache.rest;
+
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.geotools.util.logging.Logging;
+import org.restlet.Context;
+import org.restlet.data.Reference;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Resource;
+import org.restlet.resource.StringRepresentation;
+
+/**
+ * Evicts the cached rules related to a single user, group, instance, workspace or layer.
+ * <P/>
+ * <TT>PUT /ruleCache/invalidate/{type}/{name}</TT>, where <TT>type</TT> is one of
+ * <TT>user</TT>, <TT>group</TT>, <TT>instance</TT>, <TT>workspace</TT>, <TT>layer</TT>.
+ * <BR/>The response contains the number of evicted entries.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RESTCacheEvict extends Resource {
+    static final Logger LOGGER = Logging.getLogger(RESTCacheEvict.class);
+
+    private final CachedRuleReader crr;
+
+    RESTCacheEvict(Context context, Request request, Response response, CachedRuleReader cachedRuleReader) {
+        super(context, request, response);
+        this.crr = cachedRuleReader;
+    }
+
+    @Override
+    public boolean allowGet() {
+        return false;
+    }
+
+    @Override
+    public boolean allowPut() {
+        return true;
+    }
+
+    @Override
+    public void handlePut() {
+        String type = (String) getRequest().getAttributes().get("type");
+        String name = (String) getRequest().getAttributes().get("name");
+        if(type == null || name == null) {
+            getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "Missing type or name");
+            return;
+        }
+        name = Reference.decode(name);
+
+        int evicted;
+        if("user".equals(type)) {
+            evicted = crr.invalidateUser(name);
+        } else if("group".equals(type)) {
+            evicted = crr.invalidateGroup(name);
+        } else if("instance".equals(type)) {
+            evicted = crr.invalidateInstance(name);
+        } else if("workspace".equals(type)) {
+            evicted = crr.invalidateWorkspace(name);
+        } else if("layer".equals(type)) {
+            evicted = crr.invalidateLayer(name);
+        } else {
+            getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "Unknown type " + type);
+            return;
+        }
+
+        LOGGER.log(Level.INFO, "Evicted {0} entries for {1} {2}", new Object[]{evicted, type, name});
+        getResponse().setEntity(new StringRepresentation("OK " + evicted));
+    }
+}
@@ -22,6 +22,8 @@ package it.geosolutions.geofence.cache.rest;
 import com.google.common.base.Objects;
 import com.google.common.cache.CacheStats;
 import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.cache.CompiledLimitsCache;
+import it.geosolutions.geofence.cache.ReprojectedAreaCache;
 import org.restlet.Context;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
@@ -36,10 +38,19 @@ import org.restlet.resource.StringRepresentation;
 public class RESTCacheStats extends Resource {
 
     private final CachedRuleReader crr;
+    private final ReprojectedAreaCache areaCache;
+    private final CompiledLimitsCache limitsCache;
 
     RESTCacheStats(Context context, Request request, Response response, CachedRuleReader cachedRuleReader) {
+        this(context, request, response, cachedRuleReader, null, null);
+    }
+
+    RESTCacheStats(Context context, Request request, Response response, CachedRuleReader cachedRuleReader,
+            ReprojectedAreaCache areaCache, CompiledLimitsCache limitsCache) {
         super(context, request, response);
         this.crr = cachedRuleReader;
+        this.areaCache = areaCache;
+        this.limitsCache = limitsCache;
     }
 
     @Override
@@ -52,6 +63,8 @@ public class RESTCacheStats extends Resource {
                 .append("RuleStats[")
                 .append(" size:").append(crr.getCacheSize())
                 .append("/").append(crr.getCacheInitParams().getSize())
+                .append(" weight:").append(crr.getCacheWeight())
+                .append("/").append(crr.getCacheInitParams().getMaxWeight())
                 .append(" hitCount:").append(stats.hitCount())
                 .append(" missCount:").append(stats.missCount())
                 .append(" loadSuccessCount:").append(stats.loadSuccessCount())
@@ -64,6 +77,8 @@ public class RESTCacheStats extends Resource {
         sb.append("UserStats[")
                 .append(" size:").append(crr.getUserCacheSize())
                 .append("/").append(crr.getCacheInitParams().getSize())
+                .append(" weight:").append(crr.getUserCacheWeight())
+                .append("/").append(crr.getCacheInitParams().getMaxWeight())
                 .append(" hitCount:").append(stats.hitCount())
                 .append(" missCount:").append(stats.missCount())
                 .append(" loadSuccessCount:").append(stats.loadSuccessCount())
@@ -72,6 +87,92 @@ public class RESTCacheStats extends Resource {
                 .append(" evictionCount:").append(stats.evictionCount())
                 .append("] \n");
 
+        stats = crr.getMatchingRulesStats();
+        sb.append("MatchingRulesStats[")
+                .append(" size:").append(crr.getMatchingRulesCacheSize())
+                .append("/").append(crr.getCacheInitParams().getSize())
+                .append(" hitCount:").append(stats.hitCount())
+                .append(" missCount:").append(stats.missCount())
+                .append(" loadSuccessCount:").append(stats.loadSuccessCount())
+                .append(" loadExceptionCount:").append(stats.loadExceptionCount())
+                .append(" evictionCount:").append(stats.evictionCount())
+                .append("] \n");
+
+        stats = crr.getUnmatchedStats();
+        sb.append("UnmatchedStats[")
+                .append(" size:").append(crr.getUnmatchedCacheSize())
+                .append("/").append(crr.getCacheInitParams().getUnmatchedSize())
+                .append(" hitCount:").append(stats.hitCount())
+                .append(" missCount:").append(stats.missCount())
+                .append(" evictionCount:").append(stats.evictionCount())
+                .append("] \n");
+
+        stats = crr.getLayerAccessStats();
+        sb.append("LayerAccessStats[")
+                .append(" size:").append(crr.getLayerAccessCacheSize())
+                .append("/").append(crr.getCacheInitParams().getLayerAccessSize())
+                .append(" hitCount:").append(stats.hitCount())
+                .append(" missCount:").append(stats.missCount())
+                .append(" evictionCount:").append(stats.evictionCount())
+                .append("] \n");
+
+        sb.append("RefreshStats[")
+                .append(" queue:").append(crr.getRefreshQueueSize())
+                .append("/").append(crr.getCacheInitParams().getRefreshQueueSize())
+                .append(" active:").append(crr.getRefreshActiveCount())
+                .append("/").append(crr.getCacheInitParams().getRefreshThreads())
+                .append(" reloadCount:").append(crr.getReloadCount())
+                .append(" reloadAvgNanos:").append(crr.getReloadAverageNanos())
+                .append(" rejectedCount:").append(crr.getReloadRejectedCount())
+                .append("] \n");
+
+        sb.append("ChangeEventStats[")
+                .append(" eventCount:").append(crr.getChangeEventCount())
+                .append(" evictionCount:").append(crr.getChangeEvictionCount())
+                .append("] \n");
+
+        sb.append("RewarmStats[")
+                .append(" queue:").append(crr.getRewarmQueueSize())
+                .append(" rewarmCount:").append(crr.getRewarmCount())
+                .append(" rejectedCount:").append(crr.getRewarmRejectedCount())
+                .append(" ratePerSec:").append(crr.getCacheInitParams().getRewarmPerSecond())
+                .append("] \n");
+
+        sb.append("SnapshotStats[")
+                .append(" restoredCount:").append(crr.getRestoredCount())
+                .append(" snapshotCount:").append(crr.getSnapshotCount())
+                .append(" changeEpoch:").append(crr.getChangeEventEpoch())
+                .append(" changeSequence:").append(crr.getChangeEventSequence())
+                .append("] \n");
+
+        if(areaCache != null) {
+            stats = areaCache.getStats();
+            sb.append("ReprojectedAreaStats[")
+                    .append(" size:").append(areaCache.getCacheSize())
+                    .append("/").append(areaCache.getMaxSize())
+                    .append(" hitCount:").append(stats.hitCount())
+                    .append(" missCount:").append(stats.missCount())
+                    .append(" hitRate:").append(stats.hitRate())
+                    .append(" loadExceptionCount:").append(stats.loadExceptionCount())
+                    .append(" totalLoadTime:").append(stats.totalLoadTime())
+                    .append(" evictionCount:").append(stats.evictionCount())
+                    .append("] \n");
+        }
+
+        if(limitsCache != null) {
+            stats = limitsCache.getStats();
+            sb.append("CompiledLimitsStats[")
+                    .append(" size:").append(limitsCache.getCacheSize())
+                    .append("/").append(limitsCache.getMaxSize())
+                    .append(" hitCount:").append(stats.hitCount())
+                    .append(" missCount:").append(stats.missCount())
+                    .append(" hitRate:").append(stats.hitRate())
+                    .append(" cqlParseCount:").append(limitsCache.getCqlParseCount())
+                    .append(" areaMergeCount:").append(limitsCache.getAreaMergeCount())
+                    .append(" evictionCount:").append(stats.evictionCount())
+                    .append("] \n");
+        }
+
        getResponse().setEntity(new StringRepresentation(sb));
     }
 }
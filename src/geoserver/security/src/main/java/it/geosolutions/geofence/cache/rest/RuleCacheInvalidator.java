@@ -20,6 +20,8 @@
 package it.geosolutions.geofence.cache.rest;
 
 import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.cache.CompiledLimitsCache;
+import it.geosolutions.geofence.cache.ReprojectedAreaCache;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.geotools.util.logging.Logging;
@@ -35,6 +37,8 @@ public class RuleCacheInvalidator extends Resource {
     static final Logger LOGGER = Logging.getLogger(RuleCacheInvalidator.class);
 
     private CachedRuleReader cachedRuleReader;
+    private ReprojectedAreaCache reprojectedAreaCache;
+    private CompiledLimitsCache compiledLimitsCache;
 
     public RuleCacheInvalidator(CachedRuleReader cachedRuleReader) {
         this.cachedRuleReader = cachedRuleReader;
@@ -54,10 +58,24 @@ public class RuleCacheInvalidator extends Resource {
     public void handlePut() {
         LOGGER.log(Level.WARNING, "INVALIDATING CACHE");
         cachedRuleReader.invalidateAll();
+        if(reprojectedAreaCache != null) {
+            reprojectedAreaCache.invalidateAll();
+        }
+        if(compiledLimitsCache != null) {
+            compiledLimitsCache.invalidateAll();
+        }
         Representation representation = new StringRepresentation("OK");
         getResponse().setEntity(representation);
     }
 
+    public void setReprojectedAreaCache(ReprojectedAreaCache reprojectedAreaCache) {
+        this.reprojectedAreaCache = reprojectedAreaCache;
+    }
+
+    public void setCompiledLimitsCache(CompiledLimitsCache compiledLimitsCache) {
+        this.compiledLimitsCache = compiledLimitsCache;
+    }
+
 
 
 }
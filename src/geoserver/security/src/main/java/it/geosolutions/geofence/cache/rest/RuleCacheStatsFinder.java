@@ -20,6 +20,8 @@
 package it.geosolutions.geofence.cache.rest;
 
 import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.cache.CompiledLimitsCache;
+import it.geosolutions.geofence.cache.ReprojectedAreaCache;
 import org.restlet.Finder;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
@@ -33,6 +35,8 @@ import org.restlet.resource.Resource;
 public class RuleCacheStatsFinder extends Finder {
 
     private CachedRuleReader cachedRuleReader;
+    private ReprojectedAreaCache reprojectedAreaCache;
+    private CompiledLimitsCache compiledLimitsCache;
 
     public RuleCacheStatsFinder(CachedRuleReader cachedRuleReader) {
         this.cachedRuleReader = cachedRuleReader;
@@ -40,6 +44,14 @@ public class RuleCacheStatsFinder extends Finder {
 
     @Override
     public Resource findTarget(Request request, Response response) {
-        return new RESTCacheStats(getContext(), request, response, cachedRuleReader);
+        return new RESTCacheStats(getContext(), request, response, cachedRuleReader, reprojectedAreaCache, compiledLimitsCache);
+    }
+
+    public void setReprojectedAreaCache(ReprojectedAreaCache reprojectedAreaCache) {
+        this.reprojectedAreaCache = reprojectedAreaCache;
+    }
+
+    public void setCompiledLimitsCache(CompiledLimitsCache compiledLimitsCache) {
+        this.compiledLimitsCache = compiledLimitsCache;
     }
 }
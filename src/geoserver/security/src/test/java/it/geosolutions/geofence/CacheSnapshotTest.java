@@ -0,0 +1,144 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.cache.CacheSnapshotStore;
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.TestCase;
+
+/**
+ * Checks the persistence of the hottest entries, without the need of a running GeoFence.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class CacheSnapshotTest extends TestCase {
+
+    private final AtomicLong version = new AtomicLong(5);
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("rulecache", ".bin.gz");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private final StubRuleReaderService reader = new StubRuleReaderService() {
+        @Override
+        protected AccessInfo decide(RuleFilter filter) {
+            AccessInfo ret = new AccessInfo(GrantType.ALLOW);
+            ret.setDefaultStyle(filter.getLayer().getName());
+            ret.setRuleSetVersion(version.get());
+            return ret;
+        }
+    };
+
+    private RuleFilter filter(String layer) {
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser("u1");
+        filter.setLayer(layer);
+        return filter;
+    }
+
+    private CachedRuleReader createReader() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.setSnapshotStore(new CacheSnapshotStore(file));
+        cachedRuleReader.getCacheInitParams().setSnapshotSize(2);
+        cachedRuleReader.init();
+        return cachedRuleReader;
+    }
+
+    public void testSnapshot() {
+        CachedRuleReader cachedRuleReader = createReader();
+        assertEquals(0, cachedRuleReader.getRestoredCount());
+        cachedRuleReader.getAccessInfo(filter("l1"));
+        for (int i = 0; i < 5; i++) {
+            cachedRuleReader.getAccessInfo(filter("l2"));
+        }
+        cachedRuleReader.getAccessInfo(filter("l3"));
+        cachedRuleReader.getAccessInfo(filter("l3"));
+        assertEquals(3, reader.getCallCount());
+
+        cachedRuleReader.setChangeEventPosition(7, 42);
+        cachedRuleReader.destroy(); // saves the snapshot
+        assertEquals(1, cachedRuleReader.getSnapshotCount());
+
+        // only the hottest entries, hottest first
+        CacheSnapshotStore.Snapshot snapshot = new CacheSnapshotStore(file).load();
+        assertNotNull(snapshot);
+        assertEquals(7, snapshot.getChangeEpoch());
+        assertEquals(42, snapshot.getChangeSequence());
+        assertEquals(2, snapshot.getEntries().size());
+        Iterator<RuleFilter> it = snapshot.getEntries().keySet().iterator();
+        assertEquals(filter("l2"), it.next());
+        assertEquals(filter("l3"), it.next());
+
+        // same version: only the hottest entry is checked on the server
+        CachedRuleReader restored = createReader();
+        try {
+            assertEquals(2, restored.getRestoredCount());
+            assertEquals(4, reader.getCallCount());
+            assertEquals(5, restored.getRuleSetVersion());
+            assertEquals(42, restored.getChangeEventSequence());
+            assertEquals("l2", restored.getAccessInfo(filter("l2")).getDefaultStyle());
+            assertEquals("l3", restored.getAccessInfo(filter("l3")).getDefaultStyle());
+            assertEquals(4, reader.getCallCount());
+        } finally {
+            restored.destroy();
+        }
+
+        // the rules changed: the stale entries are fetched again in a single call
+        version.set(6);
+        CachedRuleReader refetched = createReader();
+        try {
+            assertEquals(2, refetched.getRestoredCount());
+            assertEquals(6, reader.getCallCount());
+            assertEquals(6, refetched.getRuleSetVersion());
+            assertEquals(6, refetched.getAccessInfo(filter("l2")).getRuleSetVersion());
+            assertEquals(6, refetched.getAccessInfo(filter("l3")).getRuleSetVersion());
+            assertEquals(6, reader.getCallCount());
+        } finally {
+            refetched.destroy();
+        }
+    }
+
+    public void testUnreadableSnapshot() throws Exception {
+        FileWriter writer = new FileWriter(file);
+        writer.write("not a snapshot");
+        writer.close();
+
+        assertNull(new CacheSnapshotStore(file).load());
+        CachedRuleReader cachedRuleReader = createReader();
+        assertEquals(0, cachedRuleReader.getRestoredCount());
+        cachedRuleReader.destroy();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Checks the caches bounded by the estimated footprint of their entries.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class CacheWeightTest extends TestCase {
+
+    private static final String BIG_AREA;
+    static {
+        char[] coords = new char[20000];
+        Arrays.fill(coords, '1');
+        BIG_AREA = "MULTIPOLYGON(((" + new String(coords) + ")))";
+    }
+
+    private StubRuleReaderService reader() {
+        return new StubRuleReaderService() {
+            @Override
+            protected AccessInfo decide(RuleFilter filter) {
+                AccessInfo ret = new AccessInfo(GrantType.ALLOW);
+                if ("big".equals(filter.getUser().getName())) {
+                    ret.setAreaWkt(BIG_AREA);
+                }
+                return ret;
+            }
+        };
+    }
+
+    private static RuleFilter filter(String user, String layer) {
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser(user);
+        filter.setLayer(layer);
+        return filter;
+    }
+
+    public void testWeight() {
+        long maxWeight = 400000;
+
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader());
+        cachedRuleReader.getCacheInitParams().setSize(10); // ignored
+        cachedRuleReader.getCacheInitParams().setMaxWeight(maxWeight);
+        cachedRuleReader.init();
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                cachedRuleReader.getAccessInfo(filter("small", "l" + i));
+            }
+            // bounded by weight only: all the small entries fit
+            assertEquals(100, cachedRuleReader.getCacheSize());
+            long smallWeight = cachedRuleReader.getCacheWeight();
+            assertTrue(smallWeight > 0);
+            assertTrue(smallWeight < maxWeight);
+
+            // large areas push out many small entries, and the budget is kept
+            for (int i = 0; i < 5; i++) {
+                cachedRuleReader.getAccessInfo(filter("big", "l" + i));
+            }
+            assertTrue(cachedRuleReader.getCacheSize() < 100);
+            assertTrue(cachedRuleReader.getCacheWeight() <= maxWeight);
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+}
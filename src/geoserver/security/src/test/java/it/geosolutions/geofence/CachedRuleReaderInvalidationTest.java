@@ -0,0 +1,112 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import junit.framework.TestCase;
+
+/**
+ * Checks the selective invalidation, without the need of a running GeoFence.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class CachedRuleReaderInvalidationTest extends TestCase {
+
+    private final StubRuleReaderService reader = new StubRuleReaderService();
+
+    private RuleFilter filter(String user, String workspace, String layer) {
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser(user);
+        filter.setWorkspace(workspace);
+        if (layer != null) {
+            filter.setLayer(layer);
+        }
+        return filter;
+    }
+
+    private CachedRuleReader createReader(double rewarmPerSecond) {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.getCacheInitParams().setRewarmPerSecond(rewarmPerSecond);
+        cachedRuleReader.init();
+        return cachedRuleReader;
+    }
+
+    public void testSelectiveInvalidation() {
+        CachedRuleReader cachedRuleReader = createReader(0);
+        try {
+            AccessInfo u1l1 = cachedRuleReader.getAccessInfo(filter("u1", "ws", "l1"));
+            AccessInfo u1l2 = cachedRuleReader.getAccessInfo(filter("u1", "ws", "l2"));
+            AccessInfo u2l1 = cachedRuleReader.getAccessInfo(filter("u2", "ws", "l1"));
+            AccessInfo u2any = cachedRuleReader.getAccessInfo(filter("u2", "ws2", null));
+            assertEquals(4, reader.getDecisionCount());
+
+            // layer l1, and the filter on any layer
+            assertEquals(3, cachedRuleReader.invalidateLayer("l1"));
+            assertSame(u1l2, cachedRuleReader.getAccessInfo(filter("u1", "ws", "l2")));
+            assertNotSame(u1l1, cachedRuleReader.getAccessInfo(filter("u1", "ws", "l1")));
+            assertNotSame(u2l1, cachedRuleReader.getAccessInfo(filter("u2", "ws", "l1")));
+            assertNotSame(u2any, cachedRuleReader.getAccessInfo(filter("u2", "ws2", null)));
+            assertEquals(7, reader.getDecisionCount());
+
+            assertEquals(2, cachedRuleReader.invalidateUser("u1"));
+            assertEquals(2, cachedRuleReader.getCacheSize());
+
+            assertEquals(1, cachedRuleReader.invalidateWorkspace("ws2"));
+            assertEquals(0, cachedRuleReader.invalidateWorkspace("ws2"));
+            assertEquals(1, cachedRuleReader.getCacheSize());
+
+            // every filter is on any group
+            assertEquals(1, cachedRuleReader.invalidateGroup("g1"));
+            assertEquals(0, cachedRuleReader.getCacheSize());
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+
+    public void testRewarm() throws Exception {
+        CachedRuleReader cachedRuleReader = createReader(100);
+        try {
+            for (int i = 0; i < 10; i++) {
+                cachedRuleReader.getAccessInfo(filter("u" + i, "ws", "l1"));
+            }
+            cachedRuleReader.getAccessInfo(filter("u0", "ws", "l2"));
+            assertEquals(11, reader.getDecisionCount());
+
+            assertEquals(10, cachedRuleReader.invalidateLayer("l1"));
+
+            // the evicted entries are reloaded in background
+            for (int i = 0; i < 100 && cachedRuleReader.getRewarmCount() < 10; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(10, cachedRuleReader.getRewarmCount());
+            assertEquals(21, reader.getDecisionCount());
+            assertEquals(11, cachedRuleReader.getCacheSize());
+
+            // no further loads
+            cachedRuleReader.getAccessInfo(filter("u5", "ws", "l1"));
+            assertEquals(21, reader.getDecisionCount());
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.CacheReaderTest.CustomTicker;
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Checks the background refresh, without the need of a running GeoFence.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class CachedRuleReaderRefreshTest extends TestCase {
+
+    private final CountDownLatch reloadStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseReload = new CountDownLatch(1);
+
+    private final StubRuleReaderService reader = new StubRuleReaderService() {
+        @Override
+        protected AccessInfo decide(RuleFilter filter) {
+            if (getCallCount() > 1) {
+                // reloads are slow
+                reloadStarted.countDown();
+                try {
+                    releaseReload.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new AccessInfo(GrantType.ALLOW);
+        }
+    };
+
+    public void testStaleWhileRevalidate() throws Exception {
+        CustomTicker ticker = new CustomTicker();
+
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.getCacheInitParams().setSize(10);
+        cachedRuleReader.getCacheInitParams().setRefreshMilliSec(500);
+        cachedRuleReader.getCacheInitParams().setExpireMilliSec(100000);
+        cachedRuleReader.getCacheInitParams().setCustomTicker(ticker);
+        cachedRuleReader.init();
+
+        try {
+            RuleFilter filter = new RuleFilter();
+            filter.setUser("test_1");
+
+            AccessInfo ai1 = cachedRuleReader.getAccessInfo(filter);
+            assertEquals(1, reader.getCallCount());
+
+            // refresh due: the stale value is returned without waiting for the reload
+            ticker.setMillisec(600);
+            assertSame(ai1, cachedRuleReader.getAccessInfo(filter));
+            assertTrue(reloadStarted.await(10, TimeUnit.SECONDS));
+
+            // the reload is running, it is not requested again
+            assertSame(ai1, cachedRuleReader.getAccessInfo(filter));
+            assertSame(ai1, cachedRuleReader.getAccessInfo(filter));
+            assertEquals(2, reader.getCallCount());
+            assertEquals(1, cachedRuleReader.getRefreshActiveCount());
+
+            releaseReload.countDown();
+
+            // the reloaded value is served as soon as the reload completes
+            AccessInfo ai2 = ai1;
+            for (int i = 0; i < 100 && ai2 == ai1; i++) {
+                Thread.sleep(50);
+                ai2 = cachedRuleReader.getAccessInfo(filter);
+            }
+            assertNotSame(ai1, ai2);
+            assertEquals(2, reader.getCallCount());
+            assertEquals(1, cachedRuleReader.getReloadCount());
+            assertEquals(0, cachedRuleReader.getReloadRejectedCount());
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.cache.ChangeEventSubscriber;
+import it.geosolutions.geofence.services.ChangeEventService;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.dto.ChangeEventBatch;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Checks the eviction driven by the server change events, without the need of a running GeoFence.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class ChangeEventSubscriberTest extends TestCase {
+
+    /**
+     * Returns the queued batches, one per poll.
+     */
+    private static class QueuedEventService implements ChangeEventService {
+        final List<ChangeEventBatch> batches = new ArrayList<ChangeEventBatch>();
+
+        @Override
+        public ChangeEventBatch getEvents(long epoch, long afterSequence, long maxWaitMillis) {
+            return batches.remove(0);
+        }
+    }
+
+    private RuleFilter filter(String user, String layer) {
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser(user);
+        filter.setLayer(layer);
+        return filter;
+    }
+
+    public void testEviction() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(new StubRuleReaderService());
+        cachedRuleReader.init();
+
+        QueuedEventService service = new QueuedEventService();
+        ChangeEventSubscriber subscriber = new ChangeEventSubscriber(cachedRuleReader);
+        subscriber.setChangeEventService(service);
+
+        try {
+            service.batches.add(new ChangeEventBatch(1, 5, false));
+            subscriber.poll();
+            assertEquals(5, subscriber.getLastSequence());
+
+            AccessInfo u1l1 = cachedRuleReader.getAccessInfo(filter("u1", "l1"));
+            AccessInfo u1l2 = cachedRuleReader.getAccessInfo(filter("u1", "l2"));
+            AccessInfo u2l1 = cachedRuleReader.getAccessInfo(filter("u2", "l1"));
+
+            // a rule on layer l1 for any user
+            ChangeEvent ruleEvent = new ChangeEvent(ChangeEvent.Type.RULE);
+            ruleEvent.setLayer("l1");
+            ChangeEventBatch batch = new ChangeEventBatch(1, 6, false);
+            batch.getEvents().add(ruleEvent);
+            service.batches.add(batch);
+            subscriber.poll();
+
+            assertEquals(6, subscriber.getLastSequence());
+            assertEquals(1, cachedRuleReader.getChangeEventCount());
+            assertEquals(2, cachedRuleReader.getChangeEvictionCount());
+            assertSame(u1l2, cachedRuleReader.getAccessInfo(filter("u1", "l2")));
+            assertNotSame(u1l1, cachedRuleReader.getAccessInfo(filter("u1", "l1")));
+            assertNotSame(u2l1, cachedRuleReader.getAccessInfo(filter("u2", "l1")));
+
+            // a change on user u1
+            u1l1 = cachedRuleReader.getAccessInfo(filter("u1", "l1"));
+            u2l1 = cachedRuleReader.getAccessInfo(filter("u2", "l1"));
+            batch = new ChangeEventBatch(1, 7, false);
+            batch.getEvents().add(ChangeEvent.forUser(3l, "u1"));
+            service.batches.add(batch);
+            subscriber.poll();
+
+            assertNotSame(u1l1, cachedRuleReader.getAccessInfo(filter("u1", "l1")));
+            assertSame(u2l1, cachedRuleReader.getAccessInfo(filter("u2", "l1")));
+
+            // lost events: all the entries are fetched again
+            u2l1 = cachedRuleReader.getAccessInfo(filter("u2", "l1"));
+            service.batches.add(new ChangeEventBatch(2, 1, true));
+            subscriber.poll();
+            assertNotSame(u2l1, cachedRuleReader.getAccessInfo(filter("u2", "l1")));
+            assertEquals(1, subscriber.getLastSequence());
+            assertEquals(2, cachedRuleReader.getChangeEventEpoch());
+            assertEquals(1, cachedRuleReader.getChangeEventSequence());
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+}
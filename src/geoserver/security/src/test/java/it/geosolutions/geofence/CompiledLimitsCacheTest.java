@@ -0,0 +1,94 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import it.geosolutions.geofence.cache.CompiledLimitsCache;
+import it.geosolutions.geofence.cache.CompiledLimitsCache.CompiledLimits;
+import it.geosolutions.geofence.core.model.LayerAttribute;
+import it.geosolutions.geofence.core.model.enums.AccessType;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import java.util.HashSet;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.spatial.Intersects;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class CompiledLimitsCacheTest extends TestCase {
+
+    public void testCompile() throws Exception {
+        CompiledLimitsCache cache = new CompiledLimitsCache(10);
+
+        AccessInfo ai = new AccessInfo(GrantType.ALLOW);
+        ai.setCqlFilterRead("a = 1");
+        Set<LayerAttribute> attributes = new HashSet<LayerAttribute>();
+        attributes.add(new LayerAttribute("ro", AccessType.READONLY));
+        attributes.add(new LayerAttribute("rw", AccessType.READWRITE));
+        attributes.add(new LayerAttribute("none", AccessType.NONE));
+        ai.setAttributes(attributes);
+
+        CompiledLimits limits = cache.getLimits(ai);
+        assertEquals(1, cache.getCqlParseCount());
+        assertEquals(2, limits.getReadAttributes().size());
+        assertEquals(1, limits.getWriteAttributes().size());
+        assertEquals("rw", limits.getWriteAttributes().get(0).getPropertyName());
+        assertSame(Filter.INCLUDE, limits.getWriteFilter());
+
+        // parsed only once
+        assertSame(limits, cache.getLimits(ai));
+        assertEquals(1, cache.getCqlParseCount());
+        assertEquals(1, cache.getStats().hitCount());
+
+        // area merged once per area
+        Geometry area = new WKTReader().read("MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)))");
+        Filter read = limits.getReadFilter(area);
+        assertTrue(read instanceof And);
+        assertTrue(limits.getWriteFilter(area) instanceof Intersects);
+        assertSame(read, limits.getReadFilter(area));
+        assertEquals(1, cache.getAreaMergeCount());
+        assertSame(limits.getReadFilter(), limits.getReadFilter(null));
+
+        // keyed by identity
+        AccessInfo deny = new AccessInfo(GrantType.DENY);
+        CompiledLimits denyLimits = cache.getLimits(deny);
+        assertNotSame(limits, denyLimits);
+        assertSame(Filter.EXCLUDE, denyLimits.getReadFilter(area));
+        assertNull(denyLimits.getReadAttributes());
+    }
+
+    public void testInvalidCql() {
+        CompiledLimitsCache cache = new CompiledLimitsCache(10);
+        AccessInfo ai = new AccessInfo(GrantType.ALLOW);
+        ai.setCqlFilterWrite("this is not cql (");
+        try {
+            cache.getLimits(ai);
+            fail("Invalid cql not detected");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.dto.LayerAccessInfos;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class LayerAccessCacheTest extends TestCase {
+
+    private final StubRuleReaderService reader = new StubRuleReaderService() {
+        @Override
+        protected LayerAccessInfos decideLayers(RuleFilter filter) {
+            assertEquals(RuleFilter.FilterType.ANY, filter.getWorkspace().getType());
+            LayerAccessInfos ret = new LayerAccessInfos();
+            ret.put("ws1", "l1", new AccessInfo(GrantType.ALLOW));
+            ret.put("ws1", null, new AccessInfo(GrantType.DENY));
+            ret.put(null, null, new AccessInfo(GrantType.DENY));
+            ret.setRuleSetVersion(1);
+            return ret;
+        }
+    };
+
+    private RuleFilter filter(String user, String workspace, String layer) {
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser(user);
+        filter.setService("WMS");
+        filter.setRequest("GetCapabilities");
+        if (workspace != null) {
+            filter.setWorkspace(workspace);
+            filter.setLayer(layer);
+        }
+        return filter;
+    }
+
+    public void testLayerAccess() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.getCacheInitParams().setSize(10);
+        cachedRuleReader.init();
+
+        try {
+            // no decisions fetched yet
+            assertEquals(GrantType.ALLOW, cachedRuleReader.getAccessInfo(filter("u1", "ws1", "l2")).getGrant());
+            assertEquals(1, reader.getCallCount("getAccessInfo"));
+
+            LayerAccessInfos infos = cachedRuleReader.getLayerAccessInfos(filter("u1", null, null));
+            assertSame(infos, cachedRuleReader.getLayerAccessInfos(filter("u1", null, null)));
+            assertEquals(1, reader.getCallCount("getLayerAccessInfos"));
+            assertEquals(1, cachedRuleReader.getLayerAccessCacheSize());
+
+            // the single decisions are served from the fetched ones
+            assertEquals(GrantType.ALLOW, cachedRuleReader.getAccessInfo(filter("u1", "ws1", "l1")).getGrant());
+            assertEquals(GrantType.DENY, cachedRuleReader.getAccessInfo(filter("u1", "ws1", "l3")).getGrant());
+            assertEquals(GrantType.DENY, cachedRuleReader.getAccessInfo(filter("u1", "ws2", "l1")).getGrant());
+            assertEquals(1, reader.getCallCount("getAccessInfo"));
+
+            // other users are not covered
+            cachedRuleReader.getAccessInfo(filter("u2", "ws1", "l1"));
+            assertEquals(2, reader.getCallCount("getAccessInfo"));
+
+            // evicted by the affecting changes only
+            cachedRuleReader.invalidate(ChangeEvent.forUser(2L, "u2"));
+            assertEquals(1, cachedRuleReader.getLayerAccessCacheSize());
+            cachedRuleReader.invalidate(ChangeEvent.forUser(1L, "u1"));
+            assertEquals(0, cachedRuleReader.getLayerAccessCacheSize());
+
+            cachedRuleReader.getAccessInfo(filter("u1", "ws1", "l4"));
+            assertEquals(3, reader.getCallCount("getAccessInfo"));
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+
+    public void testStaleLayerAccessIgnored() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.getCacheInitParams().setSize(10);
+        cachedRuleReader.init();
+
+        try {
+            cachedRuleReader.getLayerAccessInfos(filter("u1", null, null));
+            cachedRuleReader.getAccessInfo(filter("u1", "ws1", "l1"));
+            assertEquals(0, reader.getCallCount("getAccessInfo"));
+
+            // a newer rule set which does not affect the fetched decisions
+            ChangeEvent event = new ChangeEvent(ChangeEvent.Type.RULE);
+            event.setUserName("u2");
+            event.setRuleSetVersion(2);
+            cachedRuleReader.invalidate(event);
+            assertEquals(1, cachedRuleReader.getLayerAccessCacheSize());
+
+            // the older decisions are not used anymore
+            cachedRuleReader.getAccessInfo(filter("u1", "ws1", "l2"));
+            assertEquals(1, reader.getCallCount("getAccessInfo"));
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+}
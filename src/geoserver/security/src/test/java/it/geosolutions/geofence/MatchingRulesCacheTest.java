@@ -0,0 +1,145 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.ShortRule;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class MatchingRulesCacheTest extends TestCase {
+
+    private final AtomicLong version = new AtomicLong(1);
+
+    private final StubRuleReaderService reader = new StubRuleReaderService() {
+        @Override
+        protected AccessInfo decide(RuleFilter filter) {
+            AccessInfo ret = new AccessInfo(GrantType.ALLOW);
+            ret.setRuleSetVersion(version.get());
+            return ret;
+        }
+
+        @Override
+        protected List<ShortRule> match(RuleFilter filter) {
+            ShortRule rule = new ShortRule();
+            rule.setId(1L);
+            rule.setLayer(filter.getLayer().getName());
+            List<ShortRule> ret = new ArrayList<ShortRule>();
+            ret.add(rule);
+            return ret;
+        }
+    };
+
+    public void testMatchingRules() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.getCacheInitParams().setSize(10);
+        cachedRuleReader.init();
+
+        try {
+            RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+            filter.setUser("u1");
+            filter.setLayer("l1");
+
+            List<ShortRule> rules = cachedRuleReader.getMatchingRules(filter);
+            assertEquals(1, rules.size());
+            assertEquals("l1", rules.get(0).getLayer());
+            assertSame(rules, cachedRuleReader.getMatchingRules(filter));
+            assertEquals(1, reader.getCallCount("getMatchingRules"));
+            assertEquals(1, cachedRuleReader.getMatchingRulesStats().hitCount());
+
+            try {
+                rules.clear();
+                fail("Shared list can be modified");
+            } catch (UnsupportedOperationException e) {
+                // ok
+            }
+
+            // the deprecated method is cached as well
+            cachedRuleReader.getMatchingRules("u1", null, null, null, null, null, "l2");
+            cachedRuleReader.getMatchingRules("u1", null, null, null, null, null, "l2");
+            assertEquals(2, reader.getCallCount("getMatchingRules"));
+            assertEquals(2, cachedRuleReader.getMatchingRulesCacheSize());
+
+            // evicted by the affecting changes only
+            cachedRuleReader.invalidate(ChangeEvent.forUser(2L, "u2"));
+            assertEquals(2, cachedRuleReader.getMatchingRulesCacheSize());
+            cachedRuleReader.invalidate(ChangeEvent.forUser(1L, "u1"));
+            assertEquals(0, cachedRuleReader.getMatchingRulesCacheSize());
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+
+    public void testReloadedOnNewerVersion() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.getCacheInitParams().setSize(10);
+        cachedRuleReader.init();
+
+        try {
+            RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+            filter.setUser("u1");
+            filter.setLayer("l1");
+
+            // a decision with the same version keeps the cached rules
+            cachedRuleReader.getAccessInfo(decision("u2"));
+            List<ShortRule> rules = cachedRuleReader.getMatchingRules(filter);
+            assertEquals(1, reader.getCallCount("getMatchingRules"));
+            cachedRuleReader.getAccessInfo(decision("u3"));
+            assertEquals(1, cachedRuleReader.getRuleSetVersion());
+            assertSame(rules, cachedRuleReader.getMatchingRules(filter));
+            assertEquals(1, reader.getCallCount("getMatchingRules"));
+
+            // a more recent version, even from an unrelated decision, reloads them
+            version.set(2);
+            cachedRuleReader.getAccessInfo(decision("u4"));
+            assertEquals(2, cachedRuleReader.getRuleSetVersion());
+            List<ShortRule> reloaded = cachedRuleReader.getMatchingRules(filter);
+            assertEquals(2, reader.getCallCount("getMatchingRules"));
+            assertNotSame(rules, reloaded);
+            assertSame(reloaded, cachedRuleReader.getMatchingRules(filter));
+            assertEquals(2, reader.getCallCount("getMatchingRules"));
+
+            // as does a rule change event
+            cachedRuleReader.invalidate(ChangeEvent.forAnyRule(3));
+            cachedRuleReader.getMatchingRules(filter);
+            assertEquals(3, reader.getCallCount("getMatchingRules"));
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+
+    private static RuleFilter decision(String user) {
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser(user);
+        return filter;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import it.geosolutions.geofence.cache.ReprojectedAreaCache;
+import junit.framework.TestCase;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class ReprojectedAreaCacheTest extends TestCase {
+
+    private Geometry parse(String wkt) throws Exception {
+        Geometry geom = new WKTReader().read(wkt);
+        geom.setSRID(4326);
+        return geom;
+    }
+
+    public void testReproject() throws Exception {
+        ReprojectedAreaCache cache = new ReprojectedAreaCache(10);
+
+        Geometry area = parse("MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)))");
+        CoordinateReferenceSystem wgs84 = CRS.decode("EPSG:4326");
+        CoordinateReferenceSystem merc = CRS.decode("EPSG:3857");
+
+        assertNull(cache.reproject(null, merc));
+        assertSame(area, cache.reproject(area, null));
+
+        // same CRS: area returned as is
+        assertSame(area, cache.reproject(area, wgs84));
+
+        Geometry reprojected = cache.reproject(area, merc);
+        assertNotSame(area, reprojected);
+        assertFalse(area.equalsExact(reprojected));
+        // the source area is not modified
+        assertTrue(parse("MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)))").equalsExact(area));
+
+        // transformed only once
+        assertSame(reprojected, cache.reproject(area, merc));
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(2, cache.getStats().missCount());
+
+        // keyed by content: an area decoded again shares the reprojected one
+        Geometry copy = parse("MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)))");
+        assertSame(reprojected, cache.reproject(copy, merc));
+        assertEquals(2, cache.getStats().hitCount());
+        assertEquals(2, cache.getStats().missCount());
+
+        // a different area or SRID is a different entry
+        Geometry other = parse("MULTIPOLYGON(((0 0, 20 0, 20 20, 0 20, 0 0)))");
+        assertFalse(reprojected.equalsExact(cache.reproject(other, merc)));
+        Geometry otherSrid = parse("MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)))");
+        otherSrid.setSRID(4269);
+        assertNotSame(reprojected, cache.reproject(otherSrid, merc));
+        assertEquals(4, cache.getStats().missCount());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.getCacheSize());
+    }
+}
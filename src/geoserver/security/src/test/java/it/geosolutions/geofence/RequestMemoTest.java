@@ -0,0 +1,82 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.geoserver.ows.Request;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RequestMemoTest extends TestCase {
+
+    private final StubRuleReaderService reader = new StubRuleReaderService();
+
+    private RuleFilter filter(String layer) {
+        RuleFilter ruleFilter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        ruleFilter.setUser("u1");
+        ruleFilter.setLayer(layer);
+        return ruleFilter;
+    }
+
+    public void testMemo() {
+        GeofenceAccessManager manager = new GeofenceAccessManager(reader, null, "gs");
+
+        MockHttpServletRequest http = new MockHttpServletRequest();
+        http.setRemoteAddr("127.0.0.1");
+        Request request = new Request();
+        request.setHttpRequest(http);
+
+        manager.init(request);
+        assertNotNull(RequestMemo.get(request));
+
+        AccessInfo ai = manager.getAccessInfo(request, filter("l1"));
+        assertSame(ai, manager.getAccessInfo(request, filter("l1")));
+        assertEquals(1, reader.getCallCount());
+
+        manager.getAccessInfo(request, filter("l2"));
+        assertEquals(2, reader.getCallCount());
+
+        assertNotNull(manager.getSourceAddress(request));
+        assertTrue(RequestMemo.get(request).isAddressResolved());
+
+        // only the missing decisions are requested
+        List<AccessInfo> infos = manager.getAccessInfos(request, Arrays.asList(filter("l1"), filter("l3"), filter("l2")));
+        assertEquals(3, infos.size());
+        assertSame(ai, infos.get(0));
+        assertEquals(3, reader.getCallCount());
+        assertSame(infos.get(1), manager.getAccessInfo(request, filter("l3")));
+        assertEquals(3, reader.getCallCount());
+
+        manager.finished(request);
+        assertNull(RequestMemo.get(request));
+
+        // no memo outside a request
+        manager.getAccessInfo(request, filter("l1"));
+        manager.getAccessInfo(null, filter("l1"));
+        assertEquals(5, reader.getCallCount());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.cache.RuleFilterKey;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.FilterType;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RuleFilterKeyTest extends TestCase {
+
+    private final StubRuleReaderService reader = new StubRuleReaderService();
+
+    public void testCanonical() {
+        RuleFilter f1 = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        f1.setUser("u1");
+        f1.setService("wms");
+        f1.setLayer("l1");
+
+        // includeDefault differs on the ANY fields, where it is not used
+        RuleFilter f2 = new RuleFilter(RuleFilter.SpecialFilterType.ANY, true);
+        f2.setUser("u1");
+        f2.setService("WMS");
+        f2.getService().setIncludeDefault(false);
+        f2.setLayer(new String("l1"));
+        f2.getLayer().setIncludeDefault(false);
+        assertFalse(f1.equals(f2));
+
+        RuleFilterKey k1 = RuleFilterKey.of(f1);
+        RuleFilterKey k2 = RuleFilterKey.of(f2);
+        assertEquals(k1, k2);
+        assertEquals(k1.hashCode(), k2.hashCode());
+        assertSame(k1.getFilter().getLayer().getName(), k2.getFilter().getLayer().getName());
+        assertEquals("WMS", k2.getFilter().getService().getName());
+
+        // where it is used, includeDefault is kept
+        f2.getUser().setIncludeDefault(false);
+        assertFalse(k1.equals(RuleFilterKey.of(f2)));
+
+        // once stored, the key is not affected by later changes of the filter
+        f1.setLayer("l2");
+        assertEquals(k1, k2);
+        assertEquals("l1", k1.getFilter().getLayer().getName());
+
+        // the requested filters are only copied when the key is stored
+        RuleFilter f3 = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        f3.setUser("u1");
+        f3.setService("Wms");
+        f3.setLayer("l1");
+        RuleFilterKey k3 = RuleFilterKey.of(f3);
+        assertEquals(k1.hashCode(), k3.hashCode());
+        assertEquals(k1, k3);
+        assertEquals(k3, k1);
+        assertNotSame(f3, k3.getFilter());
+        assertEquals("WMS", k3.getFilter().getService().getName());
+
+        // the services get a copy they can modify
+        RuleFilter copy = k1.newFilter();
+        assertNotSame(k1.getFilter(), copy);
+        assertEquals(k1.getFilter(), copy);
+        copy.setUserGroup(RuleFilter.SpecialFilterType.DEFAULT);
+        assertEquals(k1, k2);
+    }
+
+    public void testSharedEntry() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.getCacheInitParams().setSize(10);
+        cachedRuleReader.init();
+        try {
+            RuleFilter f1 = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+            f1.setUser("u1");
+            f1.setLayer("l1");
+            RuleFilter f2 = new RuleFilter(RuleFilter.SpecialFilterType.ANY, false);
+            f2.setUser("u1");
+            f2.getUser().setIncludeDefault(true);
+            f2.setLayer("l1");
+
+            assertSame(cachedRuleReader.getAccessInfo(f1), cachedRuleReader.getAccessInfo(f2));
+            assertEquals(1, reader.getCallCount());
+            assertEquals(1, cachedRuleReader.getCacheSize());
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+
+    public void testFilterModifiedByTheService() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        StubRuleReaderService modifying = new StubRuleReaderService() {
+            @Override
+            protected AccessInfo decide(RuleFilter filter) {
+                // as the local RuleReaderService does for the users without groups
+                filter.setUserGroup(RuleFilter.SpecialFilterType.DEFAULT);
+                return new AccessInfo(GrantType.ALLOW);
+            }
+        };
+        cachedRuleReader.setRealRuleReaderService(modifying);
+        cachedRuleReader.getCacheInitParams().setSize(10);
+        cachedRuleReader.init();
+        try {
+            RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+            filter.setUser("u1");
+            filter.setLayer("l1");
+
+            cachedRuleReader.getAccessInfo(filter);
+            cachedRuleReader.getAccessInfo(filter);
+            assertEquals(1, modifying.getCallCount());
+            assertEquals(FilterType.ANY, filter.getUserGroup().getType());
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+
+    public void testBuildRuleFilter() {
+        GeofenceAccessManager manager = new GeofenceAccessManager(reader, null, "gs");
+
+        // anonymous requests only match the rules not bound to a user
+        RuleFilter anonymous = manager.buildRuleFilter(null, null, "wms", "GetMap", "ws", "l1");
+        assertEquals(FilterType.DEFAULT, anonymous.getUser().getType());
+        assertEquals("WMS", anonymous.getService().getName());
+        assertEquals("GETMAP", anonymous.getRequest().getName());
+
+        // remote layers match any layer
+        RuleFilter remote = manager.buildRuleFilter(null, "u1", "WMS", "*", null, null);
+        assertEquals("u1", remote.getUser().getName());
+        assertEquals(FilterType.ANY, remote.getRequest().getType());
+        assertEquals(FilterType.ANY, remote.getWorkspace().getType());
+        assertEquals(FilterType.ANY, remote.getLayer().getType());
+    }
+}
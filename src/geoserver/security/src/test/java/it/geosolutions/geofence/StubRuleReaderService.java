@@ -0,0 +1,136 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import com.google.common.util.concurrent.AtomicLongMap;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.RuleReaderService;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.AuthUser;
+import it.geosolutions.geofence.services.dto.LayerAccessInfos;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.ShortRule;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A RuleReaderService standing for the GeoFence server in the tests of the caches,
+ * counting the calls it gets.
+ * <P/>
+ * Every filter is allowed: the tests needing other answers override {@link #decide(RuleFilter)},
+ * {@link #match(RuleFilter)} or {@link #decideLayers(RuleFilter)}, which are used by both
+ * the single and the bulk requests.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class StubRuleReaderService implements RuleReaderService {
+
+    private final AtomicLongMap<String> calls = AtomicLongMap.create();
+    private final AtomicInteger decisionCount = new AtomicInteger();
+
+    /**
+     * @return the decision on the filter; by default ALLOW.
+     */
+    protected AccessInfo decide(RuleFilter filter) {
+        return new AccessInfo(GrantType.ALLOW);
+    }
+
+    /**
+     * @return the rules matching the filter; by default none.
+     */
+    protected List<ShortRule> match(RuleFilter filter) {
+        return new ArrayList<ShortRule>();
+    }
+
+    /**
+     * @return the decisions on all the layers; not answered by default.
+     */
+    protected LayerAccessInfos decideLayers(RuleFilter filter) {
+        throw new UnsupportedOperationException("Layer decisions not expected");
+    }
+
+    /**
+     * @return the number of calls received, whatever the method.
+     */
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of calls received by the named method.
+     */
+    public long getCallCount(String method) {
+        return calls.get(method);
+    }
+
+    /**
+     * @return the number of decisions made, counting each filter of the bulk requests.
+     */
+    public int getDecisionCount() {
+        return decisionCount.get();
+    }
+
+    @Override
+    public AccessInfo getAccessInfo(String userName, String profileName, String instanceName, String service, String request, String workspace, String layer) {
+        return getAccessInfo(new RuleFilter(userName, profileName, instanceName, service, request, workspace, layer));
+    }
+
+    @Override
+    public AccessInfo getAccessInfo(RuleFilter filter) {
+        calls.incrementAndGet("getAccessInfo");
+        decisionCount.incrementAndGet();
+        return decide(filter);
+    }
+
+    @Override
+    public List<AccessInfo> getAccessInfos(List<RuleFilter> filters) {
+        calls.incrementAndGet("getAccessInfos");
+        List<AccessInfo> ret = new ArrayList<AccessInfo>(filters.size());
+        for (RuleFilter filter : filters) {
+            decisionCount.incrementAndGet();
+            ret.add(decide(filter));
+        }
+        return ret;
+    }
+
+    @Override
+    public LayerAccessInfos getLayerAccessInfos(RuleFilter filter) {
+        calls.incrementAndGet("getLayerAccessInfos");
+        return decideLayers(filter);
+    }
+
+    @Override
+    public List<ShortRule> getMatchingRules(String userName, String profileName, String instanceName, String service, String request, String workspace, String layer) {
+        return getMatchingRules(new RuleFilter(userName, profileName, instanceName, service, request, workspace, layer));
+    }
+
+    @Override
+    public List<ShortRule> getMatchingRules(RuleFilter filter) {
+        calls.incrementAndGet("getMatchingRules");
+        return match(filter);
+    }
+
+    @Override
+    public AuthUser authorize(String username, String password) {
+        calls.incrementAndGet("authorize");
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence;
+
+import it.geosolutions.geofence.cache.CachedRuleReader;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Checks that denies on resources not covered by any rule are cached apart.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class UnmatchedCacheTest extends TestCase {
+
+    private final StubRuleReaderService reader = new StubRuleReaderService() {
+        @Override
+        protected AccessInfo decide(RuleFilter filter) {
+            if ("unknown".equals(filter.getLayer().getName())) {
+                AccessInfo ret = new AccessInfo(GrantType.DENY);
+                ret.setUnmatched(true);
+                return ret;
+            }
+            return new AccessInfo(GrantType.ALLOW);
+        }
+    };
+
+    private static RuleFilter filter(String user, String layer) {
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser(user);
+        filter.setLayer(layer);
+        return filter;
+    }
+
+    public void testUnmatched() {
+        CachedRuleReader cachedRuleReader = new CachedRuleReader();
+        cachedRuleReader.setRealRuleReaderService(reader);
+        cachedRuleReader.getCacheInitParams().setSize(10);
+        cachedRuleReader.getCacheInitParams().setRewarmPerSecond(0);
+        cachedRuleReader.init();
+
+        try {
+            AccessInfo deny = cachedRuleReader.getAccessInfo(filter("u1", "unknown"));
+            assertEquals(GrantType.DENY, deny.getGrant());
+            assertTrue(deny.isUnmatched());
+            assertEquals(1, reader.getCallCount());
+            // no slot used in the rule cache
+            assertEquals(0, cachedRuleReader.getCacheSize());
+            assertEquals(1, cachedRuleReader.getUnmatchedCacheSize());
+
+            // other users on the same resource are answered locally
+            assertSame(deny, cachedRuleReader.getAccessInfo(filter("u2", "unknown")));
+            assertSame(deny, cachedRuleReader.getAccessInfo(filter("u3", "unknown")));
+            assertEquals(1, reader.getCallCount());
+            assertEquals(2, cachedRuleReader.getUnmatchedStats().hitCount());
+
+            AccessInfo allow = cachedRuleReader.getAccessInfo(filter("u1", "l1"));
+            assertEquals(GrantType.ALLOW, allow.getGrant());
+            assertEquals(2, reader.getCallCount());
+            assertEquals(1, cachedRuleReader.getCacheSize());
+
+            // bulk requests: the unmatched resource is not requested again
+            List<AccessInfo> infos = cachedRuleReader.getAccessInfos(
+                    Arrays.asList(filter("u4", "unknown"), filter("u4", "l1"), filter("u1", "l1")));
+            assertSame(deny, infos.get(0));
+            assertEquals(GrantType.ALLOW, infos.get(1).getGrant());
+            assertSame(allow, infos.get(2));
+            assertEquals(3, reader.getCallCount());
+            assertEquals(2, cachedRuleReader.getCacheSize());
+
+            // user changes do not affect the unmatched resources
+            cachedRuleReader.invalidate(ChangeEvent.forUser(1L, "u1"));
+            assertEquals(1, cachedRuleReader.getUnmatchedCacheSize());
+
+            // a rule may now cover the resource
+            cachedRuleReader.invalidate(ChangeEvent.forAnyRule(1));
+            assertEquals(0, cachedRuleReader.getUnmatchedCacheSize());
+
+            cachedRuleReader.getAccessInfo(filter("u1", "unknown"));
+            assertEquals(1, cachedRuleReader.getUnmatchedCacheSize());
+            cachedRuleReader.invalidateLayer("l1");
+            assertEquals(0, cachedRuleReader.getUnmatchedCacheSize());
+        } finally {
+            cachedRuleReader.destroy();
+        }
+    }
+}
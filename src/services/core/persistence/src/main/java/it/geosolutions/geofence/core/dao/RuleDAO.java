@@ -22,6 +22,7 @@ package it.geosolutions.geofence.core.dao;
 
 import it.geosolutions.geofence.core.model.Rule;
 import it.geosolutions.geofence.core.model.enums.InsertPosition;
+import java.util.List;
 
 /**
  * Public interface to define operations on Rule
@@ -47,6 +48,90 @@ public interface RuleDAO extends RestrictedGenericDAO<Rule> {
      */
     public void swap(long id1, long id2);
 
-    long persist(Rule entity, InsertPosition position);
+    /**
+     * Inserts the Rule at the given position.
+     * <P/>
+     * The priority of the Rule is the 0-based position from the start for {@link InsertPosition#FROM_START},
+     * the 0-based position from the end for {@link InsertPosition#FROM_END}, and the priority itself
+     * for {@link InsertPosition#FIXED}.
+     * The priorities of the other rules are only changed when there's no room left between the new rule's neighbours.
+     *
+     * The assigned priority is set in the Rule.
+     *
+     * @return the number of priority updates on the other rules, 0 if none of them has been moved.
+     */
+    int persist(Rule entity, InsertPosition position);
+
+    /**
+     * Spaces out the priorities of some rules crowded by positional inserts,
+     * without changing their order.
+     * <P/>
+     * Long crowded runs are spaced out across many calls.
+     *
+     * @param maxRules the max number of rules to be updated.
+     * @return the number of updated rules, or -1 if there are no crowded rules left.
+     */
+    int respace(int maxRules);
+
+    /**
+     * Reads some priorities from the db, and queues for {@link #respace(int)}
+     * the spots where there's no room left to insert a rule.
+     *
+     * @param fromPriority the priority the scan starts from, <TT>Long.MIN_VALUE</TT> for the first rule.
+     * @param maxRules the max number of priorities to be read.
+     * @return the priority the next scan should start from, or <TT>Long.MIN_VALUE</TT> if the last rule has been read.
+     */
+    long scanCrowded(long fromPriority, int maxRules);
+
+    /**
+     * Persists many rules at once.
+     * <P/>
+     * Duplicates are checked in memory, against the keys of the existing rules read with a single query
+     * and against the other rules in the list; as in {@link #persist(Rule[])}, LIMIT rules are not checked.
+     * Duplicated rules are skipped, and left with a null id.
+     * <BR/>
+     * The rules are flushed every <TT>batchSize</TT> rules, so that the inserts are sent in JDBC batches,
+     * and are then detached from the persistence context; other entities are not affected.
+     *
+     * @param position {@link InsertPosition#FIXED} to keep the priority of the rules, or {@link InsertPosition#FROM_END}
+     *        to append them after the existing rules, in list order.
+     */
+    BulkInsertReport persistAll(List<Rule> rules, InsertPosition position, int batchSize);
+
+    /**
+     * Some info about a {@link RuleDAO#persistAll(List, InsertPosition, int) bulk insert}.
+     */
+    public static class BulkInsertReport {
+        private final int inserted;
+        private final int duplicates;
+        private final List<Long> batchMillis;
+
+        public BulkInsertReport(int inserted, int duplicates, List<Long> batchMillis) {
+            this.inserted = inserted;
+            this.duplicates = duplicates;
+            this.batchMillis = batchMillis;
+        }
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * @return the time spent on each batch, in milliseconds.
+         */
+        public List<Long> getBatchMillis() {
+            return batchMillis;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[inserted:" + inserted + " duplicates:" + duplicates
+                    + " batches:" + batchMillis + "]";
+        }
+    }
 
 }
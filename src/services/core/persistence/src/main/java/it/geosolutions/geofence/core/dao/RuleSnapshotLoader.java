@@ -0,0 +1,78 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.core.dao;
+
+import it.geosolutions.geofence.core.model.Rule;
+import java.util.List;
+
+/**
+ * Loads the whole rule set at once, in order to build an in-memory snapshot of it.
+ * <P/>
+ * Unlike {@link RuleDAO#findAll()}, which issues some further selects for the
+ * associations of each Rule, the rules are loaded with a fixed number of queries,
+ * whatever their number.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public interface RuleSnapshotLoader {
+
+    /**
+     * Loads all the Rules, with their LayerDetails and RuleLimits, sorted by priority.
+     * <P/>
+     * The returned Rules are detached, and are not to be merged back.
+     */
+    LoadedRules loadAll();
+
+    /**
+     * The loaded rules, with some info about the load.
+     */
+    public static class LoadedRules {
+        private final List<Rule> rules;
+        private final int queryCount;
+        private final long loadMillis;
+
+        public LoadedRules(List<Rule> rules, int queryCount, long loadMillis) {
+            this.rules = rules;
+            this.queryCount = queryCount;
+            this.loadMillis = loadMillis;
+        }
+
+        public List<Rule> getRules() {
+            return rules;
+        }
+
+        /**
+         * @return the number of queries run to load the rules.
+         */
+        public int getQueryCount() {
+            return queryCount;
+        }
+
+        public long getLoadMillis() {
+            return loadMillis;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[rules:" + rules.size() + " queries:" + queryCount
+                    + " millis:" + loadMillis + "]";
+        }
+    }
+}
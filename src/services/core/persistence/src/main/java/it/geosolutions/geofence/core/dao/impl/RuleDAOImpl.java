@@ -20,7 +20,14 @@
 package it.geosolutions.geofence.core.dao.impl;
 
 import com.googlecode.genericdao.search.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.persistence.Query;
 
@@ -34,9 +41,12 @@ import it.geosolutions.geofence.core.model.enums.GrantType;
 import it.geosolutions.geofence.core.model.enums.InsertPosition;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
 
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Public implementation of the GSUserDAO interface
@@ -48,6 +58,23 @@ public class RuleDAOImpl extends BaseDAO<Rule, Long> implements RuleDAO {
 
     private static final Logger LOGGER = LogManager.getLogger(RuleDAOImpl.class);
 
+    private static final int SCAN_PAGE_SIZE = 1000;
+
+    /** Marks a crowded spot whose run of rules has not been measured yet. */
+    private static final long UNKNOWN_END = Long.MAX_VALUE;
+
+    private long priorityGap = 1000;
+
+    /**
+     * Priorities after which the rules should be spaced out, mapped to the priority
+     * of the first rule already spaced out after them, if known.
+     * <BR>This is only a queue of hints: {@link #scanCrowded(long, int)} rebuilds it from the db.
+     */
+    private final ConcurrentSkipListMap<Long, Long> crowded = new ConcurrentSkipListMap<Long, Long>();
+
+    /** Serializes the priority allocations and the respacing. */
+    private final ReentrantLock priorityLock = new ReentrantLock();
+
     @Override
     public void persist(Rule... entities) {
 
@@ -72,100 +99,454 @@ public class RuleDAOImpl extends BaseDAO<Rule, Long> implements RuleDAO {
         super.persist(entities);
     }
 
+    /**
+     * Inserts the Rule at the given position.
+     * <P/>
+     * Rules are spaced out by {@link #setPriorityGap(long) priorityGap}, and the new rule takes the
+     * priority halfway between its neighbours, so that usually no other rule is touched.
+     * When the neighbours are too close, only the following rules with contiguous priorities are
+     * shifted down by one, and the spot is recorded so that {@link #respace(int)} can
+     * later space it out again.
+     */
     @Override
-    public long persist(Rule entity, InsertPosition position) {
-        switch(position) {
-            case FIXED:
-                // priority is already set
-                break;
-            case FROM_START:
-                Search search = new Search(Rule.class);
-                search.setFirstResult((int)entity.getPriority());
-                search.setMaxResults(1);
-                search.addSortAsc("priority");
-                List<Rule> list = super._search(search);
-                if(list.isEmpty()) { // no rule found at given position: let's find out why
+    public int persist(Rule entity, InsertPosition position) {
+        boolean unlock = position != InsertPosition.FIXED && lockPriorities();
+        try {
+            int shifted = 0;
+            switch(position) {
+                case FIXED:
+                    // priority is already set
+                    break;
+                case FROM_START:
+                    shifted = allocatePriority(entity, entity.getPriority());
+                    break;
+
+                case FROM_END:
+                    // 0 based: if set to 0, this rule will go in last position
+                    long posFromEnd = entity.getPriority();
                     int count = count(new Search(Rule.class));
-                    if(LOGGER.isDebugEnabled())
-                        LOGGER.debug("No rule found at position " + entity.getPriority() + " -- rules count:"+count);
-
-                    if(count == 0) { // this is the first rule inserted
-                        if(LOGGER.isDebugEnabled())
-                            LOGGER.debug("Inserting first rule");
-                        entity.setPriority(1); // this is the only rule so far, let's put in an arbitrary value
-                    } else { // some rules in, the requested postion is at bottom
-                        Search s1 = new Search(Rule.class);
-                        s1.addField("priority", Field.OP_MAX);
-                        long maxPri = (Long)searchUnique(s1);
-                        entity.setPriority(maxPri+1);
-                        if(LOGGER.isDebugEnabled())
-                            LOGGER.debug("Inserting rule in last position");
-                    }
-                } else {
-                    long basepri = list.get(0).getPriority();
-                    if(LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("shifting rules from priority " + basepri + " downward");
-                    }
-                    int i = shift(basepri, 1);
-                    if(LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("shifted "+i+" rules from priority " + basepri + " downward");
-                    }
-                    entity.setPriority(basepri);
-                }
-                break;
-
-            case FROM_END:
-                // 0 based: if set to 0, this rule will go in last position
-                long posFromEnd = entity.getPriority();
-                int count = count(new Search(Rule.class));
-                if(count == 0) {
-                    if(LOGGER.isDebugEnabled())
-                        LOGGER.debug("Inserting first rule");
-                    entity.setPriority(1); // this is the only rule so far, let's put in an arbitrary value                                        
-                } else {
-                    // needed for fetching the rule just before the new one
-                    // last rule is currently at position count - 1 (0-based)
+                    // the new rule will go just after the one currently at posFromStart (0-based)
                     long posFromStart = count - posFromEnd -1;
 
                     if(LOGGER.isDebugEnabled()) {
                         LOGGER.debug("Inserting rule -- count:"+count+" pos:-"+posFromEnd+"+"+posFromStart);
                     }
 
-                    if(posFromStart < 0 ) {
+                    if(count > 0 && posFromStart < 0 ) {
                         throw new IllegalArgumentException("Bad position from end ("+posFromEnd+") with count="+count);
                     }
+                    shifted = allocatePriority(entity, count == 0 ? 0 : posFromStart + 1);
+                    break;
 
+                default:
+                    throw new IllegalArgumentException("Bad position type " + position);
 
-                    Search searchEnd = new Search(Rule.class);
-                    searchEnd.setFirstResult((int)posFromStart);
-                    searchEnd.setMaxResults(1);
-                    searchEnd.addSortAsc("priority");
-                    List<Rule> list1 = super._search(searchEnd);
-                    if(list1.isEmpty()) { // no rule found at given position: let's find out why
-                        throw new IllegalArgumentException("Bad position from end ("+posFromEnd+") with count="+count);
-                    } else {
-                        long basepri = list1.get(0).getPriority()+1;
-                        if(LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("shifting rules from priority " + basepri + " downward");
-                        }
-                        int i = shift(basepri, 1);
-                        if(LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("shifted "+i+" rules from priority " + basepri + " downward");
-                        }
-                        entity.setPriority(basepri);
-                    }
+            }
+
+            this.persist(entity);
+            return shifted;
+        } finally {
+            if(unlock) {
+                priorityLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the lock on the priorities until the end of the current transaction, so that
+     * allocations and respacing never read the priorities the other one is changing.
+     * <P/>
+     * The lock only works inside this JVM: the respacing should be run by a single node.
+     *
+     * @return true if there is no transaction and the caller has to release the lock.
+     */
+    private boolean lockPriorities() {
+        if(priorityLock.isHeldByCurrentThread()) {
+            return false;
+        }
+        priorityLock.lock();
+        if( ! TransactionSynchronizationManager.isSynchronizationActive()) {
+            return true;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                priorityLock.unlock();
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Sets the priority of a rule to be inserted at the given 0-based position.
+     *
+     * @return the number of priority updates on the other rules, 0 if none has been moved.
+     */
+    private int allocatePriority(Rule entity, long position) {
+        Search search = new Search(Rule.class);
+        search.setFirstResult((int)Math.max(position - 1, 0));
+        search.setMaxResults(2);
+        search.addSortAsc("priority");
+        List<Rule> list = super._search(search);
+
+        Rule prev = null;
+        Rule next = null;
+        if(position == 0) {
+            next = list.isEmpty() ? null : list.get(0);
+        } else if(list.isEmpty()) { // the requested position is at bottom
+            Search s1 = new Search(Rule.class);
+            s1.addField("priority", Field.OP_MAX);
+            Long maxPri = (Long)searchUnique(s1);
+            if(maxPri != null) {
+                if(LOGGER.isDebugEnabled())
+                    LOGGER.debug("Inserting rule in last position");
+                entity.setPriority(maxPri + priorityGap);
+                return 0;
+            }
+        } else {
+            prev = list.get(0);
+            next = list.size() > 1 ? list.get(1) : null;
+        }
+
+        if(next == null) {
+            if(LOGGER.isDebugEnabled())
+                LOGGER.debug(prev == null ? "Inserting first rule" : "Inserting rule in last position");
+            entity.setPriority((prev == null ? 0 : prev.getPriority()) + priorityGap);
+            return 0;
+        }
+
+        // on top, stay above 0 unless there are already rules below it
+        long prevPri = prev == null ? Math.min(0, next.getPriority() - 1) : prev.getPriority();
+        if(next.getPriority() - prevPri >= 2) {
+            entity.setPriority(prevPri + (next.getPriority() - prevPri) / 2);
+            return 0;
+        }
+
+        long pri = prevPri + 1;
+        int shifted;
+        if(next.getPriority() <= prevPri) {
+            // the neighbours share the same priority: the other rules with that priority
+            // are moved after the previous one, then the room is made before them
+            shifted = makeRoom(pri);
+            Query query = em().createQuery("UPDATE Rule SET priority=:pri WHERE priority=:prevPri AND id<>:prevId");
+            query.setParameter("pri", pri);
+            query.setParameter("prevPri", prevPri);
+            query.setParameter("prevId", prev.getId());
+            shifted += query.executeUpdate();
+            shifted += makeRoom(pri);
+        } else {
+            // no room left between the neighbours
+            shifted = makeRoom(pri);
+        }
+        crowded.putIfAbsent(prevPri, UNKNOWN_END);
+        if(LOGGER.isDebugEnabled()) {
+            LOGGER.debug("shifted " + shifted + " rules from priority " + pri + " downward");
+        }
+        entity.setPriority(pri);
+        return shifted;
+    }
+
+    /**
+     * Shifts down by one the rules from the given priority, stopping at the first gap.
+     * <P/>
+     * The end of the run is found reading only the priorities, then the run is shifted
+     * with a single bulk update.
+     *
+     * @return the number of shifted rules.
+     */
+    @SuppressWarnings("unchecked")
+    private int makeRoom(long priority) {
+        long last = priority - 1; // last priority of the contiguous run
+        boolean gapFound = false;
+        while( ! gapFound) {
+            Query query = em().createQuery("SELECT r.priority FROM Rule r WHERE r.priority > :last ORDER BY r.priority");
+            query.setParameter("last", last);
+            query.setMaxResults(SCAN_PAGE_SIZE);
+            List<Long> page = query.getResultList();
+
+            for (Long pri : page) {
+                if(pri > last + 1) {
+                    gapFound = true;
+                    break;
                 }
-                break;
+                last = pri;
+            }
+            if(page.size() < SCAN_PAGE_SIZE) {
+                gapFound = true;
+            }
+        }
+        if(last < priority) {
+            return 0;
+        }
 
-            default:
-                throw new IllegalArgumentException("Bad position type " + position);
+        Query query = em().createQuery("UPDATE Rule SET priority=priority+1 WHERE priority >= :first AND priority <= :last");
+        query.setParameter("first", priority);
+        query.setParameter("last", last);
+        return query.executeUpdate();
+    }
 
+    /**
+     * Spaces out the rules after one of the spots where the priorities were found too close.
+     * <P/>
+     * The run of rules following the spot, up to the first rule far enough, is spread evenly.
+     * Rules are only moved downward, starting from the last ones, so that the order of the
+     * rules never changes, even between two calls.
+     * At most <TT>maxRules</TT> rules are updated: if the run is longer, the spot is queued again
+     * and the following call will go on with the rules before the ones just moved.
+     *
+     * @return the number of updated rules, or -1 if there is no spot to be spaced out.
+     */
+    @Override
+    public int respace(int maxRules) {
+        boolean unlock = lockPriorities();
+        try {
+            Map.Entry<Long, Long> spot = crowded.pollFirstEntry();
+            if(spot == null) {
+                return -1;
+            }
+
+            long start = spot.getKey();
+            long end = spot.getValue() == UNKNOWN_END ? findRunEnd(start) : spot.getValue();
+
+            // the rules still to be spaced out, between the spot and the end of the run
+            Search countSearch = new Search(Rule.class);
+            countSearch.addFilterGreaterThan("priority", start);
+            countSearch.addFilterLessThan("priority", end);
+            int count = count(countSearch);
+
+            if(end == UNKNOWN_END || end - start <= count) {
+                // the run reaches the last rule, or there's no room any more before its end:
+                // spread the rules after the last one
+                countSearch = new Search(Rule.class);
+                countSearch.addFilterGreaterThan("priority", start);
+                count = count(countSearch);
+
+                Search maxSearch = new Search(Rule.class);
+                maxSearch.addField("priority", Field.OP_MAX);
+                Long maxPri = (Long)searchUnique(maxSearch);
+                end = Math.max((maxPri == null ? start : maxPri) + priorityGap, start + (count + 1) * priorityGap);
+            }
+
+            int first = Math.max(count - maxRules, 0);
+            Search search = new Search(Rule.class);
+            search.addFilterGreaterThan("priority", start);
+            search.addFilterLessThan("priority", end);
+            search.addSortAsc("priority");
+            search.setFirstResult(first);
+            search.setMaxResults(count - first);
+            List<Rule> rules = super._search(search);
+
+            int updated = 0;
+            long lowest = end;
+            for (int i = rules.size() - 1; i >= 0; i--) {
+                Rule rule = rules.get(i);
+                long even = start + (end - start) * (first + i + 1) / (count + 1);
+                lowest = Math.max(rule.getPriority(), even);
+                updated += updatePriority(rule, lowest);
+            }
+
+            if(first > 0) { // the first rules of the run have not been spaced out yet
+                crowded.put(start, lowest);
+            }
+
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Respaced " + updated + " rules after priority " + start
+                        + (first > 0 ? ", " + first + " left" : ""));
+            }
+            return updated;
+        } finally {
+            if(unlock) {
+                priorityLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the crowded run after the given priority, reading only the priorities.
+     *
+     * @return the priority of the first rule leaving enough room for the ones before it,
+     * or {@link #UNKNOWN_END} if the run reaches the last rule.
+     */
+    @SuppressWarnings("unchecked")
+    private long findRunEnd(long start) {
+        long k = 1;
+        long last = start;
+        while(true) {
+            Query query = em().createQuery("SELECT r.priority FROM Rule r WHERE r.priority > :last ORDER BY r.priority");
+            query.setParameter("last", last);
+            query.setMaxResults(SCAN_PAGE_SIZE);
+            List<Long> page = query.getResultList();
+
+            for (Long pri : page) {
+                if(pri - start >= k * priorityGap) {
+                    return pri;
+                }
+                k++;
+                last = pri;
+            }
+            if(page.size() < SCAN_PAGE_SIZE) {
+                return UNKNOWN_END;
+            }
+        }
+    }
+
+    /**
+     * Looks in the db for the spots where the priorities are too close for a rule to be inserted
+     * between them, and queues them for {@link #respace(int)}.
+     * <P/>
+     * This also finds the spots crowded before a restart or by another node, and the
+     * dense priorities (1, 2, 3...) of the rules inserted before the priority gap was introduced.
+     * Only the first spot of each run is queued.
+     */
+    @Override
+    @Transactional(value = "geofenceTransactionManager", readOnly = true)
+    @SuppressWarnings("unchecked")
+    public long scanCrowded(long fromPriority, int maxRules) {
+        Query query = em().createQuery("SELECT r.priority FROM Rule r WHERE r.priority >= :from ORDER BY r.priority");
+        query.setParameter("from", fromPriority);
+        query.setMaxResults(maxRules);
+        List<Long> page = query.getResultList();
+
+        Long prev = null;
+        boolean inRun = false;
+        for (Long pri : page) {
+            boolean tooClose = prev != null && pri - prev < 2;
+            if(tooClose && ! inRun) {
+                crowded.putIfAbsent(prev, UNKNOWN_END);
+            }
+            inRun = tooClose;
+            prev = pri;
+        }
+
+        // the last priority read is read again in the next page, to check it against its follower
+        return page.size() < maxRules || prev == fromPriority ? Long.MIN_VALUE : prev;
+    }
+
+    @Override
+    public BulkInsertReport persistAll(List<Rule> rules, InsertPosition position, int batchSize) {
+        if ( position != InsertPosition.FIXED && position != InsertPosition.FROM_END ) {
+            throw new IllegalArgumentException("Bad position type for bulk insert " + position);
         }
 
-        this.persist(entity);
-        return entity.getPriority();
+        // the priorities after the last rule are taken until the end of the transaction
+        boolean unlock = position == InsertPosition.FROM_END && lockPriorities();
+        try {
+            long priority = 0;
+            if ( position == InsertPosition.FROM_END ) {
+                Search s1 = new Search(Rule.class);
+                s1.addField("priority", Field.OP_MAX);
+                Long maxPri = (Long)searchUnique(s1);
+                priority = maxPri == null ? 0 : maxPri;
+            }
+
+            Set<List<Object>> keys = loadKeys();
+
+            List<Long> batchMillis = new ArrayList<Long>();
+            List<Rule> pending = new ArrayList<Rule>(batchSize);
+            int inserted = 0;
+            int duplicates = 0;
+            long batchStart = System.currentTimeMillis();
+            for (Rule rule : rules) {
+                // there may be as many LIMIT rules as desired
+                if ( rule.getAccess() != GrantType.LIMIT && ! keys.add(getKey(rule)) ) {
+                    LOGGER.warn("Skipping duplicate rule " + rule);
+                    duplicates++;
+                    continue;
+                }
+                if ( position == InsertPosition.FROM_END ) {
+                    priority += priorityGap;
+                    rule.setPriority(priority);
+                }
+                em().persist(rule);
+                inserted++;
+
+                pending.add(rule);
+                if ( pending.size() == batchSize ) {
+                    batchStart = flushBatch(batchMillis, pending, batchStart);
+                }
+            }
+            if ( ! pending.isEmpty() ) {
+                flushBatch(batchMillis, pending, batchStart);
+            }
+
+            return new BulkInsertReport(inserted, duplicates, batchMillis);
+        } finally {
+            if ( unlock ) {
+                priorityLock.unlock();
+            }
+        }
     }
 
+    /**
+     * Sends the pending inserts, and detaches the inserted rules, so that the persistence context
+     * does not grow with the list.
+     * <BR>Only the inserted rules are detached: the other entities loaded in the enclosing
+     * transaction are left untouched.
+     *
+     * @return the time the batch has been flushed.
+     */
+    private long flushBatch(List<Long> batchMillis, List<Rule> pending, long batchStart) {
+        em().flush();
+        Session session = (Session)em().getDelegate();
+        for (Rule rule : pending) {
+            session.evict(rule);
+        }
+        long now = System.currentTimeMillis();
+        batchMillis.add(now - batchStart);
+        if ( LOGGER.isDebugEnabled() ) {
+            LOGGER.debug("Inserted batch #" + batchMillis.size() + " of " + pending.size() + " rules in " + (now - batchStart) + "ms");
+        }
+        pending.clear();
+        return now;
+    }
+
+    /**
+     * Reads with a single query the keys of the existing rules, LIMIT rules excluded.
+     *
+     * @see #getDupSearch(Rule)
+     */
+    @SuppressWarnings("unchecked")
+    private Set<List<Object>> loadKeys() {
+        Query query = em().createQuery("SELECT u.id, g.id, i.id, r.service, r.request, r.workspace, r.layer"
+                + " FROM Rule r LEFT JOIN r.gsuser u LEFT JOIN r.userGroup g LEFT JOIN r.instance i"
+                + " WHERE r.access <> :limit");
+        query.setParameter("limit", GrantType.LIMIT);
+
+        Set<List<Object>> keys = new HashSet<List<Object>>();
+        for (Object[] row : (List<Object[]>) query.getResultList()) {
+            keys.add(Arrays.asList(row));
+        }
+        return keys;
+    }
+
+    private static List<Object> getKey(Rule rule) {
+        return Arrays.<Object>asList(
+                rule.getGsuser() == null ? null : rule.getGsuser().getId(),
+                rule.getUserGroup() == null ? null : rule.getUserGroup().getId(),
+                rule.getInstance() == null ? null : rule.getInstance().getId(),
+                rule.getService(),
+                rule.getRequest(),
+                rule.getWorkspace(),
+                rule.getLayer());
+    }
+
+    private static int updatePriority(Rule rule, long priority) {
+        if(rule.getPriority() == priority) {
+            return 0;
+        }
+        rule.setPriority(priority);
+        return 1;
+    }
+
+    /**
+     * Sets the distance between the priorities of rules inserted by position. Default is 1000.
+     */
+    public void setPriorityGap(long priorityGap) {
+        if(priorityGap < 2) {
+            throw new IllegalArgumentException("Priority gap should be at least 2");
+        }
+        this.priorityGap = priorityGap;
+    }
 
     private Search getDupSearch(Rule rule) {
         Search search = new Search(Rule.class);
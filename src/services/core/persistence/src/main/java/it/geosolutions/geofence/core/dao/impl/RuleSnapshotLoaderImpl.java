@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.core.dao.impl;
+
+import com.vividsolutions.jts.geom.MultiPolygon;
+import it.geosolutions.geofence.core.dao.RuleSnapshotLoader;
+import it.geosolutions.geofence.core.model.GSInstance;
+import it.geosolutions.geofence.core.model.GSUser;
+import it.geosolutions.geofence.core.model.LayerAttribute;
+import it.geosolutions.geofence.core.model.LayerDetails;
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.core.model.RuleLimits;
+import it.geosolutions.geofence.core.model.UserGroup;
+import it.geosolutions.geofence.core.model.enums.AccessType;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.core.model.enums.LayerType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Loads the rule set with five set-based queries (rules, details, styles, attributes, limits),
+ * and assembles the Rules in memory.
+ * <P/>
+ * Rules, LayerDetails and RuleLimits are read as plain values, so that none of
+ * their eager associations is fetched one entity at a time;
+ * users, groups and instances are read as entities in the same query of the rules.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+@Transactional(value = "geofenceTransactionManager", readOnly = true)
+public class RuleSnapshotLoaderImpl implements RuleSnapshotLoader {
+
+    private static final Logger LOGGER = LogManager.getLogger(RuleSnapshotLoaderImpl.class);
+
+    private static final String RULES_QUERY =
+            "SELECT r.id, r.priority, r.service, r.request, r.workspace, r.layer, r.access, u, g, i"
+            + " FROM Rule r LEFT JOIN r.gsuser u LEFT JOIN r.userGroup g LEFT JOIN r.instance i"
+            + " ORDER BY r.priority";
+
+    private static final String DETAILS_QUERY =
+            "SELECT d.rule.id, d.type, d.defaultStyle, d.cqlFilterRead, d.cqlFilterWrite, d.area, d.areaMetadataField"
+            + " FROM LayerDetails d";
+
+    private static final String STYLES_QUERY =
+            "SELECT d.rule.id, s FROM LayerDetails d JOIN d.allowedStyles s";
+
+    private static final String ATTRIBUTES_QUERY =
+            "SELECT d.rule.id, a.name, a.datatype, a.access FROM LayerDetails d JOIN d.attributes a";
+
+    private static final String LIMITS_QUERY =
+            "SELECT l.rule.id, l.allowedArea FROM RuleLimits l";
+
+    @PersistenceContext(unitName = "geofenceEntityManagerFactory")
+    private EntityManager entityManager;
+
+    @Override
+    public LoadedRules loadAll() {
+        long start = System.currentTimeMillis();
+        int queries = 0;
+
+        List<Object[]> rows = query(RULES_QUERY);
+        queries++;
+        List<Rule> rules = new ArrayList<Rule>(rows.size());
+        Map<Long, Rule> rulesById = new HashMap<Long, Rule>(rows.size() * 4 / 3 + 1);
+        for (Object[] row : rows) {
+            Rule rule = new Rule();
+            rule.setId((Long) row[0]);
+            rule.setPriority((Long) row[1]);
+            rule.setService((String) row[2]);
+            rule.setRequest((String) row[3]);
+            rule.setWorkspace((String) row[4]);
+            rule.setLayer((String) row[5]);
+            rule.setAccess((GrantType) row[6]);
+            rule.setGsuser((GSUser) row[7]);
+            rule.setUserGroup((UserGroup) row[8]);
+            rule.setInstance((GSInstance) row[9]);
+            rules.add(rule);
+            rulesById.put(rule.getId(), rule);
+        }
+
+        Map<Long, LayerDetails> detailsById = new HashMap<Long, LayerDetails>();
+        if ( !rules.isEmpty() ) {
+            for (Object[] row : query(DETAILS_QUERY)) {
+                Rule rule = rulesById.get((Long) row[0]);
+                if ( rule == null ) {
+                    continue; // added after the rules were read
+                }
+                LayerDetails details = new LayerDetails();
+                details.setId(rule.getId());
+                details.setType((LayerType) row[1]);
+                details.setDefaultStyle((String) row[2]);
+                details.setCqlFilterRead((String) row[3]);
+                details.setCqlFilterWrite((String) row[4]);
+                details.setArea((MultiPolygon) row[5]);
+                details.setAreaMetadataField((String) row[6]);
+                details.setRule(rule);
+                rule.setLayerDetails(details);
+                detailsById.put(rule.getId(), details);
+            }
+            queries++;
+        }
+
+        if ( !detailsById.isEmpty() ) {
+            for (Object[] row : query(STYLES_QUERY)) {
+                LayerDetails details = detailsById.get((Long) row[0]);
+                if ( details != null ) {
+                    details.getAllowedStyles().add((String) row[1]);
+                }
+            }
+            queries++;
+
+            for (Object[] row : query(ATTRIBUTES_QUERY)) {
+                LayerDetails details = detailsById.get((Long) row[0]);
+                if ( details != null ) {
+                    details.getAttributes().add(new LayerAttribute((String) row[1], (String) row[2], (AccessType) row[3]));
+                }
+            }
+            queries++;
+        }
+
+        if ( !rules.isEmpty() ) {
+            for (Object[] row : query(LIMITS_QUERY)) {
+                Rule rule = rulesById.get((Long) row[0]);
+                if ( rule == null ) {
+                    continue;
+                }
+                RuleLimits limits = new RuleLimits();
+                limits.setId(rule.getId());
+                limits.setAllowedArea((MultiPolygon) row[1]);
+                limits.setRule(rule);
+                rule.setRuleLimits(limits);
+            }
+            queries++;
+        }
+
+        LoadedRules ret = new LoadedRules(rules, queries, System.currentTimeMillis() - start);
+        if ( LOGGER.isDebugEnabled() ) {
+            LOGGER.debug("Loaded " + ret);
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object[]> query(String hql) {
+        return entityManager.createQuery(hql).getResultList();
+    }
+
+    public void setEntityManager(EntityManager entityManager) {
+        this.entityManager = entityManager;
+    }
+}
@@ -32,9 +32,11 @@ import it.geosolutions.geofence.core.model.Rule;
 import it.geosolutions.geofence.core.model.enums.AccessType;
 import it.geosolutions.geofence.core.model.enums.GrantType;
 import it.geosolutions.geofence.core.model.enums.InsertPosition;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -484,7 +486,7 @@ public class RuleDAOTest extends BaseDAOTest {
         {
             Rule loaded = ruleDAO.find(id1);
             assertNotNull(loaded);
-            assertEquals(1, loaded.getPriority());
+            assertEquals(1000, loaded.getPriority());
         }
 
 
@@ -494,30 +496,254 @@ public class RuleDAOTest extends BaseDAOTest {
         {
             assertEquals(3, ruleDAO.count(new Search(Rule.class)));
             Rule rule1 = new Rule(1000, null, null, null, "sZ", null, null, null, GrantType.ALLOW);
-            long pri = ruleDAO.persist(rule1, InsertPosition.FROM_START);
-            assertEquals(21, pri);
+            assertEquals(0, ruleDAO.persist(rule1, InsertPosition.FROM_START));
+            assertEquals(2000, rule1.getPriority());
         }
 
         {
             Rule rule1 = new Rule(1, null, null, null, "second", null, null, null, GrantType.ALLOW);
-            long pri = ruleDAO.persist(rule1, InsertPosition.FROM_START);
-            assertEquals(10, pri);
+            assertEquals(0, ruleDAO.persist(rule1, InsertPosition.FROM_START));
+            assertEquals(15, rule1.getPriority()); // halfway between the 1st and the 2nd rule
         }
 
         {
             Rule rule1 = new Rule(0, null, null, null, "last", null, null, null, GrantType.ALLOW);
-            long pri = ruleDAO.persist(rule1, InsertPosition.FROM_END);
-            assertEquals(23, pri);
+            assertEquals(0, ruleDAO.persist(rule1, InsertPosition.FROM_END));
+            assertEquals(3000, rule1.getPriority());
         }
 
         {
             Rule rule1 = new Rule(1, null, null, null, "last2", null, null, null, GrantType.ALLOW);
-            long pri = ruleDAO.persist(rule1, InsertPosition.FROM_END);
-            assertEquals(23, pri);
+            assertEquals(0, ruleDAO.persist(rule1, InsertPosition.FROM_END));
+            assertEquals(2500, rule1.getPriority());
         }
 
+        // no other rule has been touched
+        assertEquals(10, priorityOf("s10"));
+        assertEquals(20, priorityOf("s20"));
+
 
     }
 
-}
+    @Test
+    public void testCrowdedPosition() {
+        assertEquals(0, ruleDAO.count(new Search(Rule.class)));
+
+        ruleDAO.persist(new Rule(10, null, null, null, "s10", null, null, null, GrantType.ALLOW));
+        ruleDAO.persist(new Rule(11, null, null, null, "s11", null, null, null, GrantType.ALLOW));
+        ruleDAO.persist(new Rule(12, null, null, null, "s12", null, null, null, GrantType.ALLOW));
+        ruleDAO.persist(new Rule(20, null, null, null, "s20", null, null, null, GrantType.ALLOW));
+
+        // no room between 10 and 11: only the contiguous rules are shifted
+        Rule rule = new Rule(1, null, null, null, "new", null, null, null, GrantType.ALLOW);
+        assertEquals(2, ruleDAO.persist(rule, InsertPosition.FROM_START));
+        assertEquals(11, rule.getPriority());
+        assertEquals(12, priorityOf("s11"));
+        assertEquals(13, priorityOf("s12"));
+        assertEquals(20, priorityOf("s20"));
+
+        // the crowded rules are spaced out later, without changing their order
+        assertEquals(4, ruleDAO.respace(100));
+        assertEquals(-1, ruleDAO.respace(100));
+        assertEquals(10, priorityOf("s10"));
+        assertEquals(1010, priorityOf("new"));
+        assertEquals(2010, priorityOf("s11"));
+        assertEquals(3010, priorityOf("s12"));
+        assertEquals(4010, priorityOf("s20"));
+    }
+
+    /**
+     * Rules sharing the same priority, as written by older versions: the new rule
+     * is inserted between the ones found at the requested position.
+     */
+    @Test
+    public void testDuplicatePriorityPosition() {
+        assertEquals(0, ruleDAO.count(new Search(Rule.class)));
+
+        ruleDAO.persist(new Rule(10, null, null, null, "s10", null, null, null, GrantType.ALLOW));
+        ruleDAO.persist(new Rule(20, null, null, null, "a20", null, null, null, GrantType.ALLOW));
+        ruleDAO.persist(new Rule(20, null, null, null, "b20", null, null, null, GrantType.ALLOW));
+        ruleDAO.persist(new Rule(30, null, null, null, "s30", null, null, null, GrantType.ALLOW));
+
+        Search search = new Search(Rule.class);
+        search.addSortAsc("priority");
+        List<Rule> before = ruleDAO.search(search);
+
+        Rule rule = new Rule(2, null, null, null, "new", null, null, null, GrantType.ALLOW);
+        assertTrue(ruleDAO.persist(rule, InsertPosition.FROM_START) > 0);
+        assertEquals(21, rule.getPriority());
+
+        List<Rule> after = ruleDAO.search(search);
+        assertEquals(5, after.size());
+        assertEquals("s10", after.get(0).getService());
+        assertEquals(before.get(1).getService(), after.get(1).getService());
+        assertEquals("new", after.get(2).getService());
+        assertEquals(before.get(2).getService(), after.get(3).getService());
+        assertEquals("s30", after.get(4).getService());
+
+        assertEquals(20, after.get(1).getPriority());
+        assertEquals(22, after.get(3).getPriority());
+        assertEquals(30, after.get(4).getPriority());
+    }
+
+    /**
+     * Rules written with dense priorities by older versions are spaced out in chunks,
+     * and their order is kept after every chunk.
+     */
+    @Test
+    public void testRespaceDensePriorities() {
+        assertEquals(0, ruleDAO.count(new Search(Rule.class)));
+
+        final int size = 250;
+        for (int i = 0; i < size; i++) {
+            ruleDAO.persist(new Rule(i + 1, null, null, null, "s" + i, null, null, null, GrantType.ALLOW));
+        }
+
+        assertEquals(Long.MIN_VALUE, ruleDAO.scanCrowded(Long.MIN_VALUE, 1000));
+
+        int calls = 0;
+        int updated;
+        while((updated = ruleDAO.respace(100)) >= 0) {
+            assertTrue(updated <= 100);
+            calls++;
+
+            Search search = new Search(Rule.class);
+            search.addSortAsc("priority");
+            List<Rule> rules = ruleDAO.search(search);
+            for (int i = 0; i < size; i++) {
+                assertEquals("Bad order after chunk " + calls, "s" + i, rules.get(i).getService());
+            }
+        }
+        assertEquals(3, calls);
+
+        // now there's room everywhere
+        assertEquals(1, priorityOf("s0"));
+        for (int i = 1; i < size; i++) {
+            assertTrue(priorityOf("s" + i) - priorityOf("s" + (i-1)) >= 2);
+        }
+        assertEquals(Long.MIN_VALUE, ruleDAO.scanCrowded(Long.MIN_VALUE, 1000));
+        assertEquals(-1, ruleDAO.respace(100));
+
+        long before = priorityOf("s1");
+        Rule rule = new Rule(1, null, null, null, "new", null, null, null, GrantType.ALLOW);
+        assertEquals(0, ruleDAO.persist(rule, InsertPosition.FROM_START));
+        assertEquals(before, priorityOf("s1"));
+    }
 
+    /**
+     * Inserts 10k rules at random positions, checking that their order is the expected one.
+     */
+    @Test
+    public void testPositionalInsertBenchmark() {
+        assertEquals(0, ruleDAO.count(new Search(Rule.class)));
+
+        final int size = 10000;
+        Random random = new Random(42);
+        List<String> expected = new ArrayList<String>(size);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            String layer = "l" + i;
+            Rule rule;
+            int pos;
+            if(random.nextBoolean()) {
+                pos = random.nextInt(expected.size() + 1);
+                rule = new Rule(pos, null, null, null, null, null, "w", layer, GrantType.ALLOW);
+                ruleDAO.persist(rule, InsertPosition.FROM_START);
+            } else {
+                int posFromEnd = random.nextInt(expected.size() + 1);
+                if(posFromEnd == expected.size() && posFromEnd > 0) {
+                    posFromEnd--;
+                }
+                pos = expected.size() - posFromEnd;
+                rule = new Rule(posFromEnd, null, null, null, null, null, "w", layer, GrantType.ALLOW);
+                ruleDAO.persist(rule, InsertPosition.FROM_END);
+            }
+            expected.add(pos, layer);
+
+            if(i % 100 == 99) { // as the background respacer would do
+                while(ruleDAO.respace(100) >= 0) {
+                }
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        LOGGER.info("Inserted " + size + " rules by position in " + elapsed + "ms ("
+                + (elapsed * 1000 / size) + "us per rule)");
+
+        Search search = new Search(Rule.class);
+        search.addSortAsc("priority");
+        List<Rule> rules = ruleDAO.search(search);
+        assertEquals(size, rules.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals("Bad rule at position " + i, expected.get(i), rules.get(i).getLayer());
+            if(i > 0) {
+                assertTrue(rules.get(i).getPriority() > rules.get(i-1).getPriority());
+            }
+        }
+    }
+
+    @Test
+    public void testPersistAll() {
+        assertEquals(0, ruleDAO.count(new Search(Rule.class)));
+
+        ruleDAO.persist(new Rule(10, null, null, null, "s10", null, null, null, GrantType.ALLOW));
+
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(new Rule(0, null, null, null, "s1", null, null, null, GrantType.ALLOW));
+        rules.add(new Rule(0, null, null, null, "s10", null, null, null, GrantType.DENY)); // dup of an existing rule
+        rules.add(new Rule(0, null, null, null, "s2", null, null, null, GrantType.ALLOW));
+        rules.add(new Rule(0, null, null, null, "s1", null, null, null, GrantType.ALLOW)); // dup in the list
+        rules.add(new Rule(0, null, null, null, "s3", null, null, null, GrantType.LIMIT));
+        rules.add(new Rule(0, null, null, null, "s3", null, null, null, GrantType.LIMIT)); // LIMITs are not checked
+
+        RuleDAO.BulkInsertReport report = ruleDAO.persistAll(rules, InsertPosition.FROM_END, 2);
+        assertEquals(4, report.getInserted());
+        assertEquals(2, report.getDuplicates());
+        assertEquals(2, report.getBatchMillis().size());
+
+        assertNotNull(rules.get(0).getId());
+        assertNull(rules.get(1).getId());
+        assertNotNull(rules.get(2).getId());
+        assertNull(rules.get(3).getId());
+        assertNotNull(rules.get(4).getId());
+        assertNotNull(rules.get(5).getId());
+        assertEquals(5, ruleDAO.count(new Search(Rule.class)));
+
+        // appended in list order
+        assertEquals(10, priorityOf("s10"));
+        assertEquals(1010, priorityOf("s1"));
+        assertEquals(2010, priorityOf("s2"));
+        assertEquals(3010, ruleDAO.find(rules.get(4).getId()).getPriority());
+        assertEquals(4010, ruleDAO.find(rules.get(5).getId()).getPriority());
+    }
+
+    /**
+     * Inserts 20k rules in bulk.
+     */
+    @Test
+    public void testPersistAllBenchmark() {
+        assertEquals(0, ruleDAO.count(new Search(Rule.class)));
+
+        final int size = 20000;
+        List<Rule> rules = new ArrayList<Rule>(size);
+        for (int i = 0; i < size; i++) {
+            rules.add(new Rule(i, null, null, null, null, null, "w", "l" + i, GrantType.ALLOW));
+        }
+
+        long start = System.currentTimeMillis();
+        RuleDAO.BulkInsertReport report = ruleDAO.persistAll(rules, InsertPosition.FIXED, 500);
+        long elapsed = System.currentTimeMillis() - start;
+        LOGGER.info("Inserted " + size + " rules in bulk in " + elapsed + "ms: " + report);
+
+        assertEquals(size, report.getInserted());
+        assertEquals(size / 500, report.getBatchMillis().size());
+        assertEquals(size, ruleDAO.count(new Search(Rule.class)));
+    }
+
+    private long priorityOf(String service) {
+        Search search = new Search(Rule.class);
+        search.addFilterEqual("service", service);
+        return ruleDAO.search(search).get(0).getPriority();
+    }
+
+}
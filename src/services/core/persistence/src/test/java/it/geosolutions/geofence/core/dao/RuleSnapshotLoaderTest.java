@@ -0,0 +1,124 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.core.dao;
+
+import it.geosolutions.geofence.core.dao.RuleSnapshotLoader.LoadedRules;
+import it.geosolutions.geofence.core.model.GSUser;
+import it.geosolutions.geofence.core.model.LayerAttribute;
+import it.geosolutions.geofence.core.model.LayerDetails;
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.core.model.RuleLimits;
+import it.geosolutions.geofence.core.model.enums.AccessType;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RuleSnapshotLoaderTest extends BaseDAOTest {
+
+    @Test
+    public void testLoadAll() {
+        RuleSnapshotLoader loader = (RuleSnapshotLoader) ctx.getBean("ruleSnapshotLoader");
+
+        GSUser user = createUserAndGroup("snapshot_test");
+        userDAO.persist(user);
+
+        Rule r1 = new Rule(10, user, null, null, "WMS", null, "ws1", "l1", GrantType.ALLOW);
+        Rule r2 = new Rule(20, null, null, null, "WMS", null, "ws1", "l2", GrantType.LIMIT);
+        Rule r3 = new Rule(30, null, null, null, null, null, null, null, GrantType.DENY);
+        ruleDAO.persist(r3, r2, r1);
+
+        LayerDetails details = new LayerDetails();
+        details.setRule(ruleDAO.find(r1.getId()));
+        details.setDefaultStyle("default");
+        details.setCqlFilterRead("a1 > 0");
+        details.setArea(buildMultiPolygon());
+        details.getAllowedStyles().add("s1");
+        details.getAllowedStyles().add("s2");
+        details.getAttributes().add(new LayerAttribute("a1", "java.lang.Integer", AccessType.READONLY));
+        details.getAttributes().add(new LayerAttribute("a2", AccessType.NONE));
+        detailsDAO.persist(details);
+
+        RuleLimits limits = new RuleLimits();
+        limits.setId(r2.getId());
+        limits.setRule(ruleDAO.find(r2.getId()));
+        limits.setAllowedArea(buildMultiPolygon());
+        limitsDAO.persist(limits);
+
+        LoadedRules loaded = loader.loadAll();
+        assertEquals(5, loaded.getQueryCount());
+
+        List<Rule> rules = loaded.getRules();
+        assertEquals(3, rules.size());
+        // sorted by priority
+        assertEquals(r1.getId(), rules.get(0).getId());
+        assertEquals(r2.getId(), rules.get(1).getId());
+        assertEquals(r3.getId(), rules.get(2).getId());
+
+        Rule rule = rules.get(0);
+        assertEquals(10, rule.getPriority());
+        assertEquals("snapshot_test", rule.getGsuser().getName());
+        assertNull(rule.getUserGroup());
+        assertEquals("WMS", rule.getService());
+        assertEquals("ws1", rule.getWorkspace());
+        assertEquals("l1", rule.getLayer());
+        assertEquals(GrantType.ALLOW, rule.getAccess());
+        assertNull(rule.getRuleLimits());
+
+        LayerDetails loadedDetails = rule.getLayerDetails();
+        assertNotNull(loadedDetails);
+        assertSame(rule, loadedDetails.getRule());
+        assertEquals("default", loadedDetails.getDefaultStyle());
+        assertEquals("a1 > 0", loadedDetails.getCqlFilterRead());
+        assertNotNull(loadedDetails.getArea());
+        assertEquals(details.getAllowedStyles(), loadedDetails.getAllowedStyles());
+        assertEquals(2, loadedDetails.getAttributes().size());
+        for (LayerAttribute attribute : loadedDetails.getAttributes()) {
+            if ("a1".equals(attribute.getName())) {
+                assertEquals("java.lang.Integer", attribute.getDatatype());
+                assertEquals(AccessType.READONLY, attribute.getAccess());
+            } else {
+                assertEquals("a2", attribute.getName());
+                assertEquals(AccessType.NONE, attribute.getAccess());
+            }
+        }
+
+        rule = rules.get(1);
+        assertNull(rule.getLayerDetails());
+        assertNotNull(rule.getRuleLimits());
+        assertNotNull(rule.getRuleLimits().getAllowedArea());
+
+        assertNull(rules.get(2).getGsuser());
+        assertNull(rules.get(2).getLayerDetails());
+    }
+
+    @Test
+    public void testLoadEmpty() {
+        RuleSnapshotLoader loader = (RuleSnapshotLoader) ctx.getBean("ruleSnapshotLoader");
+
+        LoadedRules loaded = loader.loadAll();
+        assertTrue(loaded.getRules().isEmpty());
+        assertEquals(1, loaded.getQueryCount());
+    }
+}
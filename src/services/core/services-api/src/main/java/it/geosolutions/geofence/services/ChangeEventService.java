@@ -0,0 +1,41 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import it.geosolutions.geofence.services.dto.ChangeEventBatch;
+
+/**
+ * Streams the changes committed on the GeoFence server, so that the clients caching
+ * access decisions can evict only the affected entries.
+ * <P>
+ * Clients long-poll the service, passing the epoch and the last sequence they received:<UL>
+ * <LI>a negative <TT>afterSequence</TT> returns at once the current position of the stream;</LI>
+ * <LI>if events are available they are returned at once, otherwise the call waits up to
+ *     <TT>maxWaitMillis</TT> for new events;</LI>
+ * <LI>if the epoch does not match, or the requested events are no longer available,
+ *     the returned batch has the <TT>overflow</TT> flag set.</LI>
+ * </UL>
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public interface ChangeEventService {
+
+    ChangeEventBatch getEvents(long epoch, long afterSequence, long maxWaitMillis);
+}
@@ -0,0 +1,43 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessDecision;
+
+import java.util.List;
+
+/**
+ * Gives access to a sample of the last access decisions taken by the {@link RuleReaderService}.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public interface DecisionTraceService {
+
+    /**
+     * @param user if not null, only the decisions for this user name are returned.
+     * @param layer if not null, only the decisions on this layer are returned.
+     * @param grant if not null, only the decisions with this grant are returned.
+     * @param max the max number of decisions to return.
+     *
+     * @return the traced decisions, the most recent first.
+     */
+    List<AccessDecision> getDecisions(String user, String layer, GrantType grant, int max);
+}
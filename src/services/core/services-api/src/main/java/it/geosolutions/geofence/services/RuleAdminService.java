@@ -47,6 +47,17 @@ public interface RuleAdminService
 
     long insert(Rule rule, InsertPosition position);
 
+    /**
+     * Inserts many rules at once, sending them to the db in batches.
+     * <P>
+     * Rules duplicating an existing rule or a previous rule in the list are skipped.
+     *
+     * @param position {@link InsertPosition#FIXED} to keep the priority of the rules,
+     *        or {@link InsertPosition#FROM_END} to append them after the existing rules, in list order.
+     * @return the ids of the rules, in list order; the id of a skipped rule is null.
+     */
+    List<Long> insertAll(List<Rule> rules, InsertPosition position);
+
     long update(Rule rule) throws NotFoundServiceEx;
 
     /**
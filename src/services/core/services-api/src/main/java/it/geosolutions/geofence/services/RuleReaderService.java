@@ -22,6 +22,7 @@ package it.geosolutions.geofence.services;
 import it.geosolutions.geofence.core.model.Rule;
 import it.geosolutions.geofence.services.dto.AccessInfo;
 import it.geosolutions.geofence.services.dto.AuthUser;
+import it.geosolutions.geofence.services.dto.LayerAccessInfos;
 import it.geosolutions.geofence.services.dto.RuleFilter;
 import it.geosolutions.geofence.services.dto.ShortRule;
 
@@ -62,6 +63,28 @@ public interface RuleReaderService
      */
     AccessInfo getAccessInfo(RuleFilter filter);
 
+    /**
+     * Return info on the accessibility of many resources at once.
+     * <P>
+     * All the filters are evaluated against the same rule set, so that
+     * clients needing many decisions (e.g. a GetMap on many layers)
+     * can get them in a single call.
+     *
+     * @return the AccessInfo for each filter, in the same order as the filters.
+     */
+    List<AccessInfo> getAccessInfos(List<RuleFilter> filters);
+
+    /**
+     * Return info on the accessibility of all the layers of a workspace, or of all the workspaces.
+     * <P>
+     * The workspace of the filter is either a name or ANY; its layer is ignored.
+     * All the decisions are taken against the same rule set, so that clients listing
+     * many layers (e.g. a GetCapabilities) can get them in a single call.
+     *
+     * @return the AccessInfo of each layer named in the rules, and of the other layers.
+     */
+    LayerAccessInfos getLayerAccessInfos(RuleFilter filter);
+
     /**
      * Return the unprocessed {@link Rule} list matching a given filter, sorted
      * by priority.
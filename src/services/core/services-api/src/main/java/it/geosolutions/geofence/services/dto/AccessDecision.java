@@ -0,0 +1,207 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.dto;
+
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.RuleFilter.FilterType;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
+
+import java.io.Serializable;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * A traced access decision.
+ * <P>
+ * The <TT>user</TT>, <TT>group</TT>, ... fields hold the names in the filter,
+ * or null if the field was not filtered by name; the whole filter is in <TT>filter</TT>.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+@XmlRootElement(name = "Decision")
+@XmlType(propOrder = {"timestamp", "user", "group", "instance", "service", "request", "workspace", "layer",
+        "sourceAddress", "filter", "grant", "unmatched", "ruleSetVersion", "elapsedMicros"})
+public class AccessDecision implements Serializable {
+
+    private static final long serialVersionUID = 3954813268705519316L;
+
+    private long timestamp;
+    private String user;
+    private String group;
+    private String instance;
+    private String service;
+    private String request;
+    private String workspace;
+    private String layer;
+    private String sourceAddress;
+    private String filter;
+    private GrantType grant;
+    private boolean unmatched;
+    private long ruleSetVersion;
+    private long elapsedMicros;
+
+    public AccessDecision() {
+    }
+
+    public AccessDecision(long timestamp, RuleFilter filter, AccessInfo accessInfo, long elapsedMicros) {
+        this.timestamp = timestamp;
+        this.user = getName(filter.getUser());
+        this.group = getName(filter.getUserGroup());
+        this.instance = getName(filter.getInstance());
+        this.service = getName(filter.getService());
+        this.request = getName(filter.getRequest());
+        this.workspace = getName(filter.getWorkspace());
+        this.layer = getName(filter.getLayer());
+        this.sourceAddress = filter.getSourceAddress() == null ? null : filter.getSourceAddress().getHostAddress();
+        this.filter = filter.toString();
+        this.grant = accessInfo.getGrant();
+        this.unmatched = accessInfo.isUnmatched();
+        this.ruleSetVersion = accessInfo.getRuleSetVersion();
+        this.elapsedMicros = elapsedMicros;
+    }
+
+    private static String getName(IdNameFilter f) {
+        return f.getType() == FilterType.NAMEVALUE ? f.getName() : null;
+    }
+
+    private static String getName(NameFilter f) {
+        return f.getType() == FilterType.NAMEVALUE ? f.getName() : null;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    public String getInstance() {
+        return instance;
+    }
+
+    public void setInstance(String instance) {
+        this.instance = instance;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public void setService(String service) {
+        this.service = service;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public void setRequest(String request) {
+        this.request = request;
+    }
+
+    public String getWorkspace() {
+        return workspace;
+    }
+
+    public void setWorkspace(String workspace) {
+        this.workspace = workspace;
+    }
+
+    public String getLayer() {
+        return layer;
+    }
+
+    public void setLayer(String layer) {
+        this.layer = layer;
+    }
+
+    public String getSourceAddress() {
+        return sourceAddress;
+    }
+
+    public void setSourceAddress(String sourceAddress) {
+        this.sourceAddress = sourceAddress;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    public GrantType getGrant() {
+        return grant;
+    }
+
+    public void setGrant(GrantType grant) {
+        this.grant = grant;
+    }
+
+    public boolean isUnmatched() {
+        return unmatched;
+    }
+
+    public void setUnmatched(boolean unmatched) {
+        this.unmatched = unmatched;
+    }
+
+    public long getRuleSetVersion() {
+        return ruleSetVersion;
+    }
+
+    public void setRuleSetVersion(long ruleSetVersion) {
+        this.ruleSetVersion = ruleSetVersion;
+    }
+
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+
+    public void setElapsedMicros(long elapsedMicros) {
+        this.elapsedMicros = elapsedMicros;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + timestamp + " " + filter + " " + grant
+                + (unmatched ? " unmatched" : "") + " ver:" + ruleSetVersion + " " + elapsedMicros + "us]";
+    }
+}
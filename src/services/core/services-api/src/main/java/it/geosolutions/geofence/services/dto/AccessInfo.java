@@ -20,6 +20,11 @@
 
 package it.geosolutions.geofence.services.dto;
 
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTReader;
 import it.geosolutions.geofence.core.model.LayerAttribute;
 import it.geosolutions.geofence.core.model.enums.GrantType;
 
@@ -33,7 +38,10 @@ import java.util.Set;
  */
 public class AccessInfo implements Serializable {
     
-    private static final long serialVersionUID = -9108763358187355342L;
+    /**
+     * Changed when the area moved to WKB: older clients would silently drop it.
+     */
+    private static final long serialVersionUID = -9108763358187355343L;
 
     /**
      * Default "allow everything" AccessInfo
@@ -53,6 +61,18 @@ public class AccessInfo implements Serializable {
 //    private Geometry area;
     private String areaWkt;
 
+    /**
+     * The allowed area in WKB format; its SRID is in {@link #areaSrid}.
+     * <BR>Only one of areaWkt and areaWkb is set.
+     */
+    private byte[] areaWkb;
+    private int areaSrid;
+
+    /**
+     * The decoded area, memoized since instances are cached on the client side.
+     */
+    private transient volatile Geometry area;
+
     private String defaultStyle;
 
     private String cqlFilterRead;
@@ -61,6 +81,18 @@ public class AccessInfo implements Serializable {
     private Set<LayerAttribute> attributes;
     private Set<String> allowedStyles;
 
+    /**
+     * The version of the rule set this AccessInfo has been computed on;
+     * 0 if unknown.
+     */
+    private long ruleSetVersion;
+
+    /**
+     * True if no Rule can match the requested instance, service, request, workspace and layer,
+     * whatever the user and group: the (denying) decision does not depend on the user.
+     */
+    private boolean unmatched;
+
 
     public AccessInfo() {
     }
@@ -77,12 +109,72 @@ public class AccessInfo implements Serializable {
 //        this.area = area;
 //    }
 
+    /**
+     * @return the allowed area as WKT; if the area has been set as WKB, it will be converted.
+     */
     public String getAreaWkt() {
+        if(areaWkt == null && areaWkb != null) {
+            return getArea().toText();
+        }
         return areaWkt;
     }
 
     public void setAreaWkt(String areaWkt) {
         this.areaWkt = areaWkt;
+        this.areaWkb = null;
+        this.areaSrid = 0;
+        this.area = null;
+    }
+
+    public byte[] getAreaWkb() {
+        return areaWkb;
+    }
+
+    public void setAreaWkb(byte[] areaWkb, int srid) {
+        this.areaWkb = areaWkb;
+        this.areaSrid = srid;
+        this.areaWkt = null;
+        this.area = null;
+    }
+
+    public int getAreaSrid() {
+        return areaSrid;
+    }
+
+    /**
+     * Sets the allowed area, that will be transferred as WKB.
+     */
+    public void setArea(Geometry area) {
+        if(area == null) {
+            setAreaWkb(null, 0);
+        } else {
+            setAreaWkb(new WKBWriter().write(area), area.getSRID());
+            this.area = area;
+        }
+    }
+
+    /**
+     * Decodes the allowed area, either from WKB or WKT.
+     * The decoded geometry is memoized, so it should not be modified by the caller.
+     *
+     * @return the allowed area, or null if the area is not restricted.
+     */
+    public Geometry getArea() {
+        Geometry ret = area;
+        if(ret == null) {
+            try {
+                if(areaWkb != null) {
+                    ret = new WKBReader().read(areaWkb);
+                    ret.setSRID(areaSrid);
+                } else if(areaWkt != null) {
+                    ret = new WKTReader().read(areaWkt);
+                }
+            } catch (ParseException e) {
+                throw new IllegalStateException("Failed to unmarshal the restricted area", e);
+            }
+            area = ret;
+        }
+        return ret;
     }
 
     public Set<LayerAttribute> getAttributes() {
@@ -125,6 +217,22 @@ public class AccessInfo implements Serializable {
         this.allowedStyles = allowedStyles;
     }
 
+    public long getRuleSetVersion() {
+        return ruleSetVersion;
+    }
+
+    public void setRuleSetVersion(long ruleSetVersion) {
+        this.ruleSetVersion = ruleSetVersion;
+    }
+
+    public boolean isUnmatched() {
+        return unmatched;
+    }
+
+    public void setUnmatched(boolean unmatched) {
+        this.unmatched = unmatched;
+    }
+
     public GrantType getGrant() {
         return grant;
     }
@@ -157,12 +265,21 @@ public class AccessInfo implements Serializable {
         if (areaWkt != null) {
             sb.append(" areaWkt:defined");
         }
+        if (areaWkb != null) {
+            sb.append(" areaWkb:").append(areaWkb.length).append('b');
+        }
         if (allowedStyles != null && ! allowedStyles.isEmpty()) {
             sb.append(" allSty:").append(allowedStyles); // needs decoding?
         }
         if (attributes != null && ! attributes.isEmpty()) {
             sb.append(" attr:").append(attributes); // needs decoding?
         }
+        if (ruleSetVersion != 0) {
+            sb.append(" ver:").append(ruleSetVersion);
+        }
+        if (unmatched) {
+            sb.append(" unmatched");
+        }
 
         sb.append(']');
 
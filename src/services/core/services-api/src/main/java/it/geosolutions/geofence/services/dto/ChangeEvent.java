@@ -0,0 +1,338 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.dto;
+
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.services.dto.RuleFilter.FilterType;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
+
+import java.io.Serializable;
+
+/**
+ * A change committed on the GeoFence server, as seen by the clients caching the access decisions.
+ * <P>
+ * Rule events carry the scope of the changed Rule, so that clients can tell which of
+ * their cached {@link RuleFilter}s may be affected by the change.
+ * A <TT>null</TT> scope field means that the Rule matches any value in that field.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class ChangeEvent implements Serializable {
+
+    private static final long serialVersionUID = 2218706414926571387L;
+
+    public enum Type {
+        /** A Rule has been inserted, updated or deleted. */
+        RULE,
+        /** A user has been inserted, updated or deleted. */
+        USER,
+        /** A group has been inserted, updated or deleted. */
+        GROUP,
+        /** An instance has been inserted, updated or deleted. */
+        INSTANCE,
+        /** Anything may have changed. */
+        ALL
+    }
+
+    private Type type;
+    private long sequence;
+    private long ruleSetVersion;
+
+    private Long id;
+    private String name;
+
+    private String userName;
+    private String groupName;
+    private String instanceName;
+    private String service;
+    private String request;
+    private String workspace;
+    private String layer;
+
+    public ChangeEvent() {
+    }
+
+    public ChangeEvent(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * An event for a changed Rule, scoped as the given Rule.
+     */
+    public static ChangeEvent forRule(Rule rule, long ruleSetVersion) {
+        ChangeEvent ev = new ChangeEvent(Type.RULE);
+        ev.id = rule.getId();
+        ev.userName = rule.getGsuser() == null ? null : rule.getGsuser().getName();
+        ev.groupName = rule.getUserGroup() == null ? null : rule.getUserGroup().getName();
+        ev.instanceName = rule.getInstance() == null ? null : rule.getInstance().getName();
+        ev.service = rule.getService();
+        ev.request = rule.getRequest();
+        ev.workspace = rule.getWorkspace();
+        ev.layer = rule.getLayer();
+        ev.ruleSetVersion = ruleSetVersion;
+        return ev;
+    }
+
+    /**
+     * An event for changes on Rules whose scope is not known: it affects every filter.
+     */
+    public static ChangeEvent forAnyRule(long ruleSetVersion) {
+        ChangeEvent ev = new ChangeEvent(Type.RULE);
+        ev.ruleSetVersion = ruleSetVersion;
+        return ev;
+    }
+
+    public static ChangeEvent forUser(Long id, String name) {
+        ChangeEvent ev = new ChangeEvent(Type.USER);
+        ev.id = id;
+        ev.name = name;
+        return ev;
+    }
+
+    public static ChangeEvent forGroup(Long id, String name) {
+        ChangeEvent ev = new ChangeEvent(Type.GROUP);
+        ev.id = id;
+        ev.name = name;
+        return ev;
+    }
+
+    public static ChangeEvent forInstance(Long id, String name) {
+        ChangeEvent ev = new ChangeEvent(Type.INSTANCE);
+        ev.id = id;
+        ev.name = name;
+        return ev;
+    }
+
+    /**
+     * Tells whether the access decision for the given filter may have been changed by this event.
+     * <P>
+     * The check is conservative: it may return <TT>true</TT> for unaffected filters, never
+     * <TT>false</TT> for affected ones.
+     * Group events always return <TT>true</TT>, since a filter on a user does not tell
+     * the groups the user belongs to.
+     */
+    public boolean affects(RuleFilter filter) {
+        switch (type) {
+            case USER:
+                return matchesEntity(filter.getUser());
+            case INSTANCE:
+                return filter.getInstance().getType() == FilterType.ANY
+                        || matchesEntity(filter.getInstance());
+            case RULE:
+                return matchesRule(filter);
+            case GROUP:
+            case ALL:
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Tells whether the cached data for the named user (e.g. the authentication info)
+     * may have been changed by this event.
+     */
+    public boolean affectsUser(String username) {
+        switch (type) {
+            case USER:
+                return name == null || name.equals(username);
+            case GROUP:
+            case ALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean matchesEntity(IdNameFilter f) {
+        switch (f.getType()) {
+            case NAMEVALUE:
+                return name == null || name.equals(f.getName());
+            case IDVALUE:
+                return id == null || id.equals(f.getId());
+            default:
+                return false;
+        }
+    }
+
+    private boolean matchesRule(RuleFilter filter) {
+        // the groups of a named user are resolved on the server, so the group scope
+        // can only be checked when the filter explicitly names a group
+        if (groupName != null && filter.getUserGroup().getType() == FilterType.NAMEVALUE
+                && !groupName.equals(filter.getUserGroup().getName())) {
+            return false;
+        }
+        return matches(userName, filter.getUser())
+                && matches(instanceName, filter.getInstance())
+                && matches(service, filter.getService(), true)
+                && matches(request, filter.getRequest(), true)
+                && matches(workspace, filter.getWorkspace(), false)
+                && matches(layer, filter.getLayer(), false);
+    }
+
+    private static boolean matches(String ruleValue, IdNameFilter f) {
+        switch (f.getType()) {
+            case DEFAULT:
+                return ruleValue == null;
+            case NAMEVALUE:
+                return ruleValue == null || ruleValue.equals(f.getName());
+            case ANY:
+            case IDVALUE:
+            default:
+                return true;
+        }
+    }
+
+    private static boolean matches(String ruleValue, NameFilter f, boolean ignoreCase) {
+        switch (f.getType()) {
+            case DEFAULT:
+                return ruleValue == null;
+            case NAMEVALUE:
+                return ruleValue == null
+                        || (ignoreCase ? ruleValue.equalsIgnoreCase(f.getName()) : ruleValue.equals(f.getName()));
+            case ANY:
+            case IDVALUE:
+            default:
+                return true;
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the position of this event in the server event stream.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the version of the rule set after this change; 0 for non-Rule events.
+     */
+    public long getRuleSetVersion() {
+        return ruleSetVersion;
+    }
+
+    public void setRuleSetVersion(long ruleSetVersion) {
+        this.ruleSetVersion = ruleSetVersion;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public void setGroupName(String groupName) {
+        this.groupName = groupName;
+    }
+
+    public String getInstanceName() {
+        return instanceName;
+    }
+
+    public void setInstanceName(String instanceName) {
+        this.instanceName = instanceName;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public void setService(String service) {
+        this.service = service;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public void setRequest(String request) {
+        this.request = request;
+    }
+
+    public String getWorkspace() {
+        return workspace;
+    }
+
+    public void setWorkspace(String workspace) {
+        this.workspace = workspace;
+    }
+
+    public String getLayer() {
+        return layer;
+    }
+
+    public void setLayer(String layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getClass().getSimpleName())
+                .append('[').append(sequence).append(' ').append(type);
+        if (id != null) {
+            sb.append(" id:").append(id);
+        }
+        if (name != null) {
+            sb.append(" name:").append(name);
+        }
+        if (type == Type.RULE) {
+            sb.append(" version:").append(ruleSetVersion)
+                    .append(" scope:").append(userName).append(',').append(groupName)
+                    .append(',').append(instanceName).append(',').append(service)
+                    .append(',').append(request).append(',').append(workspace)
+                    .append(',').append(layer);
+        }
+        return sb.append(']').toString();
+    }
+}
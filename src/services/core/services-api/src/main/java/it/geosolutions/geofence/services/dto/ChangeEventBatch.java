@@ -0,0 +1,95 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.dto;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The events returned by a single poll on the {@link it.geosolutions.geofence.services.ChangeEventService}.
+ * <P>
+ * When <TT>overflow</TT> is true, some events have been lost (the client fell too far behind,
+ * or the server has been restarted) and the client should discard all of its cached data.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class ChangeEventBatch implements Serializable {
+
+    private static final long serialVersionUID = -3094470279530813960L;
+
+    private long epoch;
+    private long lastSequence;
+    private boolean overflow;
+    private List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+
+    public ChangeEventBatch() {
+    }
+
+    public ChangeEventBatch(long epoch, long lastSequence, boolean overflow) {
+        this.epoch = epoch;
+        this.lastSequence = lastSequence;
+        this.overflow = overflow;
+    }
+
+    /**
+     * @return the id of the server event stream; it changes when the server is restarted.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * @return the sequence to be used in the next poll.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    public void setOverflow(boolean overflow) {
+        this.overflow = overflow;
+    }
+
+    public List<ChangeEvent> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<ChangeEvent> events) {
+        this.events = events;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[epoch:" + epoch + " last:" + lastSequence
+                + (overflow ? " overflow" : "") + " events:" + events.size() + "]";
+    }
+}
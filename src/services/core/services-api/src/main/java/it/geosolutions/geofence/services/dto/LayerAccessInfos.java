@@ -0,0 +1,106 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.dto;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The access decisions on all the layers of a workspace, or of all the workspaces, returned by
+ * {@link it.geosolutions.geofence.services.RuleReaderService#getLayerAccessInfos(RuleFilter)}.
+ * <P>
+ * Only the workspaces and layers named in some rule have their own decision:
+ * the decision on any other layer is stored under the <TT>null</TT> layer name, and the
+ * decisions on any other workspace under the <TT>null</TT> workspace name.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class LayerAccessInfos implements Serializable {
+
+    private static final long serialVersionUID = 4217630905318855623L;
+
+    private long ruleSetVersion;
+    private Map<String, Map<String, AccessInfo>> workspaces = new HashMap<String, Map<String, AccessInfo>>();
+
+    public LayerAccessInfos() {
+    }
+
+    /**
+     * @param workspace the workspace name, or null for the workspaces not named in any rule.
+     * @param layer the layer name, or null for the layers not named in any rule.
+     */
+    public void put(String workspace, String layer, AccessInfo accessInfo) {
+        Map<String, AccessInfo> layers = workspaces.get(workspace);
+        if (layers == null) {
+            layers = new HashMap<String, AccessInfo>();
+            workspaces.put(workspace, layers);
+        }
+        layers.put(layer, accessInfo);
+    }
+
+    /**
+     * @return the decision on the given layer, or null if the workspace is not covered.
+     */
+    public AccessInfo get(String workspace, String layer) {
+        Map<String, AccessInfo> layers = workspaces.get(workspace);
+        if (layers == null) {
+            layers = workspaces.get(null);
+            if (layers == null) {
+                return null;
+            }
+        }
+        AccessInfo ret = layers.get(layer);
+        return ret != null ? ret : layers.get(null);
+    }
+
+    /**
+     * @return the number of stored decisions.
+     */
+    public int size() {
+        int ret = 0;
+        for (Map<String, AccessInfo> layers : workspaces.values()) {
+            ret += layers.size();
+        }
+        return ret;
+    }
+
+    public Map<String, Map<String, AccessInfo>> getWorkspaces() {
+        return workspaces;
+    }
+
+    public void setWorkspaces(Map<String, Map<String, AccessInfo>> workspaces) {
+        this.workspaces = workspaces;
+    }
+
+    public long getRuleSetVersion() {
+        return ruleSetVersion;
+    }
+
+    public void setRuleSetVersion(long ruleSetVersion) {
+        this.ruleSetVersion = ruleSetVersion;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[workspaces:" + workspaces.size() + " decisions:" + size()
+                + " ruleSetVersion:" + ruleSetVersion + "]";
+    }
+}
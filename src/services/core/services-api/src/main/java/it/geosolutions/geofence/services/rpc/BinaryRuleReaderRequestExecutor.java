@@ -0,0 +1,63 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.springframework.remoting.httpinvoker.SimpleHttpInvokerRequestExecutor;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+
+/**
+ * Client side of the {@link BinaryRuleReaderServiceExporter}: to be set as the
+ * <TT>httpInvokerRequestExecutor</TT> of an <TT>HttpInvokerProxyFactoryBean</TT>
+ * for the {@link it.geosolutions.geofence.services.RuleReaderService RuleReaderService}.
+ * <P>
+ * Requests go through the JDK HTTP client, which keeps the connections alive
+ * (see the <TT>http.keepAlive</TT> and <TT>http.maxConnections</TT> system properties):
+ * responses are always read to the end and closed, so that the connection can be reused
+ * by the next request.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class BinaryRuleReaderRequestExecutor extends SimpleHttpInvokerRequestExecutor {
+
+    private final RuleReaderCodec codec = new RuleReaderCodec();
+
+    public BinaryRuleReaderRequestExecutor() {
+        setContentType(BinaryRuleReaderServiceExporter.CONTENT_TYPE);
+    }
+
+    @Override
+    protected void writeRemoteInvocation(RemoteInvocation invocation, OutputStream os) throws IOException {
+        codec.writeInvocation(invocation, os);
+    }
+
+    @Override
+    protected RemoteInvocationResult readRemoteInvocationResult(InputStream is, String codebaseUrl) throws IOException {
+        try {
+            return codec.readResult(is);
+        } finally {
+            is.close();
+        }
+    }
+}
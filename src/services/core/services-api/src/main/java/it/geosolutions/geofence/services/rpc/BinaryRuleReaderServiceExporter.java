@@ -0,0 +1,81 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.rpc;
+
+import it.geosolutions.geofence.services.RuleReaderService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.remoting.httpinvoker.HttpInvokerServiceExporter;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+
+/**
+ * Exports a {@link RuleReaderService} over HTTP using the {@link RuleReaderCodec} binary
+ * encoding instead of the Java serialization.
+ * <P>
+ * To be used by clients configured with a {@link BinaryRuleReaderRequestExecutor}.
+ * The response length is always set, so that the client connection can be kept alive.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class BinaryRuleReaderServiceExporter extends HttpInvokerServiceExporter {
+
+    public static final String CONTENT_TYPE = "application/x-geofence-rulereader";
+
+    private final RuleReaderCodec codec = new RuleReaderCodec();
+
+    public BinaryRuleReaderServiceExporter() {
+        setServiceInterface(RuleReaderService.class);
+        setContentType(CONTENT_TYPE);
+    }
+
+    @Override
+    protected RemoteInvocation readRemoteInvocation(HttpServletRequest request, InputStream is) throws IOException {
+        try {
+            return codec.readInvocation(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    @Override
+    protected void writeRemoteInvocationResult(HttpServletRequest request, HttpServletResponse response,
+            RemoteInvocationResult result, OutputStream os) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        codec.writeResult(result, baos);
+        response.setContentLength(baos.size());
+        baos.writeTo(os);
+        os.flush();
+    }
+
+    /**
+     * Sets the size in bytes above which the areas are gzipped. Default is 512.
+     */
+    public void setGzipThreshold(int gzipThreshold) {
+        codec.setGzipThreshold(gzipThreshold);
+    }
+}
@@ -0,0 +1,844 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.rpc;
+
+import it.geosolutions.geofence.core.model.LayerAttribute;
+import it.geosolutions.geofence.core.model.enums.AccessType;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.AuthUser;
+import it.geosolutions.geofence.services.dto.LayerAccessInfos;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.FilterType;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.SpecialFilterType;
+import it.geosolutions.geofence.services.dto.ShortRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.remoting.RemoteAccessException;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+
+/**
+ * Compact binary encoding of the {@link it.geosolutions.geofence.services.RuleReaderService RuleReaderService}
+ * calls, used in place of the Java serialization of the HTTP invoker.
+ * <P>
+ * The schema is fixed by this class: each message starts with a magic byte and a version,
+ * followed by the fields of the known DTOs in a fixed order. <UL>
+ * <LI>integers are written as varints;</LI>
+ * <LI>enums are written by ordinal;</LI>
+ * <LI>each string is written once per message, and referenced by index afterwards
+ *     (the names in a batch of filters or rules are mostly the same);</LI>
+ * <LI>nullable fields are marked in a leading bit mask;</LI>
+ * <LI>areas larger than <TT>gzipThreshold</TT> bytes are gzipped.</LI>
+ * </UL>
+ * Only the RuleReaderService methods and DTOs are supported: any other invocation fails
+ * with an IOException.
+ * <P>
+ * Instances are thread safe.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RuleReaderCodec {
+
+    static final int MAGIC = 0x47; // 'G'
+    static final int VERSION = 1;
+
+    // invocations
+    static final int GET_ACCESS_INFO = 1;
+    static final int GET_ACCESS_INFO_NAMES = 2;
+    static final int GET_ACCESS_INFOS = 3;
+    static final int GET_MATCHING_RULES = 4;
+    static final int GET_MATCHING_RULES_NAMES = 5;
+    static final int AUTHORIZE = 6;
+    static final int GET_LAYER_ACCESS_INFOS = 7;
+
+    // results
+    static final int NULL = 0;
+    static final int ACCESS_INFO = 1;
+    static final int ACCESS_INFO_LIST = 2;
+    static final int SHORT_RULE_LIST = 3;
+    static final int AUTH_USER = 4;
+    static final int EXCEPTION = 5;
+    static final int LAYER_ACCESS_INFOS = 6;
+
+    // AccessInfo fields
+    private static final int AI_AREA_WKB = 1;
+    private static final int AI_AREA_WKT = 1 << 1;
+    private static final int AI_DEFAULT_STYLE = 1 << 2;
+    private static final int AI_CQL_READ = 1 << 3;
+    private static final int AI_CQL_WRITE = 1 << 4;
+    private static final int AI_ATTRIBUTES = 1 << 5;
+    private static final int AI_STYLES = 1 << 6;
+    private static final int AI_UNMATCHED = 1 << 7;
+
+    // ShortRule fields
+    private static final int SR_ID = 1;
+    private static final int SR_USER_ID = 1 << 1;
+    private static final int SR_PROFILE_ID = 1 << 2;
+    private static final int SR_INSTANCE_ID = 1 << 3;
+
+    // RuleFilter fields: the type ordinal is in the lower bits
+    private static final int F_INCLUDE_DEFAULT = 1 << 2;
+    private static final int F_NAME = 1 << 3;
+    private static final int F_ID = 1 << 4;
+
+    private static final Class[] NAMES_PARAMS = {String.class, String.class, String.class,
+        String.class, String.class, String.class, String.class};
+    private static final Class[] FILTER_PARAMS = {RuleFilter.class};
+    private static final Class[] FILTERS_PARAMS = {List.class};
+    private static final Class[] AUTHORIZE_PARAMS = {String.class, String.class};
+
+    private int gzipThreshold = 512;
+    private int maxLength = 16 * 1024 * 1024;
+
+    // =========================================================================
+    // Invocations
+    // =========================================================================
+
+    public void writeInvocation(RemoteInvocation invocation, OutputStream os) throws IOException {
+        String method = invocation.getMethodName();
+        Class[] types = invocation.getParameterTypes();
+        Object[] args = invocation.getArguments();
+
+        Output out = new Output(os);
+        if ("getAccessInfo".equals(method) && types.length == 1) {
+            out.writeByte(GET_ACCESS_INFO);
+            out.writeRuleFilter((RuleFilter) args[0]);
+        } else if ("getAccessInfo".equals(method) && types.length == 7) {
+            out.writeByte(GET_ACCESS_INFO_NAMES);
+            out.writeStrings(args);
+        } else if ("getAccessInfos".equals(method)) {
+            out.writeByte(GET_ACCESS_INFOS);
+            List<RuleFilter> filters = (List<RuleFilter>) args[0];
+            out.writeSize(filters);
+            if (filters != null) {
+                for (RuleFilter filter : filters) {
+                    out.writeRuleFilter(filter);
+                }
+            }
+        } else if ("getMatchingRules".equals(method) && types.length == 1) {
+            out.writeByte(GET_MATCHING_RULES);
+            out.writeRuleFilter((RuleFilter) args[0]);
+        } else if ("getMatchingRules".equals(method) && types.length == 7) {
+            out.writeByte(GET_MATCHING_RULES_NAMES);
+            out.writeStrings(args);
+        } else if ("authorize".equals(method)) {
+            out.writeByte(AUTHORIZE);
+            out.writeStrings(args);
+        } else if ("getLayerAccessInfos".equals(method)) {
+            out.writeByte(GET_LAYER_ACCESS_INFOS);
+            out.writeRuleFilter((RuleFilter) args[0]);
+        } else {
+            throw new IOException("Unsupported method " + method);
+        }
+        out.flush();
+    }
+
+    public RemoteInvocation readInvocation(InputStream is) throws IOException {
+        Input in = new Input(is);
+        int code = in.readByte();
+        switch (code) {
+            case GET_ACCESS_INFO:
+                return new RemoteInvocation("getAccessInfo", FILTER_PARAMS, new Object[]{in.readRuleFilter()});
+            case GET_ACCESS_INFO_NAMES:
+                return new RemoteInvocation("getAccessInfo", NAMES_PARAMS, in.readStrings(7));
+            case GET_ACCESS_INFOS:
+                int size = in.readSize();
+                List<RuleFilter> filters = null;
+                if (size >= 0) {
+                    filters = new ArrayList<RuleFilter>();
+                    for (int i = 0; i < size; i++) {
+                        filters.add(in.readRuleFilter());
+                    }
+                }
+                return new RemoteInvocation("getAccessInfos", FILTERS_PARAMS, new Object[]{filters});
+            case GET_MATCHING_RULES:
+                return new RemoteInvocation("getMatchingRules", FILTER_PARAMS, new Object[]{in.readRuleFilter()});
+            case GET_MATCHING_RULES_NAMES:
+                return new RemoteInvocation("getMatchingRules", NAMES_PARAMS, in.readStrings(7));
+            case AUTHORIZE:
+                return new RemoteInvocation("authorize", AUTHORIZE_PARAMS, in.readStrings(2));
+            case GET_LAYER_ACCESS_INFOS:
+                return new RemoteInvocation("getLayerAccessInfos", FILTER_PARAMS, new Object[]{in.readRuleFilter()});
+            default:
+                throw new IOException("Unknown method code " + code);
+        }
+    }
+
+    // =========================================================================
+    // Results
+    // =========================================================================
+
+    public void writeResult(RemoteInvocationResult result, OutputStream os) throws IOException {
+        Output out = new Output(os);
+        if (result.hasException()) {
+            Throwable t = result.getException();
+            if (t instanceof InvocationTargetException) {
+                t = ((InvocationTargetException) t).getTargetException();
+            }
+            out.writeByte(EXCEPTION);
+            out.writeString(t.getClass().getName());
+            out.writeString(t.getMessage());
+        } else {
+            Object value = result.getValue();
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof AccessInfo) {
+                out.writeByte(ACCESS_INFO);
+                out.writeAccessInfo((AccessInfo) value);
+            } else if (value instanceof AuthUser) {
+                out.writeByte(AUTH_USER);
+                AuthUser user = (AuthUser) value;
+                out.writeString(user.getName());
+                out.writeEnum(user.getRole());
+            } else if (value instanceof LayerAccessInfos) {
+                out.writeByte(LAYER_ACCESS_INFOS);
+                out.writeLayerAccessInfos((LayerAccessInfos) value);
+            } else if (value instanceof List) {
+                writeList((List) value, out);
+            } else {
+                throw new IOException("Unsupported result " + value.getClass().getName());
+            }
+        }
+        out.flush();
+    }
+
+    private void writeList(List list, Output out) throws IOException {
+        // the element type is not known for empty lists, but it does not matter to the caller
+        if (list.isEmpty() || list.get(0) instanceof AccessInfo) {
+            out.writeByte(ACCESS_INFO_LIST);
+            out.writeSize(list);
+            for (AccessInfo accessInfo : (List<AccessInfo>) list) {
+                out.writeAccessInfo(accessInfo);
+            }
+        } else if (list.get(0) instanceof ShortRule) {
+            out.writeByte(SHORT_RULE_LIST);
+            out.writeSize(list);
+            for (ShortRule rule : (List<ShortRule>) list) {
+                out.writeShortRule(rule);
+            }
+        } else {
+            throw new IOException("Unsupported result list of " + list.get(0).getClass().getName());
+        }
+    }
+
+    public RemoteInvocationResult readResult(InputStream is) throws IOException {
+        Input in = new Input(is);
+        int code = in.readByte();
+        int size;
+        switch (code) {
+            case NULL:
+                return new RemoteInvocationResult((Object) null);
+            case ACCESS_INFO:
+                return new RemoteInvocationResult(in.readAccessInfo());
+            case ACCESS_INFO_LIST:
+                size = in.readSize();
+                List<AccessInfo> infos = new ArrayList<AccessInfo>();
+                for (int i = 0; i < size; i++) {
+                    infos.add(in.readAccessInfo());
+                }
+                return new RemoteInvocationResult(infos);
+            case SHORT_RULE_LIST:
+                size = in.readSize();
+                List<ShortRule> rules = new ArrayList<ShortRule>();
+                for (int i = 0; i < size; i++) {
+                    rules.add(in.readShortRule());
+                }
+                return new RemoteInvocationResult(rules);
+            case AUTH_USER:
+                String name = in.readString();
+                return new RemoteInvocationResult(new AuthUser(name, in.readEnum(AuthUser.Role.values())));
+            case LAYER_ACCESS_INFOS:
+                return new RemoteInvocationResult(in.readLayerAccessInfos());
+            case EXCEPTION:
+                String className = in.readString();
+                String message = in.readString();
+                return new RemoteInvocationResult(new InvocationTargetException(createException(className, message)));
+            default:
+                throw new IOException("Unknown result code " + code);
+        }
+    }
+
+    /**
+     * Recreates the exception thrown by the server, if its class is known and has a
+     * message constructor.
+     */
+    private static Throwable createException(String className, String message) {
+        try {
+            Class<?> clazz = Class.forName(className);
+            if (RuntimeException.class.isAssignableFrom(clazz)) {
+                Constructor<?> constructor = clazz.getConstructor(String.class);
+                return (Throwable) constructor.newInstance(message);
+            }
+        } catch (Exception e) {
+            // fall back to a generic exception
+        }
+        return new RemoteAccessException(className + ": " + message);
+    }
+
+    // =========================================================================
+
+    /**
+     * WKB starts with the byte order, WKT with a letter: neither can be taken for a gzip header.
+     */
+    private static boolean isGzipped(byte[] data) {
+        return data.length > 2 && (data[0] & 0xff) == 0x1f && (data[1] & 0xff) == 0x8b;
+    }
+
+    /**
+     * Sets the size in bytes above which the areas are gzipped. Default is 512.
+     */
+    public void setGzipThreshold(int gzipThreshold) {
+        this.gzipThreshold = gzipThreshold;
+    }
+
+    public int getGzipThreshold() {
+        return gzipThreshold;
+    }
+
+    /**
+     * Sets the max length of the byte arrays and lists read, so that a bad length prefix
+     * is rejected before anything is allocated. Default is 16MB.
+     */
+    public void setMaxLength(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    // =========================================================================
+
+    private class Output {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        Output(OutputStream os) throws IOException {
+            this.out = new DataOutputStream(os);
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+        }
+
+        void writeByte(int b) throws IOException {
+            out.writeByte(b);
+        }
+
+        void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        void writeSize(List list) throws IOException {
+            // 0 is null
+            writeVarLong(list == null ? 0 : list.size() + 1);
+        }
+
+        /**
+         * 0 is null, 1 is a new string, n is the (n-2)th string already written.
+         */
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                out.writeByte(0);
+                return;
+            }
+            Integer idx = strings.get(s);
+            if (idx != null) {
+                writeVarLong(idx + 2);
+                return;
+            }
+            strings.put(s, strings.size());
+            out.writeByte(1);
+            writeBytes(s.getBytes("UTF-8"));
+        }
+
+        void writeStrings(Object[] args) throws IOException {
+            for (Object arg : args) {
+                writeString((String) arg);
+            }
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Gzips the data if it is large enough: the gzip header tells compressed data apart.
+         */
+        void writeArea(byte[] data) throws IOException {
+            if (data.length > gzipThreshold) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2);
+                GZIPOutputStream gzip = new GZIPOutputStream(baos);
+                gzip.write(data);
+                gzip.close();
+                if (baos.size() < data.length) {
+                    writeBytes(baos.toByteArray());
+                    return;
+                }
+            }
+            writeBytes(data);
+        }
+
+        void writeEnum(Enum e) throws IOException {
+            out.writeByte(e == null ? 0 : e.ordinal() + 1);
+        }
+
+        void writeRuleFilter(RuleFilter filter) throws IOException {
+            if (filter == null) {
+                out.writeByte(0);
+                return;
+            }
+            out.writeByte(1);
+            writeIdNameFilter(filter.getUser());
+            writeIdNameFilter(filter.getUserGroup());
+            writeIdNameFilter(filter.getInstance());
+            writeNameFilter(filter.getService());
+            writeNameFilter(filter.getRequest());
+            writeNameFilter(filter.getWorkspace());
+            writeNameFilter(filter.getLayer());
+            InetAddress address = filter.getSourceAddress();
+            if (address == null) {
+                out.writeByte(0);
+            } else {
+                byte[] bytes = address.getAddress();
+                out.writeByte(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        void writeIdNameFilter(IdNameFilter f) throws IOException {
+            int flags = f.getType().ordinal()
+                    | (f.isIncludeDefault() ? F_INCLUDE_DEFAULT : 0)
+                    | (f.getName() != null ? F_NAME : 0)
+                    | (f.getId() != null ? F_ID : 0);
+            out.writeByte(flags);
+            if (f.getName() != null) {
+                writeString(f.getName());
+            }
+            if (f.getId() != null) {
+                writeVarLong(f.getId());
+            }
+        }
+
+        void writeNameFilter(NameFilter f) throws IOException {
+            int flags = f.getType().ordinal()
+                    | (f.isIncludeDefault() ? F_INCLUDE_DEFAULT : 0)
+                    | (f.getName() != null ? F_NAME : 0);
+            out.writeByte(flags);
+            if (f.getName() != null) {
+                writeString(f.getName());
+            }
+        }
+
+        void writeAccessInfo(AccessInfo ai) throws IOException {
+            if (ai == null) {
+                out.writeByte(0);
+                return;
+            }
+            out.writeByte(1);
+
+            byte[] wkb = ai.getAreaWkb();
+            // getAreaWkt() would convert the wkb
+            String wkt = wkb == null ? ai.getAreaWkt() : null;
+
+            int flags = (wkb != null ? AI_AREA_WKB : 0)
+                    | (wkt != null ? AI_AREA_WKT : 0)
+                    | (ai.getDefaultStyle() != null ? AI_DEFAULT_STYLE : 0)
+                    | (ai.getCqlFilterRead() != null ? AI_CQL_READ : 0)
+                    | (ai.getCqlFilterWrite() != null ? AI_CQL_WRITE : 0)
+                    | (ai.getAttributes() != null ? AI_ATTRIBUTES : 0)
+                    | (ai.getAllowedStyles() != null ? AI_STYLES : 0)
+                    | (ai.isUnmatched() ? AI_UNMATCHED : 0);
+            writeVarLong(flags);
+            writeEnum(ai.getGrant());
+            writeVarLong(ai.getRuleSetVersion());
+
+            if (wkb != null) {
+                writeVarLong(ai.getAreaSrid());
+                writeArea(wkb);
+            }
+            if (wkt != null) {
+                writeArea(wkt.getBytes("UTF-8"));
+            }
+            if (ai.getDefaultStyle() != null) {
+                writeString(ai.getDefaultStyle());
+            }
+            if (ai.getCqlFilterRead() != null) {
+                writeString(ai.getCqlFilterRead());
+            }
+            if (ai.getCqlFilterWrite() != null) {
+                writeString(ai.getCqlFilterWrite());
+            }
+            if (ai.getAttributes() != null) {
+                writeVarLong(ai.getAttributes().size());
+                for (LayerAttribute attribute : ai.getAttributes()) {
+                    writeString(attribute.getName());
+                    writeString(attribute.getDatatype());
+                    writeEnum(attribute.getAccess());
+                }
+            }
+            if (ai.getAllowedStyles() != null) {
+                writeVarLong(ai.getAllowedStyles().size());
+                for (String style : ai.getAllowedStyles()) {
+                    writeString(style);
+                }
+            }
+        }
+
+        void writeLayerAccessInfos(LayerAccessInfos infos) throws IOException {
+            writeVarLong(infos.getRuleSetVersion());
+            writeVarLong(infos.getWorkspaces().size());
+            for (Map.Entry<String, Map<String, AccessInfo>> workspace : infos.getWorkspaces().entrySet()) {
+                writeString(workspace.getKey());
+                writeVarLong(workspace.getValue().size());
+                for (Map.Entry<String, AccessInfo> layer : workspace.getValue().entrySet()) {
+                    writeString(layer.getKey());
+                    writeAccessInfo(layer.getValue());
+                }
+            }
+        }
+
+        void writeShortRule(ShortRule rule) throws IOException {
+            int flags = (rule.getId() != null ? SR_ID : 0)
+                    | (rule.getUserId() != null ? SR_USER_ID : 0)
+                    | (rule.getProfileId() != null ? SR_PROFILE_ID : 0)
+                    | (rule.getInstanceId() != null ? SR_INSTANCE_ID : 0);
+            out.writeByte(flags);
+            if (rule.getId() != null) {
+                writeVarLong(rule.getId());
+            }
+            writeVarLong(rule.getPriority());
+            if (rule.getUserId() != null) {
+                writeVarLong(rule.getUserId());
+            }
+            writeString(rule.getUserName());
+            if (rule.getProfileId() != null) {
+                writeVarLong(rule.getProfileId());
+            }
+            writeString(rule.getProfileName());
+            if (rule.getInstanceId() != null) {
+                writeVarLong(rule.getInstanceId());
+            }
+            writeString(rule.getInstanceName());
+            writeString(rule.getService());
+            writeString(rule.getRequest());
+            writeString(rule.getWorkspace());
+            writeString(rule.getLayer());
+            writeEnum(rule.getAccess());
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    // =========================================================================
+
+    private class Input {
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<String>();
+
+        Input(InputStream is) throws IOException {
+            this.in = new DataInputStream(is);
+            int magic = in.readUnsignedByte();
+            int version = in.readUnsignedByte();
+            if (magic != MAGIC) {
+                throw new IOException("Not a GeoFence binary message");
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported GeoFence binary message version " + version);
+            }
+        }
+
+        int readByte() throws IOException {
+            return in.readUnsignedByte();
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readInt() throws IOException {
+            long value = readVarLong();
+            if (value != (int) value) {
+                throw new IOException("Varint out of int range " + value);
+            }
+            return (int) value;
+        }
+
+        /**
+         * @return a length no larger than <TT>maxLength</TT>
+         */
+        int readLength() throws IOException {
+            int len = readInt();
+            if (len < 0 || len > maxLength) {
+                throw new IOException("Bad length " + len);
+            }
+            return len;
+        }
+
+        /**
+         * @return the list size, or -1 for a null list
+         */
+        int readSize() throws IOException {
+            return readLength() - 1;
+        }
+
+        String readString() throws IOException {
+            int idx = readInt();
+            switch (idx) {
+                case 0:
+                    return null;
+                case 1:
+                    String s = new String(readBytes(), "UTF-8");
+                    strings.add(s);
+                    return s;
+                default:
+                    if (idx < 0 || idx - 2 >= strings.size()) {
+                        throw new IOException("Bad string reference " + idx);
+                    }
+                    return strings.get(idx - 2);
+            }
+        }
+
+        Object[] readStrings(int count) throws IOException {
+            Object[] ret = new Object[count];
+            for (int i = 0; i < count; i++) {
+                ret[i] = readString();
+            }
+            return ret;
+        }
+
+        byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[readLength()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        byte[] readArea() throws IOException {
+            byte[] data = readBytes();
+            if (!isGzipped(data)) {
+                return data;
+            }
+            GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length * 3);
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = gzip.read(buf)) != -1) {
+                if (baos.size() + n > maxLength) {
+                    throw new IOException("Area longer than " + maxLength + " bytes");
+                }
+                baos.write(buf, 0, n);
+            }
+            gzip.close();
+            return baos.toByteArray();
+        }
+
+        <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+            int ordinal = readByte();
+            if (ordinal == 0) {
+                return null;
+            }
+            if (ordinal > values.length) {
+                throw new IOException("Bad enum value " + ordinal);
+            }
+            return values[ordinal - 1];
+        }
+
+        RuleFilter readRuleFilter() throws IOException {
+            if (readByte() == 0) {
+                return null;
+            }
+            RuleFilter filter = new RuleFilter(SpecialFilterType.ANY);
+            readIdNameFilter(filter.getUser());
+            readIdNameFilter(filter.getUserGroup());
+            readIdNameFilter(filter.getInstance());
+            readNameFilter(filter.getService());
+            readNameFilter(filter.getRequest());
+            readNameFilter(filter.getWorkspace());
+            readNameFilter(filter.getLayer());
+            int len = readByte();
+            if (len > 0) {
+                byte[] bytes = new byte[len];
+                in.readFully(bytes);
+                filter.setSourceAddress(InetAddress.getByAddress(bytes));
+            }
+            return filter;
+        }
+
+        private FilterType filterType(int flags) {
+            return FilterType.values()[flags & 0x3];
+        }
+
+        void readIdNameFilter(IdNameFilter f) throws IOException {
+            int flags = readByte();
+            FilterType type = filterType(flags);
+            String name = (flags & F_NAME) != 0 ? readString() : null;
+            Long id = (flags & F_ID) != 0 ? readVarLong() : null;
+
+            // the setters also set the type, so the one matching the type goes last
+            if (type == FilterType.IDVALUE) {
+                f.setName(name);
+                f.setId(id);
+            } else {
+                f.setId(id);
+                f.setName(name);
+                if (type != FilterType.NAMEVALUE) {
+                    f.setType(type == FilterType.ANY ? SpecialFilterType.ANY : SpecialFilterType.DEFAULT);
+                }
+            }
+            f.setIncludeDefault((flags & F_INCLUDE_DEFAULT) != 0);
+        }
+
+        void readNameFilter(NameFilter f) throws IOException {
+            int flags = readByte();
+            FilterType type = filterType(flags);
+            if ((flags & F_NAME) != 0) {
+                f.setName(readString());
+            }
+            if (type != FilterType.NAMEVALUE) {
+                f.setType(type == FilterType.ANY ? SpecialFilterType.ANY : SpecialFilterType.DEFAULT);
+            }
+            f.setIncludeDefault((flags & F_INCLUDE_DEFAULT) != 0);
+        }
+
+        AccessInfo readAccessInfo() throws IOException {
+            if (readByte() == 0) {
+                return null;
+            }
+            int flags = readInt();
+            AccessInfo ai = new AccessInfo(readEnum(GrantType.values()));
+            ai.setRuleSetVersion(readVarLong());
+
+            if ((flags & AI_AREA_WKB) != 0) {
+                int srid = readInt();
+                ai.setAreaWkb(readArea(), srid);
+            }
+            if ((flags & AI_AREA_WKT) != 0) {
+                ai.setAreaWkt(new String(readArea(), "UTF-8"));
+            }
+            if ((flags & AI_DEFAULT_STYLE) != 0) {
+                ai.setDefaultStyle(readString());
+            }
+            if ((flags & AI_CQL_READ) != 0) {
+                ai.setCqlFilterRead(readString());
+            }
+            if ((flags & AI_CQL_WRITE) != 0) {
+                ai.setCqlFilterWrite(readString());
+            }
+            if ((flags & AI_ATTRIBUTES) != 0) {
+                int size = readLength();
+                Set<LayerAttribute> attributes = new HashSet<LayerAttribute>();
+                for (int i = 0; i < size; i++) {
+                    String name = readString();
+                    String datatype = readString();
+                    attributes.add(new LayerAttribute(name, datatype, readEnum(AccessType.values())));
+                }
+                ai.setAttributes(attributes);
+            }
+            if ((flags & AI_STYLES) != 0) {
+                int size = readLength();
+                Set<String> styles = new HashSet<String>();
+                for (int i = 0; i < size; i++) {
+                    styles.add(readString());
+                }
+                ai.setAllowedStyles(styles);
+            }
+            ai.setUnmatched((flags & AI_UNMATCHED) != 0);
+            return ai;
+        }
+
+        LayerAccessInfos readLayerAccessInfos() throws IOException {
+            LayerAccessInfos infos = new LayerAccessInfos();
+            infos.setRuleSetVersion(readVarLong());
+            int workspaces = readLength();
+            for (int i = 0; i < workspaces; i++) {
+                String workspace = readString();
+                int layers = readLength();
+                for (int j = 0; j < layers; j++) {
+                    String layer = readString();
+                    infos.put(workspace, layer, readAccessInfo());
+                }
+            }
+            return infos;
+        }
+
+        ShortRule readShortRule() throws IOException {
+            int flags = readByte();
+            ShortRule rule = new ShortRule();
+            if ((flags & SR_ID) != 0) {
+                rule.setId(readVarLong());
+            }
+            rule.setPriority(readVarLong());
+            if ((flags & SR_USER_ID) != 0) {
+                rule.setUserId(readVarLong());
+            }
+            rule.setUserName(readString());
+            if ((flags & SR_PROFILE_ID) != 0) {
+                rule.setProfileId(readVarLong());
+            }
+            rule.setProfileName(readString());
+            if ((flags & SR_INSTANCE_ID) != 0) {
+                rule.setInstanceId(readVarLong());
+            }
+            rule.setInstanceName(readString());
+            rule.setService(readString());
+            rule.setRequest(readString());
+            rule.setWorkspace(readString());
+            rule.setLayer(readString());
+            rule.setAccess(readEnum(GrantType.values()));
+            return rule;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import com.codahale.metrics.MetricRegistry;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.dto.ChangeEventBatch;
+import it.geosolutions.geofence.services.util.AfterCommit;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Keeps the last <TT>capacity</TT> change events in memory, and serves them to long-polling clients.
+ * <P>
+ * Events are not persisted: the epoch changes at every restart, so that clients
+ * detect the restart and discard their caches.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class ChangeEventServiceImpl implements ChangeEventService {
+
+    private final static Logger LOGGER = LogManager.getLogger(ChangeEventServiceImpl.class);
+
+    /** Upper bound for the time a poll may be kept waiting. */
+    private static final long MAX_WAIT_MILLIS = 60000;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private final long epoch = System.currentTimeMillis();
+
+    private int capacity = 1000;
+
+    private final Object lock = new Object();
+    private final Deque<ChangeEvent> events = new ArrayDeque<ChangeEvent>();
+    private long lastSequence = 0;
+
+    /**
+     * Appends an event to the stream, waking up the waiting clients.
+     * <P>
+     * Called by the admin services when something changes; if a transaction is active,
+     * the event is only appended once it has been committed, and dropped on rollback.
+     */
+    public void publish(final ChangeEvent event) {
+        AfterCommit.run(new Runnable() {
+            @Override
+            public void run() {
+                append(event);
+            }
+        });
+    }
+
+    private void append(ChangeEvent event) {
+        synchronized(lock) {
+            event.setSequence(++lastSequence);
+            events.addLast(event);
+            while(events.size() > capacity) {
+                events.removeFirst();
+            }
+            lock.notifyAll();
+        }
+        if(LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Published " + event);
+        }
+        if(metricRegistry != null) {
+            metricRegistry.meter("ChangeEventService.publish()").mark();
+        }
+    }
+
+    @Override
+    public ChangeEventBatch getEvents(long epoch, long afterSequence, long maxWaitMillis) {
+        synchronized(lock) {
+            if(afterSequence < 0) {
+                return new ChangeEventBatch(this.epoch, lastSequence, false);
+            }
+            if(epoch != this.epoch || afterSequence > lastSequence) {
+                return new ChangeEventBatch(this.epoch, lastSequence, true);
+            }
+
+            long wait = Math.min(Math.max(maxWaitMillis, 0), MAX_WAIT_MILLIS);
+            long deadline = System.currentTimeMillis() + wait;
+            while(afterSequence == lastSequence && wait > 0) {
+                try {
+                    lock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                wait = deadline - System.currentTimeMillis();
+            }
+
+            long oldest = lastSequence - events.size() + 1;
+            if(afterSequence + 1 < oldest) {
+                LOGGER.info("Change events after " + afterSequence + " are no longer available");
+                return new ChangeEventBatch(this.epoch, lastSequence, true);
+            }
+
+            ChangeEventBatch ret = new ChangeEventBatch(this.epoch, lastSequence, false);
+            for (ChangeEvent event : events) {
+                if(event.getSequence() > afterSequence) {
+                    ret.getEvents().add(event);
+                }
+            }
+            return ret;
+        }
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getLastSequence() {
+        synchronized(lock) {
+            return lastSequence;
+        }
+    }
+
+    /**
+     * Sets how many events are kept for the clients lagging behind. Default is 1000.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessDecision;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Traces a sample of the access decisions, in place of logging each of them.
+ * <P>
+ * One decision every <TT>sampleRate</TT> is copied into an {@link AccessDecision} and queued,
+ * since the filter belongs to the caller and may be modified or reused once the call returns;
+ * a background thread keeps the last <TT>capacity</TT> queued decisions in memory.
+ * When the queue is full the decisions are dropped and counted.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class DecisionTraceServiceImpl implements DecisionTraceService {
+
+    private final static Logger LOGGER = LogManager.getLogger(DecisionTraceServiceImpl.class);
+
+    private int sampleRate = 100;
+    private int capacity = 1000;
+    private int queueSize = 1000;
+
+    private final AtomicLong decisionCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    private BlockingQueue<AccessDecision> queue;
+    private final Deque<AccessDecision> decisions = new ArrayDeque<AccessDecision>();
+    private Thread worker;
+
+    public void init() {
+        queue = new ArrayBlockingQueue<AccessDecision>(queueSize);
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "GeoFence-DecisionTrace");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public void destroy() {
+        if(worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Queues the decision if it is sampled.
+     * <P>
+     * Called on each decision: it must stay cheap. Only the sampled decisions are copied.
+     */
+    public void trace(RuleFilter filter, AccessInfo accessInfo, long elapsedNanos) {
+        if(sampleRate <= 0 || queue == null || accessInfo == null) {
+            return;
+        }
+        if(decisionCount.incrementAndGet() % sampleRate != 0) {
+            return;
+        }
+        AccessDecision decision = new AccessDecision(System.currentTimeMillis(), filter, accessInfo,
+                TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        if( ! queue.offer(decision)) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private void drain() {
+        try {
+            while( ! Thread.currentThread().isInterrupted()) {
+                AccessDecision decision = queue.take();
+                synchronized(decisions) {
+                    decisions.addFirst(decision);
+                    while(decisions.size() > capacity) {
+                        decisions.removeLast();
+                    }
+                }
+                if(LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Traced " + decision);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutting down
+        }
+    }
+
+    @Override
+    public List<AccessDecision> getDecisions(String user, String layer, GrantType grant, int max) {
+        List<AccessDecision> ret = new ArrayList<AccessDecision>();
+        synchronized(decisions) {
+            for (Iterator<AccessDecision> it = decisions.iterator(); it.hasNext() && ret.size() < max;) {
+                AccessDecision decision = it.next();
+                if((user == null || user.equals(decision.getUser()))
+                        && (layer == null || layer.equals(decision.getLayer()))
+                        && (grant == null || grant == decision.getGrant())) {
+                    ret.add(decision);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of decisions seen, sampled or not.
+     */
+    public long getDecisionCount() {
+        return decisionCount.get();
+    }
+
+    /**
+     * @return the number of sampled decisions dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of sampled decisions waiting to be traced.
+     */
+    public int getQueuedCount() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @param sampleRate one decision every <TT>sampleRate</TT> is traced; 0 disables the trace.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * To be set before {@link #init()}.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+}
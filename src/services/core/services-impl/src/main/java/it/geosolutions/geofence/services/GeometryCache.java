@@ -0,0 +1,275 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Caches the results of the overlay operations performed while merging the allowed areas
+ * of the Rules, so that the same intersections and unions are not computed on each request.
+ * The WKB encoding of the resulting areas is cached as well.
+ * <P>
+ * Each {@link Area} has a key identifying how it was computed: areas read from the Rules are
+ * keyed by the id of the LayerDetails or RuleLimits and by the rule set version, so that
+ * entries related to an older rule set will not be used anymore and will be evicted by size.
+ * <BR>Areas with a <TT>null</TT> key are not cached, and neither are the results of operations
+ * involving them.
+ * <P>
+ * Before running the overlay, the envelopes are checked for disjointness, and the
+ * (cached) {@link PreparedGeometry}s are used to check if a geometry covers the other one,
+ * since in those cases the result is already known.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class GeometryCache implements InitializingBean {
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private long maxSize = 1000;
+
+    private Cache<String, Geometry> results;
+    private Cache<String, PreparedGeometry> prepared;
+    private Cache<String, byte[]> wkbs;
+
+    /**
+     * A Geometry with the key identifying it.
+     */
+    public static final class Area {
+        private final String key;
+        private final Geometry geometry;
+
+        public Area(String key, Geometry geometry) {
+            this.key = key;
+            this.geometry = geometry;
+        }
+
+        /**
+         * @return the key of this Area, or null if this Area can not be cached.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public Geometry getGeometry() {
+            return geometry;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        results = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+        prepared = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+        wkbs = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    /**
+     * @return the Area for a LayerDetails' area, or null if the geometry is null.
+     */
+    public static Area detailsArea(long detailsId, long version, Geometry geometry) {
+        return geometry == null ? null : new Area("v" + version + "/D" + detailsId, geometry);
+    }
+
+    /**
+     * @return the Area for a RuleLimits' allowed area, or null if the geometry is null.
+     */
+    public static Area limitsArea(long limitsId, long version, Geometry geometry) {
+        return geometry == null ? null : new Area("v" + version + "/L" + limitsId, geometry);
+    }
+
+    /**
+     * Intersects two Areas. A null Area means "no restriction".
+     */
+    public Area intersection(final Area a1, final Area a2) {
+        if(a1 == null)
+            return a2;
+        if(a2 == null)
+            return a1;
+
+        String key = combineKeys(a1, a2, '&');
+        return compute(key, new Callable<Geometry>() {
+            @Override
+            public Geometry call() throws Exception {
+                Geometry g1 = a1.getGeometry();
+                Geometry g2 = a2.getGeometry();
+
+                if( ! g1.getEnvelopeInternal().intersects(g2.getEnvelopeInternal())) {
+                    metricRegistry.meter("GeometryCache.intersection.disjoint").mark();
+                    return g1.getFactory().createGeometryCollection(new Geometry[0]);
+                }
+                if(getPrepared(a1).covers(g2)) {
+                    metricRegistry.meter("GeometryCache.intersection.covered").mark();
+                    return g2;
+                }
+                if(getPrepared(a2).covers(g1)) {
+                    metricRegistry.meter("GeometryCache.intersection.covered").mark();
+                    return g1;
+                }
+
+                Timer.Context timer = metricRegistry.timer(GeometryCache.class.getName() + "_intersection()").time();
+                try {
+                    return g1.intersection(g2);
+                } finally {
+                    timer.stop();
+                }
+            }
+        });
+    }
+
+    /**
+     * Merges two Areas. Both Areas should be not null.
+     */
+    public Area union(final Area a1, final Area a2) {
+        String key = combineKeys(a1, a2, '|');
+        return compute(key, new Callable<Geometry>() {
+            @Override
+            public Geometry call() throws Exception {
+                Geometry g1 = a1.getGeometry();
+                Geometry g2 = a2.getGeometry();
+
+                if(g1.getEnvelopeInternal().intersects(g2.getEnvelopeInternal())) {
+                    if(getPrepared(a1).covers(g2)) {
+                        metricRegistry.meter("GeometryCache.union.covered").mark();
+                        return g1;
+                    }
+                    if(getPrepared(a2).covers(g1)) {
+                        metricRegistry.meter("GeometryCache.union.covered").mark();
+                        return g2;
+                    }
+                }
+
+                Timer.Context timer = metricRegistry.timer(GeometryCache.class.getName() + "_union()").time();
+                try {
+                    return g1.union(g2);
+                } finally {
+                    timer.stop();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the WKB representation of the area, cached when the Area has a key.
+     * The returned array is shared, and should not be modified.
+     */
+    public byte[] toWkb(final Area area) {
+        if(area.getKey() == null) {
+            return new WKBWriter().write(area.getGeometry());
+        }
+        return get(wkbs, area.getKey(), new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return new WKBWriter().write(area.getGeometry());
+            }
+        });
+    }
+
+    public void invalidateAll() {
+        results.invalidateAll();
+        prepared.invalidateAll();
+        wkbs.invalidateAll();
+    }
+
+    // ==========================================================================
+
+    private PreparedGeometry getPrepared(final Area area) {
+        if(area.getKey() == null) {
+            return PreparedGeometryFactory.prepare(area.getGeometry());
+        }
+        return get(prepared, area.getKey(), new Callable<PreparedGeometry>() {
+            @Override
+            public PreparedGeometry call() throws Exception {
+                return PreparedGeometryFactory.prepare(area.getGeometry());
+            }
+        });
+    }
+
+    private Area compute(String key, Callable<Geometry> op) {
+        if(key == null) {
+            try {
+                return new Area(null, op.call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Geometry cached = results.getIfPresent(key);
+        if(cached != null) {
+            metricRegistry.meter("GeometryCache.hit").mark();
+            return new Area(key, cached);
+        }
+        metricRegistry.meter("GeometryCache.miss").mark();
+        return new Area(key, get(results, key, op));
+    }
+
+    /**
+     * Both intersection and union are commutative, so the keys are sorted.
+     */
+    private static String combineKeys(Area a1, Area a2, char op) {
+        String k1 = a1.getKey();
+        String k2 = a2.getKey();
+        if(k1 == null || k2 == null) {
+            return null;
+        }
+        if(k1.compareTo(k2) > 0) {
+            String tmp = k1;
+            k1 = k2;
+            k2 = tmp;
+        }
+        return new StringBuilder(k1.length() + k2.length() + 5)
+                .append('(').append(k1).append(')').append(op).append('(').append(k2).append(')')
+                .toString();
+    }
+
+    private static <V> V get(Cache<String, V> cache, String key, Callable<V> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException)e.getCause();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error computing " + key, e.getCause());
+        }
+    }
+
+    // ==========================================================================
+
+    /**
+     * Max number of entries for each of the results, prepared geometries and WKB caches.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+}
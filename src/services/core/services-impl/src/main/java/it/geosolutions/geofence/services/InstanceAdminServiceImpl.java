@@ -29,6 +29,7 @@ import org.apache.logging.log4j.Logger;
 
 
 import it.geosolutions.geofence.core.dao.GSInstanceDAO;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
 import it.geosolutions.geofence.services.dto.ShortInstance;
 import it.geosolutions.geofence.services.exception.BadRequestServiceEx;
 import it.geosolutions.geofence.services.exception.NotFoundServiceEx;
@@ -43,11 +44,13 @@ public class InstanceAdminServiceImpl implements InstanceAdminService {
     private final static Logger LOGGER = LogManager.getLogger(InstanceAdminServiceImpl.class);
 
     private GSInstanceDAO instanceDAO;
+    private ChangeEventServiceImpl changeEventService;
 
     // ==========================================================================
     @Override
     public long insert(GSInstance instance) {
         instanceDAO.persist(instance);
+        publishEvent(instance.getId(), instance.getName());
         return instance.getId();
     }
 
@@ -59,6 +62,10 @@ public class InstanceAdminServiceImpl implements InstanceAdminService {
         }
 
         instanceDAO.merge(instance);
+        publishEvent(orig.getId(), orig.getName());
+        if(instance.getName() != null && ! instance.getName().equals(orig.getName())) {
+            publishEvent(orig.getId(), instance.getName());
+        }
         return orig.getId();
     }
 
@@ -98,7 +105,9 @@ public class InstanceAdminServiceImpl implements InstanceAdminService {
         }
 
         // data on ancillary tables should be deleted by cascading
-        return instanceDAO.remove(instance);
+        boolean ret = instanceDAO.remove(instance);
+        publishEvent(instance.getId(), instance.getName());
+        return ret;
     }
 
     @Override
@@ -169,6 +178,12 @@ public class InstanceAdminServiceImpl implements InstanceAdminService {
 //        instanceDAO.setCustomProps(id, props);
 //    }
 
+    private void publishEvent(Long id, String name) {
+        if(changeEventService != null) {
+            changeEventService.publish(ChangeEvent.forInstance(id, name));
+        }
+    }
+
     // ==========================================================================
 
 //    private List<ShortInstance> convertToShortList(List<GSInstance> list) {
@@ -184,6 +199,10 @@ public class InstanceAdminServiceImpl implements InstanceAdminService {
         this.instanceDAO = instanceDAO;
     }
 
+    public void setChangeEventService(ChangeEventServiceImpl changeEventService) {
+        this.changeEventService = changeEventService;
+    }
+
     // ==========================================================================
 
 }
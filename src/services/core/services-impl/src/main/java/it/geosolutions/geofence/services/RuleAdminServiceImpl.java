@@ -23,6 +23,7 @@ import com.googlecode.genericdao.search.Filter;
 import com.googlecode.genericdao.search.Search;
 import it.geosolutions.geofence.core.dao.LayerDetailsDAO;
 import it.geosolutions.geofence.core.dao.RuleDAO;
+import it.geosolutions.geofence.core.dao.RuleDAO.BulkInsertReport;
 import it.geosolutions.geofence.core.dao.RuleLimitsDAO;
 import it.geosolutions.geofence.core.model.LayerAttribute;
 import it.geosolutions.geofence.core.model.LayerDetails;
@@ -69,6 +70,9 @@ public class RuleAdminServiceImpl implements RuleAdminService {
     private RuleDAO ruleDAO;
     private RuleLimitsDAO limitsDAO;
     private LayerDetailsDAO detailsDAO;
+    private RuleCache ruleCache;
+
+    private int insertBatchSize = 500;
 
     // =========================================================================
     // Basic operations
@@ -78,16 +82,43 @@ public class RuleAdminServiceImpl implements RuleAdminService {
     public long insert(Rule rule) {
         sanitizeFields(rule);
         ruleDAO.persist(rule);
+        ruleCache.ruleSaved(rule.getId());
         return rule.getId();
     }
 
     @Override
     public long insert(Rule rule, InsertPosition position) {
         sanitizeFields(rule);
-        ruleDAO.persist(rule, position);
+        int shifted = ruleDAO.persist(rule, position);
+        if(shifted == 0) {
+            ruleCache.ruleSaved(rule.getId());
+        } else {
+            ruleCache.invalidate(); // other rules have been shifted
+        }
         return rule.getId();
     }
 
+    @Override
+    public List<Long> insertAll(List<Rule> rules, InsertPosition position) {
+        for (Rule rule : rules) {
+            sanitizeFields(rule);
+        }
+        BulkInsertReport report = ruleDAO.persistAll(rules, position, insertBatchSize);
+        LOGGER.info("Inserted " + report.getInserted() + "/" + rules.size() + " rules in "
+                + report.getBatchMillis().size() + " batches " + report.getBatchMillis() + "ms, "
+                + report.getDuplicates() + " duplicates skipped");
+        if(report.getInserted() > 0) {
+            // within an outer transaction, only reloaded if it commits
+            ruleCache.invalidate();
+        }
+
+        List<Long> ret = new ArrayList<Long>(rules.size());
+        for (Rule rule : rules) {
+            ret.add(rule.getId());
+        }
+        return ret;
+    }
+
     @Override
     public long update(Rule rule) throws NotFoundServiceEx {
         Rule orig = ruleDAO.find(rule.getId());
@@ -97,6 +128,7 @@ public class RuleAdminServiceImpl implements RuleAdminService {
 
         sanitizeFields(rule);
         ruleDAO.merge(rule);
+        ruleCache.ruleSaved(orig.getId());
         return orig.getId();
     }
 
@@ -112,12 +144,18 @@ public class RuleAdminServiceImpl implements RuleAdminService {
 
     @Override
     public int shift(long priorityStart, long offset) {
-        return ruleDAO.shift(priorityStart, offset);
+        int ret = ruleDAO.shift(priorityStart, offset);
+        if(ret > 0) {
+            ruleCache.invalidate();
+        }
+        return ret;
     }
 
     @Override
     public void swap(long id1, long id2) {
         ruleDAO.swap(id1, id2);
+        ruleCache.ruleSaved(id1);
+        ruleCache.ruleSaved(id2);
     }
 
 
@@ -156,7 +194,9 @@ public class RuleAdminServiceImpl implements RuleAdminService {
         }
 
         // data on ancillary tables should be deleted by cascading
-        return ruleDAO.remove(rule);
+        boolean ret = ruleDAO.remove(rule);
+        ruleCache.ruleRemoved(id);
+        return ret;
     }
 
     @Override
@@ -171,6 +211,7 @@ public class RuleAdminServiceImpl implements RuleAdminService {
             if(LOGGER.isInfoEnabled())
                 LOGGER.info("Removing rule for user " + userId+": " + rule);
             ruleDAO.remove(rule);
+            ruleCache.ruleRemoved(rule.getId());
         }
     }
 
@@ -184,6 +225,7 @@ public class RuleAdminServiceImpl implements RuleAdminService {
             if(LOGGER.isInfoEnabled())
                 LOGGER.info("Removing rule for group " + groupId+": " + rule);
             ruleDAO.remove(rule);
+            ruleCache.ruleRemoved(rule.getId());
         }
     }
 
@@ -197,6 +239,7 @@ public class RuleAdminServiceImpl implements RuleAdminService {
             if(LOGGER.isInfoEnabled())
                 LOGGER.info("Removing rule for instance " + instanceId+": " + rule);
             ruleDAO.remove(rule);
+            ruleCache.ruleRemoved(rule.getId());
         }
     }
 
@@ -504,6 +547,7 @@ public class RuleAdminServiceImpl implements RuleAdminService {
             LOGGER.info("Removing limits for " + rule);
             // TODO: remove limits (already removed above?)
         }
+        ruleCache.ruleSaved(ruleId);
     }
 
     // =========================================================================
@@ -595,6 +639,7 @@ public class RuleAdminServiceImpl implements RuleAdminService {
         } else {
             LOGGER.info("Removing details for " + rule);
         }
+        ruleCache.ruleSaved(ruleId);
     }
 
 
@@ -609,6 +654,7 @@ public class RuleAdminServiceImpl implements RuleAdminService {
         }
 
         detailsDAO.setAllowedStyles(ruleId, styles);
+        ruleCache.ruleSaved(ruleId);
     }
 
     @Override
@@ -649,4 +695,15 @@ public class RuleAdminServiceImpl implements RuleAdminService {
         this.detailsDAO = detailsDAO;
     }
 
+    /**
+     * Sets the number of rules sent together to the db by {@link #insertAll(List, InsertPosition)}. Default is 500.
+     */
+    public void setInsertBatchSize(int insertBatchSize) {
+        this.insertBatchSize = insertBatchSize;
+    }
+
+    public void setRuleCache(RuleCache ruleCache) {
+        this.ruleCache = ruleCache;
+    }
+
 }
@@ -1,59 +1,424 @@
 package it.geosolutions.geofence.services;
 
 import com.codahale.metrics.MetricRegistry;
-import com.google.common.cache.CacheBuilder;
-import com.googlecode.genericdao.search.Search;
+import com.codahale.metrics.Timer;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
 import it.geosolutions.geofence.core.dao.RuleDAO;
+import it.geosolutions.geofence.core.dao.RuleSnapshotLoader;
+import it.geosolutions.geofence.core.dao.RuleSnapshotLoader.LoadedRules;
+import it.geosolutions.geofence.core.model.LayerDetails;
 import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.core.model.RuleLimits;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.util.AfterCommit;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
 /**
- * Cache rules for a short time so that the DAO doesn't need to be hit for each query.
+ * Cache rules so that the DAO doesn't need to be hit for each query.
+ * <P>
+ * Readers get an immutable {@link Snapshot} through a single volatile read, and never block.
+ * A new Snapshot is published when: <UL>
+ * <LI>{@link RuleAdminServiceImpl} notifies a change on some rules; single rules are updated
+ * incrementally, bulk changes cause a full reload in the writer's thread;</LI>
+ * <LI>the background thread reloads the whole rule set every <TT>refreshSeconds</TT>, in order
+ * to catch changes not performed through the services.</LI>
+ * </UL>
+ * Each Snapshot has a version number, increasing every time a new Snapshot is published.
+ * The periodic reload only publishes a new Snapshot when the loaded rules differ from the current ones
+ * (same count and same content checksum), so that the version only changes when the rules do.
+ * <P>
+ * Changes notified by the services are also published as {@link ChangeEvent}s on the
+ * {@link ChangeEventServiceImpl}, if any, so that remote caches can evict the affected entries.
  * <
  * Created by Jesse on 3/20/2014.
  */
-public class RuleCache {
-    private final MetricRegistry metricRegistry;
+public class RuleCache implements InitializingBean, DisposableBean {
+
+    private final static Logger LOGGER = LogManager.getLogger(RuleCache.class);
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private RuleDAO ruleDAO;
+
+    private RuleSnapshotLoader ruleSnapshotLoader;
+
+    private ChangeEventServiceImpl changeEventService;
+
+    private long refreshSeconds = 30;
+
+    /** The published snapshot; null until the first load. */
+    private volatile Snapshot snapshot = null;
+
+    /** Serializes the writers; readers never use it. */
+    private final Object writeLock = new Object();
+
+    /**
+     * Versions start from the current time, so that they keep increasing across restarts.
+     */
+    private long lastVersion = System.currentTimeMillis();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * An immutable view of the rule set.
+     */
+    public static final class Snapshot {
+        private final Map<Long, Rule> rules;
+        private final RuleIndex index;
+        private final long version;
+        /** Sum of the {@link RuleCache#contentHash(Rule) content hashes} of the rules. */
+        private final long checksum;
+
+        private Snapshot(Map<Long, Rule> rules, RuleIndex index, long version, long checksum) {
+            this.rules = Collections.unmodifiableMap(rules);
+            this.index = index;
+            this.version = version;
+            this.checksum = checksum;
+        }
+
+        public Map<Long, Rule> getRules() {
+            return rules;
+        }
+
+        public RuleIndex getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the version of the rule set; a higher version means a more recent snapshot.
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GeoFence-RuleCache-reloader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reload();
+                } catch (Exception e) {
+                    LOGGER.error("Error reloading rules: " + e.getMessage(), e);
+                }
+            }
+        }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if(executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the current snapshot, loading it if it has never been loaded.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot ret = snapshot;
+        if(ret == null) {
+            synchronized(writeLock) {
+                ret = snapshot;
+                if(ret == null) {
+                    ret = reload();
+                }
+            }
+        }
+        return ret;
+    }
 
     public List<Rule> findAll() {
-        return search(null);
+        return new ArrayList<Rule>(getSnapshot().getRules().values());
     }
 
-    private static class Entry {
-        long lastUpdate;
-        List<Rule> rules;
+    /**
+     * @return the index of the currently cached rules.
+     */
+    public RuleIndex getIndex() {
+        return getSnapshot().getIndex();
     }
 
-    private final RuleDAO ruleDAO;
-    private final Map<Search, Entry> cache = new HashMap<Search, Entry>(10000);
-    public RuleCache(RuleDAO ruleDAO, MetricRegistry metricRegistry) {
-        this.ruleDAO = ruleDAO;
-        this.metricRegistry = metricRegistry;
+    /**
+     * @return the version of the current snapshot.
+     */
+    public long getVersion() {
+        return getSnapshot().getVersion();
+    }
+
+    /**
+     * Reloads the given Rule from the db and updates the index.
+     * To be called when a rule has been inserted or updated.
+     * <P>
+     * If a transaction is active, the index is only updated once it has been committed.
+     */
+    public void ruleSaved(final long id) {
+        AfterCommit.run(new Runnable() {
+            @Override
+            public void run() {
+                updateSaved(id);
+            }
+        });
+    }
+
+    private void updateSaved(long id) {
+        synchronized(writeLock) {
+            Snapshot curr = snapshot;
+            if(curr == null) {
+                // will be loaded at first access; the old scope is not known
+                publishEvent(ChangeEvent.forAnyRule(lastVersion));
+                return;
+            }
+            Rule rule = ruleDAO.find(id);
+
+            Map<Long, Rule> rules = new HashMap<Long, Rule>(curr.rules);
+            Rule old = rules.get(id);
+            RuleIndex index = removeFromIndex(id, rules, curr.index);
+            long checksum = curr.checksum - (old == null ? 0 : contentHash(old));
+            if(rule != null) {
+                rules.put(id, rule);
+                index = index.add(rule);
+                checksum += contentHash(rule);
+            }
+            long version = publish(rules, index, checksum).getVersion();
+
+            // both the old and the new scope may be affected
+            if(old != null) {
+                publishEvent(ChangeEvent.forRule(old, version));
+            }
+            if(rule != null) {
+                publishEvent(ChangeEvent.forRule(rule, version));
+            }
+        }
+        this.metricRegistry.meter("RuleCache.ruleSaved()").mark();
+    }
+
+    /**
+     * Removes the given Rule from the index.
+     * To be called when a rule has been deleted.
+     * <P>
+     * If a transaction is active, the index is only updated once it has been committed.
+     */
+    public void ruleRemoved(final long id) {
+        AfterCommit.run(new Runnable() {
+            @Override
+            public void run() {
+                updateRemoved(id);
+            }
+        });
+    }
+
+    private void updateRemoved(long id) {
+        synchronized(writeLock) {
+            Snapshot curr = snapshot;
+            if(curr == null) {
+                publishEvent(ChangeEvent.forAnyRule(lastVersion));
+                return;
+            }
+            if(! curr.rules.containsKey(id)) {
+                return;
+            }
+            Map<Long, Rule> rules = new HashMap<Long, Rule>(curr.rules);
+            Rule old = rules.get(id);
+            RuleIndex index = removeFromIndex(id, rules, curr.index);
+            long version = publish(rules, index, curr.checksum - contentHash(old)).getVersion();
+            publishEvent(ChangeEvent.forRule(old, version));
+        }
+        this.metricRegistry.meter("RuleCache.ruleRemoved()").mark();
+    }
+
+    /**
+     * Reloads all the rules.
+     * To be called when many rules have been changed at once (e.g. when shifting priorities).
+     * <P>
+     * The reload is performed in the caller thread, while readers keep using the previous snapshot.
+     * If a transaction is active, the reload is performed once it has been committed.
+     */
+    public void invalidate() {
+        AfterCommit.run(new Runnable() {
+            @Override
+            public void run() {
+                reloadAll();
+            }
+        });
     }
 
-    public synchronized List<Rule> search(Search search) {
-        Entry entry = cache.get(search);
-        final long queryTime = System.currentTimeMillis();
-        if (entry == null || queryTime - entry.lastUpdate > TimeUnit.SECONDS.toMillis(30)) {
-            this.metricRegistry.meter("RuleCache.refreshCache()").mark();
-            final List<Rule> results;
-            if (search == null) {
-                results = this.ruleDAO.findAll();
+    private void reloadAll() {
+        synchronized(writeLock) {
+            if(snapshot != null) {
+                publishEvent(ChangeEvent.forAnyRule(reload().getVersion()));
             } else {
-                results = this.ruleDAO.search(search);
+                publishEvent(ChangeEvent.forAnyRule(lastVersion));
             }
-            if (entry == null) {
-                entry = new Entry();
-                cache.put(search, entry);
+        }
+    }
+
+    /**
+     * Loads all the rules from the db and publishes a new snapshot, if they have changed.
+     *
+     * @return the new snapshot, or the current one if the rules are the same.
+     */
+    protected Snapshot reload() {
+        synchronized(writeLock) {
+            Timer.Context timer = this.metricRegistry.timer(getClass().getName() + "_reload()").time();
+            try {
+                this.metricRegistry.meter("RuleCache.refreshCache()").mark();
+                final List<Rule> results;
+                if(ruleSnapshotLoader != null) {
+                    LoadedRules loaded = ruleSnapshotLoader.loadAll();
+                    this.metricRegistry.histogram(getClass().getName() + "_reload().queries").update(loaded.getQueryCount());
+                    if(LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Loaded " + loaded.getRules().size() + " rules with " + loaded.getQueryCount()
+                                + " queries in " + loaded.getLoadMillis() + "ms");
+                    }
+                    results = loaded.getRules();
+                } else {
+                    results = this.ruleDAO.findAll();
+                }
+
+                long checksum = 0;
+                for (Rule rule : results) {
+                    checksum += contentHash(rule);
+                }
+                Snapshot curr = snapshot;
+                if(curr != null && curr.rules.size() == results.size() && curr.checksum == checksum) {
+                    if(LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Loaded " + results.size() + " unchanged rules, keeping version " + curr.getVersion());
+                    }
+                    return curr;
+                }
+
+                Map<Long, Rule> map = new HashMap<Long, Rule>(results.size() * 4 / 3 + 1);
+                for (Rule rule : results) {
+                    map.put(rule.getId(), rule);
+                }
+
+                Snapshot ret = publish(map, RuleIndex.build(results), checksum);
+                if(LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Loaded " + results.size() + " rules, version " + ret.getVersion());
+                }
+                return ret;
+            } finally {
+                timer.stop();
             }
-            entry.lastUpdate = queryTime;
-            entry.rules = results;
         }
-        return entry.rules;
+    }
+
+    private Snapshot publish(Map<Long, Rule> rules, RuleIndex index, long checksum) {
+        Snapshot ret = new Snapshot(rules, index, ++lastVersion, checksum);
+        snapshot = ret;
+        return ret;
+    }
+
+    /**
+     * Hashes all the rule content the readers may use, including the names of the referenced
+     * entities, the layer details and the limits.
+     * Hashes are summed, so that the checksum of a snapshot does not depend on the rule order
+     * and can be updated incrementally.
+     */
+    static long contentHash(Rule rule) {
+        long h = mix(17, rule.getId());
+        h = mix(h, rule.getPriority());
+        h = mix(h, rule.getAccess());
+        h = mix(h, rule.getGsuser() == null ? null : rule.getGsuser().getId());
+        h = mix(h, rule.getGsuser() == null ? null : rule.getGsuser().getName());
+        h = mix(h, rule.getUserGroup() == null ? null : rule.getUserGroup().getId());
+        h = mix(h, rule.getUserGroup() == null ? null : rule.getUserGroup().getName());
+        h = mix(h, rule.getInstance() == null ? null : rule.getInstance().getId());
+        h = mix(h, rule.getInstance() == null ? null : rule.getInstance().getName());
+        h = mix(h, rule.getService());
+        h = mix(h, rule.getRequest());
+        h = mix(h, rule.getWorkspace());
+        h = mix(h, rule.getLayer());
+
+        LayerDetails details = rule.getLayerDetails();
+        if(details != null) {
+            h = mix(h, details.getId());
+            h = mix(h, details.getType());
+            h = mix(h, details.getDefaultStyle());
+            h = mix(h, details.getCqlFilterRead());
+            h = mix(h, details.getCqlFilterWrite());
+            h = mix(h, details.getAreaMetadataField());
+            h = mix(h, details.getAllowedStyles());
+            h = mix(h, details.getAttributes());
+            h = mix(h, geometryHash(details.getArea()));
+        }
+        RuleLimits limits = rule.getRuleLimits();
+        if(limits != null) {
+            h = mix(h, limits.getId());
+            h = mix(h, geometryHash(limits.getAllowedArea()));
+        }
+        return h;
+    }
+
+    private static long mix(long h, Object o) {
+        return h * 1000003L + (o == null ? 0 : o.hashCode());
+    }
+
+    private static Integer geometryHash(Geometry geometry) {
+        // Geometry.hashCode() only hashes the envelope
+        return geometry == null ? null : Arrays.hashCode(new WKBWriter().write(geometry)) * 31 + geometry.getSRID();
+    }
+
+    private void publishEvent(ChangeEvent event) {
+        if(changeEventService != null) {
+            changeEventService.publish(event);
+        }
+    }
+
+    private static RuleIndex removeFromIndex(long id, Map<Long, Rule> rules, RuleIndex index) {
+        Rule old = rules.remove(id);
+        return old == null ? index : index.remove(old);
+    }
+
+    public void setRuleDAO(RuleDAO ruleDAO) {
+        this.ruleDAO = ruleDAO;
+    }
+
+    /**
+     * Sets the loader used to read the whole rule set. If not set, the rules are loaded
+     * through {@link RuleDAO#findAll()}, which runs some further queries for each rule.
+     */
+    public void setRuleSnapshotLoader(RuleSnapshotLoader ruleSnapshotLoader) {
+        this.ruleSnapshotLoader = ruleSnapshotLoader;
+    }
+
+    public void setChangeEventService(ChangeEventServiceImpl changeEventService) {
+        this.changeEventService = changeEventService;
+    }
+
+    /**
+     * Sets how often the whole rule set is reloaded from the db. Default is 30 seconds.
+     */
+    public void setRefreshSeconds(long refreshSeconds) {
+        this.refreshSeconds = refreshSeconds;
     }
 }
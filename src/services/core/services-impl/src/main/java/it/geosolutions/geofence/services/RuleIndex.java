@@ -0,0 +1,784 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.FilterType;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * An in-memory index of {@link Rule}s, used to find the Rules matching a {@link RuleFilter}
+ * without scanning the whole rule set.
+ * <P>
+ * The index is a tree with one level for each of the seven filtering fields
+ * (layer, workspace, service, request, instance, group, user).
+ * Each node has a child for every value found in the related Rule field, plus a
+ * <I>wildcard</I> child holding the Rules having that field set to <TT>null</TT>.
+ * <P>
+ * Filters are matched this way: <UL>
+ * <LI><B>ANY</B> visits all the children</LI>
+ * <LI><B>DEFAULT</B> only visits the wildcard child</LI>
+ * <LI>an <B>id</B> or a <B>name</B> visits the related child and the wildcard child</LI>
+ * </UL>
+ * <P>
+ * Instances are immutable: {@link #add(Rule)} and {@link #remove(Rule)} return a new
+ * index sharing all the nodes not involved in the update, so that an index can be read
+ * by many threads while a new one is being built.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RuleIndex {
+
+    public static final Comparator<Rule> PRIORITY_COMPARATOR = new Comparator<Rule>() {
+        @Override
+        public int compare(Rule o1, Rule o2) {
+            long priority1 = o1.getPriority();
+            long priority2 = o2.getPriority();
+            return (priority1 < priority2) ? -1 : ((priority1 == priority2) ? 0 : 1);
+        }
+    };
+
+    public static final RuleIndex EMPTY = new RuleIndex(Node.EMPTY, 0,
+            new Names(), new Names(), new Names(), Collections.<Long, Long>emptyMap());
+
+    private static final int LAYER     = 0;
+    private static final int WORKSPACE = 1;
+    private static final int SERVICE   = 2;
+    private static final int REQUEST   = 3;
+    private static final int INSTANCE  = 4;
+    private static final int GROUP     = 5;
+    private static final int USER      = 6;
+    private static final int LEVELS    = 7;
+
+    private final Node root;
+    private final int size;
+
+    private final Names userNames;
+    private final Names groupNames;
+    private final Names instanceNames;
+    /** Maps the ids encoded in the groups' extId (<TT>"-id"</TT>) to the group id */
+    private final Map<Long, Long> groupAliases;
+
+    private RuleIndex(Node root, int size, Names userNames, Names groupNames, Names instanceNames, Map<Long, Long> groupAliases) {
+        this.root = root;
+        this.size = size;
+        this.userNames = userNames;
+        this.groupNames = groupNames;
+        this.instanceNames = instanceNames;
+        this.groupAliases = groupAliases;
+    }
+
+    /**
+     * Builds an index containing the given Rules.
+     */
+    public static RuleIndex build(Collection<Rule> rules) {
+        Names users = new Names();
+        Names groups = new Names();
+        Names instances = new Names();
+        Map<Long, Long> aliases = new HashMap<Long, Long>();
+
+        for (Rule rule : rules) {
+            collectNames(rule, users, groups, instances, aliases);
+        }
+
+        List<Rule> list = new ArrayList<Rule>(rules);
+        Node root = list.isEmpty() ? Node.EMPTY : build(list, 0);
+        return new RuleIndex(root, list.size(), users, groups, instances, aliases);
+    }
+
+    /**
+     * @return a new index containing the given Rule too.
+     */
+    public RuleIndex add(Rule rule) {
+        Names users = userNames.copy();
+        Names groups = groupNames.copy();
+        Names instances = instanceNames.copy();
+        Map<Long, Long> aliases = new HashMap<Long, Long>(groupAliases);
+        collectNames(rule, users, groups, instances, aliases);
+
+        return new RuleIndex(add(root, rule, 0), size + 1, users, groups, instances, aliases);
+    }
+
+    /**
+     * Removes a Rule from the index.
+     * The Rule is located using the field values of the given instance, and is compared by id.
+     *
+     * @return a new index not containing the given Rule, or this same index if the Rule was not found.
+     */
+    public RuleIndex remove(Rule rule) {
+        Removal removal = new Removal();
+        Node newRoot = remove(root, rule, 0, removal);
+        if( ! removal.found ) {
+            return this;
+        }
+        return new RuleIndex(newRoot == null ? Node.EMPTY : newRoot, size - 1,
+                userNames, groupNames, instanceNames, groupAliases);
+    }
+
+    /**
+     * Returns the Rules matching the given filter, sorted by priority.
+     * <P>
+     * The <TT>user</TT> and <TT>userGroup</TT> fields of the filter are ignored: the user and group
+     * filtering is performed using the given params, that may have been resolved by the caller.
+     */
+    public List<Rule> match(RuleFilter filter, IdNameFilter userFilter, IdNameFilter groupFilter) {
+        List<Rule> ret = new ArrayList<Rule>();
+        collect(root, 0, filter, userFilter, groupFilter, ret);
+        if(ret.size() > 1) {
+            Collections.sort(ret, PRIORITY_COMPARATOR);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the Rules matching the given filter for each of the given group filters, as
+     * {@link #match(RuleFilter, IdNameFilter, IdNameFilter) match()} would do for each of them,
+     * but visiting the index only once.
+     * <P>
+     * The levels above the group one are visited once for all the groups, and the Rules
+     * having no group are collected once and shared by all the groups. The Rules of each group
+     * are then merged by priority from the already sorted leaves.
+     *
+     * @param firstGrant if true, each list ends at its first ALLOW or DENY Rule, since the
+     *        following Rules can not change the access granted to that group.
+     *
+     * @return a list of Rules sorted by priority for each group filter, in the same order.
+     */
+    public List<List<Rule>> match(RuleFilter filter, IdNameFilter userFilter, List<IdNameFilter> groupFilters, boolean firstGrant) {
+        GroupMatch match = new GroupMatch(filter, userFilter, groupFilters);
+        collect(root, 0, match);
+
+        List<List<Rule>> ret = new ArrayList<List<Rule>>(groupFilters.size());
+        for (List<List<Rule>> leaves : match.leaves) {
+            ret.add(merge(match.shared, leaves, firstGrant));
+        }
+        return ret;
+    }
+
+    /**
+     * Tells whether any Rule may match the given filter, whatever the user and group.
+     * <P>
+     * Only the levels above the group one are visited, and the visit stops at the first
+     * candidate, so that requests on resources not covered by any Rule can be denied
+     * without resolving the user.
+     */
+    public boolean hasCandidates(RuleFilter filter) {
+        return hasCandidates(root, 0, filter);
+    }
+
+    /**
+     * Collects the workspaces and layers named in the Rules that may match the given filter,
+     * whatever the workspace, layer, user and group.
+     * <P>
+     * The workspace filter is applied if it is a name; the layer filter is ignored.
+     *
+     * @return the layer names by workspace name. The <TT>null</TT> key holds the layers named
+     *         in the Rules with no workspace; workspaces named only in Rules with no layer have
+     *         an empty set.
+     */
+    public Map<String, Set<String>> getLayerNames(RuleFilter filter) {
+        String workspace = filter.getWorkspace().getType() == FilterType.NAMEVALUE ? filter.getWorkspace().getName() : null;
+
+        Map<String, Set<String>> ret = new HashMap<String, Set<String>>();
+        if(root.wildcard != null) {
+            collectWorkspaces(root.wildcard, null, workspace, filter, ret);
+        }
+        for (Map.Entry<Object, Node> entry : root.children.entrySet()) {
+            collectWorkspaces(entry.getValue(), (String)entry.getKey(), workspace, filter, ret);
+        }
+        return ret;
+    }
+
+    private void collectWorkspaces(Node layerNode, String layer, String workspace, RuleFilter filter, Map<String, Set<String>> ret) {
+        if(layerNode.wildcard != null && hasCandidates(layerNode.wildcard, WORKSPACE + 1, filter)) {
+            addName(ret, null, layer);
+        }
+        for (Map.Entry<Object, Node> entry : layerNode.children.entrySet()) {
+            if((workspace == null || workspace.equals(entry.getKey()))
+                    && hasCandidates(entry.getValue(), WORKSPACE + 1, filter)) {
+                addName(ret, (String)entry.getKey(), layer);
+            }
+        }
+    }
+
+    private static void addName(Map<String, Set<String>> ret, String workspace, String layer) {
+        Set<String> layers = ret.get(workspace);
+        if(layers == null) {
+            layers = new HashSet<String>();
+            ret.put(workspace, layers);
+        }
+        if(layer != null) {
+            layers.add(layer);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // =========================================================================
+
+    private void collect(Node node, int level, RuleFilter filter, IdNameFilter userFilter, IdNameFilter groupFilter, List<Rule> ret) {
+        if(level == LEVELS) {
+            ret.addAll(node.rules);
+            return;
+        }
+
+        // rules having a null field match any filter type
+        if(node.wildcard != null) {
+            collect(node.wildcard, level + 1, filter, userFilter, groupFilter, ret);
+        }
+
+        if(node.children.isEmpty()) {
+            return;
+        }
+
+        FilterType type = getFilterType(level, filter, userFilter, groupFilter);
+        switch(type) {
+            case ANY:
+                for (Node child : node.children.values()) {
+                    collect(child, level + 1, filter, userFilter, groupFilter, ret);
+                }
+                break;
+
+            case DEFAULT:
+                break; // only the wildcard branch, already visited
+
+            case IDVALUE:
+            case NAMEVALUE:
+                Object key = getKey(level, filter, userFilter, groupFilter);
+                if(key != null) {
+                    Node child = node.children.get(key);
+                    if(child != null) {
+                        collect(child, level + 1, filter, userFilter, groupFilter, ret);
+                    }
+                    if(level == GROUP) {
+                        Long alias = groupAliases.get((Long)key);
+                        if(alias != null && ! alias.equals(key)) {
+                            Node aliased = node.children.get(alias);
+                            if(aliased != null) {
+                                collect(aliased, level + 1, filter, userFilter, groupFilter, ret);
+                            }
+                        }
+                    }
+                }
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown filter type " + type);
+        }
+    }
+
+    private void collect(Node node, int level, GroupMatch match) {
+        if(level == GROUP) {
+            collectGroups(node, match);
+            return;
+        }
+
+        if(node.wildcard != null) {
+            collect(node.wildcard, level + 1, match);
+        }
+
+        if(node.children.isEmpty()) {
+            return;
+        }
+
+        FilterType type = getFilterType(level, match.filter, null, null);
+        switch(type) {
+            case ANY:
+                for (Node child : node.children.values()) {
+                    collect(child, level + 1, match);
+                }
+                break;
+
+            case DEFAULT:
+                break; // only the wildcard branch, already visited
+
+            case IDVALUE:
+            case NAMEVALUE:
+                Object key = getKey(level, match.filter, null, null);
+                if(key != null) {
+                    Node child = node.children.get(key);
+                    if(child != null) {
+                        collect(child, level + 1, match);
+                    }
+                }
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown filter type " + type);
+        }
+    }
+
+    /**
+     * Fans the group level out: the wildcard branch goes to the shared leaves,
+     * each group branch to the leaves of the groups selecting it.
+     */
+    private void collectGroups(Node node, GroupMatch match) {
+        if(node.wildcard != null) {
+            collectLeaves(node.wildcard, GROUP + 1, match.filter, match.userFilter, match.shared);
+        }
+
+        if(node.children.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < match.groupFilters.size(); i++) {
+            IdNameFilter groupFilter = match.groupFilters.get(i);
+            List<List<Rule>> leaves = match.leaves.get(i);
+
+            FilterType type = groupFilter.getType();
+            switch(type) {
+                case ANY:
+                    for (Node child : node.children.values()) {
+                        collectLeaves(child, GROUP + 1, match.filter, match.userFilter, leaves);
+                    }
+                    break;
+
+                case DEFAULT:
+                    break; // only the wildcard branch, already visited
+
+                case IDVALUE:
+                case NAMEVALUE:
+                    Long key = (Long)getKey(groupFilter, groupNames);
+                    if(key != null) {
+                        Node child = node.children.get(key);
+                        if(child != null) {
+                            collectLeaves(child, GROUP + 1, match.filter, match.userFilter, leaves);
+                        }
+                        Long alias = groupAliases.get(key);
+                        if(alias != null && ! alias.equals(key)) {
+                            Node aliased = node.children.get(alias);
+                            if(aliased != null) {
+                                collectLeaves(aliased, GROUP + 1, match.filter, match.userFilter, leaves);
+                            }
+                        }
+                    }
+                    break;
+
+                default:
+                    throw new IllegalStateException("Unknown filter type " + type);
+            }
+        }
+    }
+
+    /**
+     * Collects the rule lists of the leaves below the group level, without copying them.
+     */
+    private void collectLeaves(Node node, int level, RuleFilter filter, IdNameFilter userFilter, List<List<Rule>> leaves) {
+        if(level == LEVELS) {
+            if( ! node.rules.isEmpty()) {
+                leaves.add(node.rules);
+            }
+            return;
+        }
+
+        if(node.wildcard != null) {
+            collectLeaves(node.wildcard, level + 1, filter, userFilter, leaves);
+        }
+
+        if(node.children.isEmpty()) {
+            return;
+        }
+
+        FilterType type = getFilterType(level, filter, userFilter, null);
+        switch(type) {
+            case ANY:
+                for (Node child : node.children.values()) {
+                    collectLeaves(child, level + 1, filter, userFilter, leaves);
+                }
+                break;
+
+            case DEFAULT:
+                break; // only the wildcard branch, already visited
+
+            case IDVALUE:
+            case NAMEVALUE:
+                Object key = getKey(level, filter, userFilter, null);
+                if(key != null) {
+                    Node child = node.children.get(key);
+                    if(child != null) {
+                        collectLeaves(child, level + 1, filter, userFilter, leaves);
+                    }
+                }
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown filter type " + type);
+        }
+    }
+
+    /**
+     * Merges the sorted leaves by priority.
+     */
+    private static List<Rule> merge(List<List<Rule>> shared, List<List<Rule>> leaves, boolean firstGrant) {
+        List<Rule> ret = new ArrayList<Rule>();
+        int count = shared.size() + leaves.size();
+        if(count == 0) {
+            return ret;
+        }
+
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(count);
+        for (List<Rule> rules : shared) {
+            queue.add(new Cursor(rules));
+        }
+        for (List<Rule> rules : leaves) {
+            queue.add(new Cursor(rules));
+        }
+
+        while( ! queue.isEmpty()) {
+            Cursor cursor = queue.poll();
+            Rule rule = cursor.next();
+            ret.add(rule);
+            if(firstGrant && rule.getAccess() != GrantType.LIMIT) {
+                break;
+            }
+            if(cursor.hasNext()) {
+                queue.add(cursor);
+            }
+        }
+        return ret;
+    }
+
+    private boolean hasCandidates(Node node, int level, RuleFilter filter) {
+        if(level == GROUP) {
+            return true; // nodes only exist if they contain some rule
+        }
+
+        if(node.wildcard != null && hasCandidates(node.wildcard, level + 1, filter)) {
+            return true;
+        }
+
+        if(node.children.isEmpty()) {
+            return false;
+        }
+
+        FilterType type = getFilterType(level, filter, null, null);
+        switch(type) {
+            case ANY:
+                for (Node child : node.children.values()) {
+                    if(hasCandidates(child, level + 1, filter)) {
+                        return true;
+                    }
+                }
+                return false;
+
+            case DEFAULT:
+                return false;
+
+            case IDVALUE:
+            case NAMEVALUE:
+                Object key = getKey(level, filter, null, null);
+                if(key == null) {
+                    return false;
+                }
+                Node child = node.children.get(key);
+                return child != null && hasCandidates(child, level + 1, filter);
+
+            default:
+                throw new IllegalStateException("Unknown filter type " + type);
+        }
+    }
+
+    private static FilterType getFilterType(int level, RuleFilter filter, IdNameFilter userFilter, IdNameFilter groupFilter) {
+        switch(level) {
+            case LAYER:     return filter.getLayer().getType();
+            case WORKSPACE: return filter.getWorkspace().getType();
+            case SERVICE:   return filter.getService().getType();
+            case REQUEST:   return filter.getRequest().getType();
+            case INSTANCE:  return filter.getInstance().getType();
+            case GROUP:     return groupFilter.getType();
+            case USER:      return userFilter.getType();
+            default:
+                throw new IllegalStateException("Bad level " + level);
+        }
+    }
+
+    private Object getKey(int level, RuleFilter filter, IdNameFilter userFilter, IdNameFilter groupFilter) {
+        switch(level) {
+            case LAYER:     return getKey(filter.getLayer());
+            case WORKSPACE: return getKey(filter.getWorkspace());
+            case SERVICE:   return getKey(filter.getService());
+            case REQUEST:   return getKey(filter.getRequest());
+            case INSTANCE:  return getKey(filter.getInstance(), instanceNames);
+            case GROUP:     return getKey(groupFilter, groupNames);
+            case USER:      return getKey(userFilter, userNames);
+            default:
+                throw new IllegalStateException("Bad level " + level);
+        }
+    }
+
+    private static Object getKey(NameFilter filter) {
+        return filter.getName();
+    }
+
+    private static Object getKey(IdNameFilter filter, Names names) {
+        if(filter.getType() == FilterType.IDVALUE) {
+            return filter.getId();
+        } else {
+            return filter.getName() == null ? null : names.ids.get(filter.getName());
+        }
+    }
+
+    private static Object getKey(Rule rule, int level) {
+        switch(level) {
+            case LAYER:     return rule.getLayer();
+            case WORKSPACE: return rule.getWorkspace();
+            case SERVICE:   return rule.getService();
+            case REQUEST:   return rule.getRequest();
+            case INSTANCE:  return rule.getInstance() == null ? null : rule.getInstance().getId();
+            case GROUP:     return rule.getUserGroup() == null ? null : rule.getUserGroup().getId();
+            case USER:      return rule.getGsuser() == null ? null : rule.getGsuser().getId();
+            default:
+                throw new IllegalStateException("Bad level " + level);
+        }
+    }
+
+    private static void collectNames(Rule rule, Names users, Names groups, Names instances, Map<Long, Long> aliases) {
+        if(rule.getGsuser() != null) {
+            users.put(rule.getGsuser().getName(), rule.getGsuser().getId());
+        }
+        if(rule.getInstance() != null) {
+            instances.put(rule.getInstance().getName(), rule.getInstance().getId());
+        }
+        if(rule.getUserGroup() != null) {
+            groups.put(rule.getUserGroup().getName(), rule.getUserGroup().getId());
+
+            String extId = rule.getUserGroup().getExtId();
+            if(extId != null && extId.startsWith("-")) {
+                try {
+                    aliases.put(Long.valueOf(extId.substring(1)), rule.getUserGroup().getId());
+                } catch (NumberFormatException e) {
+                    // not an id placeholder, nothing to alias
+                }
+            }
+        }
+    }
+
+    // =========================================================================
+
+    private static Node build(List<Rule> rules, int level) {
+        if(level == LEVELS) {
+            List<Rule> sorted = new ArrayList<Rule>(rules);
+            Collections.sort(sorted, PRIORITY_COMPARATOR);
+            return new Node(Collections.<Object, Node>emptyMap(), null, sorted);
+        }
+
+        Map<Object, List<Rule>> grouped = new HashMap<Object, List<Rule>>();
+        List<Rule> wildcards = new ArrayList<Rule>();
+        for (Rule rule : rules) {
+            Object key = getKey(rule, level);
+            if(key == null) {
+                wildcards.add(rule);
+            } else {
+                List<Rule> list = grouped.get(key);
+                if(list == null) {
+                    list = new ArrayList<Rule>();
+                    grouped.put(key, list);
+                }
+                list.add(rule);
+            }
+        }
+
+        Map<Object, Node> children = new HashMap<Object, Node>(grouped.size() * 4 / 3 + 1);
+        for (Map.Entry<Object, List<Rule>> entry : grouped.entrySet()) {
+            children.put(entry.getKey(), build(entry.getValue(), level + 1));
+        }
+        Node wildcard = wildcards.isEmpty() ? null : build(wildcards, level + 1);
+
+        return new Node(children, wildcard, Collections.<Rule>emptyList());
+    }
+
+    private static Node add(Node node, Rule rule, int level) {
+        if(level == LEVELS) {
+            List<Rule> rules = new ArrayList<Rule>(node.rules.size() + 1);
+            rules.addAll(node.rules);
+            rules.add(rule);
+            Collections.sort(rules, PRIORITY_COMPARATOR);
+            return new Node(node.children, node.wildcard, rules);
+        }
+
+        Object key = getKey(rule, level);
+        if(key == null) {
+            Node wildcard = add(node.wildcard == null ? Node.EMPTY : node.wildcard, rule, level + 1);
+            return new Node(node.children, wildcard, node.rules);
+        } else {
+            Node child = node.children.get(key);
+            Map<Object, Node> children = new HashMap<Object, Node>(node.children);
+            children.put(key, add(child == null ? Node.EMPTY : child, rule, level + 1));
+            return new Node(children, node.wildcard, node.rules);
+        }
+    }
+
+    /**
+     * @return the updated node, or null if the node has no more content.
+     */
+    private static Node remove(Node node, Rule rule, int level, Removal removal) {
+        if(level == LEVELS) {
+            List<Rule> rules = new ArrayList<Rule>(node.rules.size());
+            for (Rule r : node.rules) {
+                if(r.getId() != null && r.getId().equals(rule.getId())) {
+                    removal.found = true;
+                } else {
+                    rules.add(r);
+                }
+            }
+            if( ! removal.found ) {
+                return node;
+            }
+            return rules.isEmpty() ? null : new Node(node.children, node.wildcard, rules);
+        }
+
+        Object key = getKey(rule, level);
+        Map<Object, Node> children = node.children;
+        Node wildcard = node.wildcard;
+
+        if(key == null) {
+            if(wildcard == null) {
+                return node;
+            }
+            wildcard = remove(wildcard, rule, level + 1, removal);
+        } else {
+            Node child = children.get(key);
+            if(child == null) {
+                return node;
+            }
+            Node newChild = remove(child, rule, level + 1, removal);
+            if(newChild == child) {
+                return node;
+            }
+            children = new HashMap<Object, Node>(children);
+            if(newChild == null) {
+                children.remove(key);
+            } else {
+                children.put(key, newChild);
+            }
+        }
+
+        if(children.isEmpty() && wildcard == null) {
+            return null;
+        }
+        return new Node(children, wildcard, node.rules);
+    }
+
+    // =========================================================================
+
+    private static final class Node {
+        static final Node EMPTY = new Node(Collections.<Object, Node>emptyMap(), null, Collections.<Rule>emptyList());
+
+        /** Children keyed by field value: names for strings fields, ids for entities */
+        final Map<Object, Node> children;
+        /** Child holding the rules with a null value in the field */
+        final Node wildcard;
+        /** Only populated at the leaf level */
+        final List<Rule> rules;
+
+        Node(Map<Object, Node> children, Node wildcard, List<Rule> rules) {
+            this.children = children;
+            this.wildcard = wildcard;
+            this.rules = rules;
+        }
+    }
+
+    private static final class Names {
+        final Map<String, Long> ids;
+
+        Names() {
+            this.ids = new HashMap<String, Long>();
+        }
+
+        Names(Map<String, Long> ids) {
+            this.ids = ids;
+        }
+
+        void put(String name, Long id) {
+            if(name != null && id != null) {
+                ids.put(name, id);
+            }
+        }
+
+        Names copy() {
+            return new Names(new HashMap<String, Long>(ids));
+        }
+    }
+
+    private static final class Removal {
+        boolean found = false;
+    }
+
+    private static final class GroupMatch {
+        final RuleFilter filter;
+        final IdNameFilter userFilter;
+        final List<IdNameFilter> groupFilters;
+        /** Leaves of the rules with no group, matching all the groups */
+        final List<List<Rule>> shared = new ArrayList<List<Rule>>();
+        /** Leaves of each group */
+        final List<List<List<Rule>>> leaves;
+
+        GroupMatch(RuleFilter filter, IdNameFilter userFilter, List<IdNameFilter> groupFilters) {
+            this.filter = filter;
+            this.userFilter = userFilter;
+            this.groupFilters = groupFilters;
+            this.leaves = new ArrayList<List<List<Rule>>>(groupFilters.size());
+            for (int i = 0; i < groupFilters.size(); i++) {
+                leaves.add(new ArrayList<List<Rule>>());
+            }
+        }
+    }
+
+    /**
+     * Walks a leaf list, ordered by the priority of its next Rule.
+     */
+    private static final class Cursor implements Comparable<Cursor> {
+        final List<Rule> rules;
+        int pos = 0;
+
+        Cursor(List<Rule> rules) {
+            this.rules = rules;
+        }
+
+        boolean hasNext() {
+            return pos < rules.size();
+        }
+
+        Rule next() {
+            return rules.get(pos++);
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            return PRIORITY_COMPARATOR.compare(rules.get(pos), o.rules.get(o.pos));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import it.geosolutions.geofence.core.dao.RuleDAO;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Spaces out in background the priorities crowded by the positional inserts.
+ * <P>
+ * Inserts take the priority halfway between the neighbouring rules; when no room is left,
+ * the {@link RuleDAO} shifts the few following rules and records the spot.
+ * Every <TT>periodSeconds</TT> the recorded spots are spaced out, <TT>batchSize</TT> rules
+ * per transaction, so that the table is never locked for long. The order of the rules never changes,
+ * but the {@link RuleCache} is reloaded to get the new priorities.
+ * <P>
+ * The recorded spots only live in memory: on the first run, and then every <TT>rescanSeconds</TT>,
+ * the whole table is scanned for crowded spots, so that the ones left by a restart or by
+ * another node, and the dense priorities of the rules inserted by older versions, are spaced out too.
+ * Only one node sharing the db should run the respacer.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RulePriorityRespacer implements InitializingBean, DisposableBean {
+
+    private final static Logger LOGGER = LogManager.getLogger(RulePriorityRespacer.class);
+
+    private RuleDAO ruleDAO;
+
+    private RuleCache ruleCache;
+
+    private long periodSeconds = 60;
+
+    private int batchSize = 100;
+
+    private long rescanSeconds = 3600;
+
+    private long nextScan = 0;
+
+    private ScheduledExecutorService executor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GeoFence-RulePriorityRespacer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    respace();
+                } catch (Exception e) {
+                    LOGGER.error("Error respacing rules: " + e.getMessage(), e);
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if(executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Spaces out all the crowded spots recorded so far.
+     *
+     * @return the number of updated rules.
+     */
+    public int respace() {
+        if(System.currentTimeMillis() >= nextScan) {
+            scan();
+            nextScan = System.currentTimeMillis() + rescanSeconds * 1000;
+        }
+
+        int total = 0;
+        int updated;
+        while((updated = ruleDAO.respace(batchSize)) >= 0) {
+            total += updated;
+        }
+        if(total > 0) {
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Respaced " + total + " rules");
+            }
+            if(ruleCache != null) {
+                ruleCache.invalidate();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Scans the whole table for crowded spots; only the priorities are read,
+     * 10 * <TT>batchSize</TT> per transaction.
+     */
+    protected void scan() {
+        long from = Long.MIN_VALUE;
+        do {
+            from = ruleDAO.scanCrowded(from, batchSize * 10);
+        } while(from != Long.MIN_VALUE);
+    }
+
+    public void setRuleDAO(RuleDAO ruleDAO) {
+        this.ruleDAO = ruleDAO;
+    }
+
+    public void setRuleCache(RuleCache ruleCache) {
+        this.ruleCache = ruleCache;
+    }
+
+    /**
+     * Sets how often the crowded rules are spaced out. Default is 60 seconds.
+     */
+    public void setPeriodSeconds(long periodSeconds) {
+        this.periodSeconds = periodSeconds;
+    }
+
+    /**
+     * Sets how often the whole table is scanned for crowded rules. Default is 3600 seconds.
+     */
+    public void setRescanSeconds(long rescanSeconds) {
+        this.rescanSeconds = rescanSeconds;
+    }
+
+    /**
+     * Sets the max number of rules updated in a single transaction. Default is 100.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
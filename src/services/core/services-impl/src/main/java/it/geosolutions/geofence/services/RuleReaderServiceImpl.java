@@ -21,7 +21,6 @@ package it.geosolutions.geofence.services;
 
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
-import com.google.common.collect.Lists;
 import com.googlecode.genericdao.search.Filter;
 import com.googlecode.genericdao.search.Search;
 
@@ -35,11 +34,6 @@ import org.apache.logging.log4j.Logger;
 
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.MultiPolygon;
-import com.vividsolutions.jts.geom.Polygon;
-import com.vividsolutions.jts.io.ParseException;
-import com.vividsolutions.jts.io.WKTReader;
 
 import it.geosolutions.geofence.core.dao.GSUserDAO;
 import it.geosolutions.geofence.core.dao.LayerDetailsDAO;
@@ -54,6 +48,7 @@ import it.geosolutions.geofence.core.model.RuleLimits;
 import it.geosolutions.geofence.core.model.enums.AccessType;
 import it.geosolutions.geofence.core.model.enums.GrantType;
 import it.geosolutions.geofence.services.dto.AuthUser;
+import it.geosolutions.geofence.services.dto.LayerAccessInfos;
 import it.geosolutions.geofence.services.dto.RuleFilter;
 import it.geosolutions.geofence.services.dto.RuleFilter.FilterType;
 import it.geosolutions.geofence.services.dto.RuleFilter.NameFilter;
@@ -85,9 +80,13 @@ public class RuleReaderServiceImpl implements RuleReaderService {
     private GSUserDAO userDAO;
     private UserGroupDAO userGroupDAO;
     private RuleCache ruleCache;
+    private UserCache userCache;
+    private GeometryCache geometryCache;
+    private UserAreaCache userAreaCache;
 
     @Autowired
     private MetricRegistry metricRegistry;
+    private DecisionTraceServiceImpl decisionTraceService;
     /**
      * @deprecated
      */
@@ -138,8 +137,169 @@ public class RuleReaderServiceImpl implements RuleReaderService {
 
     @Override
     public AccessInfo getAccessInfo(RuleFilter filter) {
-        LOGGER.info("Requesting access for " + filter);
-        Map<UserGroup, List<Rule>> groupedRules = getRules(filter);
+        if(LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Requesting access for " + filter);
+        }
+        return getAccessInfo(filter, ruleCache.getSnapshot(), new Lookups());
+    }
+
+    /**
+     * All the filters are resolved on the same rule set snapshot, and users and groups
+     * are looked up only once for the whole list.
+     */
+    @Override
+    public List<AccessInfo> getAccessInfos(List<RuleFilter> filters) {
+        Timer.Context timer = this.metricRegistry.timer(getClass().getName() + "_getAccessInfos(List)").time();
+        try {
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Requesting access for " + filters.size() + " filters");
+            }
+            RuleCache.Snapshot snapshot = ruleCache.getSnapshot();
+            Lookups lookups = new Lookups();
+
+            List<AccessInfo> ret = new ArrayList<AccessInfo>(filters.size());
+            for (RuleFilter filter : filters) {
+                ret.add(getAccessInfo(filter, snapshot, lookups));
+            }
+            return ret;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * All the decisions are taken on the same rule set snapshot, and the user and groups
+     * are looked up only once. Only the layers named in the rules are evaluated one by one:
+     * a single decision is taken for all the other layers of each workspace.
+     */
+    @Override
+    public LayerAccessInfos getLayerAccessInfos(RuleFilter filter) {
+        Timer.Context timer = this.metricRegistry.timer(getClass().getName() + "_getLayerAccessInfos(RuleFilter)").time();
+        try {
+            RuleCache.Snapshot snapshot = ruleCache.getSnapshot();
+            Lookups lookups = new Lookups();
+
+            Map<String, Set<String>> names = snapshot.getIndex().getLayerNames(filter);
+            Set<String> commonLayers = names.containsKey(null) ? names.get(null) : Collections.<String>emptySet();
+
+            LayerAccessInfos ret = new LayerAccessInfos();
+            ret.setRuleSetVersion(snapshot.getVersion());
+
+            NameFilter workspace = filter.getWorkspace();
+            switch(workspace.getType()) {
+                case NAMEVALUE:
+                    addLayerAccessInfos(ret, filter, workspace.getName(), names.get(workspace.getName()), commonLayers, snapshot, lookups);
+                    break;
+                case ANY:
+                    for (Entry<String, Set<String>> entry : names.entrySet()) {
+                        if(entry.getKey() != null) {
+                            addLayerAccessInfos(ret, filter, entry.getKey(), entry.getValue(), commonLayers, snapshot, lookups);
+                        }
+                    }
+                    addLayerAccessInfos(ret, filter, null, null, commonLayers, snapshot, lookups);
+                    break;
+                default:
+                    throw new BadRequestServiceEx("Workspace should be a name or ANY: " + workspace);
+            }
+
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Returning " + ret + " for " + filter);
+            }
+            return ret;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void addLayerAccessInfos(LayerAccessInfos ret, RuleFilter template, String workspace,
+            Set<String> layers, Set<String> commonLayers, RuleCache.Snapshot snapshot, Lookups lookups) {
+        if(layers != null) {
+            for (String layer : layers) {
+                ret.put(workspace, layer, getAccessInfo(copyFilter(template, workspace, layer), snapshot, lookups));
+            }
+        }
+        for (String layer : commonLayers) {
+            if(layers == null || ! layers.contains(layer)) {
+                ret.put(workspace, layer, getAccessInfo(copyFilter(template, workspace, layer), snapshot, lookups));
+            }
+        }
+        ret.put(workspace, null, getAccessInfo(copyFilter(template, workspace, null), snapshot, lookups));
+    }
+
+    /**
+     * Copies the filter on another resource; a null workspace or layer only matches the rules
+     * not naming any.
+     * <BR/>A new filter is needed for each decision, since getRules() may change it.
+     */
+    private static RuleFilter copyFilter(RuleFilter template, String workspace, String layer) {
+        RuleFilter ret = new RuleFilter(SpecialFilterType.ANY);
+        copy(template.getUser(), ret.getUser());
+        copy(template.getUserGroup(), ret.getUserGroup());
+        copy(template.getInstance(), ret.getInstance());
+        copy(template.getService(), ret.getService());
+        copy(template.getRequest(), ret.getRequest());
+        if(workspace == null) {
+            ret.setWorkspace(SpecialFilterType.DEFAULT);
+        } else {
+            ret.setWorkspace(workspace);
+        }
+        if(layer == null) {
+            ret.setLayer(SpecialFilterType.DEFAULT);
+        } else {
+            ret.setLayer(layer);
+        }
+        ret.setSourceAddress(template.getSourceAddress());
+        return ret;
+    }
+
+    private static void copy(IdNameFilter from, IdNameFilter to) {
+        switch(from.getType()) {
+            case IDVALUE:
+                to.setId(from.getId());
+                break;
+            case NAMEVALUE:
+                to.setName(from.getName());
+                break;
+            case DEFAULT:
+                to.setType(SpecialFilterType.DEFAULT);
+                break;
+            default:
+                break;
+        }
+        to.setIncludeDefault(from.isIncludeDefault());
+    }
+
+    private static void copy(NameFilter from, NameFilter to) {
+        switch(from.getType()) {
+            case NAMEVALUE:
+                to.setName(from.getName());
+                break;
+            case DEFAULT:
+                to.setType(SpecialFilterType.DEFAULT);
+                break;
+            default:
+                break;
+        }
+        to.setIncludeDefault(from.isIncludeDefault());
+    }
+
+    private AccessInfo getAccessInfo(RuleFilter filter, RuleCache.Snapshot snapshot, Lookups lookups) {
+        long start = System.nanoTime();
+
+        // fast path: no rule covers the requested resource, no need to resolve the user
+        if( ! snapshot.getIndex().hasCandidates(filter)) {
+            this.metricRegistry.meter("RuleReaderService.unmatched()").mark();
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("No rules for filter " + filter);
+            }
+            AccessInfo ret = new AccessInfo(GrantType.DENY);
+            ret.setUnmatched(true);
+            ret.setRuleSetVersion(snapshot.getVersion());
+            return traced(filter, ret, start);
+        }
+
+        // the rules after the first ALLOW or DENY of each group are not needed
+        Map<UserGroup, List<Rule>> groupedRules = getRules(filter, snapshot, lookups, true);
 
         AccessInfoInternal currAccessInfo = null;
         
@@ -147,7 +307,7 @@ public class RuleReaderServiceImpl implements RuleReaderService {
             UserGroup userGroup = ruleGroup.getKey();
             List<Rule> rules = ruleGroup.getValue();
 
-            AccessInfoInternal accessInfo = resolveRuleset(rules, filter.getUser());
+            AccessInfoInternal accessInfo = resolveRuleset(rules, filter.getUser(), snapshot.getVersion(), lookups);
             if(LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Filter " + filter + " on group " + userGroup + " has access " + accessInfo);
             }
@@ -158,15 +318,29 @@ public class RuleReaderServiceImpl implements RuleReaderService {
         AccessInfo ret;
 
         if(currAccessInfo == null) {
-            LOGGER.warn("No access for filter " + filter);
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("No access for filter " + filter);
+            }
             // Denying by default
             ret = new AccessInfo(GrantType.DENY);
         } else {
-            ret = currAccessInfo.toAccessInfo();
+            ret = currAccessInfo.getArea() == null ?
+                    currAccessInfo.toAccessInfo() :
+                    currAccessInfo.toAccessInfo(geometryCache.toWkb(getArea(currAccessInfo)));
         }
+        ret.setRuleSetVersion(snapshot.getVersion());
 
-        LOGGER.info("Returning " + ret + " for " + filter);
-        return ret;
+        if(LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Returning " + ret + " for " + filter);
+        }
+        return traced(filter, ret, start);
+    }
+
+    private AccessInfo traced(RuleFilter filter, AccessInfo accessInfo, long start) {
+        if(decisionTraceService != null) {
+            decisionTraceService.trace(filter, accessInfo, System.nanoTime() - start);
+        }
+        return accessInfo;
     }
 
     private AccessInfoInternal enlargeAccessInfo(AccessInfoInternal baseAccess, AccessInfoInternal moreAccess) {
@@ -196,7 +370,7 @@ public class RuleReaderServiceImpl implements RuleReaderService {
 
                 ret.setAllowedStyles(unionAllowedStyles(baseAccess.getAllowedStyles(), moreAccess.getAllowedStyles()));
                 ret.setAttributes(unionAttributes(baseAccess.getAttributes(), moreAccess.getAttributes()));
-                ret.setArea(unionGeometry(baseAccess.getArea(), moreAccess.getArea()));
+                setArea(ret, unionArea(getArea(baseAccess), getArea(moreAccess)));
 
                 return ret;
             }
@@ -210,11 +384,20 @@ public class RuleReaderServiceImpl implements RuleReaderService {
           return "("+c1+") OR ("+c2+")";
     }
 
-    private Geometry unionGeometry(Geometry g1, Geometry g2) {
-          if(g1 == null || g2 == null)
+    private GeometryCache.Area unionArea(GeometryCache.Area a1, GeometryCache.Area a2) {
+          if(a1 == null || a2 == null)
               return null;
 
-          return union(g1, g2);
+          return geometryCache.union(a1, a2);
+    }
+
+    private static GeometryCache.Area getArea(AccessInfoInternal accessInfo) {
+        return accessInfo.getArea() == null ? null : new GeometryCache.Area(accessInfo.getAreaKey(), accessInfo.getArea());
+    }
+
+    private static void setArea(AccessInfoInternal accessInfo, GeometryCache.Area area) {
+        accessInfo.setArea(area == null ? null : area.getGeometry());
+        accessInfo.setAreaKey(area == null ? null : area.getKey());
     }
 
     private static Set<LayerAttribute> unionAttributes(Set<LayerAttribute> a0, Set<LayerAttribute> a1) {
@@ -279,7 +462,7 @@ public class RuleReaderServiceImpl implements RuleReaderService {
         return allowedStyles;
     }
 
-    private AccessInfoInternal resolveRuleset(List<Rule> ruleList, IdNameFilter user) {
+    private AccessInfoInternal resolveRuleset(List<Rule> ruleList, IdNameFilter user, long ruleSetVersion, Lookups lookups) {
 
         List<RuleLimits> limits = new ArrayList<RuleLimits>();
         AccessInfoInternal ret = null;
@@ -293,7 +476,9 @@ public class RuleReaderServiceImpl implements RuleReaderService {
 
                    RuleLimits rl = rule.getRuleLimits();
                    if(rl != null) {
-                       LOGGER.info("Collecting limits: " + rl);
+                       if(LOGGER.isDebugEnabled()) {
+                           LOGGER.debug("Collecting limits: " + rl);
+                       }
                        limits.add(rl);
                     } else
                        LOGGER.warn(rule + " has no associated limits");
@@ -304,7 +489,7 @@ public class RuleReaderServiceImpl implements RuleReaderService {
                     break;
 
                 case ALLOW:
-                    ret = buildAllowAccessInfo(rule, limits, user); 
+                    ret = buildAllowAccessInfo(rule, limits, user, ruleSetVersion, lookups);
                     break;
 
                 default:
@@ -349,9 +534,9 @@ public class RuleReaderServiceImpl implements RuleReaderService {
         try {
             switch(filter.getType()) {
                 case IDVALUE:
-                    return userDAO.getFull(filter.getId());
+                    return userCache.getFullUser(filter.getId());
                 case NAMEVALUE:
-                    return userDAO.getFull(filter.getName());
+                    return userCache.getFullUser(filter.getName());
                 case DEFAULT:
                 case ANY:
                     return null;
@@ -366,24 +551,14 @@ public class RuleReaderServiceImpl implements RuleReaderService {
     private UserGroup getUserGroup(IdNameFilter filter) {
         Timer.Context timer = this.metricRegistry.timer(getClass().getName() + "_getUserGroup(IdNameFilter)").time();
         try {
-            Search search = new Search(UserGroup.class);
-
             switch(filter.getType()) {
                 case IDVALUE:
-                    search.addFilterEqual("id", filter.getId());
-                    break;
+                    return userCache.getGroup(filter.getId());
                 case NAMEVALUE:
-                    search.addFilterEqual("name", filter.getName());
-                    break;
+                    return userCache.getGroup(filter.getName());
                 default:
                     return null;
             }
-
-            List<UserGroup> groups = userGroupDAO.search(search);
-            if(groups.size() > 1)
-                throw new IllegalStateException("Found more than one userGroup '"+filter+"'");
-
-            return groups.isEmpty() ? null : groups.get(0);
         } finally {
             timer.stop();
         }
@@ -391,68 +566,56 @@ public class RuleReaderServiceImpl implements RuleReaderService {
 
 
 
-    private AccessInfoInternal buildAllowAccessInfo(Rule rule, List<RuleLimits> limits, IdNameFilter userFilter) {
+    /**
+     * Users and groups already looked up while resolving a set of filters.
+     * <BR>Not thread safe: it's meant to be used inside a single call.
+     */
+    private class Lookups {
+        private final Map<IdNameFilter, GSUser> users = new HashMap<IdNameFilter, GSUser>();
+        private final Map<IdNameFilter, UserGroup> groups = new HashMap<IdNameFilter, UserGroup>();
+
+        GSUser getFullUser(IdNameFilter filter) {
+            if(users.containsKey(filter)) {
+                return users.get(filter);
+            }
+            GSUser user = RuleReaderServiceImpl.this.getFullUser(filter);
+            users.put(filter, user);
+            return user;
+        }
+
+        UserGroup getUserGroup(IdNameFilter filter) {
+            if(groups.containsKey(filter)) {
+                return groups.get(filter);
+            }
+            UserGroup group = RuleReaderServiceImpl.this.getUserGroup(filter);
+            groups.put(filter, group);
+            return group;
+        }
+    }
+
+    private AccessInfoInternal buildAllowAccessInfo(Rule rule, List<RuleLimits> limits, IdNameFilter userFilter, long ruleSetVersion, Lookups lookups) {
         AccessInfoInternal accessInfo = new AccessInfoInternal(GrantType.ALLOW);
 
-        Geometry area = intersect(limits);
+        GeometryCache.Area area = intersect(limits, ruleSetVersion);
 
 //        Geometry userArea = getUserArea(userFilter);
 //        area = intersect(area, userArea);
 
         LayerDetails details = rule.getLayerDetails();
         if(details != null ) {
-            area = intersect(area, details.getArea());
+            area = geometryCache.intersection(area,
+                    GeometryCache.detailsArea(details.getId(), ruleSetVersion, details.getArea()));
             
             String metadataField = details.getAreaMetadataField();
             if (metadataField != null && !"".equals(metadataField)) {
             	
-            	GSUser user = getFullUser(userFilter);
-            	if (user != null) {
-	            	String str = (String) user.getMetadata().get(metadataField);
-	            	            	
-	                if (str != null) {
-	                	String wkt, srid;
-	                    if (str.indexOf("SRID=") != -1) {
-	                        String[] allowedAreaArray = str.split(";");
-	
-	                        srid = allowedAreaArray[0].split("=")[1];
-	                        wkt = allowedAreaArray[1];
-	                    }
-	                    else {
-	                        srid = "4326";
-	                        wkt = str;
-	                    }
-	                    
-	                    MultiPolygon the_geom = null;
-	    				WKTReader wktReader = new WKTReader();
-	    			
-						try {
-	    					Geometry geometry;
-								geometry = wktReader.read(wkt);
-							    					
-	    					if (geometry instanceof MultiPolygon) {
-	        					the_geom = (MultiPolygon) geometry;
-	        				} else if (geometry instanceof Polygon) {
-	        					GeometryFactory factory = new GeometryFactory();
-	        					the_geom = new MultiPolygon(
-	        							new Polygon[] { (Polygon) geometry }, factory);
-	        				}
-	
-	        				if (the_geom != null) {
-	        					the_geom.setSRID(Integer.valueOf(srid).intValue());
-	        					area = intersect(area, the_geom);
-	        					if (LOGGER.isDebugEnabled()) {
-	        		                LOGGER.debug("Extracted from " + user.getName() + " geometry: " + the_geom.toString());
-	        		            }
-	        				}
-						} catch (ParseException e) {
-							LOGGER.error(e);
-						}
-	    				
-	                }
-            	}
-            	
-            	
+                GSUser user = lookups.getFullUser(userFilter);
+                if (user != null) {
+                    GeometryCache.Area userArea = userAreaCache.getArea(user, metadataField);
+                    if (userArea != null) {
+                        area = geometryCache.intersection(area, userArea);
+                    }
+                }
             }
 
             accessInfo.setAttributes(details.getAttributes());
@@ -466,50 +629,22 @@ public class RuleReaderServiceImpl implements RuleReaderService {
         //        accessInfo.setArea(area);
         if (area != null) {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Attaching an area to Accessinfo: " + area.getClass().getName() + " " + area.toString());
+                LOGGER.debug("Attaching an area to Accessinfo: " + area.getGeometry().getClass().getName() + " " + area.getGeometry().toString());
             }
 //            accessInfo.setAreaWkt(area.toText());
-            accessInfo.setArea(area);
+            setArea(accessInfo, area);
         }
 
         return accessInfo;
     }
 
-    private Geometry intersect(List<RuleLimits> limits) {
-        Geometry g = null;
+    private GeometryCache.Area intersect(List<RuleLimits> limits, long ruleSetVersion) {
+        GeometryCache.Area ret = null;
         for (RuleLimits limit : limits) {
-            Geometry area = limit.getAllowedArea();
-            if(area != null) {
-                if( g == null) {
-                    g = area;
-                } else {
-                    g = g.intersection(area);
-                }
-            }
-        }
-        return g;
-    }
-
-    private Geometry intersect(Geometry g1, Geometry g2) {
-        if(g1!=null) {
-            if(g2==null)
-                return g1;
-            else
-                return g1.intersection(g2);
-        } else {
-            return g2;
-        }
-    }
-
-    private Geometry union(Geometry g1, Geometry g2) {
-        if(g1!=null) {
-            if(g2==null)
-                return g1;
-            else
-                return g1.union(g2);
-        } else {
-            return g2;
+            ret = geometryCache.intersection(ret,
+                    GeometryCache.limitsArea(limit.getId(), ruleSetVersion, limit.getAllowedArea()));
         }
+        return ret;
     }
 
     //==========================================================================
@@ -536,17 +671,33 @@ public class RuleReaderServiceImpl implements RuleReaderService {
      * @return a Map having UserGroups as keys, and the list of matching Rules as values. The NULL key holds the rules for the DEFAULT group.
      */
     protected Map<UserGroup, List<Rule>> getRules(RuleFilter filter) throws BadRequestServiceEx {
+        return getRules(filter, ruleCache.getSnapshot());
+    }
+
+    /**
+     * @param snapshot the rule set to be matched; all the groups are resolved on the same snapshot.
+     *
+     * @return a Map having UserGroups as keys, and the list of matching Rules as values. The NULL key holds the rules for the DEFAULT group.
+     */
+    protected Map<UserGroup, List<Rule>> getRules(RuleFilter filter, RuleCache.Snapshot snapshot) throws BadRequestServiceEx {
+        return getRules(filter, snapshot, new Lookups(), false);
+    }
+
+    /**
+     * @param firstGrant if true, the rules of each group end at the first ALLOW or DENY rule.
+     */
+    private Map<UserGroup, List<Rule>> getRules(RuleFilter filter, RuleCache.Snapshot snapshot, Lookups lookups, boolean firstGrant) throws BadRequestServiceEx {
         Timer.Context timer = this.metricRegistry.timer(getClass().getName() + "_getRules(RuleFilter)").time();
         try {
             // user can be null if
             // 1) id or name are defined in the filter, but the user has not been found in the db
             // 2) the user filter asks for ANY or DEFAULT
-            GSUser filterUser = getFullUser(filter.getUser());
+            GSUser filterUser = lookups.getFullUser(filter.getUser());
 
             // group can be null if
             // 1) id or name are defined in the filter, but the group has not been found in the db
             // 2) the group filter asks for ANY or DEFAULT
-            UserGroup filterGroup = getUserGroup(filter.getUserGroup());
+            UserGroup filterGroup = lookups.getUserGroup(filter.getUserGroup());
 
 
             Set<UserGroup> finalGroupFilter = new HashSet<UserGroup>();
@@ -590,17 +741,26 @@ public class RuleReaderServiceImpl implements RuleReaderService {
                 }
             }
 
+            // the user has already been looked up: match the index by id
+            IdNameFilter userFilter = filterUser != null ? new IdNameFilter(filterUser.getId()) : filter.getUser();
+
             Map<UserGroup, List<Rule>> ret = new HashMap<UserGroup, List<Rule>>();
 
             if(finalGroupFilter.isEmpty()) {
-                List<Rule> found = getRuleAux(filter, filter.getUserGroup());
+                List<Rule> found = getRuleAux(snapshot.getIndex(), filter, userFilter, filter.getUserGroup());
                 ret.put(null, found);
             } else {
-                for (UserGroup userGroup : finalGroupFilter) {
+                // all the groups are matched in a single visit of the index
+                List<UserGroup> groups = new ArrayList<UserGroup>(finalGroupFilter);
+                List<IdNameFilter> groupFilters = new ArrayList<IdNameFilter>(groups.size());
+                for (UserGroup userGroup : groups) {
                     IdNameFilter groupFilter = new IdNameFilter(userGroup.getId());
                     groupFilter.setIncludeDefault(true);
-                    List<Rule> found = getRuleAux(filter, groupFilter);
-                    ret.put(userGroup, found);
+                    groupFilters.add(groupFilter);
+                }
+                List<List<Rule>> found = getRuleAux(snapshot.getIndex(), filter, userFilter, groupFilters, firstGrant);
+                for (int i = 0; i < groups.size(); i++) {
+                    ret.put(groups.get(i), found.get(i));
                 }
             }
 
@@ -626,47 +786,23 @@ public class RuleReaderServiceImpl implements RuleReaderService {
         }
     }
 
-    protected List<Rule> getRuleAux(RuleFilter filter, IdNameFilter groupFilter) {
+    protected List<Rule> getRuleAux(RuleIndex index, RuleFilter filter, IdNameFilter userFilter, IdNameFilter groupFilter) {
         Timer.Context timer = this.metricRegistry.timer(getClass().getName() + "_getRuleAux(RuleFilter)").time();
         try {
-            TreeSet<Rule> results = new TreeSet<Rule>(PRIORITY_COMPARATOR);
-            List<Rule> all = ruleCache.findAll();
-            for (Rule rule : all) {
-                boolean matchUser = rule.getGsuser() == null ||
-                                   rule.getGsuser().getId().longValue() == filter.getUser().getId().longValue();
-                boolean matchGroup = rule.getUserGroup() == null;
-                if (groupFilter.getType() != FilterType.ANY) {
-                    matchGroup |= rule.getUserGroup() != null && (
-                            rule.getUserGroup().getId().longValue() == groupFilter.getId().longValue() ||
-                            (rule.getUserGroup().getExtId() != null && rule.getUserGroup().getExtId().equals("-" + groupFilter.getId())));
-                }
-                boolean matchInstance = rule.getInstance() == null ||
-                                       rule.getInstance().getName().equals(filter.getInstance().getName());
-                boolean matchRequest = rule.getRequest() == null ||
-                                      rule.getRequest().equals(filter.getRequest().getName());
-                boolean matchWorkspace = rule.getWorkspace() == null ||
-                                         rule.getWorkspace().equals(filter.getWorkspace().getName());
-                boolean matchService = rule.getService() == null ||
-                                         rule.getService().equals(filter.getService().getName());
-                boolean matchLayer = rule.getLayer() == null || rule.getLayer().equals(filter.getLayer().getName());
-
-                if (matchService && matchUser && matchGroup && matchInstance && matchRequest && matchWorkspace && matchLayer) {
-                    results.add(rule);
-                }
-            }
-            return Lists.newArrayList(results);
+            return index.match(filter, userFilter, groupFilter);
         } finally {
             timer.stop();
         }
     }
-    private static final Comparator<Rule> PRIORITY_COMPARATOR = new Comparator<Rule>() {
-        @Override
-        public int compare(Rule o1, Rule o2) {
-            long priority1 = o1.getPriority();
-            long priority2 = o2.getPriority();
-            return (priority1 < priority2) ? -1 : ((priority1 == priority2) ? 0 : 1);
+
+    protected List<List<Rule>> getRuleAux(RuleIndex index, RuleFilter filter, IdNameFilter userFilter, List<IdNameFilter> groupFilters, boolean firstGrant) {
+        Timer.Context timer = this.metricRegistry.timer(getClass().getName() + "_getRuleAux(List)").time();
+        try {
+            return index.match(filter, userFilter, groupFilters, firstGrant);
+        } finally {
+            timer.stop();
         }
-    };
+    }
 
     private void addCriteria(Search searchCriteria, String fieldName, IdNameFilter filter) {
         switch (filter.getType()) {
@@ -785,9 +921,26 @@ public class RuleReaderServiceImpl implements RuleReaderService {
 
     public void setRuleDAO(RuleDAO ruleDAO) {
         this.ruleDAO = ruleDAO;
-        if (ruleDAO != null) {
-            this.ruleCache = new RuleCache(ruleDAO, metricRegistry);
-        }
+    }
+
+    public void setDecisionTraceService(DecisionTraceServiceImpl decisionTraceService) {
+        this.decisionTraceService = decisionTraceService;
+    }
+
+    public void setRuleCache(RuleCache ruleCache) {
+        this.ruleCache = ruleCache;
+    }
+
+    public void setUserCache(UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    public void setGeometryCache(GeometryCache geometryCache) {
+        this.geometryCache = geometryCache;
+    }
+
+    public void setUserAreaCache(UserAreaCache userAreaCache) {
+        this.userAreaCache = userAreaCache;
     }
 
     public void setLayerDetailsDAO(LayerDetailsDAO detailsDAO) {
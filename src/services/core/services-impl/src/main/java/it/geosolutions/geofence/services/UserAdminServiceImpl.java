@@ -23,7 +23,9 @@ import com.googlecode.genericdao.search.Search;
 import it.geosolutions.geofence.core.dao.GSUserDAO;
 import it.geosolutions.geofence.core.model.GSUser;
 import it.geosolutions.geofence.core.model.UserGroup;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
 import it.geosolutions.geofence.services.dto.ShortUser;
+import it.geosolutions.geofence.services.util.AfterCommit;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -45,11 +47,15 @@ public class UserAdminServiceImpl implements UserAdminService {
     private final static Logger LOGGER = LogManager.getLogger(UserAdminServiceImpl.class);
 
     private GSUserDAO userDAO;
+    private UserCache userCache;
+    private ChangeEventServiceImpl changeEventService;
 
     // ==========================================================================
     @Override
     public long insert(GSUser user) {
         userDAO.persist(user);
+        invalidateCache();
+        publishEvent(user.getId(), user.getName());
         return user.getId();
     }
 
@@ -61,6 +67,11 @@ public class UserAdminServiceImpl implements UserAdminService {
         }
 
         userDAO.merge(user);
+        invalidateCache();
+        publishEvent(orig.getId(), orig.getName());
+        if(user.getName() != null && ! user.getName().equals(orig.getName())) {
+            publishEvent(orig.getId(), user.getName());
+        }
         return orig.getId();
     }
 
@@ -136,8 +147,15 @@ public class UserAdminServiceImpl implements UserAdminService {
 
     @Override
     public boolean delete(long id) throws NotFoundServiceEx {
+        GSUser orig = changeEventService != null ? userDAO.find(id) : null;
+
         // data on ancillary tables should be deleted by cascading
-        return userDAO.removeById(id);
+        boolean ret = userDAO.removeById(id);
+        invalidateCache();
+        if(ret) {
+            publishEvent(id, orig != null ? orig.getName() : null);
+        }
+        return ret;
     }
 
     @Override
@@ -200,10 +218,39 @@ public class UserAdminServiceImpl implements UserAdminService {
         return swList;
     }
 
+    /**
+     * Evicts the cached users once the transaction commits, so that no
+     * reader can cache again the data being changed.
+     */
+    private void invalidateCache() {
+        if(userCache != null) {
+            AfterCommit.run(new Runnable() {
+                @Override
+                public void run() {
+                    userCache.invalidateUsers();
+                }
+            });
+        }
+    }
+
+    private void publishEvent(Long id, String name) {
+        if(changeEventService != null) {
+            changeEventService.publish(ChangeEvent.forUser(id, name));
+        }
+    }
+
     // ==========================================================================
 
     public void setGsUserDAO(GSUserDAO userDao) {
         this.userDAO = userDao;
     }
 
+    public void setUserCache(UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    public void setChangeEventService(ChangeEventServiceImpl changeEventService) {
+        this.changeEventService = changeEventService;
+    }
+
 }
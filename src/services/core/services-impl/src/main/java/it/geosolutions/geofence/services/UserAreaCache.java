@@ -0,0 +1,166 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import it.geosolutions.geofence.core.model.GSUser;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Caches the areas parsed from the users' metadata (see <TT>LayerDetails.areaMetadataField</TT>).
+ * <P>
+ * Entries are keyed by user, metadata field and a hash of the metadata value, so that
+ * a changed value is parsed again, while the old entry is evicted by size.
+ * <BR>The returned {@link GeometryCache.Area}s are keyed the same way, so that
+ * the operations involving them can be cached by the {@link GeometryCache}.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class UserAreaCache implements InitializingBean {
+
+    private final static Logger LOGGER = LogManager.getLogger(UserAreaCache.class);
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private long maxSize = 1000;
+
+    private Cache<String, Optional<GeometryCache.Area>> areas;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        areas = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    /**
+     * @return the area stored in the given metadata field of the user,
+     * or null if the field is not set or can not be parsed.
+     */
+    public GeometryCache.Area getArea(final GSUser user, String metadataField) {
+        final String value = (String) user.getMetadata().get(metadataField);
+        if(value == null) {
+            return null;
+        }
+
+        final String key = "U" + (user.getId() != null ? user.getId() : user.getName())
+                + "/" + metadataField
+                + "/" + Hashing.sha1().hashString(value, Charsets.UTF_8);
+
+        Optional<GeometryCache.Area> ret = areas.getIfPresent(key);
+        if(ret != null) {
+            metricRegistry.meter("UserAreaCache.hit").mark();
+            return ret.orNull();
+        }
+
+        metricRegistry.meter("UserAreaCache.miss").mark();
+        try {
+            return areas.get(key, new Callable<Optional<GeometryCache.Area>>() {
+                @Override
+                public Optional<GeometryCache.Area> call() throws Exception {
+                    MultiPolygon geom = parse(user, value);
+                    return geom == null ? Optional.<GeometryCache.Area>absent() : Optional.of(new GeometryCache.Area(key, geom));
+                }
+            }).orNull();
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException)e.getCause();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error parsing area for " + key, e.getCause());
+        }
+    }
+
+    /**
+     * Parses a <TT>[SRID=nnnn;]WKT</TT> string; SRID defaults to 4326.
+     *
+     * @return the parsed geometry, or null if it is not a (multi)polygon or it can not be parsed.
+     */
+    private MultiPolygon parse(GSUser user, String str) {
+        Timer.Context timer = metricRegistry.timer(getClass().getName() + "_parse()").time();
+        try {
+            String wkt, srid;
+            if (str.indexOf("SRID=") != -1) {
+                String[] allowedAreaArray = str.split(";");
+
+                srid = allowedAreaArray[0].split("=")[1];
+                wkt = allowedAreaArray[1];
+            } else {
+                srid = "4326";
+                wkt = str;
+            }
+
+            MultiPolygon the_geom = null;
+            WKTReader wktReader = new WKTReader();
+
+            try {
+                Geometry geometry = wktReader.read(wkt);
+
+                if (geometry instanceof MultiPolygon) {
+                    the_geom = (MultiPolygon) geometry;
+                } else if (geometry instanceof Polygon) {
+                    GeometryFactory factory = new GeometryFactory();
+                    the_geom = new MultiPolygon(
+                            new Polygon[] { (Polygon) geometry }, factory);
+                }
+
+                if (the_geom != null) {
+                    the_geom.setSRID(Integer.valueOf(srid).intValue());
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Extracted from " + user.getName() + " geometry: " + the_geom.toString());
+                    }
+                }
+            } catch (ParseException e) {
+                LOGGER.error(e);
+            }
+
+            return the_geom;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public void invalidateAll() {
+        areas.invalidateAll();
+    }
+
+    // ==========================================================================
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.googlecode.genericdao.search.Search;
+import it.geosolutions.geofence.core.dao.GSUserDAO;
+import it.geosolutions.geofence.core.dao.UserGroupDAO;
+import it.geosolutions.geofence.core.model.GSUser;
+import it.geosolutions.geofence.core.model.UserGroup;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Caches the users (with their groups) and the groups looked up while resolving a RuleFilter,
+ * so that an access decision on a warm cache does not hit the db.
+ * <P>
+ * Users and groups not found are cached as well.
+ * <BR>Entries are evicted when {@link UserAdminServiceImpl} or {@link UserGroupAdminServiceImpl}
+ * modify users or groups; they also expire after <TT>expireSeconds</TT>, since users may be
+ * provided by an external source (e.g. LDAP).
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class UserCache implements InitializingBean {
+
+    private final static Logger LOGGER = LogManager.getLogger(UserCache.class);
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private GSUserDAO userDAO;
+    private UserGroupDAO userGroupDAO;
+
+    private long maxSize = 1000;
+    private long expireSeconds = 60;
+
+    private Cache<Long, Optional<GSUser>> usersById;
+    private Cache<String, Optional<GSUser>> usersByName;
+    private Cache<Long, Optional<UserGroup>> groupsById;
+    private Cache<String, Optional<UserGroup>> groupsByName;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        usersById = buildCache();
+        usersByName = buildCache();
+        groupsById = buildCache();
+        groupsByName = buildCache();
+    }
+
+    private <K, V> Cache<K, V> buildCache() {
+        return CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @return the user with its groups, or null if not found.
+     */
+    public GSUser getFullUser(final long id) {
+        return get(usersById, id, "UserCache.user", new Callable<Optional<GSUser>>() {
+            @Override
+            public Optional<GSUser> call() throws Exception {
+                return Optional.fromNullable(userDAO.getFull(id));
+            }
+        });
+    }
+
+    /**
+     * @return the user with its groups, or null if not found.
+     */
+    public GSUser getFullUser(final String name) {
+        return get(usersByName, name, "UserCache.user", new Callable<Optional<GSUser>>() {
+            @Override
+            public Optional<GSUser> call() throws Exception {
+                return Optional.fromNullable(userDAO.getFull(name));
+            }
+        });
+    }
+
+    /**
+     * @return the group, or null if not found.
+     */
+    public UserGroup getGroup(final long id) {
+        return get(groupsById, id, "UserCache.group", new Callable<Optional<UserGroup>>() {
+            @Override
+            public Optional<UserGroup> call() throws Exception {
+                return Optional.fromNullable(userGroupDAO.find(id));
+            }
+        });
+    }
+
+    /**
+     * @return the group, or null if not found.
+     */
+    public UserGroup getGroup(final String name) {
+        return get(groupsByName, name, "UserCache.group", new Callable<Optional<UserGroup>>() {
+            @Override
+            public Optional<UserGroup> call() throws Exception {
+                Search search = new Search(UserGroup.class);
+                search.addFilterEqual("name", name);
+                List<UserGroup> groups = userGroupDAO.search(search);
+                if(groups.size() > 1)
+                    throw new IllegalStateException("Found more than one userGroup '"+name+"'");
+
+                return Optional.fromNullable(groups.isEmpty() ? null : groups.get(0));
+            }
+        });
+    }
+
+    /**
+     * To be called when any user has been inserted, modified or removed.
+     */
+    public void invalidateUsers() {
+        usersById.invalidateAll();
+        usersByName.invalidateAll();
+    }
+
+    /**
+     * To be called when any group has been inserted, modified or removed.
+     * <BR>Users are evicted as well, since they hold their groups.
+     */
+    public void invalidateGroups() {
+        groupsById.invalidateAll();
+        groupsByName.invalidateAll();
+        invalidateUsers();
+    }
+
+    private <K, V> V get(Cache<K, Optional<V>> cache, K key, String metricName, Callable<Optional<V>> loader) {
+        Optional<V> ret = cache.getIfPresent(key);
+        if(ret != null) {
+            hitMeter(metricName).mark();
+            return ret.orNull();
+        }
+
+        missMeter(metricName).mark();
+        try {
+            return cache.get(key, loader).orNull();
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException)e.getCause();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            LOGGER.error("Error loading " + key + ": " + cause.getMessage(), cause);
+            throw new IllegalStateException("Error loading " + key, cause);
+        }
+    }
+
+    private Meter hitMeter(String name) {
+        return metricRegistry.meter(name + ".hit");
+    }
+
+    private Meter missMeter(String name) {
+        return metricRegistry.meter(name + ".miss");
+    }
+
+    // ==========================================================================
+
+    public void setGsUserDAO(GSUserDAO userDAO) {
+        this.userDAO = userDAO;
+    }
+
+    public void setUserGroupDAO(UserGroupDAO userGroupDAO) {
+        this.userGroupDAO = userGroupDAO;
+    }
+
+    /**
+     * Max number of entries for each of the users by id/name and groups by id/name caches.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setExpireSeconds(long expireSeconds) {
+        this.expireSeconds = expireSeconds;
+    }
+}
@@ -30,9 +30,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 
+import it.geosolutions.geofence.services.dto.ChangeEvent;
 import it.geosolutions.geofence.services.dto.ShortGroup;
 import it.geosolutions.geofence.services.exception.BadRequestServiceEx;
 import it.geosolutions.geofence.services.exception.NotFoundServiceEx;
+import it.geosolutions.geofence.services.util.AfterCommit;
 import java.util.ArrayList;
 
 /**
@@ -43,6 +45,8 @@ public class UserGroupAdminServiceImpl implements UserGroupAdminService {
 
     private final static Logger LOGGER = LogManager.getLogger(UserGroupAdminServiceImpl.class);
     private UserGroupDAO userGroupDAO;
+    private UserCache userCache;
+    private ChangeEventServiceImpl changeEventService;
 
     // ==========================================================================
     @Override
@@ -54,6 +58,8 @@ public class UserGroupAdminServiceImpl implements UserGroupAdminService {
             p.setEnabled(group.isEnabled());
         
         userGroupDAO.persist(p);
+        invalidateCache();
+        publishEvent(p.getId(), p.getName());
         return p.getId();
     }
 
@@ -75,6 +81,8 @@ public class UserGroupAdminServiceImpl implements UserGroupAdminService {
         }
 
         userGroupDAO.merge(orig);
+        invalidateCache();
+        publishEvent(orig.getId(), orig.getName());
         return orig.getId();
     }
 
@@ -113,7 +121,10 @@ public class UserGroupAdminServiceImpl implements UserGroupAdminService {
         }
 
         // data on ancillary tables should be deleted by cascading
-        return userGroupDAO.remove(group);
+        boolean ret = userGroupDAO.remove(group);
+        invalidateCache();
+        publishEvent(group.getId(), group.getName());
+        return ret;
     }
 
     @Override
@@ -155,6 +166,27 @@ public class UserGroupAdminServiceImpl implements UserGroupAdminService {
 //    public void setCustomProps(Long id, Map<String, String> props) {
 //        userGroupDAO.setCustomProps(id, props);
 //    }
+    /**
+     * Evicts the cached groups once the transaction commits, so that no
+     * reader can cache again the data being changed.
+     */
+    private void invalidateCache() {
+        if ( userCache != null ) {
+            AfterCommit.run(new Runnable() {
+                @Override
+                public void run() {
+                    userCache.invalidateGroups();
+                }
+            });
+        }
+    }
+
+    private void publishEvent(Long id, String name) {
+        if ( changeEventService != null ) {
+            changeEventService.publish(ChangeEvent.forGroup(id, name));
+        }
+    }
+
     // ==========================================================================
     private List<ShortGroup> convertToShortList(List<UserGroup> list) {
         List<ShortGroup> swList = new ArrayList<ShortGroup>(list.size());
@@ -169,4 +201,12 @@ public class UserGroupAdminServiceImpl implements UserGroupAdminService {
     public void setUserGroupDAO(UserGroupDAO userGroupDAO) {
         this.userGroupDAO = userGroupDAO;
     }
+
+    public void setUserCache(UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    public void setChangeEventService(ChangeEventServiceImpl changeEventService) {
+        this.changeEventService = changeEventService;
+    }
 }
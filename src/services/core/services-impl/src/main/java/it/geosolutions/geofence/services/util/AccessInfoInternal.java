@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.Set;
 
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
 
 import it.geosolutions.geofence.core.model.LayerAttribute;
 import it.geosolutions.geofence.core.model.enums.GrantType;
@@ -59,6 +60,11 @@ public class AccessInfoInternal implements Serializable {
 
 //    private Geometry area;
     private Geometry area;
+    /**
+     * Identifies how the area has been computed, used to cache the geometry operations.
+     * May be null if the area can not be cached.
+     */
+    private String areaKey;
 
     private String defaultStyle;
 
@@ -92,6 +98,14 @@ public class AccessInfoInternal implements Serializable {
         this.area = area;
     }
 
+    public String getAreaKey() {
+        return areaKey;
+    }
+
+    public void setAreaKey(String areaKey) {
+        this.areaKey = areaKey;
+    }
+
     public Set<LayerAttribute> getAttributes() {
         return attributes;
     }
@@ -143,6 +157,13 @@ public class AccessInfoInternal implements Serializable {
     }
 
     public AccessInfo toAccessInfo() {
+        return toAccessInfo(area == null ? null : new WKBWriter().write(area));
+    }
+
+    /**
+     * @param areaWkb the WKB representation of the area, when already available.
+     */
+    public AccessInfo toAccessInfo(byte[] areaWkb) {
         AccessInfo ret = new AccessInfo();
 
         ret.setGrant(grant);
@@ -152,7 +173,7 @@ public class AccessInfoInternal implements Serializable {
         ret.setCqlFilterRead(cqlFilterRead);
         ret.setCqlFilterWrite(cqlFilterWrite);
         if(area != null)
-            ret.setAreaWkt(area.toText());
+            ret.setAreaWkb(areaWkb, area.getSRID());
 
         return ret;
     }
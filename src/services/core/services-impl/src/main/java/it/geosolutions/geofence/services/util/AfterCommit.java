@@ -0,0 +1,64 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.util;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Runs actions once the current transaction has been committed.
+ * <P>
+ * Caches and change events must not expose changes that may still be rolled back:
+ * when a transaction is active, the action is deferred until its commit, and dropped on rollback;
+ * otherwise the change has already been committed by the DAO, and the action is run at once.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public final class AfterCommit {
+
+    /** Set while the deferred actions are running, so that nested actions are not deferred again. */
+    private static final ThreadLocal<Boolean> RUNNING = new ThreadLocal<Boolean>();
+
+    private AfterCommit() {
+    }
+
+    /**
+     * Runs the action now, or after the commit of the current transaction.
+     * Deferred actions are run in the order they have been requested.
+     */
+    public static void run(final Runnable action) {
+        if( ! TransactionSynchronizationManager.isSynchronizationActive() || RUNNING.get() != null) {
+            action.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                RUNNING.set(Boolean.TRUE);
+                try {
+                    action.run();
+                } finally {
+                    RUNNING.remove();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import it.geosolutions.geofence.core.model.GSUser;
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.ChangeEvent;
+import it.geosolutions.geofence.services.dto.ChangeEventBatch;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.SpecialFilterType;
+import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class ChangeEventServiceImplTest extends ServiceTestBase {
+
+    private RuleFilter filter(String user, String layer) {
+        RuleFilter filter = new RuleFilter(SpecialFilterType.ANY);
+        filter.setUser(user);
+        filter.setLayer(layer);
+        return filter;
+    }
+
+    @Test
+    public void testEvents() {
+        ChangeEventServiceImpl service = (ChangeEventServiceImpl)ctx.getBean("changeEventService");
+        ((RuleCache)ctx.getBean("ruleCache")).getSnapshot();
+
+        ChangeEventBatch start = service.getEvents(0, -1, 0);
+        assertFalse(start.isOverflow());
+        assertTrue(start.getEvents().isEmpty());
+        long epoch = start.getEpoch();
+
+        GSUser user = createUser("ce_u1");
+        ruleAdminService.insert(new Rule(10, user, null, null, null, null, "ws", "l1", GrantType.ALLOW));
+
+        ChangeEventBatch batch = service.getEvents(epoch, start.getLastSequence(), 0);
+        assertFalse(batch.isOverflow());
+        assertEquals(2, batch.getEvents().size());
+        assertEquals(start.getLastSequence() + 2, batch.getLastSequence());
+
+        ChangeEvent userEvent = batch.getEvents().get(0);
+        assertEquals(ChangeEvent.Type.USER, userEvent.getType());
+        assertEquals("ce_u1", userEvent.getName());
+        assertTrue(userEvent.affects(filter("ce_u1", "any")));
+        assertFalse(userEvent.affects(filter("ce_u2", "any")));
+
+        ChangeEvent ruleEvent = batch.getEvents().get(1);
+        assertEquals(ChangeEvent.Type.RULE, ruleEvent.getType());
+        assertEquals("ce_u1", ruleEvent.getUserName());
+        assertTrue(ruleEvent.getRuleSetVersion() > 0);
+        assertTrue(ruleEvent.affects(filter("ce_u1", "l1")));
+        assertFalse(ruleEvent.affects(filter("ce_u1", "l2")));
+        assertFalse(ruleEvent.affects(filter("ce_u2", "l1")));
+        assertTrue(ruleEvent.affects(new RuleFilter(SpecialFilterType.ANY)));
+
+        // nothing new
+        batch = service.getEvents(epoch, batch.getLastSequence(), 10);
+        assertTrue(batch.getEvents().isEmpty());
+        assertFalse(batch.isOverflow());
+
+        // unknown epoch
+        assertTrue(service.getEvents(epoch - 1, batch.getLastSequence(), 0).isOverflow());
+    }
+
+    @Test
+    public void testPublishedAfterCommit() {
+        ChangeEventServiceImpl service = (ChangeEventServiceImpl)ctx.getBean("changeEventService");
+        final RuleCache ruleCache = (RuleCache)ctx.getBean("ruleCache");
+        final long version = ruleCache.getVersion();
+        ChangeEventBatch start = service.getEvents(0, -1, 0);
+
+        TransactionTemplate template = new TransactionTemplate(
+                (PlatformTransactionManager)ctx.getBean("geofenceTransactionManager"));
+
+        // rolled back: neither the snapshot nor the subscribers see the rule
+        template.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                ruleAdminService.insert(new Rule(10, null, null, null, null, null, "ws", "rb", GrantType.ALLOW));
+                status.setRollbackOnly();
+            }
+        });
+        assertEquals(version, ruleCache.getVersion());
+        assertTrue(service.getEvents(start.getEpoch(), start.getLastSequence(), 0).getEvents().isEmpty());
+
+        // committed: published only once the transaction is over
+        template.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                ruleAdminService.insert(new Rule(20, null, null, null, null, null, "ws", "ok", GrantType.ALLOW));
+                assertEquals(version, ruleCache.getVersion());
+            }
+        });
+        assertTrue(ruleCache.getVersion() > version);
+        ChangeEventBatch batch = service.getEvents(start.getEpoch(), start.getLastSequence(), 0);
+        assertEquals(1, batch.getEvents().size());
+        assertTrue(batch.getEvents().get(0).affects(filter("any", "ok")));
+    }
+
+    @Test
+    public void testLongPoll() throws Exception {
+        final ChangeEventServiceImpl service = new ChangeEventServiceImpl();
+        service.setCapacity(2);
+        long epoch = service.getEpoch();
+
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                service.publish(ChangeEvent.forGroup(1l, "g1"));
+            }
+        };
+        publisher.start();
+
+        // woken up as soon as the event is published
+        long start = System.currentTimeMillis();
+        ChangeEventBatch batch = service.getEvents(epoch, 0, 10000);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(1, batch.getEvents().size());
+        assertEquals(1, batch.getLastSequence());
+        publisher.join();
+
+        // events no longer available
+        service.publish(ChangeEvent.forGroup(2l, "g2"));
+        service.publish(ChangeEvent.forGroup(3l, "g3"));
+        service.publish(ChangeEvent.forGroup(4l, "g4"));
+        assertTrue(service.getEvents(epoch, 1, 0).isOverflow());
+        assertEquals(2, service.getEvents(epoch, 2, 0).getEvents().size());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import it.geosolutions.geofence.core.model.GSUser;
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessDecision;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.SpecialFilterType;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class DecisionTraceServiceImplTest extends ServiceTestBase {
+
+    private RuleFilter filter(String user, String layer) {
+        RuleFilter filter = new RuleFilter(SpecialFilterType.ANY);
+        filter.setUser(user);
+        filter.setLayer(layer);
+        return filter;
+    }
+
+    private List<AccessDecision> waitForDecisions(DecisionTraceServiceImpl service, String user, int count) throws InterruptedException {
+        List<AccessDecision> decisions = service.getDecisions(user, null, null, 100);
+        for (int i = 0; i < 100 && decisions.size() < count; i++) {
+            Thread.sleep(20);
+            decisions = service.getDecisions(user, null, null, 100);
+        }
+        return decisions;
+    }
+
+    @Test
+    public void testTrace() throws Exception {
+        DecisionTraceServiceImpl service = (DecisionTraceServiceImpl)ctx.getBean("decisionTraceService");
+        int sampleRate = service.getSampleRate();
+        service.setSampleRate(1);
+        try {
+            GSUser user = createUser("dt_u1");
+            ruleAdminService.insert(new Rule(10, user, null, null, null, null, "ws", "dt_l1", GrantType.ALLOW));
+
+            ruleReaderService.getAccessInfo(filter("dt_u1", "dt_l1"));
+            ruleReaderService.getAccessInfo(filter("dt_u1", "dt_l2"));
+
+            List<AccessDecision> decisions = waitForDecisions(service, "dt_u1", 2);
+            assertEquals(2, decisions.size());
+            // most recent first
+            assertEquals("dt_l2", decisions.get(0).getLayer());
+            assertEquals(GrantType.DENY, decisions.get(0).getGrant());
+            assertTrue(decisions.get(0).isUnmatched());
+            assertEquals("dt_l1", decisions.get(1).getLayer());
+            assertEquals(GrantType.ALLOW, decisions.get(1).getGrant());
+
+            assertEquals(1, service.getDecisions("dt_u1", null, GrantType.ALLOW, 100).size());
+            assertEquals(1, service.getDecisions(null, "dt_l2", null, 100).size());
+            assertEquals(1, service.getDecisions("dt_u1", null, null, 1).size());
+
+            // sampling
+            service.setSampleRate(10);
+            long before = service.getDecisionCount();
+            for (int i = 0; i < 20; i++) {
+                ruleReaderService.getAccessInfo(filter("dt_u2", "dt_l1"));
+            }
+            assertEquals(before + 20, service.getDecisionCount());
+            assertEquals(2, waitForDecisions(service, "dt_u2", 2).size());
+        } finally {
+            service.setSampleRate(sampleRate);
+        }
+    }
+
+    @Test
+    public void testFilterCopied() throws Exception {
+        DecisionTraceServiceImpl service = (DecisionTraceServiceImpl)ctx.getBean("decisionTraceService");
+        int sampleRate = service.getSampleRate();
+        service.setSampleRate(1);
+        try {
+            // the callers may reuse the filter as soon as the decision is traced
+            RuleFilter filter = filter("dt_u3", "dt_l1");
+            service.trace(filter, new AccessInfo(GrantType.ALLOW), 1000);
+            filter.setLayer("dt_l2");
+
+            List<AccessDecision> decisions = waitForDecisions(service, "dt_u3", 1);
+            assertEquals(1, decisions.size());
+            assertEquals("dt_l1", decisions.get(0).getLayer());
+        } finally {
+            service.setSampleRate(sampleRate);
+        }
+    }
+}
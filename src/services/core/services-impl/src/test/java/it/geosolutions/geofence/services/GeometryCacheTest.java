@@ -0,0 +1,113 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.io.WKBWriter;
+import it.geosolutions.geofence.services.GeometryCache.Area;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class GeometryCacheTest extends ServiceTestBase {
+
+    private final MultiPolygon big   = parseMultiPolygon("MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)))");
+    private final MultiPolygon small = parseMultiPolygon("MULTIPOLYGON(((1 1, 2 1, 2 2, 1 2, 1 1)))");
+    private final MultiPolygon half  = parseMultiPolygon("MULTIPOLYGON(((5 0, 15 0, 15 10, 5 10, 5 0)))");
+    private final MultiPolygon far   = parseMultiPolygon("MULTIPOLYGON(((20 20, 30 20, 30 30, 20 30, 20 20)))");
+
+    private GeometryCache getCache() {
+        return (GeometryCache)ctx.getBean("geometryCache");
+    }
+
+    @Test
+    public void testIntersection() {
+        GeometryCache cache = getCache();
+
+        Area aBig   = GeometryCache.limitsArea(1, 100, big);
+        Area aSmall = GeometryCache.detailsArea(2, 100, small);
+        Area aHalf  = GeometryCache.detailsArea(3, 100, half);
+        Area aFar   = GeometryCache.detailsArea(4, 100, far);
+
+        assertSame(aBig, cache.intersection(aBig, null));
+        assertSame(aBig, cache.intersection(null, aBig));
+        assertNull(GeometryCache.limitsArea(5, 100, null));
+
+        // covered geometry is returned as is
+        assertSame(small, cache.intersection(aBig, aSmall).getGeometry());
+        assertSame(small, cache.intersection(aSmall, aBig).getGeometry());
+
+        // disjoint envelopes
+        assertTrue(cache.intersection(aBig, aFar).getGeometry().isEmpty());
+
+        // real overlay
+        Area result = cache.intersection(aBig, aHalf);
+        Geometry expected = big.intersection(half);
+        assertTrue(expected.equals(result.getGeometry()));
+        assertNotNull(result.getKey());
+
+        // cached result
+        assertSame(result.getGeometry(), cache.intersection(aHalf, aBig).getGeometry());
+
+        // a newer rule set version does not use the cached result
+        Area aBig2 = GeometryCache.limitsArea(1, 101, big);
+        Area result2 = cache.intersection(aBig2, aHalf);
+        assertNotSame(result.getGeometry(), result2.getGeometry());
+        assertTrue(expected.equals(result2.getGeometry()));
+    }
+
+    @Test
+    public void testUnion() {
+        GeometryCache cache = getCache();
+
+        Area aBig   = GeometryCache.limitsArea(1, 200, big);
+        Area aSmall = GeometryCache.detailsArea(2, 200, small);
+        Area aHalf  = GeometryCache.detailsArea(3, 200, half);
+
+        assertSame(big, cache.union(aSmall, aBig).getGeometry());
+
+        Area result = cache.union(aBig, aHalf);
+        assertTrue(big.union(half).equals(result.getGeometry()));
+        assertSame(result.getGeometry(), cache.union(aHalf, aBig).getGeometry());
+    }
+
+    @Test
+    public void testNotCacheable() {
+        GeometryCache cache = getCache();
+
+        Area aBig  = GeometryCache.limitsArea(1, 300, big);
+        Area aHalf = new Area(null, half);
+
+        Area result = cache.intersection(aBig, aHalf);
+        assertNull(result.getKey());
+        assertTrue(big.intersection(half).equals(result.getGeometry()));
+        assertNotSame(result.getGeometry(), cache.intersection(aBig, aHalf).getGeometry());
+
+        assertTrue(Arrays.equals(new WKBWriter().write(result.getGeometry()), cache.toWkb(result)));
+
+        // cached encoding
+        Area cacheable = cache.intersection(aBig, GeometryCache.detailsArea(3, 300, half));
+        assertSame(cache.toWkb(cacheable), cache.toWkb(cacheable));
+    }
+}
@@ -20,6 +20,7 @@
 
 package it.geosolutions.geofence.services;
 
+import it.geosolutions.geofence.core.dao.RuleDAO;
 import it.geosolutions.geofence.core.model.LayerAttribute;
 import it.geosolutions.geofence.core.model.LayerDetails;
 import it.geosolutions.geofence.core.model.UserGroup;
@@ -27,6 +28,7 @@ import it.geosolutions.geofence.core.model.Rule;
 import it.geosolutions.geofence.core.model.RuleLimits;
 import it.geosolutions.geofence.core.model.enums.AccessType;
 import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.core.model.enums.InsertPosition;
 import it.geosolutions.geofence.services.dto.RuleFilter;
 import it.geosolutions.geofence.services.dto.RuleFilter.SpecialFilterType;
 import it.geosolutions.geofence.services.dto.ShortRule;
@@ -43,6 +45,10 @@ import java.util.Set;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  *
@@ -629,6 +635,84 @@ public class RuleAdminServiceImplTest extends ServiceTestBase {
         assertEquals(35, loaded.get(0).getPriority());
     }
 
+    @Test
+    public void testInsertPositionUpdatesCache() {
+        assertEquals(0, ruleAdminService.getCountAll());
+        RuleCache ruleCache = (RuleCache)ctx.getBean("ruleCache");
+
+        Rule r1 = new Rule(10, null, null, null, "s1", null, null, null, GrantType.ALLOW);
+        Rule r2 = new Rule(11, null, null, null, "s2", null, null, null, GrantType.ALLOW);
+        Rule r3 = new Rule(20, null, null, null, "s3", null, null, null, GrantType.ALLOW);
+        ruleAdminService.insert(r1);
+        ruleAdminService.insert(r2);
+        ruleAdminService.insert(r3);
+        Rule cached = ruleCache.getSnapshot().getRules().get(r1.getId());
+
+        // room between the neighbours: only the new rule is loaded
+        Rule r4 = new Rule(2, null, null, null, "s4", null, null, null, GrantType.ALLOW);
+        ruleAdminService.insert(r4, InsertPosition.FROM_START);
+        assertEquals(15, ruleCache.getSnapshot().getRules().get(r4.getId()).getPriority());
+        assertSame(cached, ruleCache.getSnapshot().getRules().get(r1.getId()));
+
+        // no room: the shifted rules are reloaded
+        Rule r5 = new Rule(1, null, null, null, "s5", null, null, null, GrantType.ALLOW);
+        ruleAdminService.insert(r5, InsertPosition.FROM_START);
+        assertEquals(11, ruleCache.getSnapshot().getRules().get(r5.getId()).getPriority());
+        assertEquals(12, ruleCache.getSnapshot().getRules().get(r2.getId()).getPriority());
+        assertEquals(10, ruleCache.getSnapshot().getRules().get(r1.getId()).getPriority());
+    }
+
+    @Test
+    public void testVersionOnlyChangesWithRules() {
+        assertEquals(0, ruleAdminService.getCountAll());
+        RuleCache ruleCache = (RuleCache)ctx.getBean("ruleCache");
+
+        Rule rule = new Rule(10, null, null, null, "s1", null, null, null, GrantType.ALLOW);
+        ruleAdminService.insert(rule);
+        long version = ruleCache.getVersion();
+
+        // periodic reloads of the same rules keep the version
+        assertEquals(version, ruleCache.reload().getVersion());
+        assertEquals(version, ruleCache.reload().getVersion());
+
+        // changes made behind the services are found by the reload
+        RuleDAO ruleDAO = (RuleDAO)ctx.getBean("ruleDAO");
+        Rule stored = ruleDAO.find(rule.getId());
+        stored.setLayer("l1");
+        ruleDAO.merge(stored);
+        long reloaded = ruleCache.reload().getVersion();
+        assertTrue(reloaded > version);
+        assertEquals("l1", ruleCache.getSnapshot().getRules().get(rule.getId()).getLayer());
+        assertEquals(reloaded, ruleCache.reload().getVersion());
+    }
+
+    @Test
+    public void testInsertAllRolledBack() {
+        assertEquals(0, ruleAdminService.getCountAll());
+        final RuleCache ruleCache = (RuleCache)ctx.getBean("ruleCache");
+        final long version = ruleCache.getVersion();
+
+        TransactionTemplate template = new TransactionTemplate(
+                (PlatformTransactionManager)ctx.getBean("geofenceTransactionManager"));
+        template.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                List<Long> ids = ruleAdminService.insertAll(Arrays.asList(
+                        new Rule(10, null, null, null, "s1", null, null, null, GrantType.ALLOW),
+                        new Rule(20, null, null, null, "s1", null, null, null, GrantType.ALLOW)),
+                        InsertPosition.FIXED);
+                assertNotNull(ids.get(0));
+                assertNull(ids.get(1));
+                // the caller rejects the duplicate
+                status.setRollbackOnly();
+            }
+        });
+
+        assertEquals(0, ruleAdminService.getCountAll());
+        assertEquals(version, ruleCache.getVersion());
+        assertTrue(ruleCache.findAll().isEmpty());
+    }
+
     @Test
     public void testSwap() {
         assertEquals(0, ruleAdminService.getCountAll());
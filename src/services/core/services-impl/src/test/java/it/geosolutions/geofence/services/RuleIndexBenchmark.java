@@ -0,0 +1,145 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import static it.geosolutions.geofence.services.RuleIndexTest.createRandomFilters;
+import static it.geosolutions.geofence.services.RuleIndexTest.createRandomGroupFilters;
+import static it.geosolutions.geofence.services.RuleIndexTest.createRandomRules;
+import static it.geosolutions.geofence.services.RuleIndexTest.linearMatch;
+
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Timings of the {@link RuleIndex} lookups and group matching.
+ * <P/>
+ * Wall clock measures depend on the machine and on its load, so they are only logged,
+ * and the benchmarks are not run by default; the results are checked in {@link RuleIndexTest}.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+@Ignore("Benchmark, to be run by hand")
+public class RuleIndexBenchmark {
+
+    private final static Logger LOGGER = LogManager.getLogger(RuleIndexBenchmark.class);
+
+    /**
+     * Compares the lookup time on rule sets of growing size.
+     * 50x the rules should cost much less than 50x the time.
+     */
+    @Test
+    public void testLookup() {
+        int[] sizes = {1000, 10000, 50000};
+        int lookups = 2000;
+        double[] avgNanos = new double[sizes.length];
+
+        for (int s = 0; s < sizes.length; s++) {
+            int size = sizes[s];
+            List<Rule> rules = createRandomRules(size, 20, new Random(size));
+            RuleIndex index = RuleIndex.build(rules);
+            List<RuleFilter> filters = createRandomFilters(size, lookups, new Random(42));
+
+            // warm up
+            for (RuleFilter filter : filters.subList(0, 100)) {
+                index.match(filter, filter.getUser(), filter.getUserGroup());
+            }
+
+            long start = System.nanoTime();
+            int matched = 0;
+            for (RuleFilter filter : filters) {
+                matched += index.match(filter, filter.getUser(), filter.getUserGroup()).size();
+            }
+            long indexNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (RuleFilter filter : filters.subList(0, 100)) {
+                linearMatch(rules, filter);
+            }
+            long linearNanos = System.nanoTime() - start;
+
+            avgNanos[s] = (double)indexNanos / lookups;
+            LOGGER.info("Rules:" + size
+                    + " index lookup avg:" + (long)avgNanos[s] + "ns"
+                    + " linear scan avg:" + linearNanos / 100 + "ns"
+                    + " (matched " + matched + ")");
+        }
+
+        double growth = avgNanos[sizes.length-1] / avgNanos[0];
+        LOGGER.info("Lookup cost growth for " + (sizes[sizes.length-1]/sizes[0]) + "x rules: " + growth);
+    }
+
+    /**
+     * Compares matching the groups of a user one by one and in a single pass,
+     * for growing numbers of groups.
+     */
+    @Test
+    public void testMatchGroups() {
+        int lookups = 2000;
+        List<Rule> rules = createRandomRules(10000, 50, new Random(10000));
+        RuleIndex index = RuleIndex.build(rules);
+
+        for (int groupCount : new int[]{1, 10, 40}) {
+            List<RuleFilter> filters = new ArrayList<RuleFilter>();
+            List<List<IdNameFilter>> groupFilters = new ArrayList<List<IdNameFilter>>();
+            createRandomGroupFilters(groupCount, lookups, new Random(groupCount), filters, groupFilters);
+
+            // warm up
+            for (int i = 0; i < 100; i++) {
+                RuleFilter filter = filters.get(i);
+                index.match(filter, filter.getUser(), groupFilters.get(i), true);
+                index.match(filter, filter.getUser(), groupFilters.get(i).get(0));
+            }
+
+            long start = System.nanoTime();
+            int matched = 0;
+            for (int i = 0; i < lookups; i++) {
+                RuleFilter filter = filters.get(i);
+                for (IdNameFilter groupFilter : groupFilters.get(i)) {
+                    matched += index.match(filter, filter.getUser(), groupFilter).size();
+                }
+            }
+            long loopNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int matchedSingle = 0;
+            for (int i = 0; i < lookups; i++) {
+                RuleFilter filter = filters.get(i);
+                for (List<Rule> list : index.match(filter, filter.getUser(), groupFilters.get(i), true)) {
+                    matchedSingle += list.size();
+                }
+            }
+            long singleNanos = System.nanoTime() - start;
+
+            LOGGER.info("Groups:" + groupCount
+                    + " per group avg:" + loopNanos / lookups + "ns (matched " + matched + ")"
+                    + " single pass avg:" + singleNanos / lookups + "ns (matched " + matchedSingle + ")");
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import it.geosolutions.geofence.core.model.GSInstance;
+import it.geosolutions.geofence.core.model.GSUser;
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.core.model.UserGroup;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.RuleFilter.IdNameFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RuleIndexTest extends TestCase {
+
+    private final static Logger LOGGER = LogManager.getLogger(RuleIndexTest.class);
+
+    private GSUser user1 = createUser(1, "u1");
+    private GSUser user2 = createUser(2, "u2");
+    private UserGroup group1 = createGroup(11, "g1");
+    private GSInstance instance1 = createInstance(21, "gs1");
+
+    @Test
+    public void testMatch() {
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(createRule(1, 10, user1, null, null, "WMS", null, "ws1", "l1", GrantType.ALLOW));
+        rules.add(createRule(2, 20, null, group1, null, "WMS", "GETMAP", "ws1", null, GrantType.ALLOW));
+        rules.add(createRule(3, 30, user2, null, instance1, null, null, "ws2", null, GrantType.DENY));
+        rules.add(createRule(4, 40, null, null, null, null, null, null, null, GrantType.DENY));
+
+        RuleIndex index = RuleIndex.build(rules);
+        assertEquals(4, index.size());
+
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        assertEquals(4, index.match(filter, filter.getUser(), filter.getUserGroup()).size());
+
+        filter = new RuleFilter(RuleFilter.SpecialFilterType.DEFAULT);
+        assertIds(index.match(filter, filter.getUser(), filter.getUserGroup()), 4);
+
+        filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setWorkspace("ws1");
+        filter.setLayer("l1");
+        assertIds(index.match(filter, new IdNameFilter(1), filter.getUserGroup()), 1, 2, 4);
+        assertIds(index.match(filter, new IdNameFilter(2), new IdNameFilter(11)), 2, 4);
+        assertIds(index.match(filter, new IdNameFilter("u1", true), new IdNameFilter(12)), 1, 4);
+
+        filter.setService("wms");
+        filter.setRequest("GetFeatureInfo");
+        assertIds(index.match(filter, new IdNameFilter(1), new IdNameFilter(11)), 1, 4);
+
+        filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setWorkspace("ws2");
+        filter.setInstance("gs1");
+        assertIds(index.match(filter, new IdNameFilter(2), filter.getUserGroup()), 3, 4);
+        filter.setInstance("gs2");
+        assertIds(index.match(filter, new IdNameFilter(2), filter.getUserGroup()), 4);
+    }
+
+    @Test
+    public void testAddRemove() {
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(createRule(1, 10, null, null, null, "WMS", null, "ws1", "l1", GrantType.ALLOW));
+        rules.add(createRule(2, 20, null, null, null, null, null, null, null, GrantType.DENY));
+
+        RuleIndex index = RuleIndex.build(rules);
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setLayer("l1");
+
+        RuleIndex index2 = index.add(createRule(3, 5, null, null, null, null, null, null, "l1", GrantType.DENY));
+        assertEquals(3, index2.size());
+        assertIds(index2.match(filter, filter.getUser(), filter.getUserGroup()), 3, 1, 2);
+        // the original index is untouched
+        assertIds(index.match(filter, filter.getUser(), filter.getUserGroup()), 1, 2);
+
+        RuleIndex index3 = index2.remove(rules.get(0));
+        assertEquals(2, index3.size());
+        assertIds(index3.match(filter, filter.getUser(), filter.getUserGroup()), 3, 2);
+
+        // removing an unknown rule returns the same index
+        assertSame(index3, index3.remove(createRule(99, 1, null, null, null, null, null, null, null, GrantType.DENY)));
+    }
+
+    @Test
+    public void testHasCandidates() {
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(createRule(1, 10, user1, null, null, "WMS", null, "ws1", "l1", GrantType.ALLOW));
+        rules.add(createRule(2, 20, null, group1, instance1, null, null, "ws2", null, GrantType.ALLOW));
+        RuleIndex index = RuleIndex.build(rules);
+
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        assertTrue(index.hasCandidates(filter));
+
+        filter.setWorkspace("ws1");
+        filter.setLayer("l1");
+        assertTrue(index.hasCandidates(filter));
+        filter.setService("WFS");
+        assertFalse(index.hasCandidates(filter));
+
+        filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setWorkspace("ws2");
+        filter.setLayer("any");
+        assertTrue(index.hasCandidates(filter));
+        filter.setInstance("gs2");
+        assertFalse(index.hasCandidates(filter));
+
+        filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setWorkspace("ws3");
+        assertFalse(index.hasCandidates(filter));
+
+        // a catch-all rule covers everything
+        index = index.add(createRule(3, 30, null, null, null, null, null, null, null, GrantType.DENY));
+        assertTrue(index.hasCandidates(filter));
+
+        assertFalse(RuleIndex.build(new ArrayList<Rule>()).hasCandidates(new RuleFilter(RuleFilter.SpecialFilterType.ANY)));
+    }
+
+    @Test
+    public void testGetLayerNames() {
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(createRule(1, 10, user1, null, null, "WMS", null, "ws1", "l1", GrantType.ALLOW));
+        rules.add(createRule(2, 20, null, null, null, "WMS", null, "ws1", "l2", GrantType.DENY));
+        rules.add(createRule(3, 30, null, null, null, null, null, "ws2", null, GrantType.ALLOW));
+        rules.add(createRule(4, 40, null, null, null, null, null, null, "l3", GrantType.DENY));
+        rules.add(createRule(5, 50, null, null, null, "WFS", null, "ws3", "l4", GrantType.ALLOW));
+        RuleIndex index = RuleIndex.build(rules);
+
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser("u1");
+        filter.setService("WMS");
+
+        Map<String, Set<String>> names = index.getLayerNames(filter);
+        assertEquals(3, names.size());
+        assertEquals(new HashSet<String>(Arrays.asList("l1", "l2")), names.get("ws1"));
+        assertEquals(new HashSet<String>(), names.get("ws2"));
+        assertEquals(new HashSet<String>(Arrays.asList("l3")), names.get(null));
+
+        // rules on other users are skipped
+        filter.setUser("u2");
+        names = index.getLayerNames(filter);
+        assertEquals(new HashSet<String>(Arrays.asList("l2")), names.get("ws1"));
+
+        // a single workspace
+        filter.setWorkspace("ws2");
+        names = index.getLayerNames(filter);
+        assertEquals(2, names.size());
+        assertTrue(names.containsKey("ws2"));
+        assertTrue(names.containsKey(null));
+    }
+
+    @Test
+    public void testGroupAlias() {
+        UserGroup ldapGroup = createGroup(50, "ldap");
+        ldapGroup.setExtId("-7");
+
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(createRule(1, 10, null, ldapGroup, null, null, null, null, null, GrantType.ALLOW));
+        RuleIndex index = RuleIndex.build(rules);
+
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        assertIds(index.match(filter, filter.getUser(), new IdNameFilter(7)), 1);
+        assertIds(index.match(filter, filter.getUser(), new IdNameFilter(50)), 1);
+        assertIds(index.match(filter, filter.getUser(), new IdNameFilter(8)));
+    }
+
+    @Test
+    public void testMatchGroups() {
+        UserGroup group2 = createGroup(12, "g2");
+        UserGroup ldapGroup = createGroup(50, "ldap");
+        ldapGroup.setExtId("-13");
+
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(createRule(1, 10, null, group1, null, null, null, "ws1", null, GrantType.LIMIT));
+        rules.add(createRule(2, 20, null, null, null, null, null, "ws1", null, GrantType.ALLOW));
+        rules.add(createRule(3, 30, null, group2, null, null, null, "ws1", null, GrantType.DENY));
+        rules.add(createRule(4, 40, user1, group1, null, null, null, "ws1", null, GrantType.ALLOW));
+        rules.add(createRule(5, 5, null, group2, null, null, null, "ws2", null, GrantType.ALLOW));
+        rules.add(createRule(6, 1, null, ldapGroup, null, null, null, null, null, GrantType.LIMIT));
+        RuleIndex index = RuleIndex.build(rules);
+
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setWorkspace("ws1");
+        IdNameFilter userFilter = new IdNameFilter(1);
+        List<IdNameFilter> groupFilters = new ArrayList<IdNameFilter>();
+        groupFilters.add(new IdNameFilter(11));
+        groupFilters.add(new IdNameFilter("g2", true));
+        groupFilters.add(new IdNameFilter(13));
+        groupFilters.add(new IdNameFilter(99));
+
+        List<List<Rule>> found = index.match(filter, userFilter, groupFilters, false);
+        assertEquals(4, found.size());
+        assertIds(found.get(0), 1, 2, 4);
+        assertIds(found.get(1), 2, 3);
+        assertIds(found.get(2), 6, 2);
+        assertIds(found.get(3), 2);
+        // same as matching each group
+        for (int i = 0; i < groupFilters.size(); i++) {
+            assertEquals(index.match(filter, userFilter, groupFilters.get(i)), found.get(i));
+        }
+
+        // each group stops at its first ALLOW or DENY
+        found = index.match(filter, userFilter, groupFilters, true);
+        assertIds(found.get(0), 1, 2);
+        assertIds(found.get(1), 2);
+        assertIds(found.get(2), 6, 2);
+        assertIds(found.get(3), 2);
+
+        // user 2 does not see rule 4
+        found = index.match(filter, new IdNameFilter(2), groupFilters.subList(0, 1), false);
+        assertIds(found.get(0), 1, 2);
+    }
+
+    /**
+     * Checks that matching the groups of a user in a single pass finds the same rules
+     * as matching them one by one, for growing numbers of groups.
+     * The timings are measured in {@link RuleIndexBenchmark}.
+     */
+    @Test
+    public void testMatchGroupsRandom() {
+        List<Rule> rules = createRandomRules(10000, 50, new Random(10000));
+        RuleIndex index = RuleIndex.build(rules);
+
+        for (int groupCount : new int[]{1, 10, 40}) {
+            Random random = new Random(groupCount);
+            List<RuleFilter> filters = new ArrayList<RuleFilter>();
+            List<List<IdNameFilter>> groupFilters = new ArrayList<List<IdNameFilter>>();
+            createRandomGroupFilters(groupCount, 100, random, filters, groupFilters);
+
+            for (int i = 0; i < filters.size(); i++) {
+                RuleFilter filter = filters.get(i);
+                List<List<Rule>> all = index.match(filter, filter.getUser(), groupFilters.get(i), false);
+                List<List<Rule>> firstGrant = index.match(filter, filter.getUser(), groupFilters.get(i), true);
+                for (int g = 0; g < groupCount; g++) {
+                    List<Rule> expected = index.match(filter, filter.getUser(), groupFilters.get(i).get(g));
+                    assertEquals(expected, all.get(g));
+                    List<Rule> truncated = firstGrant.get(g);
+                    assertEquals(expected.subList(0, truncated.size()), truncated);
+                    if(truncated.size() < expected.size()) {
+                        assertTrue(truncated.get(truncated.size() - 1).getAccess() != GrantType.LIMIT);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the lookups on random rule sets of growing size against a linear scan.
+     * The timings are measured in {@link RuleIndexBenchmark}.
+     */
+    @Test
+    public void testLookupRandom() {
+        for (int size : new int[]{1000, 10000}) {
+            List<Rule> rules = createRandomRules(size, 20, new Random(size));
+            RuleIndex index = RuleIndex.build(rules);
+            for (RuleFilter filter : createRandomFilters(size, 200, new Random(42))) {
+                List<Rule> expected = linearMatch(rules, filter);
+                List<Rule> found = index.match(filter, filter.getUser(), filter.getUserGroup());
+                assertEquals(expected.size(), found.size());
+                for (int i = 0; i < found.size(); i++) {
+                    assertEquals(expected.get(i).getPriority(), found.get(i).getPriority());
+                }
+            }
+        }
+    }
+
+    // =========================================================================
+
+    static List<Rule> createRandomRules(int size, int groups, Random random) {
+        List<Rule> rules = new ArrayList<Rule>(size);
+        for (int i = 0; i < size; i++) {
+            GSUser user = random.nextInt(4) == 0 ? createUser(random.nextInt(100), null) : null;
+            UserGroup group = random.nextInt(3) == 0 ? createGroup(1000 + random.nextInt(groups), null) : null;
+            String ws = random.nextInt(10) == 0 ? null : "ws" + random.nextInt(50);
+            String layer = ws == null ? null : "l" + random.nextInt(size / 10);
+            String request = random.nextBoolean() ? null : "GETMAP";
+            GrantType grant = random.nextInt(5) == 0 ? GrantType.DENY : GrantType.ALLOW;
+            rules.add(createRule(i, i, user, group, null, "WMS", request, ws, layer, grant));
+        }
+        return rules;
+    }
+
+    static List<RuleFilter> createRandomFilters(int size, int count, Random random) {
+        List<RuleFilter> filters = new ArrayList<RuleFilter>(count);
+        for (int i = 0; i < count; i++) {
+            RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+            filter.setUser((long)random.nextInt(100));
+            filter.setUserGroup((long)(1000 + random.nextInt(20)));
+            filter.setInstance("gs0");
+            filter.setService("WMS");
+            filter.setRequest("GETMAP");
+            filter.setWorkspace("ws" + random.nextInt(50));
+            filter.setLayer("l" + random.nextInt(size / 10));
+            filters.add(filter);
+        }
+        return filters;
+    }
+
+    /**
+     * Fills the lists with random filters, each one with the given number of groups.
+     */
+    static void createRandomGroupFilters(int groupCount, int count, Random random,
+            List<RuleFilter> filters, List<List<IdNameFilter>> groupFilters) {
+        for (int i = 0; i < count; i++) {
+            RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+            filter.setUser((long)random.nextInt(100));
+            filter.setService("WMS");
+            filter.setRequest("GETMAP");
+            filter.setWorkspace("ws" + random.nextInt(50));
+            filter.setLayer("l" + random.nextInt(1000));
+            filters.add(filter);
+
+            List<IdNameFilter> groups = new ArrayList<IdNameFilter>();
+            int first = random.nextInt(50);
+            for (int g = 0; g < groupCount; g++) {
+                groups.add(new IdNameFilter(1000 + (first + g) % 50));
+            }
+            groupFilters.add(groups);
+        }
+    }
+
+    /**
+     * The matching logic the index replaces.
+     */
+    static List<Rule> linearMatch(List<Rule> rules, RuleFilter filter) {
+        List<Rule> ret = new ArrayList<Rule>();
+        for (Rule rule : rules) {
+            boolean match =
+                    (rule.getGsuser() == null || rule.getGsuser().getId().equals(filter.getUser().getId()))
+                    && (rule.getUserGroup() == null || rule.getUserGroup().getId().equals(filter.getUserGroup().getId()))
+                    && (rule.getInstance() == null || rule.getInstance().getName().equals(filter.getInstance().getName()))
+                    && (rule.getService() == null || rule.getService().equals(filter.getService().getName()))
+                    && (rule.getRequest() == null || rule.getRequest().equals(filter.getRequest().getName()))
+                    && (rule.getWorkspace() == null || rule.getWorkspace().equals(filter.getWorkspace().getName()))
+                    && (rule.getLayer() == null || rule.getLayer().equals(filter.getLayer().getName()));
+            if(match) {
+                ret.add(rule);
+            }
+        }
+        return ret; // rules are created in priority order
+    }
+
+    private static void assertIds(List<Rule> rules, long... ids) {
+        assertEquals("Bad rules " + rules, ids.length, rules.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("Bad rules " + rules, ids[i], rules.get(i).getId().longValue());
+        }
+    }
+
+    private static Rule createRule(long id, long priority, GSUser user, UserGroup group, GSInstance instance,
+            String service, String request, String workspace, String layer, GrantType grant) {
+        Rule rule = new Rule(priority, user, group, instance, service, request, workspace, layer, grant);
+        rule.setId(id);
+        return rule;
+    }
+
+    private static GSUser createUser(long id, String name) {
+        GSUser user = new GSUser();
+        user.setId(id);
+        user.setName(name);
+        return user;
+    }
+
+    private static UserGroup createGroup(long id, String name) {
+        UserGroup group = new UserGroup();
+        group.setId(id);
+        group.setName(name);
+        return group;
+    }
+
+    private static GSInstance createInstance(long id, String name) {
+        GSInstance instance = new GSInstance();
+        instance.setId(id);
+        instance.setName(name);
+        return instance;
+    }
+}
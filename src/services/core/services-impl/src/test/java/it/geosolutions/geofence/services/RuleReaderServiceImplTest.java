@@ -20,6 +20,7 @@
 
 package it.geosolutions.geofence.services;
 
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
@@ -35,6 +36,10 @@ import it.geosolutions.geofence.services.dto.RuleFilter;
 import it.geosolutions.geofence.services.dto.RuleFilter.SpecialFilterType;
 import it.geosolutions.geofence.services.dto.ShortRule;
 import it.geosolutions.geofence.services.exception.NotFoundServiceEx;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.Inet4Address;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -309,6 +314,90 @@ public class RuleReaderServiceImplTest extends ServiceTestBase {
         assertEquals(GrantType.DENY, accessInfo.getGrant());
     }
 
+    @Test
+    public void testRuleSetVersion() throws NotFoundServiceEx {
+        assertEquals(0, ruleAdminService.getCountAll());
+
+        RuleFilter filter = new RuleFilter(SpecialFilterType.ANY);
+        filter.setService("WCS");
+
+        AccessInfo accessInfo = ruleReaderService.getAccessInfo(filter);
+        assertEquals(GrantType.DENY, accessInfo.getGrant());
+        long v0 = accessInfo.getRuleSetVersion();
+        assertTrue(v0 > 0);
+
+        Rule rule = new Rule(10, null, null, null,   "WCS", null, null, null, GrantType.ALLOW);
+        ruleAdminService.insert(rule);
+
+        accessInfo = ruleReaderService.getAccessInfo(filter);
+        assertEquals(GrantType.ALLOW, accessInfo.getGrant());
+        long v1 = accessInfo.getRuleSetVersion();
+        assertTrue(v1 > v0);
+
+        rule.setAccess(GrantType.DENY);
+        ruleAdminService.update(rule);
+
+        accessInfo = ruleReaderService.getAccessInfo(filter);
+        assertEquals(GrantType.DENY, accessInfo.getGrant());
+        assertTrue(accessInfo.getRuleSetVersion() > v1);
+    }
+
+    @Test
+    public void testUserCacheInvalidation() throws NotFoundServiceEx {
+        assertEquals(0, ruleAdminService.getCountAll());
+
+        UserGroup g1 = createUserGroup("g1");
+        GSUser u1 = createUser("u1");
+
+        ruleAdminService.insert(new Rule(10, null, g1, null,   "WMS", null, null, null, GrantType.ALLOW));
+
+        RuleFilter filter = new RuleFilter(SpecialFilterType.ANY);
+        filter.setUser(u1.getName());
+        filter.setService("WMS");
+
+        // load the user in the cache
+        assertEquals(GrantType.DENY, ruleReaderService.getAccessInfo(filter).getGrant());
+        assertEquals(GrantType.DENY, ruleReaderService.getAccessInfo(filter).getGrant());
+
+        GSUser user = userAdminService.getFull(u1.getId());
+        user.getGroups().add(g1);
+        userAdminService.update(user);
+
+        assertEquals(GrantType.ALLOW, ruleReaderService.getAccessInfo(filter).getGrant());
+    }
+
+    @Test
+    public void testAreaWkb() throws Exception {
+        assertEquals(0, ruleAdminService.getCountAll());
+
+        MultiPolygon area = parseMultiPolygon("MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)))");
+
+        Rule r1 = new Rule(10, null, null, null,   null, null, null, "l1", GrantType.ALLOW);
+        ruleAdminService.insert(r1);
+        LayerDetails d1 = new LayerDetails();
+        d1.setArea(area);
+        ruleAdminService.setDetails(r1.getId(), d1);
+
+        RuleFilter filter = new RuleFilter(SpecialFilterType.ANY);
+        filter.setLayer("l1");
+        AccessInfo accessInfo = ruleReaderService.getAccessInfo(filter);
+        assertEquals(GrantType.ALLOW, accessInfo.getGrant());
+        assertNotNull(accessInfo.getAreaWkb());
+
+        // serialize it as the remote invocation would
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(accessInfo);
+        oos.close();
+        AccessInfo copy = (AccessInfo) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+
+        Geometry decoded = copy.getArea();
+        assertTrue(area.equals(decoded));
+        assertEquals(accessInfo.getAreaSrid(), decoded.getSRID());
+        assertSame(decoded, copy.getArea()); // memoized
+        assertTrue(area.equals(new WKTReader().read(copy.getAreaWkt())));
+    }
+
     @Test
     public void testGroups() {
         assertEquals(0, ruleAdminService.getCountAll());
@@ -396,6 +485,46 @@ public class RuleReaderServiceImplTest extends ServiceTestBase {
         assertEquals(GrantType.DENY, ruleReaderService.getAccessInfo(filterU2).getGrant());
     }
 
+    @Test
+    public void testGetAccessInfos() {
+        assertEquals(0, ruleAdminService.getCountAll());
+
+        UserGroup g1 = createUserGroup("p1");
+        GSUser u1 = createUser("u1", g1);
+
+        ruleAdminService.insert(new Rule(10, null, g1, null,   null, null, "w1", "l1", GrantType.ALLOW));
+        ruleAdminService.insert(new Rule(20, null, g1, null,   null, null, "w1", null, GrantType.DENY));
+        ruleAdminService.insert(new Rule(30, null, null, null, null, null, "w2", null, GrantType.ALLOW));
+
+        List<RuleFilter> filters = new ArrayList<RuleFilter>();
+        for (String layer : Arrays.asList("l1", "l2")) {
+            RuleFilter filter = new RuleFilter(SpecialFilterType.ANY);
+            filter.setUser(u1.getName());
+            filter.setWorkspace("w1");
+            filter.setLayer(layer);
+            filters.add(filter);
+        }
+        RuleFilter anon = new RuleFilter(SpecialFilterType.ANY);
+        anon.setUser(SpecialFilterType.DEFAULT);
+        anon.setWorkspace("w2");
+        filters.add(anon);
+
+        List<AccessInfo> infos = ruleReaderService.getAccessInfos(filters);
+        assertEquals(3, infos.size());
+        assertEquals(GrantType.ALLOW, infos.get(0).getGrant());
+        assertEquals(GrantType.DENY,  infos.get(1).getGrant());
+        assertEquals(GrantType.ALLOW, infos.get(2).getGrant());
+
+        // same results as the single calls, on the same rule set
+        for (int i = 0; i < filters.size(); i++) {
+            AccessInfo single = ruleReaderService.getAccessInfo(filters.get(i));
+            assertEquals(single.getGrant(), infos.get(i).getGrant());
+            assertEquals(single.getRuleSetVersion(), infos.get(i).getRuleSetVersion());
+        }
+
+        assertTrue(ruleReaderService.getAccessInfos(new ArrayList<RuleFilter>()).isEmpty());
+    }
+
     @Test
     public void testGroupOrder02() {
         assertEquals(0, ruleAdminService.getCountAll());
@@ -0,0 +1,65 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services;
+
+import com.vividsolutions.jts.geom.MultiPolygon;
+import it.geosolutions.geofence.core.model.GSUser;
+import org.junit.Test;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class UserAreaCacheTest extends ServiceTestBase {
+
+    @Test
+    public void testUserArea() {
+        UserAreaCache cache = (UserAreaCache)ctx.getBean("userAreaCache");
+
+        GSUser user = new GSUser();
+        user.setId(42l);
+        user.setName("u42");
+
+        assertNull(cache.getArea(user, "area"));
+
+        user.getMetadata().put("area", "SRID=3003;POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))");
+        GeometryCache.Area area = cache.getArea(user, "area");
+        assertNotNull(area);
+        assertNotNull(area.getKey());
+        assertTrue(area.getGeometry() instanceof MultiPolygon);
+        assertEquals(3003, area.getGeometry().getSRID());
+
+        // parsed only once
+        assertSame(area.getGeometry(), cache.getArea(user, "area").getGeometry());
+
+        // a new value is parsed again
+        user.getMetadata().put("area", "MULTIPOLYGON(((0 0, 5 0, 5 5, 0 5, 0 0)))");
+        GeometryCache.Area area2 = cache.getArea(user, "area");
+        assertNotSame(area.getGeometry(), area2.getGeometry());
+        assertFalse(area.getKey().equals(area2.getKey()));
+        assertEquals(4326, area2.getGeometry().getSRID());
+
+        // not a polygon
+        user.getMetadata().put("area", "POINT(1 1)");
+        assertNull(cache.getArea(user, "area"));
+        user.getMetadata().put("area", "unparsable");
+        assertNull(cache.getArea(user, "area"));
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.rpc;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import it.geosolutions.geofence.core.model.LayerAttribute;
+import it.geosolutions.geofence.core.model.enums.AccessType;
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.dto.AccessInfo;
+import it.geosolutions.geofence.services.dto.AuthUser;
+import it.geosolutions.geofence.services.dto.RuleFilter;
+import it.geosolutions.geofence.services.dto.ShortRule;
+import it.geosolutions.geofence.services.exception.BadRequestServiceEx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RuleReaderCodecTest extends TestCase {
+
+    private final static Logger LOGGER = LogManager.getLogger(RuleReaderCodecTest.class);
+
+    private final RuleReaderCodec codec = new RuleReaderCodec();
+
+    @Test
+    public void testInvocations() throws Exception {
+        RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+        filter.setUser("u1");
+        filter.setUserGroup(12L);
+        filter.getUserGroup().setIncludeDefault(false);
+        filter.setInstance(RuleFilter.SpecialFilterType.DEFAULT);
+        filter.setService("wms");
+        filter.setRequest("GetMap");
+        filter.setWorkspace("ws1");
+        filter.getWorkspace().setIncludeDefault(true);
+        filter.setSourceAddress(InetAddress.getByName("10.0.0.1"));
+
+        RemoteInvocation invocation = roundTrip(new RemoteInvocation("getAccessInfo",
+                new Class[]{RuleFilter.class}, new Object[]{filter}));
+        assertEquals("getAccessInfo", invocation.getMethodName());
+        RuleFilter decoded = (RuleFilter) invocation.getArguments()[0];
+        assertEquals(filter, decoded);
+        assertEquals(filter.getSourceAddress(), decoded.getSourceAddress());
+
+        List<RuleFilter> filters = Arrays.asList(filter, new RuleFilter(), null);
+        invocation = roundTrip(new RemoteInvocation("getAccessInfos",
+                new Class[]{List.class}, new Object[]{filters}));
+        assertEquals(filters, invocation.getArguments()[0]);
+
+        invocation = roundTrip(new RemoteInvocation("getMatchingRules",
+                new Class[]{String.class, String.class, String.class, String.class, String.class, String.class, String.class},
+                new Object[]{"u1", null, "*", "WMS", null, "ws1", "ws1"}));
+        assertEquals(7, invocation.getParameterTypes().length);
+        assertEquals(Arrays.asList("u1", null, "*", "WMS", null, "ws1", "ws1"), Arrays.asList(invocation.getArguments()));
+
+        invocation = roundTrip(new RemoteInvocation("authorize",
+                new Class[]{String.class, String.class}, new Object[]{"u1", "pw"}));
+        assertEquals(Arrays.asList("u1", "pw"), Arrays.asList(invocation.getArguments()));
+    }
+
+    @Test
+    public void testResults() throws Exception {
+        AccessInfo ai = createAccessInfo(200);
+        AccessInfo decoded = (AccessInfo) roundTrip(new RemoteInvocationResult(ai)).getValue();
+        assertEquals(ai.getGrant(), decoded.getGrant());
+        assertEquals(ai.getRuleSetVersion(), decoded.getRuleSetVersion());
+        assertTrue(Arrays.equals(ai.getAreaWkb(), decoded.getAreaWkb()));
+        assertEquals(ai.getAreaSrid(), decoded.getAreaSrid());
+        assertEquals(ai.getCqlFilterRead(), decoded.getCqlFilterRead());
+        assertNull(decoded.getCqlFilterWrite());
+        assertEquals(ai.getDefaultStyle(), decoded.getDefaultStyle());
+        assertEquals(ai.getAllowedStyles(), decoded.getAllowedStyles());
+        assertEquals(ai.getAttributes(), decoded.getAttributes());
+        assertTrue(decoded.isUnmatched());
+
+        AccessInfo wkt = new AccessInfo(GrantType.LIMIT);
+        wkt.setAreaWkt("MULTIPOLYGON(((0 0, 0 1, 1 1, 1 0, 0 0)))");
+        assertEquals(wkt.getAreaWkt(), ((AccessInfo) roundTrip(new RemoteInvocationResult(wkt)).getValue()).getAreaWkt());
+
+        ShortRule rule = new ShortRule();
+        rule.setId(3L);
+        rule.setPriority(30);
+        rule.setUserName("u1");
+        rule.setInstanceId(5L);
+        rule.setLayer("l1");
+        rule.setAccess(GrantType.ALLOW);
+        List<ShortRule> rules = (List<ShortRule>) roundTrip(new RemoteInvocationResult(Arrays.asList(rule))).getValue();
+        assertEquals(rule.toString(), rules.get(0).toString());
+
+        AuthUser user = (AuthUser) roundTrip(new RemoteInvocationResult(new AuthUser("u1", AuthUser.Role.ADMIN))).getValue();
+        assertEquals(new AuthUser("u1", AuthUser.Role.ADMIN), user);
+
+        assertNull(roundTrip(new RemoteInvocationResult((Object) null)).getValue());
+        assertEquals(0, ((List) roundTrip(new RemoteInvocationResult(new ArrayList())).getValue()).size());
+
+        RemoteInvocationResult error = roundTrip(new RemoteInvocationResult(
+                new InvocationTargetException(new BadRequestServiceEx("bad filter"))));
+        try {
+            error.recreate();
+            fail("Exception not recreated");
+        } catch (BadRequestServiceEx e) {
+            assertEquals("bad filter", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBadPrefixes() throws Exception {
+        // list sizes and lengths larger than the max length
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFOS, Integer.MAX_VALUE));
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFO_NAMES, 1, Integer.MAX_VALUE));
+        // varints not fitting in an int
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFOS, 1L << 32));
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFO_NAMES, 1, Long.MAX_VALUE));
+        // negative sizes, lengths and string references
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFOS, -5));
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFO_NAMES, 1, -5));
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFO_NAMES, -5));
+        // sizes allowed but not followed by the data
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFOS, 1000001));
+        assertBadInvocation(message(RuleReaderCodec.GET_ACCESS_INFO_NAMES, 1, 1000000));
+
+        RuleReaderCodec small = new RuleReaderCodec();
+        small.setMaxLength(10);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        small.writeInvocation(new RemoteInvocation("authorize",
+                new Class[]{String.class, String.class}, new Object[]{"u1", "a password too long"}), baos);
+        try {
+            small.readInvocation(new ByteArrayInputStream(baos.toByteArray()));
+            fail("Length larger than the max length not detected");
+        } catch (IOException e) {
+            LOGGER.debug("Expected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the payload and the encoding time against the Java serialization used by
+     * the HTTP invoker, for a batch of filters and the related decisions.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        List<RuleFilter> filters = new ArrayList<RuleFilter>();
+        List<AccessInfo> infos = new ArrayList<AccessInfo>();
+        for (int i = 0; i < 50; i++) {
+            RuleFilter filter = new RuleFilter(RuleFilter.SpecialFilterType.ANY);
+            filter.setUser("user" + (i % 3));
+            filter.setInstance("gs1");
+            filter.setService("WMS");
+            filter.setRequest("GETMAP");
+            filter.setWorkspace("topp");
+            filter.setLayer("layer" + i);
+            filters.add(filter);
+            infos.add(createAccessInfo(i % 5 == 0 ? 500 : 0));
+        }
+        RemoteInvocation invocation = new RemoteInvocation("getAccessInfos", new Class[]{List.class}, new Object[]{filters});
+        RemoteInvocationResult result = new RemoteInvocationResult(infos);
+
+        int loops = 200;
+        long javaBytes = 0;
+        long binaryBytes = 0;
+
+        // warm up
+        for (int i = 0; i < loops; i++) {
+            javaRoundTrip(invocation, result);
+            binaryRoundTrip(invocation, result);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            javaBytes = javaRoundTrip(invocation, result);
+        }
+        long javaNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            binaryBytes = binaryRoundTrip(invocation, result);
+        }
+        long binaryNanos = System.nanoTime() - start;
+
+        LOGGER.info("Java serialization: " + javaBytes + " bytes, " + javaNanos / loops / 1000 + "us per call");
+        LOGGER.info("Binary encoding: " + binaryBytes + " bytes, " + binaryNanos / loops / 1000 + "us per call");
+
+        assertTrue("Binary payload is not smaller: " + binaryBytes + " vs " + javaBytes, binaryBytes * 2 < javaBytes);
+    }
+
+    // =========================================================================
+
+    private AccessInfo createAccessInfo(int areaPoints) {
+        AccessInfo ai = new AccessInfo(GrantType.LIMIT);
+        ai.setRuleSetVersion(42);
+        ai.setCqlFilterRead("STATE_NAME = 'Texas'");
+        ai.setDefaultStyle("population");
+        ai.setAllowedStyles(new HashSet<String>(Arrays.asList("population", "pophatch")));
+        ai.setAttributes(new HashSet<LayerAttribute>(Arrays.asList(
+                new LayerAttribute("STATE_NAME", "java.lang.String", AccessType.READONLY),
+                new LayerAttribute("PERSONS", "java.lang.Double", AccessType.NONE))));
+        ai.setUnmatched(true);
+        if (areaPoints > 0) {
+            ai.setArea(createArea(areaPoints));
+        }
+        return ai;
+    }
+
+    private Geometry createArea(int points) {
+        Coordinate[] coords = new Coordinate[points + 1];
+        for (int i = 0; i < points; i++) {
+            double angle = 2 * Math.PI * i / points;
+            coords[i] = new Coordinate(10 + Math.cos(angle), 45 + Math.sin(angle));
+        }
+        coords[points] = coords[0];
+        GeometryFactory factory = new GeometryFactory();
+        Geometry area = factory.createPolygon(factory.createLinearRing(coords), null);
+        area.setSRID(4326);
+        return area;
+    }
+
+    /**
+     * @return a message with the given invocation code followed by the given varints.
+     */
+    private byte[] message(int code, long... varints) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(RuleReaderCodec.MAGIC);
+        baos.write(RuleReaderCodec.VERSION);
+        baos.write(code);
+        for (long value : varints) {
+            while ((value & ~0x7FL) != 0) {
+                baos.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            baos.write((int) value);
+        }
+        return baos.toByteArray();
+    }
+
+    private void assertBadInvocation(byte[] message) {
+        try {
+            codec.readInvocation(new ByteArrayInputStream(message));
+            fail("Bad message not detected: " + Arrays.toString(message));
+        } catch (IOException e) {
+            LOGGER.debug("Expected: " + e.getMessage());
+        }
+    }
+
+    private RemoteInvocation roundTrip(RemoteInvocation invocation) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        codec.writeInvocation(invocation, baos);
+        return codec.readInvocation(new ByteArrayInputStream(baos.toByteArray()));
+    }
+
+    private RemoteInvocationResult roundTrip(RemoteInvocationResult result) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        codec.writeResult(result, baos);
+        return codec.readResult(new ByteArrayInputStream(baos.toByteArray()));
+    }
+
+    private long binaryRoundTrip(RemoteInvocation invocation, RemoteInvocationResult result) throws Exception {
+        ByteArrayOutputStream req = new ByteArrayOutputStream();
+        codec.writeInvocation(invocation, req);
+        codec.readInvocation(new ByteArrayInputStream(req.toByteArray()));
+
+        ByteArrayOutputStream resp = new ByteArrayOutputStream();
+        codec.writeResult(result, resp);
+        codec.readResult(new ByteArrayInputStream(resp.toByteArray()));
+        return req.size() + resp.size();
+    }
+
+    private long javaRoundTrip(RemoteInvocation invocation, RemoteInvocationResult result) throws Exception {
+        ByteArrayOutputStream req = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(req);
+        oos.writeObject(invocation);
+        oos.close();
+        new ObjectInputStream(new ByteArrayInputStream(req.toByteArray())).readObject();
+
+        ByteArrayOutputStream resp = new ByteArrayOutputStream();
+        oos = new ObjectOutputStream(resp);
+        oos.writeObject(result);
+        oos.close();
+        new ObjectInputStream(new ByteArrayInputStream(resp.toByteArray())).readObject();
+        return req.size() + resp.size();
+    }
+}
@@ -25,6 +25,8 @@ import it.geosolutions.geofence.core.dao.impl.RuleDAOImpl;
 import it.geosolutions.geofence.core.model.GSUser;
 import it.geosolutions.geofence.core.model.Rule;
 import it.geosolutions.geofence.core.model.UserGroup;
+import it.geosolutions.geofence.core.model.enums.InsertPosition;
+import java.util.List;
 
 /**
  * Implementation of RuleDAO compatible with ldap user and group daos.
@@ -122,6 +124,16 @@ public class RuleDAOLdapImpl extends RuleDAOImpl {
 
 
 
+	@Override
+	public BulkInsertReport persistAll(List<Rule> rules, InsertPosition position, int batchSize) {
+		for(Rule rule : rules) {
+			checkUserAndGroup(rule);
+		}
+		return super.persistAll(rules, position, batchSize);
+	}
+
+
+
 	@Override
 	public Rule merge(Rule entity) {		
 		checkUserAndGroup(entity);
@@ -0,0 +1,58 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.rest;
+
+import it.geosolutions.geofence.services.rest.exception.BadRequestRestEx;
+import it.geosolutions.geofence.services.rest.model.RESTDecisionList;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Returns the sampled access decisions.
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+@Path("/")
+public interface RESTDecisionTraceService {
+
+    /**
+     * @param user if set, only returns the decisions for this user name.
+     * @param layer if set, only returns the decisions on this layer.
+     * @param grant if set, only returns the decisions with this grant (ALLOW, DENY).
+     * @param max the max number of decisions to return.
+     *
+     * @return the traced decisions, the most recent first.
+     *
+     * @throws BadRequestRestEx (HTTP code 400) if parameters are illegal
+     */
+    @GET
+    @Path("/")
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+    RESTDecisionList getDecisions(
+            @QueryParam("user") String user,
+            @QueryParam("layer") String layer,
+            @QueryParam("grant") String grant,
+            @QueryParam("max") @DefaultValue("100") Integer max) throws BadRequestRestEx;
+}
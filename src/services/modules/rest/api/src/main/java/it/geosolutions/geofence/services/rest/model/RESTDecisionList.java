@@ -0,0 +1,81 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.rest.model;
+
+import it.geosolutions.geofence.services.dto.AccessDecision;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+@XmlRootElement(name = "DecisionList")
+public class RESTDecisionList {
+
+    private long decisionCount;
+    private int sampleRate;
+    private List<AccessDecision> list;
+
+    public RESTDecisionList() {
+        list = new ArrayList<AccessDecision>();
+    }
+
+    public RESTDecisionList(List<AccessDecision> list) {
+        this.list = list;
+    }
+
+    /**
+     * @return the number of decisions taken, sampled or not.
+     */
+    public long getDecisionCount() {
+        return decisionCount;
+    }
+
+    public void setDecisionCount(long decisionCount) {
+        this.decisionCount = decisionCount;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    @XmlElement(name = "Decision")
+    public List<AccessDecision> getList() {
+        return list;
+    }
+
+    public void setList(List<AccessDecision> list) {
+        this.list = list;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + list.size() + " decisions]";
+    }
+}
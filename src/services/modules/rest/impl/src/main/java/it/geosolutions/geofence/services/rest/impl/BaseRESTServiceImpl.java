@@ -24,6 +24,7 @@ import java.util.List;
 
 
 import it.geosolutions.geofence.core.model.GSUser;
+import it.geosolutions.geofence.core.model.Rule;
 import it.geosolutions.geofence.core.model.UserGroup;
 import it.geosolutions.geofence.services.InstanceAdminService;
 import it.geosolutions.geofence.services.RuleAdminService;
@@ -32,6 +33,7 @@ import it.geosolutions.geofence.services.UserAdminService;
 import it.geosolutions.geofence.services.exception.NotFoundServiceEx;
 import it.geosolutions.geofence.services.rest.exception.BadRequestRestEx;
 import it.geosolutions.geofence.services.rest.exception.NotFoundRestEx;
+import it.geosolutions.geofence.services.rest.model.RESTInputRule;
 import it.geosolutions.geofence.services.rest.model.RESTOutputUser;
 import it.geosolutions.geofence.services.rest.model.RESTShortUser;
 import it.geosolutions.geofence.services.rest.model.util.IdName;
@@ -104,6 +106,33 @@ public abstract class BaseRESTServiceImpl {
     }
 
     // ==========================================================================
+    protected Rule fromInput(RESTInputRule in) {
+        Rule rule = new Rule();
+
+        rule.setPriority(in.getPosition().getValue());
+
+        rule.setAccess(in.getGrant());
+
+        if (in.getUser() != null) {
+            rule.setGsuser(getUser(in.getUser()));
+        }
+
+        if (in.getGroup() != null) {
+            rule.setUserGroup(getUserGroup(in.getGroup()));
+        }
+
+        if (in.getInstance() != null) {
+            rule.setInstance(getInstance(in.getInstance()));
+        }
+
+        rule.setService(in.getService());
+        rule.setRequest(in.getRequest());
+        rule.setWorkspace(in.getWorkspace());
+        rule.setLayer(in.getLayer());
+
+        return rule;
+    }
+
     protected static RESTShortUser toShortUser(GSUser user) {
         RESTShortUser shu = new RESTShortUser();
         shu.setId(user.getId());
@@ -19,6 +19,8 @@
  */
 package it.geosolutions.geofence.services.rest.impl;
 
+import it.geosolutions.geofence.core.model.Rule;
+import it.geosolutions.geofence.core.model.enums.InsertPosition;
 import it.geosolutions.geofence.services.rest.RESTBatchService;
 import it.geosolutions.geofence.services.rest.RESTGSInstanceService;
 import it.geosolutions.geofence.services.rest.RESTRuleService;
@@ -34,8 +36,11 @@ import it.geosolutions.geofence.services.rest.model.RESTBatchOperation;
 import it.geosolutions.geofence.services.rest.model.RESTInputGroup;
 import it.geosolutions.geofence.services.rest.model.RESTInputInstance;
 import it.geosolutions.geofence.services.rest.model.RESTInputRule;
+import it.geosolutions.geofence.services.rest.model.RESTInputRule.RESTRulePosition.RulePosition;
 import it.geosolutions.geofence.services.rest.model.RESTInputUser;
 import it.geosolutions.geofence.services.rest.model.util.IdName;
+import java.util.ArrayList;
+import java.util.List;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
@@ -80,6 +85,8 @@ public class RESTBatchServiceImpl
         if(LOGGER.isInfoEnabled() )
             LOGGER.info("Running batch with " + batch.getList().size() + " operations");
 
+        List<RESTInputRule> pendingRules = new ArrayList<RESTInputRule>();
+
         for (RESTBatchOperation op : batch.getList()) {
             if(LOGGER.isInfoEnabled() )
                 LOGGER.info("Running " + op);
@@ -87,6 +94,13 @@ public class RESTBatchServiceImpl
             if(op.getType() == null)
                 throw new BadRequestRestEx("Operation type is missing in operation " + op);
 
+            // consecutive plain rule inserts are sent to the db together
+            if(isBulkRuleInsert(op)) {
+                pendingRules.add((RESTInputRule)op.getPayload());
+                continue;
+            }
+            insertRules(pendingRules);
+
             try {
                 switch(op.getService()) {
                     case users:
@@ -115,6 +129,53 @@ public class RESTBatchServiceImpl
                 throw new InternalErrorRestEx("Unexpected exception: " + ex.getMessage());
             }
         }
+        insertRules(pendingRules);
+    }
+
+    /**
+     * Rule inserts with a fixed priority and no constraints can be inserted in bulk.
+     */
+    private boolean isBulkRuleInsert(RESTBatchOperation op) {
+        if(op.getService() != RESTBatchOperation.ServiceName.rules || op.getType() != RESTBatchOperation.TypeName.insert)
+            return false;
+        if( ! (op.getPayload() instanceof RESTInputRule))
+            return false;
+
+        RESTInputRule rule = (RESTInputRule)op.getPayload();
+        return rule.getGrant() != null
+                && rule.getConstraints() == null
+                && rule.getPosition() != null
+                && rule.getPosition().getPosition() == RulePosition.fixedPriority;
+    }
+
+    /**
+     * Inserts the pending rules with a single duplicate check, then clears the list.
+     * <P>
+     * A duplicate rule fails the whole batch, as it would when inserting it alone: the batch transaction
+     * is rolled back, and since the rule cache is only reloaded on commit, the rules are never published.
+     */
+    private void insertRules(List<RESTInputRule> pendingRules) throws BadRequestRestEx, NotFoundRestEx, InternalErrorRestEx {
+        if(pendingRules.isEmpty())
+            return;
+
+        List<Rule> rules = new ArrayList<Rule>(pendingRules.size());
+        for (RESTInputRule inputRule : pendingRules) {
+            rules.add(fromInput(inputRule));
+        }
+
+        List<Long> ids;
+        try {
+            ids = ruleAdminService.insertAll(rules, InsertPosition.FIXED);
+        } catch(Exception ex) {
+            LOGGER.error("Unexpected error: " + ex.getMessage(), ex);
+            throw new InternalErrorRestEx("Unexpected exception: " + ex.getMessage());
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            if(ids.get(i) == null)
+                throw new ConflictRestEx("Duplicate rule " + pendingRules.get(i));
+        }
+        pendingRules.clear();
     }
 
     protected void dispatchRuleOp(RESTBatchOperation op) throws NotFoundRestEx, BadRequestRestEx {
@@ -29,6 +29,7 @@ import it.geosolutions.geofence.core.model.LayerDetails;
 import it.geosolutions.geofence.core.model.UserGroup;
 import it.geosolutions.geofence.core.model.Rule;
 import it.geosolutions.geofence.core.model.RuleLimits;
+import it.geosolutions.geofence.core.model.enums.InsertPosition;
 import it.geosolutions.geofence.services.GFUserAdminService;
 import it.geosolutions.geofence.services.GetProviderService;
 import it.geosolutions.geofence.services.InstanceAdminService;
@@ -507,7 +508,7 @@ public class RESTConfigServiceImpl implements RESTConfigService {
      */
     @Override
     public void setRules(RESTOutputRuleList rules) throws BadRequestRestEx, NotFoundRestEx, InternalErrorRestEx {
-        int okCnt = 0;
+        List<Rule> toInsert = new ArrayList<Rule>(rules.getList().size());
         Map<String, UserGroup>  groups = new HashMap<String, UserGroup>();
         Map<String, GSUser>     users = new HashMap<String, GSUser>();
         Map<String, GSInstance> instances = new HashMap<String, GSInstance>();
@@ -553,8 +554,7 @@ public class RESTConfigServiceImpl implements RESTConfigService {
                 out.setWorkspace(in.getWorkspace());
                 out.setLayer(in.getLayer());
 
-                long ruleid = ruleAdminService.insert(out);
-                okCnt++;
+                toInsert.add(out);
 
                 if (in.getConstraints() != null) {
                     LOGGER.warn("TODO::: Constraints exist but will not be inserted for rule " + out);
@@ -563,6 +563,19 @@ public class RESTConfigServiceImpl implements RESTConfigService {
                 LOGGER.info("Could not add rule " +in +": " + e.getMessage());
             }
         }
+
+        // duplicates are checked and skipped by the bulk insert
+        int okCnt = 0;
+        try {
+            for (Long id : ruleAdminService.insertAll(toInsert, InsertPosition.FIXED)) {
+                if(id != null) {
+                    okCnt++;
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Could not add rules: " + e.getMessage(), e);
+            throw new InternalErrorRestEx("Could not add rules: " + e.getMessage());
+        }
         LOGGER.info(okCnt+"/"+rules.getList().size() + " items inserted");
     }
 
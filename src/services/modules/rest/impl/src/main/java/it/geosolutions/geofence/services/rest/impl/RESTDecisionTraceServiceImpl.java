@@ -0,0 +1,59 @@
+/*
+ *  Copyright (C) 2007 - 2014 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.geofence.services.rest.impl;
+
+import it.geosolutions.geofence.core.model.enums.GrantType;
+import it.geosolutions.geofence.services.DecisionTraceServiceImpl;
+import it.geosolutions.geofence.services.rest.RESTDecisionTraceService;
+import it.geosolutions.geofence.services.rest.exception.BadRequestRestEx;
+import it.geosolutions.geofence.services.rest.model.RESTDecisionList;
+
+/**
+ *
+ * @author ETj (etj at geo-solutions.it)
+ */
+public class RESTDecisionTraceServiceImpl implements RESTDecisionTraceService {
+
+    private DecisionTraceServiceImpl decisionTraceService;
+
+    @Override
+    public RESTDecisionList getDecisions(String user, String layer, String grant, Integer max) throws BadRequestRestEx {
+        GrantType grantType = null;
+        if(grant != null) {
+            try {
+                grantType = GrantType.valueOf(grant.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestRestEx("Bad grant type " + grant);
+            }
+        }
+        if(max == null || max < 0) {
+            throw new BadRequestRestEx("Bad max value " + max);
+        }
+
+        RESTDecisionList ret = new RESTDecisionList(decisionTraceService.getDecisions(user, layer, grantType, max));
+        ret.setDecisionCount(decisionTraceService.getDecisionCount());
+        ret.setSampleRate(decisionTraceService.getSampleRate());
+        return ret;
+    }
+
+    public void setDecisionTraceService(DecisionTraceServiceImpl decisionTraceService) {
+        this.decisionTraceService = decisionTraceService;
+    }
+}
@@ -517,33 +517,6 @@ public class RESTRuleServiceImpl
         return out;
     }
 
-    protected Rule fromInput(RESTInputRule in) {
-        Rule rule = new Rule();
-
-        rule.setPriority(in.getPosition().getValue());
-
-        rule.setAccess(in.getGrant());
-
-        if (in.getUser() != null) {
-            rule.setGsuser(getUser(in.getUser()));
-        }
-
-        if (in.getGroup() != null) {
-            rule.setUserGroup(getUserGroup(in.getGroup()));
-        }
-
-        if (in.getInstance() != null) {
-            rule.setInstance(getInstance(in.getInstance()));
-        }
-
-        rule.setService(in.getService());
-        rule.setRequest(in.getRequest());
-        rule.setWorkspace(in.getWorkspace());
-        rule.setLayer(in.getLayer());
-
-        return rule;
-    }
-
     protected LayerDetails detailsFromInput(RESTInputRule in) {
         RESTLayerConstraints constraints = in.getConstraints();
         if (constraints != null) {